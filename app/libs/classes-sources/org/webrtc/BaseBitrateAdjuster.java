@@ -27,4 +27,8 @@ class BaseBitrateAdjuster implements BitrateAdjuster {
     public int getCodecConfigFramerate() {
         return this.targetFps;
     }
+
+    @Override // org.webrtc.BitrateAdjuster
+    public void resetCodecConfigFramerate(int maxFramerate) {
+    }
 }
@@ -9,4 +9,6 @@ interface BitrateAdjuster {
     int getAdjustedBitrateBps();
 
     int getCodecConfigFramerate();
+
+    void resetCodecConfigFramerate(int i);
 }
@@ -14,7 +14,7 @@ public class DefaultVideoEncoderFactory implements VideoEncoderFactory {
         this.hardwareVideoEncoderFactory = new HardwareVideoEncoderFactory(eglContext, enableIntelVp8Encoder, enableH264HighProfile);
     }
 
-    DefaultVideoEncoderFactory(VideoEncoderFactory hardwareVideoEncoderFactory) {
+    public DefaultVideoEncoderFactory(VideoEncoderFactory hardwareVideoEncoderFactory) {
         this.hardwareVideoEncoderFactory = hardwareVideoEncoderFactory;
     }
 
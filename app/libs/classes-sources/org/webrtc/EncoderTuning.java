@@ -0,0 +1,195 @@
+package org.webrtc;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.util.Range;
+
+/**
+ * Optional MediaCodec configuration for {@link HardwareVideoEncoder} on top of the stock CBR setup:
+ * bitrate mode, latency hints, realtime priority, operating rate and periodic intra refresh.
+ * A tuning is built once by the app, then {@link #resolve} drops whatever the chosen codec does not
+ * report as supported. Keys a codec cannot be asked about (latency, priority) are still applied; if
+ * configure() rejects the tuned format the encoder falls back to the plain format.
+ */
+public final class EncoderTuning {
+    private static final String TAG = "EncoderTuning";
+    public static final int BITRATE_MODE_CQ = 0;
+    public static final int BITRATE_MODE_VBR = 1;
+    public static final int BITRATE_MODE_CBR = 2;
+    private static final int PRIORITY_REALTIME = 0;
+
+    public final String name;
+    public final int bitrateMode;
+    public final int latencyFrames;
+    public final boolean lowLatency;
+    public final boolean realtimePriority;
+    public final int operatingRateFps;
+    public final int intraRefreshPeriodFrames;
+    public final int keyFrameIntervalSec;
+    public final int quality;
+
+    private EncoderTuning(Builder builder) {
+        this.name = builder.name;
+        this.bitrateMode = builder.bitrateMode;
+        this.latencyFrames = builder.latencyFrames;
+        this.lowLatency = builder.lowLatency;
+        this.realtimePriority = builder.realtimePriority;
+        this.operatingRateFps = builder.operatingRateFps;
+        this.intraRefreshPeriodFrames = builder.intraRefreshPeriodFrames;
+        this.keyFrameIntervalSec = builder.keyFrameIntervalSec;
+        this.quality = builder.quality;
+    }
+
+    public static Builder builder(String name) {
+        return new Builder(name);
+    }
+
+    private Builder toBuilder() {
+        return new Builder(this.name).setBitrateMode(this.bitrateMode).setLatencyFrames(this.latencyFrames).setLowLatency(this.lowLatency).setRealtimePriority(this.realtimePriority).setOperatingRateFps(this.operatingRateFps).setIntraRefreshPeriodFrames(this.intraRefreshPeriodFrames).setKeyFrameIntervalSec(this.keyFrameIntervalSec).setQuality(this.quality);
+    }
+
+    /**
+     * Returns this tuning restricted to what {@code caps} and the running SDK support. Every dropped
+     * setting is logged once here, so a profile that silently does nothing shows up in logcat.
+     */
+    EncoderTuning resolve(String codecName, MediaCodecInfo.CodecCapabilities caps) {
+        Builder b = toBuilder();
+        MediaCodecInfo.EncoderCapabilities encoderCaps = caps.getEncoderCapabilities();
+        if (this.bitrateMode != BITRATE_MODE_CBR && (encoderCaps == null || !encoderCaps.isBitrateModeSupported(this.bitrateMode))) {
+            Logging.m3w(TAG, codecName + ": bitrate mode " + this.bitrateMode + " not supported, using CBR");
+            b.setBitrateMode(BITRATE_MODE_CBR);
+        }
+        if (b.bitrateMode == BITRATE_MODE_CQ) {
+            if (Build.VERSION.SDK_INT >= 28 && encoderCaps != null) {
+                Range<Integer> range = encoderCaps.getQualityRange();
+                int q = this.quality >= 0 ? this.quality : range.getLower() + (range.getUpper() - range.getLower()) * 3 / 4;
+                b.setQuality(range.clamp(q));
+            } else {
+                b.setQuality(-1);
+            }
+        } else {
+            b.setQuality(-1);
+        }
+        if (this.latencyFrames > 0 && Build.VERSION.SDK_INT < 26) {
+            b.setLatencyFrames(0);
+        }
+        if (this.lowLatency && (Build.VERSION.SDK_INT < 30 || !caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency))) {
+            Logging.m3w(TAG, codecName + ": low-latency mode not supported");
+            b.setLowLatency(false);
+        }
+        if (Build.VERSION.SDK_INT < 23) {
+            b.setRealtimePriority(false);
+            b.setOperatingRateFps(0);
+        } else if (this.operatingRateFps > 0 && caps.getVideoCapabilities() != null) {
+            int maxFps = caps.getVideoCapabilities().getSupportedFrameRates().getUpper();
+            b.setOperatingRateFps(Math.min(this.operatingRateFps, maxFps));
+        }
+        if (this.intraRefreshPeriodFrames > 0 && (Build.VERSION.SDK_INT < 24 || !caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh))) {
+            Logging.m3w(TAG, codecName + ": intra refresh not supported, keeping periodic key frames");
+            b.setIntraRefreshPeriodFrames(0);
+            b.setKeyFrameIntervalSec(0);
+        }
+        return b.createEncoderTuning();
+    }
+
+    /** Adds the tuning keys to {@code format}, which already carries the stock CBR configuration. */
+    void applyTo(MediaFormat format) {
+        format.setInteger("bitrate-mode", this.bitrateMode);
+        if (this.quality >= 0) {
+            format.setInteger("quality", this.quality);
+        }
+        if (this.keyFrameIntervalSec > 0) {
+            format.setInteger("i-frame-interval", this.keyFrameIntervalSec);
+        }
+        if (this.latencyFrames > 0) {
+            format.setInteger("latency", this.latencyFrames);
+        }
+        if (this.lowLatency) {
+            format.setInteger("low-latency", 1);
+        }
+        if (this.realtimePriority) {
+            format.setInteger("priority", PRIORITY_REALTIME);
+        }
+        if (this.operatingRateFps > 0) {
+            format.setInteger("operating-rate", this.operatingRateFps);
+        }
+        if (this.intraRefreshPeriodFrames > 0) {
+            format.setInteger("intra-refresh-period", this.intraRefreshPeriodFrames);
+        }
+    }
+
+    public String toString() {
+        return this.name + "{mode=" + this.bitrateMode + ", latency=" + this.latencyFrames + ", lowLatency=" + this.lowLatency + ", realtime=" + this.realtimePriority + ", operatingRate=" + this.operatingRateFps + ", intraRefresh=" + this.intraRefreshPeriodFrames + ", keyFrameInterval=" + this.keyFrameIntervalSec + ", quality=" + this.quality + "}";
+    }
+
+    public static class Builder {
+        private final String name;
+        private int bitrateMode = BITRATE_MODE_CBR;
+        private int latencyFrames;
+        private boolean lowLatency;
+        private boolean realtimePriority;
+        private int operatingRateFps;
+        private int intraRefreshPeriodFrames;
+        private int keyFrameIntervalSec;
+        private int quality = -1;
+
+        private Builder(String name) {
+            this.name = name;
+        }
+
+        public Builder setBitrateMode(int bitrateMode) {
+            this.bitrateMode = bitrateMode;
+            return this;
+        }
+
+        /** Frames the encoder may hold before producing output; 1 asks for no lookahead (API 26+). */
+        public Builder setLatencyFrames(int latencyFrames) {
+            this.latencyFrames = latencyFrames;
+            return this;
+        }
+
+        /** FEATURE_LowLatency, only where the codec reports it (API 30+). */
+        public Builder setLowLatency(boolean lowLatency) {
+            this.lowLatency = lowLatency;
+            return this;
+        }
+
+        public Builder setRealtimePriority(boolean realtimePriority) {
+            this.realtimePriority = realtimePriority;
+            return this;
+        }
+
+        /** Rate the codec should be clocked for, clamped to the codec's maximum; 0 leaves it unset. */
+        public Builder setOperatingRateFps(int operatingRateFps) {
+            this.operatingRateFps = operatingRateFps;
+            return this;
+        }
+
+        /**
+         * Spreads intra coding over this many frames instead of sending periodic IDR frames. Only
+         * honoured with FEATURE_IntraRefresh; pair it with a long {@link #setKeyFrameIntervalSec}.
+         */
+        public Builder setIntraRefreshPeriodFrames(int intraRefreshPeriodFrames) {
+            this.intraRefreshPeriodFrames = intraRefreshPeriodFrames;
+            return this;
+        }
+
+        /** Overrides the factory's i-frame-interval; 0 keeps it. */
+        public Builder setKeyFrameIntervalSec(int keyFrameIntervalSec) {
+            this.keyFrameIntervalSec = keyFrameIntervalSec;
+            return this;
+        }
+
+        /** CQ quality level; -1 picks one from the codec's quality range (API 28+). */
+        public Builder setQuality(int quality) {
+            this.quality = quality;
+            return this;
+        }
+
+        public EncoderTuning createEncoderTuning() {
+            return new EncoderTuning(this);
+        }
+    }
+}
@@ -1,15 +1,14 @@
 package org.webrtc;
 
 import android.content.Context;
-import android.os.SystemClock;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.TimeUnit;
 
 /* loaded from: classes.jar:org/webrtc/FileVideoCapturer.class */
 public class FileVideoCapturer implements VideoCapturer {
@@ -31,97 +30,182 @@ public class FileVideoCapturer implements VideoCapturer {
         void close();
     }
 
+    /**
+     * Y4M reader over a read-only memory mapping of the file. The frame offsets are indexed once
+     * when the file is opened and every frame's plane views are created up front, so producing a
+     * frame is a wrap of existing views with no copy and no file I/O. Files larger than one
+     * mapping are split into several mappings on frame boundaries.
+     */
     /* loaded from: classes.jar:org/webrtc/FileVideoCapturer$VideoReaderY4M.class */
     private static class VideoReaderY4M implements VideoReader {
         private static final String TAG = "VideoReaderY4M";
         private static final String Y4M_FRAME_DELIMETER = "FRAME";
-        private static final int FRAME_DELIMETER_LENGTH = Y4M_FRAME_DELIMETER.length() + 1;
+        private static final int MAX_FRAME_HEADER_LENGTH = 256;
+        private static final long MAX_MAPPING_SIZE = 1L << 30;
         private final int frameWidth;
         private final int frameHeight;
-        private final long videoStart;
+        private final int chromaWidth;
         private final RandomAccessFile mediaFile;
         private final FileChannel mediaFileChannel;
+        private final ByteBuffer[] planesY;
+        private final ByteBuffer[] planesU;
+        private final ByteBuffer[] planesV;
+        private int nextFrame;
 
         public VideoReaderY4M(String file) throws IOException, NumberFormatException {
             this.mediaFile = new RandomAccessFile(file, "r");
-            this.mediaFileChannel = this.mediaFile.getChannel();
-            StringBuilder builder = new StringBuilder();
-            while (true) {
-                int c = this.mediaFile.read();
-                if (c == -1) {
-                    throw new RuntimeException("Found end of file before end of header for file: " + file);
-                }
-                if (c != 10) {
-                    builder.append((char) c);
-                } else {
-                    this.videoStart = this.mediaFileChannel.position();
-                    String header = builder.toString();
-                    String[] headerTokens = header.split("[ ]");
-                    int w = 0;
-                    int h = 0;
-                    String colorSpace = "";
-                    for (String tok : headerTokens) {
-                        switch (tok.charAt(0)) {
-                            case 'C':
-                                colorSpace = tok.substring(1);
-                                break;
-                            case 'H':
-                                h = Integer.parseInt(tok.substring(1));
-                                break;
-                            case 'W':
-                                w = Integer.parseInt(tok.substring(1));
-                                break;
-                        }
+            try {
+                this.mediaFileChannel = this.mediaFile.getChannel();
+                StringBuilder builder = new StringBuilder();
+                long videoStart;
+                while (true) {
+                    int c = this.mediaFile.read();
+                    if (c == -1) {
+                        throw new RuntimeException("Found end of file before end of header for file: " + file);
                     }
-                    Logging.m1d(TAG, "Color space: " + colorSpace);
-                    if (!colorSpace.equals("420") && !colorSpace.equals("420mpeg2")) {
-                        throw new IllegalArgumentException("Does not support any other color space than I420 or I420mpeg2");
+                    if (c != 10) {
+                        builder.append((char) c);
+                    } else {
+                        videoStart = this.mediaFileChannel.position();
+                        break;
                     }
-                    if (w % 2 == 1 || h % 2 == 1) {
-                        throw new IllegalArgumentException("Does not support odd width or height");
+                }
+                String header = builder.toString();
+                String[] headerTokens = header.split("[ ]");
+                int w = 0;
+                int h = 0;
+                String colorSpace = "";
+                for (String tok : headerTokens) {
+                    switch (tok.charAt(0)) {
+                        case 'C':
+                            colorSpace = tok.substring(1);
+                            break;
+                        case 'H':
+                            h = Integer.parseInt(tok.substring(1));
+                            break;
+                        case 'W':
+                            w = Integer.parseInt(tok.substring(1));
+                            break;
                     }
-                    this.frameWidth = w;
-                    this.frameHeight = h;
-                    Logging.m1d(TAG, "frame dim: (" + w + ", " + h + ")");
-                    return;
                 }
+                Logging.m1d(TAG, "Color space: " + colorSpace);
+                if (!colorSpace.equals("420") && !colorSpace.equals("420mpeg2")) {
+                    throw new IllegalArgumentException("Does not support any other color space than I420 or I420mpeg2");
+                }
+                if (w % 2 == 1 || h % 2 == 1) {
+                    throw new IllegalArgumentException("Does not support odd width or height");
+                }
+                this.frameWidth = w;
+                this.frameHeight = h;
+                this.chromaWidth = w / 2;
+                Logging.m1d(TAG, "frame dim: (" + w + ", " + h + ")");
+
+                long[] frameOffsets = indexFrames(videoStart);
+                int frameCount = frameOffsets.length;
+                if (frameCount == 0) {
+                    throw new RuntimeException("No complete frame in file: " + file);
+                }
+                this.planesY = new ByteBuffer[frameCount];
+                this.planesU = new ByteBuffer[frameCount];
+                this.planesV = new ByteBuffer[frameCount];
+                mapFrames(frameOffsets);
+                Logging.m1d(TAG, "Indexed " + frameCount + " frames");
+            } catch (IOException | RuntimeException e) {
+                // The reader is never returned, so nothing else would close the file.
+                close();
+                throw e;
             }
         }
 
-        @Override // org.webrtc.FileVideoCapturer.VideoReader
-        public VideoFrame getNextFrame() throws IOException {
-            long captureTimeNs = TimeUnit.MILLISECONDS.toNanos(SystemClock.elapsedRealtime());
-            JavaI420Buffer buffer = JavaI420Buffer.allocate(this.frameWidth, this.frameHeight);
-            ByteBuffer dataY = buffer.getDataY();
-            ByteBuffer dataU = buffer.getDataU();
-            ByteBuffer dataV = buffer.getDataV();
-            int chromaHeight = (this.frameHeight + 1) / 2;
-            int strideY = this.frameHeight * buffer.getStrideY();
-            int strideU = chromaHeight * buffer.getStrideU();
-            int strideV = chromaHeight * buffer.getStrideV();
-            try {
-                ByteBuffer frameDelim = ByteBuffer.allocate(FRAME_DELIMETER_LENGTH);
-                if (this.mediaFileChannel.read(frameDelim) < FRAME_DELIMETER_LENGTH) {
-                    this.mediaFileChannel.position(this.videoStart);
-                    if (this.mediaFileChannel.read(frameDelim) < FRAME_DELIMETER_LENGTH) {
-                        throw new RuntimeException("Error looping video");
+        /** Returns the file offset of the plane data of every complete frame. */
+        private long[] indexFrames(long videoStart) throws IOException {
+            long fileSize = this.mediaFileChannel.size();
+            int frameSize = frameSize();
+            byte[] delimiter = Y4M_FRAME_DELIMETER.getBytes("US-ASCII");
+            byte[] scratch = new byte[MAX_FRAME_HEADER_LENGTH];
+            long[] offsets = new long[16];
+            int count = 0;
+            long position = videoStart;
+            while (position < fileSize) {
+                this.mediaFile.seek(position);
+                int n = this.mediaFile.read(scratch, 0, (int) Math.min(scratch.length, fileSize - position));
+                if (n < delimiter.length + 1) {
+                    break;
+                }
+                for (int i = 0; i < delimiter.length; i++) {
+                    if (scratch[i] != delimiter[i]) {
+                        throw new RuntimeException("Frames should be delimited by FRAME plus newline, at offset " + position);
                     }
                 }
-                String frameDelimStr = new String(frameDelim.array(), Charset.forName("US-ASCII"));
-                if (!frameDelimStr.equals("FRAME\n")) {
-                    throw new RuntimeException("Frames should be delimited by FRAME plus newline, found delimter was: '" + frameDelimStr + "'");
+                // Y4M allows per-frame parameters between FRAME and the newline.
+                int newline = delimiter.length;
+                while (newline < n && scratch[newline] != 10) {
+                    newline++;
                 }
-                this.mediaFileChannel.read(dataY);
-                this.mediaFileChannel.read(dataU);
-                this.mediaFileChannel.read(dataV);
-                return new VideoFrame(buffer, 0, captureTimeNs);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                if (newline == n) {
+                    throw new RuntimeException("Frame header too long at offset " + position);
+                }
+                long planes = position + newline + 1;
+                if (planes + frameSize > fileSize) {
+                    Logging.m3w(TAG, "Ignoring truncated frame at offset " + position);
+                    break;
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = planes;
+                position = planes + frameSize;
             }
+            return Arrays.copyOf(offsets, count);
+        }
+
+        /** Maps the frames in as few read-only mappings as possible and slices their planes. */
+        private void mapFrames(long[] frameOffsets) throws IOException {
+            int sizeY = this.frameWidth * this.frameHeight;
+            int sizeUV = this.chromaWidth * (this.frameHeight / 2);
+            int frameSize = frameSize();
+            int first = 0;
+            while (first < frameOffsets.length) {
+                long mappingStart = frameOffsets[first];
+                int last = first;
+                while (last + 1 < frameOffsets.length && (frameOffsets[last + 1] + frameSize) - mappingStart <= MAX_MAPPING_SIZE) {
+                    last++;
+                }
+                MappedByteBuffer mapping = this.mediaFileChannel.map(FileChannel.MapMode.READ_ONLY, mappingStart, (frameOffsets[last] + frameSize) - mappingStart);
+                for (int i = first; i <= last; i++) {
+                    int offset = (int) (frameOffsets[i] - mappingStart);
+                    this.planesY[i] = slice(mapping, offset, sizeY);
+                    this.planesU[i] = slice(mapping, offset + sizeY, sizeUV);
+                    this.planesV[i] = slice(mapping, offset + sizeY + sizeUV, sizeUV);
+                }
+                first = last + 1;
+            }
+        }
+
+        private static ByteBuffer slice(ByteBuffer mapping, int offset, int length) {
+            ByteBuffer view = mapping.duplicate();
+            view.position(offset);
+            view.limit(offset + length);
+            return view.slice();
+        }
+
+        private int frameSize() {
+            return (this.frameWidth * this.frameHeight) + (2 * this.chromaWidth * (this.frameHeight / 2));
+        }
+
+        @Override // org.webrtc.FileVideoCapturer.VideoReader
+        public VideoFrame getNextFrame() {
+            // The VideoSource does not align timestamps, so frames are stamped on the rtc clock (CLOCK_MONOTONIC).
+            long captureTimeNs = System.nanoTime();
+            int index = this.nextFrame;
+            this.nextFrame = index + 1 == this.planesY.length ? 0 : index + 1;
+            // The mapping outlives the frame (it is only unmapped when collected), so no release callback is needed.
+            JavaI420Buffer buffer = JavaI420Buffer.wrap(this.frameWidth, this.frameHeight, this.planesY[index], this.frameWidth, this.planesU[index], this.chromaWidth, this.planesV[index], this.chromaWidth, null);
+            return new VideoFrame(buffer, 0, captureTimeNs);
         }
 
         @Override // org.webrtc.FileVideoCapturer.VideoReader
-        public void close() throws IOException {
+        public void close() {
             try {
                 this.mediaFile.close();
             } catch (IOException e) {
@@ -152,7 +236,7 @@ public class FileVideoCapturer implements VideoCapturer {
 
     @Override // org.webrtc.VideoCapturer
     public void startCapture(int width, int height, int framerate) {
-        this.timer.schedule(this.tickTask, 0L, 1000 / framerate);
+        this.timer.scheduleAtFixedRate(this.tickTask, 0L, 1000 / framerate);
     }
 
     @Override // org.webrtc.VideoCapturer
@@ -4,20 +4,47 @@ package org.webrtc;
 class FramerateBitrateAdjuster extends BaseBitrateAdjuster {
     private static final int INITIAL_FPS = 30;
 
+    // The codec stays configured at the target frame rate it had when it was last configured
+    // (INITIAL_FPS until one is known); rate changes after that are folded into the bitrate.
+    private int codecConfigFps;
+    // The unscaled target, so the scaling can be redone when the codec is reconfigured.
+    private int requestedBitrateBps;
+
     FramerateBitrateAdjuster() {
     }
 
     @Override // org.webrtc.BaseBitrateAdjuster, org.webrtc.BitrateAdjuster
     public void setTargets(int targetBitrateBps, int targetFps) {
-        if (this.targetFps == 0) {
-            targetFps = INITIAL_FPS;
+        if (this.codecConfigFps == 0) {
+            this.codecConfigFps = targetFps > 0 ? targetFps : INITIAL_FPS;
+        }
+        if (targetFps <= 0) {
+            targetFps = this.codecConfigFps;
         }
+        this.requestedBitrateBps = targetBitrateBps;
         super.setTargets(targetBitrateBps, targetFps);
-        this.targetBitrateBps = (this.targetBitrateBps * INITIAL_FPS) / this.targetFps;
+        scaleToCodecConfigFramerate();
+    }
+
+    /** Called before every (re)configuration of the codec with the frame rate cap it will have. */
+    @Override // org.webrtc.BaseBitrateAdjuster, org.webrtc.BitrateAdjuster
+    public void resetCodecConfigFramerate(int maxFramerate) {
+        if (this.targetFps <= 0) {
+            this.codecConfigFps = Math.min(INITIAL_FPS, maxFramerate);
+            return;
+        }
+        this.targetFps = Math.min(this.targetFps, maxFramerate);
+        this.codecConfigFps = this.targetFps;
+        this.targetBitrateBps = this.requestedBitrateBps;
+        scaleToCodecConfigFramerate();
+    }
+
+    private void scaleToCodecConfigFramerate() {
+        this.targetBitrateBps = (int) ((((long) this.targetBitrateBps) * this.codecConfigFps) / this.targetFps);
     }
 
     @Override // org.webrtc.BaseBitrateAdjuster, org.webrtc.BitrateAdjuster
     public int getCodecConfigFramerate() {
-        return INITIAL_FPS;
+        return this.codecConfigFps != 0 ? this.codecConfigFps : INITIAL_FPS;
     }
 }
@@ -2,15 +2,22 @@ package org.webrtc;
 
 import android.annotation.TargetApi;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.opengl.GLES20;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.view.Surface;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Map;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import org.webrtc.EglBase14;
@@ -27,10 +34,14 @@ class HardwareVideoEncoder implements VideoEncoder {
     private static final String KEY_BITRATE_MODE = "bitrate-mode";
     private static final int VIDEO_AVC_PROFILE_HIGH = 8;
     private static final int VIDEO_AVC_LEVEL_3 = 256;
-    private static final int MAX_VIDEO_FRAMERATE = 30;
+    private static final int DEFAULT_MAX_VIDEO_FRAMERATE = 30;
+    private static final int HIGH_VIDEO_FRAMERATE = 60;
     private static final int MAX_ENCODER_Q_SIZE = 2;
     private static final int MEDIA_CODEC_RELEASE_TIMEOUT_MS = 5000;
     private static final int DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US = 100000;
+    private static final int MIN_ASYNC_MODE_SDK = 23;
+    private static final int MAX_IDLE_KEY_FRAME_BUFFERS = 2;
+    private static final long COPY_STATS_INTERVAL_MS = 1000;
     private final MediaCodecWrapperFactory mediaCodecWrapperFactory;
     private final String codecName;
     private final VideoCodecMimeType codecType;
@@ -42,12 +53,23 @@ class HardwareVideoEncoder implements VideoEncoder {
     private final long forcedKeyFrameNs;
     private final BitrateAdjuster bitrateAdjuster;
     private final EglBase14.Context sharedContext;
+
+    @Nullable
+    private final EncoderTuning tuning;
+    private final int requestedMaxFramerate;
+
+    @Nullable
+    private final MediaCodecInfo.VideoCapabilities videoCapabilities;
     private final GlRectDrawer textureDrawer = new GlRectDrawer();
     private final VideoFrameDrawer videoFrameDrawer = new VideoFrameDrawer();
     private final BlockingDeque<EncodedImage.Builder> outputBuilders = new LinkedBlockingDeque();
     private final ThreadUtils.ThreadChecker encodeThreadChecker = new ThreadUtils.ThreadChecker();
     private final ThreadUtils.ThreadChecker outputThreadChecker = new ThreadUtils.ThreadChecker();
     private final BusyCount outputBuffersBusyCount = new BusyCount();
+    private final MediaCodec.BufferInfo outputBufferInfo = new MediaCodec.BufferInfo();
+    private final Object inputIndicesLock = new Object();
+    private final ArrayDeque<Integer> availableInputIndices = new ArrayDeque<>();
+    private final KeyFrameBufferPool keyFrameBufferPool = new KeyFrameBufferPool(MAX_IDLE_KEY_FRAME_BUFFERS);
     private VideoEncoder.Callback callback;
     private boolean automaticResizeOn;
 
@@ -60,6 +82,10 @@ class HardwareVideoEncoder implements VideoEncoder {
     @Nullable
     private Thread outputThread;
 
+    @Nullable
+    private HandlerThread callbackThread;
+    private boolean useAsyncMode;
+
     @Nullable
     private EglBase14 textureEglBase;
 
@@ -67,6 +93,7 @@ class HardwareVideoEncoder implements VideoEncoder {
     private Surface textureInputSurface;
     private int width;
     private int height;
+    private int maxFramerate = DEFAULT_MAX_VIDEO_FRAMERATE;
     private boolean useSurfaceMode;
     private long lastKeyFrameNs;
 
@@ -74,10 +101,18 @@ class HardwareVideoEncoder implements VideoEncoder {
     private ByteBuffer configBuffer;
     private int adjustedBitrate;
     private volatile boolean running;
+    private long copyStatsStartMs;
+    private long copiedBytesInInterval;
+    private int copiedKeyFramesInInterval;
+    private int inlineConfigKeyFramesInInterval;
+    private long totalCopiedBytes;
 
     @Nullable
     private volatile Exception shutdownException;
 
+    @Nullable
+    private volatile MediaCodec.CodecException asyncCodecException;
+
     /* loaded from: classes.jar:org/webrtc/HardwareVideoEncoder$BusyCount.class */
     private static class BusyCount {
         private final Object countLock;
@@ -121,6 +156,14 @@ class HardwareVideoEncoder implements VideoEncoder {
     }
 
     public HardwareVideoEncoder(MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName, VideoCodecMimeType codecType, Integer surfaceColorFormat, Integer yuvColorFormat, Map<String, String> params, int keyFrameIntervalSec, int forceKeyFrameIntervalMs, BitrateAdjuster bitrateAdjuster, EglBase14.Context sharedContext) {
+        this(mediaCodecWrapperFactory, codecName, codecType, surfaceColorFormat, yuvColorFormat, params, keyFrameIntervalSec, forceKeyFrameIntervalMs, bitrateAdjuster, sharedContext, null, DEFAULT_MAX_VIDEO_FRAMERATE, null);
+    }
+
+    /**
+     * {@code requestedMaxFramerate} above 30 lifts the frame rate cap for every size at which
+     * {@code videoCapabilities} reports that rate as supported; elsewhere the cap stays at 30.
+     */
+    public HardwareVideoEncoder(MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName, VideoCodecMimeType codecType, Integer surfaceColorFormat, Integer yuvColorFormat, Map<String, String> params, int keyFrameIntervalSec, int forceKeyFrameIntervalMs, BitrateAdjuster bitrateAdjuster, EglBase14.Context sharedContext, @Nullable EncoderTuning tuning, int requestedMaxFramerate, @Nullable MediaCodecInfo.VideoCapabilities videoCapabilities) {
         this.mediaCodecWrapperFactory = mediaCodecWrapperFactory;
         this.codecName = codecName;
         this.codecType = codecType;
@@ -132,6 +175,9 @@ class HardwareVideoEncoder implements VideoEncoder {
         this.forcedKeyFrameNs = TimeUnit.MILLISECONDS.toNanos(forceKeyFrameIntervalMs);
         this.bitrateAdjuster = bitrateAdjuster;
         this.sharedContext = sharedContext;
+        this.tuning = tuning;
+        this.requestedMaxFramerate = requestedMaxFramerate;
+        this.videoCapabilities = videoCapabilities;
         this.encodeThreadChecker.detachThread();
     }
 
@@ -143,76 +189,152 @@ class HardwareVideoEncoder implements VideoEncoder {
         this.width = settings.width;
         this.height = settings.height;
         this.useSurfaceMode = canUseSurface();
+        this.maxFramerate = resolveMaxFramerate();
         if (settings.startBitrate != 0 && settings.maxFramerate != 0) {
-            this.bitrateAdjuster.setTargets(settings.startBitrate * 1000, settings.maxFramerate);
+            this.bitrateAdjuster.setTargets(settings.startBitrate * 1000, Math.min(settings.maxFramerate, this.maxFramerate));
         }
-        this.adjustedBitrate = this.bitrateAdjuster.getAdjustedBitrateBps();
         Logging.m1d(TAG, "initEncode: " + this.width + " x " + this.height + ". @ " + settings.startBitrate + "kbps. Fps: " + settings.maxFramerate + " Use surface mode: " + this.useSurfaceMode);
         return initEncodeInternal();
     }
 
     private VideoCodecStatus initEncodeInternal() {
-        String profileLevelId;
         this.encodeThreadChecker.checkIsOnValidThread();
         this.lastKeyFrameNs = -1L;
+        this.useAsyncMode = Build.VERSION.SDK_INT >= MIN_ASYNC_MODE_SDK;
+        this.asyncCodecException = null;
+        // The frame rate cap may have changed with the size; the codec is configured within it.
+        this.bitrateAdjuster.resetCodecConfigFramerate(this.maxFramerate);
+        this.adjustedBitrate = this.bitrateAdjuster.getAdjustedBitrateBps();
         try {
             this.codec = this.mediaCodecWrapperFactory.createByCodecName(this.codecName);
-            int colorFormat = (this.useSurfaceMode ? this.surfaceColorFormat : this.yuvColorFormat).intValue();
-            try {
-                MediaFormat format = MediaFormat.createVideoFormat(this.codecType.mimeType(), this.width, this.height);
-                format.setInteger("bitrate", this.adjustedBitrate);
-                format.setInteger(KEY_BITRATE_MODE, 2);
-                format.setInteger("color-format", colorFormat);
-                format.setInteger("frame-rate", this.bitrateAdjuster.getCodecConfigFramerate());
-                format.setInteger("i-frame-interval", this.keyFrameIntervalSec);
-                if (this.codecType == VideoCodecMimeType.H264) {
-                    profileLevelId = this.params.get("profile-level-id");
-                    if (profileLevelId == null) {
-                        profileLevelId = "42e01f";
-                    }
-                    switch (profileLevelId) {
-                        case "640c1f":
-                            format.setInteger("profile", VIDEO_AVC_PROFILE_HIGH);
-                            format.setInteger("level", VIDEO_AVC_LEVEL_3);
-                            break;
-                        case "42e01f":
-                            break;
-                        default:
-                            Logging.m3w(TAG, "Unknown profile level id: " + profileLevelId);
-                            break;
-                    }
-                }
-                Logging.m1d(TAG, "Format: " + format);
-                this.codec.configure(format, null, null, 1);
-                if (this.useSurfaceMode) {
-                    this.textureEglBase = EglBase.createEgl14(this.sharedContext, EglBase.CONFIG_RECORDABLE);
-                    this.textureInputSurface = this.codec.createInputSurface();
-                    this.textureEglBase.createSurface(this.textureInputSurface);
-                    this.textureEglBase.makeCurrent();
-                }
-                this.codec.start();
-                this.outputBuffers = this.codec.getOutputBuffers();
-                this.running = true;
+        } catch (IOException | IllegalArgumentException e) {
+            Logging.m2e(TAG, "Cannot create media encoder " + this.codecName);
+            return VideoCodecStatus.FALLBACK_SOFTWARE;
+        }
+        int colorFormat = (this.useSurfaceMode ? this.surfaceColorFormat : this.yuvColorFormat).intValue();
+        try {
+            if (this.useAsyncMode) {
+                this.callbackThread = new HandlerThread("HwEncoderCallback");
+                this.callbackThread.start();
                 this.outputThreadChecker.detachThread();
-                this.outputThread = createOutputThread();
-                this.outputThread.start();
+                this.running = true;
+            }
+            configureCodec(colorFormat);
+            if (this.useSurfaceMode) {
+                this.textureEglBase = EglBase.createEgl14(this.sharedContext, EglBase.CONFIG_RECORDABLE);
+                this.textureInputSurface = this.codec.createInputSurface();
+                this.textureEglBase.createSurface(this.textureInputSurface);
+                this.textureEglBase.makeCurrent();
+            }
+            this.codec.start();
+            if (this.useAsyncMode) {
                 return VideoCodecStatus.OK;
-            } catch (IllegalStateException e) {
-                Logging.m4e(TAG, "initEncodeInternal failed", e);
-                release();
-                return VideoCodecStatus.FALLBACK_SOFTWARE;
             }
-        } catch (IOException | IllegalArgumentException e2) {
-            Logging.m2e(TAG, "Cannot create media encoder " + this.codecName);
+            this.outputBuffers = this.codec.getOutputBuffers();
+            this.running = true;
+            this.outputThreadChecker.detachThread();
+            this.outputThread = createOutputThread();
+            this.outputThread.start();
+            return VideoCodecStatus.OK;
+        } catch (IOException | RuntimeException e) {
+            Logging.m4e(TAG, "initEncodeInternal failed", e);
+            releaseFailedInit();
             return VideoCodecStatus.FALLBACK_SOFTWARE;
         }
     }
 
+    /**
+     * Undoes a partial initEncodeInternal. No output thread exists yet and the codec has not
+     * produced output, so it is released right here and the callback thread is simply quit;
+     * release() then frees the EGL objects.
+     */
+    private void releaseFailedInit() {
+        this.running = false;
+        if (this.codec != null) {
+            try {
+                this.codec.release();
+            } catch (Exception e) {
+                Logging.m4e(TAG, "Media encoder release failed", e);
+            }
+        }
+        if (this.callbackThread != null) {
+            this.callbackThread.quitSafely();
+            this.callbackThread = null;
+        }
+        release();
+    }
+
+    private MediaFormat createFormat(int colorFormat, boolean tuned) {
+        String profileLevelId;
+        MediaFormat format = MediaFormat.createVideoFormat(this.codecType.mimeType(), this.width, this.height);
+        format.setInteger("bitrate", this.adjustedBitrate);
+        format.setInteger(KEY_BITRATE_MODE, 2);
+        format.setInteger("color-format", colorFormat);
+        format.setInteger("frame-rate", Math.min(this.bitrateAdjuster.getCodecConfigFramerate(), this.maxFramerate));
+        format.setInteger("i-frame-interval", this.keyFrameIntervalSec);
+        if (this.codecType == VideoCodecMimeType.H264) {
+            profileLevelId = this.params.get("profile-level-id");
+            if (profileLevelId == null) {
+                profileLevelId = "42e01f";
+            }
+            switch (profileLevelId) {
+                case "640c1f":
+                    format.setInteger("profile", VIDEO_AVC_PROFILE_HIGH);
+                    format.setInteger("level", VIDEO_AVC_LEVEL_3);
+                    break;
+                case "42e01f":
+                    break;
+                default:
+                    Logging.m3w(TAG, "Unknown profile level id: " + profileLevelId);
+                    break;
+            }
+        }
+        if (tuned) {
+            this.tuning.applyTo(format);
+        }
+        return format;
+    }
+
+    /**
+     * Configures the codec with the tuned format if there is a tuning. Codecs reject keys and values
+     * they cannot honour in configure(), and a rejected MediaCodec has to be released, so the
+     * fallback to the stock format runs on a fresh instance.
+     */
+    private void configureCodec(int colorFormat) throws IOException {
+        if (this.tuning != null) {
+            MediaFormat format = createFormat(colorFormat, true);
+            Logging.m1d(TAG, "Format: " + format + " Tuning: " + this.tuning + " Async mode: " + this.useAsyncMode);
+            setCodecCallback();
+            try {
+                this.codec.configure(format, null, null, 1);
+                return;
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Logging.m4e(TAG, "Tuned format rejected by " + this.codecName + ", using the default format", e);
+                this.codec.release();
+                // Not released twice by releaseFailedInit if the new instance cannot be created.
+                this.codec = null;
+                this.codec = this.mediaCodecWrapperFactory.createByCodecName(this.codecName);
+            }
+        }
+        MediaFormat format = createFormat(colorFormat, false);
+        Logging.m1d(TAG, "Format: " + format + " Async mode: " + this.useAsyncMode);
+        setCodecCallback();
+        this.codec.configure(format, null, null, 1);
+    }
+
+    private void setCodecCallback() {
+        if (this.useAsyncMode) {
+            this.codec.setCallback(new AsyncCallback(), new Handler(this.callbackThread.getLooper()));
+        }
+    }
+
     @Override // org.webrtc.VideoEncoder
     public VideoCodecStatus release() {
         VideoCodecStatus returnValue;
         this.encodeThreadChecker.checkIsOnValidThread();
-        if (this.outputThread == null) {
+        if (this.callbackThread != null) {
+            returnValue = releaseAsync();
+        } else if (this.outputThread == null) {
             returnValue = VideoCodecStatus.OK;
         } else {
             this.running = false;
@@ -237,9 +359,13 @@ class HardwareVideoEncoder implements VideoEncoder {
             this.textureInputSurface = null;
         }
         this.outputBuilders.clear();
+        synchronized (this.inputIndicesLock) {
+            this.availableInputIndices.clear();
+        }
         this.codec = null;
         this.outputBuffers = null;
         this.outputThread = null;
+        this.callbackThread = null;
         this.encodeThreadChecker.detachThread();
         return returnValue;
     }
@@ -252,6 +378,18 @@ class HardwareVideoEncoder implements VideoEncoder {
         if (this.codec == null) {
             return VideoCodecStatus.UNINITIALIZED;
         }
+        MediaCodec.CodecException codecException = this.asyncCodecException;
+        if (codecException != null) {
+            if (!codecException.isRecoverable()) {
+                Logging.m2e(TAG, "Media encoder failed in async mode, falling back to software");
+                return VideoCodecStatus.FALLBACK_SOFTWARE;
+            }
+            Logging.m3w(TAG, "Media encoder reported a recoverable error, recreating it");
+            status = resetCodec(this.width, this.height, this.useSurfaceMode);
+            if (status != VideoCodecStatus.OK) {
+                return status;
+            }
+        }
         VideoFrame.Buffer videoFrameBuffer = videoFrame.getBuffer();
         boolean isTextureBuffer = videoFrameBuffer instanceof VideoFrame.TextureBuffer;
         int frameWidth = videoFrame.getBuffer().getWidth();
@@ -291,6 +429,10 @@ class HardwareVideoEncoder implements VideoEncoder {
         this.encodeThreadChecker.checkIsOnValidThread();
         try {
             GLES20.glClear(16384);
+            // A composited texture may still be drawing in the capture thread's context.
+            if (videoFrame.getBuffer() instanceof TextureBufferImpl) {
+                ((TextureBufferImpl) videoFrame.getBuffer()).waitForProducer();
+            }
             VideoFrame derotatedFrame = new VideoFrame(videoFrame.getBuffer(), 0, videoFrame.getTimestampNs());
             this.videoFrameDrawer.drawFrame(derotatedFrame, this.textureDrawer, null);
             this.textureEglBase.swapBuffers(videoFrame.getTimestampNs());
@@ -305,13 +447,13 @@ class HardwareVideoEncoder implements VideoEncoder {
         this.encodeThreadChecker.checkIsOnValidThread();
         long presentationTimestampUs = (videoFrame.getTimestampNs() + 500) / 1000;
         try {
-            int index = this.codec.dequeueInputBuffer(0L);
+            int index = this.useAsyncMode ? pollInputBufferIndex() : this.codec.dequeueInputBuffer(0L);
             if (index == -1) {
                 Logging.m1d(TAG, "Dropped frame, no input buffers available");
                 return VideoCodecStatus.NO_OUTPUT;
             }
             try {
-                ByteBuffer buffer = this.codec.getInputBuffers()[index];
+                ByteBuffer buffer = Build.VERSION.SDK_INT >= 21 ? this.codec.getInputBuffer(index) : this.codec.getInputBuffers()[index];
                 fillInputBuffer(buffer, videoFrameBuffer);
                 try {
                     this.codec.queueInputBuffer(index, 0, bufferSize, presentationTimestampUs, 0);
@@ -333,8 +475,8 @@ class HardwareVideoEncoder implements VideoEncoder {
     @Override // org.webrtc.VideoEncoder
     public VideoCodecStatus setRateAllocation(VideoEncoder.BitrateAllocation bitrateAllocation, int framerate) {
         this.encodeThreadChecker.checkIsOnValidThread();
-        if (framerate > MAX_VIDEO_FRAMERATE) {
-            framerate = MAX_VIDEO_FRAMERATE;
+        if (framerate > this.maxFramerate) {
+            framerate = this.maxFramerate;
         }
         this.bitrateAdjuster.setTargets(bitrateAllocation.getSum(), framerate);
         return VideoCodecStatus.OK;
@@ -368,9 +510,30 @@ class HardwareVideoEncoder implements VideoEncoder {
         this.width = newWidth;
         this.height = newHeight;
         this.useSurfaceMode = newUseSurfaceMode;
+        this.maxFramerate = resolveMaxFramerate();
         return initEncodeInternal();
     }
 
+    /**
+     * The highest of the requested rate and 60 fps that the codec supports at the current size, and
+     * 30 fps (the stock cap) if neither is. Whether the device sustains it is only known from the
+     * achieved frame rate, which the app reports next to the requested one.
+     */
+    private int resolveMaxFramerate() {
+        if (this.requestedMaxFramerate <= DEFAULT_MAX_VIDEO_FRAMERATE || this.videoCapabilities == null) {
+            return DEFAULT_MAX_VIDEO_FRAMERATE;
+        }
+        int[] candidates = {this.requestedMaxFramerate, HIGH_VIDEO_FRAMERATE};
+        for (int fps : candidates) {
+            if (fps > DEFAULT_MAX_VIDEO_FRAMERATE && fps <= this.requestedMaxFramerate && this.videoCapabilities.areSizeAndRateSupported(this.width, this.height, fps)) {
+                Logging.m1d(TAG, "Frame rate cap " + fps + " fps at " + this.width + " x " + this.height);
+                return fps;
+            }
+        }
+        Logging.m3w(TAG, this.codecName + " does not support " + this.requestedMaxFramerate + " fps at " + this.width + " x " + this.height + ", capping at " + DEFAULT_MAX_VIDEO_FRAMERATE);
+        return DEFAULT_MAX_VIDEO_FRAMERATE;
+    }
+
     private boolean shouldForceKeyFrame(long presentationTimestampNs) {
         this.encodeThreadChecker.checkIsOnValidThread();
         return this.forcedKeyFrameNs > 0 && presentationTimestampNs > this.lastKeyFrameNs + this.forcedKeyFrameNs;
@@ -401,11 +564,9 @@ class HardwareVideoEncoder implements VideoEncoder {
     }
 
     protected void deliverEncodedImage() {
-        ByteBuffer frameBuffer;
-        EncodedImage.FrameType frameType;
         this.outputThreadChecker.checkIsOnValidThread();
         try {
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            MediaCodec.BufferInfo info = this.outputBufferInfo;
             int index = this.codec.dequeueOutputBuffer(info, 100000L);
             if (index < 0) {
                 if (index == -3) {
@@ -415,13 +576,27 @@ class HardwareVideoEncoder implements VideoEncoder {
                 }
                 return;
             }
-            ByteBuffer codecOutputBuffer = this.outputBuffers[index];
+            deliverOutputBuffer(index, this.outputBuffers[index], info);
+        } catch (IllegalStateException e) {
+            Logging.m4e(TAG, "deliverOutput failed", e);
+        }
+    }
+
+    private void deliverOutputBuffer(int index, ByteBuffer codecOutputBuffer, MediaCodec.BufferInfo info) {
+        ByteBuffer frameBuffer;
+        EncodedImage.FrameType frameType;
+        this.outputThreadChecker.checkIsOnValidThread();
+        try {
             codecOutputBuffer.position(info.offset);
             codecOutputBuffer.limit(info.offset + info.size);
             if ((info.flags & 2) != 0) {
                 Logging.m1d(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
-                this.configBuffer = ByteBuffer.allocateDirect(info.size);
+                if (this.configBuffer == null || this.configBuffer.capacity() != info.size) {
+                    this.configBuffer = ByteBuffer.allocateDirect(info.size);
+                }
+                this.configBuffer.clear();
                 this.configBuffer.put(codecOutputBuffer);
+                this.codec.releaseOutputBuffer(index, false);
             } else {
                 this.bitrateAdjuster.reportEncodedFrame(info.size);
                 if (this.adjustedBitrate != this.bitrateAdjuster.getAdjustedBitrateBps()) {
@@ -431,15 +606,33 @@ class HardwareVideoEncoder implements VideoEncoder {
                 if (isKeyFrame) {
                     Logging.m1d(TAG, "Sync frame generated");
                 }
-                if (isKeyFrame && this.codecType == VideoCodecMimeType.H264) {
+                Runnable releaseCallback;
+                if (isKeyFrame && this.codecType == VideoCodecMimeType.H264 && this.configBuffer != null && !startsWithSps(codecOutputBuffer)) {
                     Logging.m1d(TAG, "Prepending config frame of size " + this.configBuffer.capacity() + " to output buffer with offset " + info.offset + ", size " + info.size);
-                    frameBuffer = ByteBuffer.allocateDirect(info.size + this.configBuffer.capacity());
+                    ByteBuffer keyFrameBuffer = this.keyFrameBufferPool.acquire(info.size + this.configBuffer.capacity());
                     this.configBuffer.rewind();
-                    frameBuffer.put(this.configBuffer);
-                    frameBuffer.put(codecOutputBuffer);
-                    frameBuffer.rewind();
+                    keyFrameBuffer.put(this.configBuffer);
+                    keyFrameBuffer.put(codecOutputBuffer);
+                    keyFrameBuffer.rewind();
+                    // The payload now lives in the pooled buffer, so the codec buffer can go back right away.
+                    this.codec.releaseOutputBuffer(index, false);
+                    reportCopiedBytes(keyFrameBuffer.remaining(), false);
+                    frameBuffer = keyFrameBuffer;
+                    releaseCallback = () -> this.keyFrameBufferPool.recycle(keyFrameBuffer);
                 } else {
+                    if (isKeyFrame && this.codecType == VideoCodecMimeType.H264) {
+                        reportCopiedBytes(0, true);
+                    }
                     frameBuffer = codecOutputBuffer.slice();
+                    this.outputBuffersBusyCount.increment();
+                    releaseCallback = () -> {
+                        try {
+                            this.codec.releaseOutputBuffer(index, false);
+                        } catch (Exception e) {
+                            Logging.m4e(TAG, "releaseOutputBuffer failed", e);
+                        }
+                        this.outputBuffersBusyCount.decrement();
+                    };
                 }
                 if (isKeyFrame) {
                     frameType = EncodedImage.FrameType.VideoFrameKey;
@@ -447,16 +640,8 @@ class HardwareVideoEncoder implements VideoEncoder {
                     frameType = EncodedImage.FrameType.VideoFrameDelta;
                 }
                 EncodedImage.FrameType frameType2 = frameType;
-                this.outputBuffersBusyCount.increment();
                 EncodedImage.Builder builder = this.outputBuilders.poll();
-                EncodedImage encodedImage = builder.setBuffer(frameBuffer, () -> {
-                    try {
-                        this.codec.releaseOutputBuffer(index, false);
-                    } catch (Exception e) {
-                        Logging.m4e(TAG, "releaseOutputBuffer failed", e);
-                    }
-                    this.outputBuffersBusyCount.decrement();
-                }).setFrameType(frameType2).createEncodedImage();
+                EncodedImage encodedImage = builder.setBuffer(frameBuffer, releaseCallback).setFrameType(frameType2).createEncodedImage();
                 this.callback.onEncodedFrame(encodedImage, new VideoEncoder.CodecSpecificInfo());
                 encodedImage.release();
             }
@@ -465,6 +650,125 @@ class HardwareVideoEncoder implements VideoEncoder {
         }
     }
 
+    /** True when the encoder already emitted SPS in front of the IDR, so nothing has to be prepended. */
+    private static boolean startsWithSps(ByteBuffer buffer) {
+        int pos = buffer.position();
+        int remaining = buffer.remaining();
+        int nalStart;
+        if (remaining > 4 && buffer.get(pos) == 0 && buffer.get(pos + 1) == 0 && buffer.get(pos + 2) == 0 && buffer.get(pos + 3) == 1) {
+            nalStart = pos + 4;
+        } else if (remaining > 3 && buffer.get(pos) == 0 && buffer.get(pos + 1) == 0 && buffer.get(pos + 2) == 1) {
+            nalStart = pos + 3;
+        } else {
+            return false;
+        }
+        return (buffer.get(nalStart) & 31) == 7;
+    }
+
+    private void reportCopiedBytes(int bytes, boolean inlineConfig) {
+        long nowMs = SystemClock.elapsedRealtime();
+        if (this.copyStatsStartMs == 0) {
+            this.copyStatsStartMs = nowMs;
+        }
+        this.totalCopiedBytes += bytes;
+        this.copiedBytesInInterval += bytes;
+        if (inlineConfig) {
+            this.inlineConfigKeyFramesInInterval++;
+        } else {
+            this.copiedKeyFramesInInterval++;
+        }
+        long elapsedMs = nowMs - this.copyStatsStartMs;
+        if (elapsedMs >= COPY_STATS_INTERVAL_MS) {
+            Logging.m1d(TAG, "Keyframe packaging: " + ((this.copiedBytesInInterval * 1000) / elapsedMs) + " bytes/s copied, " + this.copiedKeyFramesInInterval + " copied / " + this.inlineConfigKeyFramesInInterval + " zero-copy keyframes, total " + this.totalCopiedBytes + " bytes. Pool hits: " + this.keyFrameBufferPool.getHitCount() + ", misses: " + this.keyFrameBufferPool.getMissCount());
+            this.copyStatsStartMs = nowMs;
+            this.copiedBytesInInterval = 0;
+            this.copiedKeyFramesInInterval = 0;
+            this.inlineConfigKeyFramesInInterval = 0;
+        }
+    }
+
+    private int pollInputBufferIndex() {
+        synchronized (this.inputIndicesLock) {
+            Integer index = this.availableInputIndices.pollFirst();
+            return index != null ? index.intValue() : -1;
+        }
+    }
+
+    private VideoCodecStatus releaseAsync() {
+        VideoCodecStatus returnValue;
+        this.running = false;
+        CountDownLatch releaseDone = new CountDownLatch(1);
+        new Handler(this.callbackThread.getLooper()).post(() -> {
+            releaseCodecOnOutputThread();
+            releaseDone.countDown();
+        });
+        if (!ThreadUtils.awaitUninterruptibly(releaseDone, 5000L)) {
+            Logging.m2e(TAG, "Media encoder release timeout");
+            returnValue = VideoCodecStatus.TIMEOUT;
+        } else if (this.shutdownException != null) {
+            Logging.m4e(TAG, "Media encoder release exception", this.shutdownException);
+            returnValue = VideoCodecStatus.ERROR;
+        } else {
+            returnValue = VideoCodecStatus.OK;
+        }
+        this.callbackThread.quitSafely();
+        return returnValue;
+    }
+
+    /**
+     * Callbacks for the API 23+ asynchronous mode. They all run on {@code callbackThread}, which
+     * takes the place of the output thread: encoded buffers go straight to the encoder callback
+     * and free input buffers are queued for {@link #encodeByteBuffer}. In surface mode MediaCodec
+     * does not report input buffers.
+     */
+    @TargetApi(23)
+    private class AsyncCallback extends MediaCodec.Callback {
+        private AsyncCallback() {
+        }
+
+        @Override // android.media.MediaCodec.Callback
+        public void onInputBufferAvailable(MediaCodec mediaCodec, int index) {
+            synchronized (HardwareVideoEncoder.this.inputIndicesLock) {
+                HardwareVideoEncoder.this.availableInputIndices.addLast(index);
+            }
+        }
+
+        @Override // android.media.MediaCodec.Callback
+        public void onOutputBufferAvailable(MediaCodec mediaCodec, int index, MediaCodec.BufferInfo info) {
+            if (!HardwareVideoEncoder.this.running) {
+                try {
+                    HardwareVideoEncoder.this.codec.releaseOutputBuffer(index, false);
+                } catch (IllegalStateException e) {
+                    Logging.m4e(HardwareVideoEncoder.TAG, "releaseOutputBuffer failed", e);
+                }
+                return;
+            }
+            try {
+                HardwareVideoEncoder.this.deliverOutputBuffer(index, HardwareVideoEncoder.this.codec.getOutputBuffer(index), info);
+            } catch (IllegalStateException e) {
+                Logging.m4e(HardwareVideoEncoder.TAG, "getOutputBuffer failed", e);
+            }
+        }
+
+        /**
+         * Transient errors only affect the current operation. Anything else stops output for good,
+         * so the next encode() recreates the codec or, if that is not possible, falls back to
+         * software instead of feeding frames into a dead codec.
+         */
+        @Override // android.media.MediaCodec.Callback
+        public void onError(MediaCodec mediaCodec, MediaCodec.CodecException e) {
+            Logging.m4e(HardwareVideoEncoder.TAG, "MediaCodec error in async mode", e);
+            if (!e.isTransient()) {
+                HardwareVideoEncoder.this.asyncCodecException = e;
+            }
+        }
+
+        @Override // android.media.MediaCodec.Callback
+        public void onOutputFormatChanged(MediaCodec mediaCodec, MediaFormat format) {
+            Logging.m1d(HardwareVideoEncoder.TAG, "Output format changed: " + format);
+        }
+    }
+
     /* JADX INFO: Access modifiers changed from: private */
     public void releaseCodecOnOutputThread() {
         this.outputThreadChecker.checkIsOnValidThread();
@@ -482,6 +786,7 @@ class HardwareVideoEncoder implements VideoEncoder {
             this.shutdownException = e2;
         }
         this.configBuffer = null;
+        this.keyFrameBufferPool.clear();
         Logging.m1d(TAG, "Release on output thread done");
     }
 
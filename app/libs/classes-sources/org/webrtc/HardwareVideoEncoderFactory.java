@@ -26,6 +26,10 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     @Nullable
     private final Predicate<MediaCodecInfo> codecAllowedPredicate;
 
+    @Nullable
+    private volatile EncoderTuning encoderTuning;
+    private volatile int maxFramerate = 30;
+
     public HardwareVideoEncoderFactory(EglBase.Context sharedContext, boolean enableIntelVp8Encoder, boolean enableH264HighProfile) {
         this(sharedContext, enableIntelVp8Encoder, enableH264HighProfile, null);
     }
@@ -42,6 +46,22 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
         this.codecAllowedPredicate = codecAllowedPredicate;
     }
 
+    /**
+     * Tuning for encoders created from now on; null restores the stock CBR configuration. Each
+     * encoder resolves it against its codec's capabilities when it is created.
+     */
+    public void setEncoderTuning(@Nullable EncoderTuning encoderTuning) {
+        this.encoderTuning = encoderTuning;
+    }
+
+    /**
+     * Frame rate the encoders created from now on may run at; above 30 it is only granted at sizes
+     * the codec reports that rate for (MediaCodecInfo.VideoCapabilities#areSizeAndRateSupported).
+     */
+    public void setMaxFramerate(int maxFramerate) {
+        this.maxFramerate = maxFramerate;
+    }
+
     @Deprecated
     public HardwareVideoEncoderFactory(boolean enableIntelVp8Encoder, boolean enableH264HighProfile) {
         this(null, enableIntelVp8Encoder, enableH264HighProfile);
@@ -69,7 +89,11 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
                 return null;
             }
         }
-        return new HardwareVideoEncoder(new MediaCodecWrapperFactoryImpl(), codecName, type, surfaceColorFormat, yuvColorFormat, input.params, getKeyFrameIntervalSec(type), getForcedKeyFrameIntervalMs(type, codecName), createBitrateAdjuster(type, codecName), this.sharedContext);
+        EncoderTuning tuning = this.encoderTuning;
+        if (tuning != null) {
+            tuning = tuning.resolve(codecName, info.getCapabilitiesForType(mime));
+        }
+        return new HardwareVideoEncoder(new MediaCodecWrapperFactoryImpl(), codecName, type, surfaceColorFormat, yuvColorFormat, input.params, getKeyFrameIntervalSec(type), getForcedKeyFrameIntervalMs(type, codecName), createBitrateAdjuster(type, codecName), this.sharedContext, tuning, this.maxFramerate, info.getCapabilitiesForType(mime).getVideoCapabilities());
     }
 
     @Override // org.webrtc.VideoEncoderFactory
@@ -0,0 +1,89 @@
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Small pool of direct buffers used to package H.264 keyframes together with SPS/PPS.
+ * Keyframe sizes vary, so a buffer is reused whenever its capacity is large enough and new
+ * buffers get some headroom. Buffers are given back from the encoded image release callback via
+ * {@link #recycle(ByteBuffer)}, which may run on any thread.
+ */
+class KeyFrameBufferPool {
+    private static final int CAPACITY_ALIGNMENT = 4096;
+    private final int maxIdleBuffers;
+    private final Object lock = new Object();
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+    private long hits;
+    private long misses;
+
+    KeyFrameBufferPool(int maxIdleBuffers) {
+        this.maxIdleBuffers = maxIdleBuffers;
+    }
+
+    ByteBuffer acquire(int size) {
+        ByteBuffer buffer = null;
+        synchronized (this.lock) {
+            Iterator<ByteBuffer> it = this.idle.iterator();
+            while (it.hasNext()) {
+                ByteBuffer candidate = it.next();
+                if (candidate.capacity() >= size) {
+                    it.remove();
+                    buffer = candidate;
+                    break;
+                }
+            }
+            if (buffer != null) {
+                this.hits++;
+            } else {
+                this.misses++;
+            }
+        }
+        if (buffer == null) {
+            int capacity = size + (size / 4);
+            buffer = ByteBuffer.allocateDirect(((capacity + CAPACITY_ALIGNMENT - 1) / CAPACITY_ALIGNMENT) * CAPACITY_ALIGNMENT);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    void recycle(ByteBuffer buffer) {
+        synchronized (this.lock) {
+            if (this.idle.size() < this.maxIdleBuffers) {
+                this.idle.addFirst(buffer);
+            } else {
+                // Keep the larger buffers; the smallest one is left to the GC.
+                ByteBuffer smallest = buffer;
+                for (ByteBuffer candidate : this.idle) {
+                    if (candidate.capacity() < smallest.capacity()) {
+                        smallest = candidate;
+                    }
+                }
+                if (smallest != buffer) {
+                    this.idle.remove(smallest);
+                    this.idle.addFirst(buffer);
+                }
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (this.lock) {
+            this.idle.clear();
+        }
+    }
+
+    long getHitCount() {
+        synchronized (this.lock) {
+            return this.hits;
+        }
+    }
+
+    long getMissCount() {
+        synchronized (this.lock) {
+            return this.misses;
+        }
+    }
+}
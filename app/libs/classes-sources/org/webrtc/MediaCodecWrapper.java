@@ -4,6 +4,7 @@ import android.media.MediaCodec;
 import android.media.MediaCrypto;
 import android.media.MediaFormat;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Surface;
 import java.nio.ByteBuffer;
 
@@ -33,6 +34,12 @@ interface MediaCodecWrapper {
 
     ByteBuffer[] getOutputBuffers();
 
+    ByteBuffer getInputBuffer(int i);
+
+    ByteBuffer getOutputBuffer(int i);
+
+    void setCallback(MediaCodec.Callback callback, Handler handler);
+
     Surface createInputSurface();
 
     void setParameters(Bundle bundle);
@@ -5,6 +5,7 @@ import android.media.MediaCodec;
 import android.media.MediaCrypto;
 import android.media.MediaFormat;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Surface;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -82,6 +83,24 @@ class MediaCodecWrapperFactoryImpl implements MediaCodecWrapperFactory {
             return this.mediaCodec.getOutputBuffers();
         }
 
+        @Override // org.webrtc.MediaCodecWrapper
+        @TargetApi(21)
+        public ByteBuffer getInputBuffer(int index) {
+            return this.mediaCodec.getInputBuffer(index);
+        }
+
+        @Override // org.webrtc.MediaCodecWrapper
+        @TargetApi(21)
+        public ByteBuffer getOutputBuffer(int index) {
+            return this.mediaCodec.getOutputBuffer(index);
+        }
+
+        @Override // org.webrtc.MediaCodecWrapper
+        @TargetApi(23)
+        public void setCallback(MediaCodec.Callback callback, Handler handler) {
+            this.mediaCodec.setCallback(callback, handler);
+        }
+
         @Override // org.webrtc.MediaCodecWrapper
         @TargetApi(18)
         public Surface createInputSurface() {
@@ -0,0 +1,97 @@
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded, size-keyed pool of native (JniCommon-allocated) direct byte buffers.
+ * Buffers are handed out by {@link #acquire(int)} and given back from the frame release
+ * callback via {@link #recycle(ByteBuffer)}, which may run on any thread. Only buffers of the
+ * most recently requested size are kept; a size change frees the idle buffers of the old size.
+ */
+class NativeByteBufferPool {
+    private final int maxIdleBuffers;
+    private final Object lock = new Object();
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+    private int bufferSize;
+    private int outstanding;
+    private boolean released;
+    private long hits;
+    private long misses;
+    private int highWaterMark;
+
+    NativeByteBufferPool(int maxIdleBuffers) {
+        this.maxIdleBuffers = maxIdleBuffers;
+    }
+
+    ByteBuffer acquire(int size) {
+        ByteBuffer buffer = null;
+        synchronized (this.lock) {
+            if (this.released) {
+                throw new IllegalStateException("NativeByteBufferPool released");
+            }
+            if (size != this.bufferSize) {
+                freeIdleLocked();
+                this.bufferSize = size;
+            }
+            buffer = this.idle.pollFirst();
+            if (buffer != null) {
+                this.hits++;
+            } else {
+                this.misses++;
+            }
+            this.outstanding++;
+            if (this.outstanding > this.highWaterMark) {
+                this.highWaterMark = this.outstanding;
+            }
+        }
+        if (buffer == null) {
+            buffer = JniCommon.nativeAllocateByteBuffer(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    void recycle(ByteBuffer buffer) {
+        synchronized (this.lock) {
+            this.outstanding--;
+            if (!this.released && buffer.capacity() == this.bufferSize && this.idle.size() < this.maxIdleBuffers) {
+                this.idle.addFirst(buffer);
+                return;
+            }
+        }
+        JniCommon.nativeFreeByteBuffer(buffer);
+    }
+
+    /** Frees idle buffers; buffers still held by frames are freed when they are recycled. */
+    void release() {
+        synchronized (this.lock) {
+            this.released = true;
+            freeIdleLocked();
+        }
+    }
+
+    long getHitCount() {
+        synchronized (this.lock) {
+            return this.hits;
+        }
+    }
+
+    long getMissCount() {
+        synchronized (this.lock) {
+            return this.misses;
+        }
+    }
+
+    int getHighWaterMark() {
+        synchronized (this.lock) {
+            return this.highWaterMark;
+        }
+    }
+
+    private void freeIdleLocked() {
+        while (!this.idle.isEmpty()) {
+            JniCommon.nativeFreeByteBuffer(this.idle.pollFirst());
+        }
+    }
+}
@@ -33,6 +33,11 @@ class RefCountDelegate implements RefCounted {
         }
     }
 
+    /** Brings a fully released object (refcount 0) back to refcount 1 so it can be handed out again. */
+    boolean rearm() {
+        return this.refCount.compareAndSet(0, 1);
+    }
+
     boolean safeRetain() {
         int i = this.refCount.get();
         while (true) {
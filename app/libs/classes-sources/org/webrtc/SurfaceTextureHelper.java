@@ -7,6 +7,7 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.support.annotation.Nullable;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
 import org.webrtc.EglBase;
 import org.webrtc.TextureBufferImpl;
@@ -38,6 +39,16 @@ public class SurfaceTextureHelper {
     @Nullable
     private VideoSink pendingListener;
     final Runnable setListenerRunnable;
+    private final float[] transformMatrix = new float[16];
+    private final float[] deliveredTransformMatrix = new float[16];
+
+    @Nullable
+    private TextureBufferImpl recycledBuffer;
+
+    @Nullable
+    private VideoFrame recycledFrame;
+    private long reusedFrameCount;
+    private long allocatedFrameCount;
 
     /* loaded from: classes.jar:org/webrtc/SurfaceTextureHelper$FrameRefMonitor.class */
     public interface FrameRefMonitor {
@@ -258,21 +269,52 @@ public class SurfaceTextureHelper {
         this.isTextureInUse = true;
         this.hasPendingTexture = false;
         updateTexImage();
-        float[] transformMatrix = new float[16];
-        this.surfaceTexture.getTransformMatrix(transformMatrix);
+        this.surfaceTexture.getTransformMatrix(this.transformMatrix);
         long timestampNs = this.surfaceTexture.getTimestamp();
         if (this.timestampAligner != null) {
             timestampNs = this.timestampAligner.translateTimestamp(timestampNs);
         }
-        VideoFrame.TextureBuffer buffer = new TextureBufferImpl(this.textureWidth, this.textureHeight, VideoFrame.TextureBuffer.Type.OES, this.oesTextureId, RendererCommon.convertMatrixToAndroidGraphicsMatrix(transformMatrix), this.handler, this.yuvConverter, this.textureRefCountMonitor);
+        VideoFrame frame = obtainFrame(timestampNs);
         if (this.frameRefMonitor != null) {
-            this.frameRefMonitor.onNewBuffer(buffer);
+            this.frameRefMonitor.onNewBuffer((VideoFrame.TextureBuffer) frame.getBuffer());
         }
-        VideoFrame frame = new VideoFrame(buffer, this.frameRotation, timestampNs);
         this.listener.onFrame(frame);
         frame.release();
     }
 
+    /**
+     * Only one texture frame is in flight at a time (isTextureInUse), and the previous one has been
+     * destroyed by the time the next is delivered. When size and SurfaceTexture transform are
+     * unchanged (the steady state for a VirtualDisplay) the previous buffer/frame wrappers and their
+     * Matrix are re-armed instead of allocating new ones.
+     */
+    private VideoFrame obtainFrame(long timestampNs) {
+        TextureBufferImpl buffer = this.recycledBuffer;
+        VideoFrame frame = this.recycledFrame;
+        if (buffer != null && frame != null && buffer.getWidth() == this.textureWidth && buffer.getHeight() == this.textureHeight && Arrays.equals(this.transformMatrix, this.deliveredTransformMatrix) && buffer.rearm()) {
+            frame.rearm(this.frameRotation, timestampNs);
+            this.reusedFrameCount++;
+            return frame;
+        }
+        System.arraycopy(this.transformMatrix, 0, this.deliveredTransformMatrix, 0, this.transformMatrix.length);
+        buffer = new TextureBufferImpl(this.textureWidth, this.textureHeight, VideoFrame.TextureBuffer.Type.OES, this.oesTextureId, RendererCommon.convertMatrixToAndroidGraphicsMatrix(this.transformMatrix), this.handler, this.yuvConverter, this.textureRefCountMonitor);
+        frame = new VideoFrame(buffer, this.frameRotation, timestampNs);
+        this.recycledBuffer = buffer;
+        this.recycledFrame = frame;
+        this.allocatedFrameCount++;
+        return frame;
+    }
+
+    /** Frames delivered by re-arming the previous buffer/frame wrappers. Only read on the handler thread. */
+    public long getReusedFrameCount() {
+        return this.reusedFrameCount;
+    }
+
+    /** Frames that needed new wrappers (first frame, size or transform change). Only read on the handler thread. */
+    public long getAllocatedFrameCount() {
+        return this.allocatedFrameCount;
+    }
+
     private void release() {
         if (this.handler.getLooper().getThread() != Thread.currentThread()) {
             throw new IllegalStateException("Wrong thread.");
@@ -280,6 +322,8 @@ public class SurfaceTextureHelper {
         if (this.isTextureInUse || !this.isQuitting) {
             throw new IllegalStateException("Unexpected release.");
         }
+        this.recycledBuffer = null;
+        this.recycledFrame = null;
         this.yuvConverter.release();
         GLES20.glDeleteTextures(1, new int[]{this.oesTextureId}, 0);
         this.surfaceTexture.release();
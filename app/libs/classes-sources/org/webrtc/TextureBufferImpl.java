@@ -1,6 +1,7 @@
 package org.webrtc;
 
 import android.graphics.Matrix;
+import android.opengl.GLES30;
 import android.os.Handler;
 import android.support.annotation.Nullable;
 import org.webrtc.VideoFrame;
@@ -20,6 +21,7 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
     private final YuvConverter yuvConverter;
     private final RefCountDelegate refCountDelegate;
     private final RefCountMonitor refCountMonitor;
+    private final long syncFence;
 
     /* loaded from: classes.jar:org/webrtc/TextureBufferImpl$RefCountMonitor.class */
     interface RefCountMonitor {
@@ -30,8 +32,17 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
         void onDestroy(TextureBufferImpl textureBufferImpl);
     }
 
-    public TextureBufferImpl(int width, int height, VideoFrame.TextureBuffer.Type type, int id, Matrix transformMatrix, Handler toI420Handler, YuvConverter yuvConverter, @Nullable final Runnable releaseCallback) {
-        this(width, height, width, height, type, id, transformMatrix, toI420Handler, yuvConverter, new RefCountMonitor() { // from class: org.webrtc.TextureBufferImpl.1
+    public TextureBufferImpl(int width, int height, VideoFrame.TextureBuffer.Type type, int id, Matrix transformMatrix, Handler toI420Handler, YuvConverter yuvConverter, @Nullable Runnable releaseCallback) {
+        this(width, height, type, id, transformMatrix, toI420Handler, yuvConverter, 0L, releaseCallback);
+    }
+
+    /**
+     * A texture whose draw may still be in flight: {@code syncFence} is a GLES 3.0 fence the producer
+     * inserted and flushed after drawing. Buffers derived by cropAndScale share it. The producer owns
+     * the fence and deletes it from its release callback.
+     */
+    public TextureBufferImpl(int width, int height, VideoFrame.TextureBuffer.Type type, int id, Matrix transformMatrix, Handler toI420Handler, YuvConverter yuvConverter, long syncFence, @Nullable final Runnable releaseCallback) {
+        this(width, height, width, height, type, id, transformMatrix, toI420Handler, yuvConverter, syncFence, new RefCountMonitor() { // from class: org.webrtc.TextureBufferImpl.1
             @Override // org.webrtc.TextureBufferImpl.RefCountMonitor
             public void onRetain(TextureBufferImpl textureBuffer) {
             }
@@ -50,10 +61,10 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
     }
 
     TextureBufferImpl(int width, int height, VideoFrame.TextureBuffer.Type type, int id, Matrix transformMatrix, Handler toI420Handler, YuvConverter yuvConverter, RefCountMonitor refCountMonitor) {
-        this(width, height, width, height, type, id, transformMatrix, toI420Handler, yuvConverter, refCountMonitor);
+        this(width, height, width, height, type, id, transformMatrix, toI420Handler, yuvConverter, 0L, refCountMonitor);
     }
 
-    private TextureBufferImpl(int unscaledWidth, int unscaledHeight, int width, int height, VideoFrame.TextureBuffer.Type type, int id, Matrix transformMatrix, Handler toI420Handler, YuvConverter yuvConverter, RefCountMonitor refCountMonitor) {
+    private TextureBufferImpl(int unscaledWidth, int unscaledHeight, int width, int height, VideoFrame.TextureBuffer.Type type, int id, Matrix transformMatrix, Handler toI420Handler, YuvConverter yuvConverter, long syncFence, RefCountMonitor refCountMonitor) {
         this.unscaledWidth = unscaledWidth;
         this.unscaledHeight = unscaledHeight;
         this.width = width;
@@ -67,6 +78,7 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
             refCountMonitor.onDestroy(this);
         });
         this.refCountMonitor = refCountMonitor;
+        this.syncFence = syncFence;
     }
 
     @Override // org.webrtc.VideoFrame.TextureBuffer
@@ -122,6 +134,17 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
         return applyTransformMatrix(cropAndScaleMatrix, Math.round((this.unscaledWidth * cropWidth) / this.width), Math.round((this.unscaledHeight * cropHeight) / this.height), scaleWidth, scaleHeight);
     }
 
+    /**
+     * Makes the current GL context wait, on the GPU, for the producer's draw into this texture. A
+     * context other than the producer's calls this before sampling the texture; it returns at once
+     * for textures that were complete when they were delivered.
+     */
+    public void waitForProducer() {
+        if (this.syncFence != 0) {
+            GLES30.glWaitSync(this.syncFence, 0, GLES30.GL_TIMEOUT_IGNORED);
+        }
+    }
+
     public int getUnscaledWidth() {
         return this.unscaledWidth;
     }
@@ -130,6 +153,14 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
         return this.unscaledHeight;
     }
 
+    /**
+     * Re-arms a buffer whose refcount reached zero so that the same wrapper (texture id, transform
+     * matrix and monitor) can be delivered again without allocating. Returns false if it is still in use.
+     */
+    boolean rearm() {
+        return this.refCountDelegate.rearm();
+    }
+
     public Handler getToI420Handler() {
         return this.toI420Handler;
     }
@@ -146,7 +177,7 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
         Matrix newMatrix = new Matrix(this.transformMatrix);
         newMatrix.preConcat(transformMatrix);
         retain();
-        return new TextureBufferImpl(unscaledWidth, unscaledHeight, scaledWidth, scaledHeight, this.type, this.f6id, newMatrix, this.toI420Handler, this.yuvConverter, new RefCountMonitor() { // from class: org.webrtc.TextureBufferImpl.2
+        return new TextureBufferImpl(unscaledWidth, unscaledHeight, scaledWidth, scaledHeight, this.type, this.f6id, newMatrix, this.toI420Handler, this.yuvConverter, this.syncFence, new RefCountMonitor() { // from class: org.webrtc.TextureBufferImpl.2
             @Override // org.webrtc.TextureBufferImpl.RefCountMonitor
             public void onRetain(TextureBufferImpl textureBuffer) {
                 TextureBufferImpl.this.refCountMonitor.onRetain(TextureBufferImpl.this);
@@ -6,8 +6,8 @@ import java.nio.ByteBuffer;
 /* loaded from: classes.jar:org/webrtc/VideoFrame.class */
 public class VideoFrame implements RefCounted {
     private final Buffer buffer;
-    private final int rotation;
-    private final long timestampNs;
+    private int rotation;
+    private long timestampNs;
 
     /* loaded from: classes.jar:org/webrtc/VideoFrame$Buffer.class */
     public interface Buffer extends RefCounted {
@@ -91,6 +91,18 @@ public class VideoFrame implements RefCounted {
         this.timestampNs = timestampNs;
     }
 
+    /**
+     * Reuses this frame object for a new capture of the same buffer. Only valid once every holder
+     * of the previous capture has released it, i.e. after the buffer itself was re-armed.
+     */
+    void rearm(int rotation, long timestampNs) {
+        if (rotation % 90 != 0) {
+            throw new IllegalArgumentException("rotation must be a multiple of 90");
+        }
+        this.rotation = rotation;
+        this.timestampNs = timestampNs;
+    }
+
     @CalledByNative
     public Buffer getBuffer() {
         return this.buffer;
@@ -2,6 +2,7 @@ package org.webrtc;
 
 import android.graphics.Matrix;
 import android.opengl.GLES20;
+import android.os.SystemClock;
 import java.nio.ByteBuffer;
 import org.webrtc.GlGenericDrawer;
 import org.webrtc.ThreadUtils;
@@ -9,12 +10,18 @@ import org.webrtc.VideoFrame;
 
 /* loaded from: classes.jar:org/webrtc/YuvConverter.class */
 public class YuvConverter {
+    private static final String TAG = "YuvConverter";
     private static final String FRAGMENT_SHADER = "uniform vec2 xUnit;\nuniform vec4 coeffs;\n\nvoid main() {\n  gl_FragColor.r = coeffs.a + dot(coeffs.rgb,\n      sample(tc - 1.5 * xUnit).rgb);\n  gl_FragColor.g = coeffs.a + dot(coeffs.rgb,\n      sample(tc - 0.5 * xUnit).rgb);\n  gl_FragColor.b = coeffs.a + dot(coeffs.rgb,\n      sample(tc + 0.5 * xUnit).rgb);\n  gl_FragColor.a = coeffs.a + dot(coeffs.rgb,\n      sample(tc + 1.5 * xUnit).rgb);\n}\n";
     private final ThreadUtils.ThreadChecker threadChecker;
     private final GlTextureFrameBuffer i420TextureFrameBuffer;
     private final ShaderCallbacks shaderCallbacks;
     private final GlGenericDrawer drawer;
     private final VideoFrameDrawer videoFrameDrawer;
+    private final NativeByteBufferPool readbackBufferPool;
+    private final Matrix renderMatrix;
+    private static final int MAX_IDLE_READBACK_BUFFERS = 3;
+    private static final long POOL_STATS_INTERVAL_MS = 10000;
+    private long poolStatsStartMs;
 
     /* loaded from: classes.jar:org/webrtc/YuvConverter$ShaderCallbacks.class */
     private static class ShaderCallbacks implements GlGenericDrawer.ShaderCallbacks {
@@ -67,6 +74,11 @@ public class YuvConverter {
         this.shaderCallbacks = new ShaderCallbacks();
         this.drawer = new GlGenericDrawer(FRAGMENT_SHADER, this.shaderCallbacks);
         this.videoFrameDrawer = videoFrameDrawer;
+        this.readbackBufferPool = new NativeByteBufferPool(MAX_IDLE_READBACK_BUFFERS);
+        this.renderMatrix = new Matrix();
+        this.renderMatrix.preTranslate(0.5f, 0.5f);
+        this.renderMatrix.preScale(1.0f, -1.0f);
+        this.renderMatrix.preTranslate(-0.5f, -0.5f);
         this.threadChecker.detachThread();
     }
 
@@ -78,21 +90,17 @@ public class YuvConverter {
         int stride = ((frameWidth + 7) / 8) * 8;
         int uvHeight = (frameHeight + 1) / 2;
         int totalHeight = frameHeight + uvHeight;
-        ByteBuffer i420ByteBuffer = JniCommon.nativeAllocateByteBuffer(stride * totalHeight);
+        ByteBuffer i420ByteBuffer = this.readbackBufferPool.acquire(stride * totalHeight);
         int viewportWidth = stride / 4;
-        Matrix renderMatrix = new Matrix();
-        renderMatrix.preTranslate(0.5f, 0.5f);
-        renderMatrix.preScale(1.0f, -1.0f);
-        renderMatrix.preTranslate(-0.5f, -0.5f);
         this.i420TextureFrameBuffer.setSize(viewportWidth, totalHeight);
         GLES20.glBindFramebuffer(36160, this.i420TextureFrameBuffer.getFrameBufferId());
         GlUtil.checkNoGLES2Error("glBindFramebuffer");
         this.shaderCallbacks.setPlaneY();
-        VideoFrameDrawer.drawTexture(this.drawer, preparedBuffer, renderMatrix, frameWidth, frameHeight, 0, 0, viewportWidth, frameHeight);
+        VideoFrameDrawer.drawTexture(this.drawer, preparedBuffer, this.renderMatrix, frameWidth, frameHeight, 0, 0, viewportWidth, frameHeight);
         this.shaderCallbacks.setPlaneU();
-        VideoFrameDrawer.drawTexture(this.drawer, preparedBuffer, renderMatrix, frameWidth, frameHeight, 0, frameHeight, viewportWidth / 2, uvHeight);
+        VideoFrameDrawer.drawTexture(this.drawer, preparedBuffer, this.renderMatrix, frameWidth, frameHeight, 0, frameHeight, viewportWidth / 2, uvHeight);
         this.shaderCallbacks.setPlaneV();
-        VideoFrameDrawer.drawTexture(this.drawer, preparedBuffer, renderMatrix, frameWidth, frameHeight, viewportWidth / 2, frameHeight, viewportWidth / 2, uvHeight);
+        VideoFrameDrawer.drawTexture(this.drawer, preparedBuffer, this.renderMatrix, frameWidth, frameHeight, viewportWidth / 2, frameHeight, viewportWidth / 2, uvHeight);
         GLES20.glReadPixels(0, 0, this.i420TextureFrameBuffer.getWidth(), this.i420TextureFrameBuffer.getHeight(), 6408, 5121, i420ByteBuffer);
         GlUtil.checkNoGLES2Error("YuvConverter.convert");
         GLES20.glBindFramebuffer(36160, 0);
@@ -109,13 +117,43 @@ public class YuvConverter {
         i420ByteBuffer.limit(vPos + uvSize);
         ByteBuffer dataV = i420ByteBuffer.slice();
         preparedBuffer.release();
+        reportPoolStats(false);
+        NativeByteBufferPool pool = this.readbackBufferPool;
         return JavaI420Buffer.wrap(frameWidth, frameHeight, dataY, stride, dataU, stride, dataV, stride, () -> {
-            JniCommon.nativeFreeByteBuffer(i420ByteBuffer);
+            pool.recycle(i420ByteBuffer);
         });
     }
 
+    /** Number of convert() calls served from a recycled readback buffer. */
+    public long getReadbackPoolHitCount() {
+        return this.readbackBufferPool.getHitCount();
+    }
+
+    /** Number of convert() calls that had to allocate a new native readback buffer. */
+    public long getReadbackPoolMissCount() {
+        return this.readbackBufferPool.getMissCount();
+    }
+
+    /** Maximum number of readback buffers held by frames at the same time. */
+    public int getReadbackPoolHighWaterMark() {
+        return this.readbackBufferPool.getHighWaterMark();
+    }
+
+    private void reportPoolStats(boolean force) {
+        long nowMs = SystemClock.elapsedRealtime();
+        if (this.poolStatsStartMs == 0) {
+            this.poolStatsStartMs = nowMs;
+        }
+        if (force || nowMs - this.poolStatsStartMs >= POOL_STATS_INTERVAL_MS) {
+            Logging.m1d(TAG, "Readback pool hits: " + this.readbackBufferPool.getHitCount() + ", misses: " + this.readbackBufferPool.getMissCount() + ", high water mark: " + this.readbackBufferPool.getHighWaterMark());
+            this.poolStatsStartMs = nowMs;
+        }
+    }
+
     public void release() {
         this.threadChecker.checkIsOnValidThread();
+        reportPoolStats(true);
+        this.readbackBufferPool.release();
         this.drawer.release();
         this.i420TextureFrameBuffer.release();
         this.videoFrameDrawer.release();
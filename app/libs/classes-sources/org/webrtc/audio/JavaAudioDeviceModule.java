@@ -4,6 +4,7 @@ import android.content.Context;
 import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
 import android.media.AudioRecord;
+import java.nio.ByteBuffer;
 import org.webrtc.JniCommon;
 import org.webrtc.Logging;
 import org.webrtc.MediaStreamTrack;
@@ -71,6 +72,15 @@ public class JavaAudioDeviceModule implements AudioDeviceModule {
         void onWebRtcAudioRecordSamplesReady(AudioSamples audioSamples);
     }
 
+    /**
+     * Allocation-free variant of {@link SamplesReadyCallback}, called on the audio record thread for
+     * every 10 ms buffer. {@code samples} is a read-only, native-order view of the buffer handed to
+     * WebRTC and is only valid for the duration of the call; copy out whatever has to outlive it.
+     */
+    public interface DirectSamplesReadyCallback {
+        void onWebRtcAudioRecordSamplesReady(ByteBuffer samples, int audioFormat, int channelCount, int sampleRate, long captureTimeNs);
+    }
+
     /* loaded from: classes.jar:org/webrtc/audio/JavaAudioDeviceModule$AudioRecordFactory.class */
     public interface AudioRecordFactory {
         AudioRecord createAudioRecord(int sampleRate, int channelConfig, int audioFormat, int bufferSizeInBytes);
@@ -94,6 +104,7 @@ public class JavaAudioDeviceModule implements AudioDeviceModule {
         private AudioTrackErrorCallback audioTrackErrorCallback;
         private AudioRecordErrorCallback audioRecordErrorCallback;
         private SamplesReadyCallback samplesReadyCallback;
+        private DirectSamplesReadyCallback directSamplesReadyCallback;
         private AudioTrackStateCallback audioTrackStateCallback;
         private AudioRecordStateCallback audioRecordStateCallback;
         private boolean useHardwareAcousticEchoCanceler;
@@ -161,6 +172,11 @@ public class JavaAudioDeviceModule implements AudioDeviceModule {
             return this;
         }
 
+        public Builder setDirectSamplesReadyCallback(DirectSamplesReadyCallback directSamplesReadyCallback) {
+            this.directSamplesReadyCallback = directSamplesReadyCallback;
+            return this;
+        }
+
         public Builder setAudioTrackStateCallback(AudioTrackStateCallback audioTrackStateCallback) {
             this.audioTrackStateCallback = audioTrackStateCallback;
             return this;
@@ -217,7 +233,7 @@ public class JavaAudioDeviceModule implements AudioDeviceModule {
                 }
                 Logging.d(JavaAudioDeviceModule.TAG, "HW AEC will not be used.");
             }
-            WebRtcAudioRecord audioInput = new WebRtcAudioRecord(this.context, this.audioManager, this.audioSource, this.audioFormat, this.audioRecordFactory, this.audioRecordErrorCallback, this.audioRecordStateCallback, this.samplesReadyCallback, this.useHardwareAcousticEchoCanceler, this.useHardwareNoiseSuppressor);
+            WebRtcAudioRecord audioInput = new WebRtcAudioRecord(this.context, this.audioManager, this.audioSource, this.audioFormat, this.audioRecordFactory, this.audioRecordErrorCallback, this.audioRecordStateCallback, this.samplesReadyCallback, this.directSamplesReadyCallback, this.useHardwareAcousticEchoCanceler, this.useHardwareNoiseSuppressor);
             WebRtcAudioTrack audioOutput = new WebRtcAudioTrack(this.context, this.audioManager, this.audioTrackErrorCallback, this.audioTrackStateCallback);
             return new JavaAudioDeviceModule(this.context, this.audioManager, audioInput, audioOutput, this.inputSampleRate, this.outputSampleRate, this.useStereoInput, this.useStereoOutput);
         }
@@ -10,6 +10,7 @@ import android.media.AudioRecordingConfiguration;
 import android.os.Build;
 import android.os.Process;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -45,6 +46,11 @@ class WebRtcAudioRecord {
 
     private ByteBuffer byteBuffer;
 
+    private ByteBuffer readOnlyByteBuffer;
+    private int recordAudioFormat;
+    private int recordChannelCount;
+    private int recordSampleRate;
+
     private AudioRecord audioRecord;
 
     private AudioRecordThread audioThread;
@@ -64,6 +70,8 @@ class WebRtcAudioRecord {
     private final JavaAudioDeviceModule.AudioRecordStateCallback stateCallback;
 
     private final JavaAudioDeviceModule.SamplesReadyCallback audioSamplesReadyCallback;
+
+    private final JavaAudioDeviceModule.DirectSamplesReadyCallback directSamplesReadyCallback;
     private final boolean isAcousticEchoCancelerSupported;
     private final boolean isNoiseSuppressorSupported;
 
@@ -87,10 +95,10 @@ class WebRtcAudioRecord {
             Logging.d(WebRtcAudioRecord.TAG, "AudioRecordThread" + WebRtcAudioUtils.getThreadInfo());
             WebRtcAudioRecord.assertTrue(WebRtcAudioRecord.this.audioRecord.getRecordingState() == 3);
             WebRtcAudioRecord.this.doAudioRecordStateCallback(0);
-            System.nanoTime();
             while (this.keepAlive) {
                 int bytesRead = WebRtcAudioRecord.this.audioRecord.read(WebRtcAudioRecord.this.byteBuffer, WebRtcAudioRecord.this.byteBuffer.capacity());
                 if (bytesRead == WebRtcAudioRecord.this.byteBuffer.capacity()) {
+                    long captureTimeNs = System.nanoTime();
                     if (WebRtcAudioRecord.this.microphoneMute) {
                         WebRtcAudioRecord.this.byteBuffer.clear();
                         WebRtcAudioRecord.this.byteBuffer.put(WebRtcAudioRecord.this.emptyBytes);
@@ -98,6 +106,10 @@ class WebRtcAudioRecord {
                     if (this.keepAlive) {
                         WebRtcAudioRecord.this.nativeDataIsRecorded(WebRtcAudioRecord.this.nativeAudioRecord, bytesRead);
                     }
+                    if (WebRtcAudioRecord.this.directSamplesReadyCallback != null) {
+                        WebRtcAudioRecord.this.readOnlyByteBuffer.clear();
+                        WebRtcAudioRecord.this.directSamplesReadyCallback.onWebRtcAudioRecordSamplesReady(WebRtcAudioRecord.this.readOnlyByteBuffer, WebRtcAudioRecord.this.recordAudioFormat, WebRtcAudioRecord.this.recordChannelCount, WebRtcAudioRecord.this.recordSampleRate, captureTimeNs);
+                    }
                     if (WebRtcAudioRecord.this.audioSamplesReadyCallback != null) {
                         byte[] data = Arrays.copyOfRange(WebRtcAudioRecord.this.byteBuffer.array(), WebRtcAudioRecord.this.byteBuffer.arrayOffset(), WebRtcAudioRecord.this.byteBuffer.capacity() + WebRtcAudioRecord.this.byteBuffer.arrayOffset());
                         WebRtcAudioRecord.this.audioSamplesReadyCallback.onWebRtcAudioRecordSamplesReady(new JavaAudioDeviceModule.AudioSamples(WebRtcAudioRecord.this.audioRecord.getAudioFormat(), WebRtcAudioRecord.this.audioRecord.getChannelCount(), WebRtcAudioRecord.this.audioRecord.getSampleRate(), data));
@@ -129,10 +141,10 @@ class WebRtcAudioRecord {
 
     @CalledByNative
     WebRtcAudioRecord(Context context, AudioManager audioManager) {
-        this(context, audioManager, 7, 2, null, null, null, null, WebRtcAudioEffects.isAcousticEchoCancelerSupported(), WebRtcAudioEffects.isNoiseSuppressorSupported());
+        this(context, audioManager, 7, 2, null, null, null, null, null, WebRtcAudioEffects.isAcousticEchoCancelerSupported(), WebRtcAudioEffects.isNoiseSuppressorSupported());
     }
 
-    public WebRtcAudioRecord(Context context, AudioManager audioManager, int audioSource, int audioFormat, JavaAudioDeviceModule.AudioRecordFactory audioRecordFactory, JavaAudioDeviceModule.AudioRecordErrorCallback errorCallback, JavaAudioDeviceModule.AudioRecordStateCallback stateCallback, JavaAudioDeviceModule.SamplesReadyCallback audioSamplesReadyCallback, boolean isAcousticEchoCancelerSupported, boolean isNoiseSuppressorSupported) {
+    public WebRtcAudioRecord(Context context, AudioManager audioManager, int audioSource, int audioFormat, JavaAudioDeviceModule.AudioRecordFactory audioRecordFactory, JavaAudioDeviceModule.AudioRecordErrorCallback errorCallback, JavaAudioDeviceModule.AudioRecordStateCallback stateCallback, JavaAudioDeviceModule.SamplesReadyCallback audioSamplesReadyCallback, JavaAudioDeviceModule.DirectSamplesReadyCallback directSamplesReadyCallback, boolean isAcousticEchoCancelerSupported, boolean isNoiseSuppressorSupported) {
         this.effects = new WebRtcAudioEffects();
         if (isAcousticEchoCancelerSupported && !WebRtcAudioEffects.isAcousticEchoCancelerSupported()) {
             throw new IllegalArgumentException("HW AEC not supported");
@@ -148,6 +160,7 @@ class WebRtcAudioRecord {
         this.errorCallback = errorCallback;
         this.stateCallback = stateCallback;
         this.audioSamplesReadyCallback = audioSamplesReadyCallback;
+        this.directSamplesReadyCallback = directSamplesReadyCallback;
         this.isAcousticEchoCancelerSupported = isAcousticEchoCancelerSupported;
         this.isNoiseSuppressorSupported = isNoiseSuppressorSupported;
         Logging.d(TAG, "ctor" + WebRtcAudioUtils.getThreadInfo());
@@ -209,6 +222,7 @@ class WebRtcAudioRecord {
             return -1;
         }
         Logging.d(TAG, "byteBuffer.capacity: " + this.byteBuffer.capacity());
+        this.readOnlyByteBuffer = this.byteBuffer.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
         this.emptyBytes = new byte[this.byteBuffer.capacity()];
         nativeCacheDirectBufferAddress(this.nativeAudioRecord, this.byteBuffer);
         int channelConfig = channelCountToConfiguration(channels);
@@ -239,6 +253,9 @@ class WebRtcAudioRecord {
                 releaseAudioResources();
                 return -1;
             }
+            this.recordAudioFormat = this.audioRecord.getAudioFormat();
+            this.recordChannelCount = this.audioRecord.getChannelCount();
+            this.recordSampleRate = this.audioRecord.getSampleRate();
             this.effects.enable(this.audioRecord.getAudioSessionId());
             logMainParameters();
             logMainParametersExtended();
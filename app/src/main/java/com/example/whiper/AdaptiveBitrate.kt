@@ -0,0 +1,253 @@
+package com.example.whiper
+
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import org.webrtc.MediaStreamTrack
+import org.webrtc.PeerConnection
+import org.webrtc.RTCStatsReport
+import kotlin.math.ceil
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+// Closed-loop adaptive bitrate for the video sender.
+//
+// WebRTC's own congestion controller still does the fast reaction; this loop only moves the
+// encoding caps (maxBitrateBps / maxFramerate / scaleResolutionDownBy) inside the user's
+// floor..ceiling so that a congested uplink gets a lower target instead of sustained loss.
+// Policies only see AbrSample/AbrDecision/AbrLimits (plain data), so they can be replayed
+// offline against recorded stats traces.
+
+data class AbrLimits(
+    val minBitrateBps: Int,
+    val maxBitrateBps: Int,
+    val minFramerate: Int,
+    val maxFramerate: Int,
+    val maxScaleResolutionDownBy: Double = 4.0
+)
+
+data class AbrDecision(
+    val maxBitrateBps: Int,
+    val maxFramerate: Int,
+    val scaleResolutionDownBy: Double
+)
+
+data class AbrSample(
+    val timestampMs: Long,
+    val sentBitrateBps: Double?,
+    val availableOutgoingBitrateBps: Double?,
+    val rttMs: Double?,
+    val fractionLost: Double?,
+    val qualityLimitationReason: String?,
+    val framesPerSecond: Double?,
+    val frameWidth: Int?,
+    val frameHeight: Int?
+)
+
+interface AbrPolicy {
+    fun decide(sample: AbrSample, current: AbrDecision, limits: AbrLimits): AbrDecision
+}
+
+// AIMD on the bitrate cap, following the BWE estimate down. Framerate and then resolution are
+// only traded once the bitrate is pinned at the floor, and restored after a few stable samples.
+class LossBasedAbrPolicy(
+    private val increaseFactor: Double = 1.08,
+    private val decreaseFactor: Double = 0.85,
+    private val highLoss: Double = 0.10,
+    private val lowLoss: Double = 0.02,
+    private val highRttMs: Double = 400.0,
+    private val stableSamplesBeforeUpgrade: Int = 3
+) : AbrPolicy {
+
+    private var stableSamples = 0
+
+    override fun decide(sample: AbrSample, current: AbrDecision, limits: AbrLimits): AbrDecision {
+        val loss = sample.fractionLost ?: 0.0
+        val rtt = sample.rttMs ?: 0.0
+        val available = sample.availableOutgoingBitrateBps
+        val congested = loss > highLoss || rtt > highRttMs
+
+        var bitrate = current.maxBitrateBps.toDouble()
+        when {
+            congested -> bitrate *= decreaseFactor
+            available != null && available < bitrate -> bitrate = max(available * 0.9, bitrate * decreaseFactor)
+            loss < lowLoss -> bitrate *= increaseFactor
+        }
+        val newBitrate = bitrate.roundToInt().coerceIn(limits.minBitrateBps, limits.maxBitrateBps)
+
+        stableSamples = if (congested || loss >= lowLoss) 0 else stableSamples + 1
+
+        var fps = current.maxFramerate
+        var scale = current.scaleResolutionDownBy
+        val starving = congested && newBitrate <= limits.minBitrateBps
+        val cpuLimited = sample.qualityLimitationReason == "cpu"
+
+        if (starving || cpuLimited) {
+            if (fps > limits.minFramerate) {
+                fps = max(limits.minFramerate, fps * 2 / 3)
+            } else if (starving && scale < limits.maxScaleResolutionDownBy) {
+                scale = min(limits.maxScaleResolutionDownBy, scale * 1.5)
+            }
+        } else if (stableSamples >= stableSamplesBeforeUpgrade && newBitrate >= limits.minBitrateBps * 2) {
+            if (scale > 1.0) {
+                scale = max(1.0, scale / 1.5)
+            } else if (fps < limits.maxFramerate) {
+                fps = min(limits.maxFramerate, ceil(fps * 1.5).toInt())
+            }
+            stableSamples = 0
+        }
+
+        return AbrDecision(newBitrate, fps.coerceIn(limits.minFramerate, limits.maxFramerate), scale)
+    }
+}
+
+class AbrController(
+    private val scope: CoroutineScope,
+    private val peerConnection: () -> PeerConnection?,
+    private val limits: AbrLimits,
+    private val policy: AbrPolicy = LossBasedAbrPolicy(),
+    private val intervalMs: Long = 1_000L
+) {
+
+    private var job: Job? = null
+    private var current = AbrDecision(limits.maxBitrateBps, limits.maxFramerate, 1.0)
+
+    private var prevTimestampUs = 0.0
+    private var prevBytesSent = 0.0
+    private var prevPacketsSent = 0.0
+    private var prevPacketsLost = 0.0
+
+    fun start() {
+        stop()
+        current = AbrDecision(limits.maxBitrateBps, limits.maxFramerate, 1.0)
+        prevTimestampUs = 0.0
+        Log.i(TAG, "ABR start limits=$limits")
+        job = scope.launch(Dispatchers.Main) {
+            while (isActive) {
+                delay(intervalMs)
+                val pc = peerConnection() ?: continue
+                pc.getStats { report ->
+                    scope.launch(Dispatchers.Main) { onReport(report) }
+                }
+            }
+        }
+    }
+
+    fun stop() {
+        job?.cancel()
+        job = null
+    }
+
+    private fun onReport(report: RTCStatsReport) {
+        if (job == null) return
+        val sample = toSample(report) ?: return
+        val next = policy.decide(sample, current, limits)
+        if (next != current) {
+            Log.i(
+                TAG,
+                "ABR ${current.maxBitrateBps}->${next.maxBitrateBps} bps fps=${next.maxFramerate} scale=${next.scaleResolutionDownBy} " +
+                    "(sent=${sample.sentBitrateBps?.roundToInt()} bwe=${sample.availableOutgoingBitrateBps?.roundToInt()} " +
+                    "rtt=${sample.rttMs} loss=${sample.fractionLost} limit=${sample.qualityLimitationReason})"
+            )
+            if (apply(next)) current = next
+        }
+    }
+
+    private fun apply(decision: AbrDecision): Boolean {
+        val pc = peerConnection() ?: return false
+        val sender = pc.senders.firstOrNull { it.track()?.kind() == MediaStreamTrack.VIDEO_TRACK_KIND } ?: return false
+        return try {
+            val p = sender.parameters
+            val enc = p.encodings
+            if (enc.isNullOrEmpty()) return false
+            if (enc.size > 1) {
+                // Simulcast: the budget is split over the layers and a downscale drops the top ones.
+                Simulcast.applyLayerCaps(enc, decision.maxBitrateBps, limits.minBitrateBps, decision.maxFramerate, decision.scaleResolutionDownBy)
+            } else {
+                enc[0].maxBitrateBps = decision.maxBitrateBps
+                enc[0].minBitrateBps = limits.minBitrateBps
+                enc[0].maxFramerate = decision.maxFramerate
+                enc[0].scaleResolutionDownBy = decision.scaleResolutionDownBy
+            }
+            sender.setParameters(p)
+        } catch (t: Throwable) {
+            Log.w(TAG, "ABR apply failed", t)
+            false
+        }
+    }
+
+    private fun toSample(report: RTCStatsReport): AbrSample? {
+        var bytesSent: Double? = null
+        var packetsSent: Double? = null
+        var qualityLimitationReason: String? = null
+        var framesPerSecond: Double? = null
+        var frameWidth: Int? = null
+        var frameHeight: Int? = null
+        var fractionLost: Double? = null
+        var packetsLost: Double? = null
+        var rttMs: Double? = null
+        var availableOutgoing: Double? = null
+
+        for (stats in report.statsMap.values) {
+            val m = stats.members
+            when (stats.type) {
+                "outbound-rtp" -> if (isVideo(m)) {
+                    bytesSent = (bytesSent ?: 0.0) + (num(m["bytesSent"]) ?: 0.0)
+                    packetsSent = (packetsSent ?: 0.0) + (num(m["packetsSent"]) ?: 0.0)
+                    qualityLimitationReason = m["qualityLimitationReason"] as? String ?: qualityLimitationReason
+                    framesPerSecond = num(m["framesPerSecond"]) ?: framesPerSecond
+                    frameWidth = num(m["frameWidth"])?.toInt() ?: frameWidth
+                    frameHeight = num(m["frameHeight"])?.toInt() ?: frameHeight
+                }
+                "remote-inbound-rtp" -> if (isVideo(m)) {
+                    fractionLost = num(m["fractionLost"]) ?: fractionLost
+                    packetsLost = num(m["packetsLost"]) ?: packetsLost
+                    num(m["roundTripTime"])?.let { rttMs = it * 1000.0 }
+                }
+                "candidate-pair" -> if (m["nominated"] == true && m["state"] == "succeeded") {
+                    availableOutgoing = num(m["availableOutgoingBitrate"]) ?: availableOutgoing
+                    if (rttMs == null) num(m["currentRoundTripTime"])?.let { rttMs = it * 1000.0 }
+                }
+            }
+        }
+        if (bytesSent == null) return null
+
+        val ts = report.timestampUs
+        val first = prevTimestampUs == 0.0
+        val dtSec = (ts - prevTimestampUs) / 1_000_000.0
+        val sentBitrate = if (!first && dtSec > 0) (bytesSent - prevBytesSent) * 8.0 / dtSec else null
+        if (fractionLost == null && !first && packetsLost != null && packetsSent != null) {
+            val sentDelta = packetsSent - prevPacketsSent
+            if (sentDelta > 0) fractionLost = ((packetsLost - prevPacketsLost) / sentDelta).coerceIn(0.0, 1.0)
+        }
+        prevTimestampUs = ts
+        prevBytesSent = bytesSent
+        prevPacketsSent = packetsSent ?: 0.0
+        prevPacketsLost = packetsLost ?: 0.0
+
+        return AbrSample(
+            timestampMs = (ts / 1000.0).toLong(),
+            sentBitrateBps = sentBitrate,
+            availableOutgoingBitrateBps = availableOutgoing,
+            rttMs = rttMs,
+            fractionLost = fractionLost,
+            qualityLimitationReason = qualityLimitationReason,
+            framesPerSecond = framesPerSecond,
+            frameWidth = frameWidth,
+            frameHeight = frameHeight
+        )
+    }
+
+    private fun isVideo(m: Map<String, Any?>): Boolean = (m["kind"] ?: m["mediaType"]) == "video"
+
+    private fun num(v: Any?): Double? = (v as? Number)?.toDouble()
+
+    companion object {
+        private const val TAG = "AbrController"
+    }
+}
@@ -0,0 +1,370 @@
+package com.example.whiper
+
+import android.Manifest
+import android.annotation.SuppressLint
+import android.media.AudioFormat
+import android.media.AudioPlaybackCaptureConfiguration
+import android.media.AudioRecord
+import android.media.MediaRecorder
+import android.os.Build
+import android.os.SystemClock
+import android.util.Log
+import androidx.annotation.RequiresApi
+import androidx.annotation.RequiresPermission
+import org.webrtc.audio.JavaAudioDeviceModule
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.LockSupport
+import kotlin.math.max
+
+// Where the WebRTC audio input comes from. The AudioRecordFactory below turns one of these into
+// the AudioRecord that WebRtcAudioRecord drives.
+sealed class AudioCaptureSource {
+    object Microphone : AudioCaptureSource()
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    class Playback(val config: AudioPlaybackCaptureConfiguration) : AudioCaptureSource()
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    class Mixed(
+        val config: AudioPlaybackCaptureConfiguration,
+        val micGain: Float,
+        val systemGain: Float
+    ) : AudioCaptureSource()
+
+    // 16-bit PCM WAV, played in a loop in real time.
+    class WavFile(val file: File) : AudioCaptureSource()
+
+    override fun toString(): String = javaClass.simpleName
+}
+
+// AudioFormat objects and getMinBufferSize results per (rate, channel mask, encoding). Both are
+// pure functions of the key but getMinBufferSize is a binder round trip into audioserver.
+internal object AudioFormatCache {
+
+    private class Entry(val format: AudioFormat, val minBufferSize: Int)
+
+    private val entries = ConcurrentHashMap<Long, Entry>()
+
+    private fun key(sampleRate: Int, channelConfig: Int, encoding: Int): Long =
+        (sampleRate.toLong() shl 32) or ((channelConfig.toLong() and 0xFFFFFF) shl 8) or (encoding.toLong() and 0xFF)
+
+    private fun entry(sampleRate: Int, channelConfig: Int, encoding: Int): Entry =
+        entries.getOrPut(key(sampleRate, channelConfig, encoding)) {
+            Entry(
+                AudioFormat.Builder()
+                    .setEncoding(encoding)
+                    .setSampleRate(sampleRate)
+                    .setChannelMask(channelConfig)
+                    .build(),
+                AudioRecord.getMinBufferSize(sampleRate, channelConfig, encoding)
+            )
+        }
+
+    fun format(sampleRate: Int, channelConfig: Int, encoding: Int): AudioFormat =
+        entry(sampleRate, channelConfig, encoding).format
+
+    fun minBufferSize(sampleRate: Int, channelConfig: Int, encoding: Int): Int =
+        entry(sampleRate, channelConfig, encoding).minBufferSize
+}
+
+// Typed AudioRecordFactory for JavaAudioDeviceModule.
+//
+// prewarm() builds the AudioRecord for the parameters WebRTC is going to ask for (same sizing as
+// WebRtcAudioRecord.initRecording) while signalling is still in flight; the first
+// createAudioRecord() call then only hands it over. Any mismatch falls back to building a fresh one.
+@SuppressLint("MissingPermission")
+class WhipAudioRecordFactory(private val source: AudioCaptureSource) : JavaAudioDeviceModule.AudioRecordFactory {
+
+    private val lock = Any()
+    private var prewarmed: AudioRecord? = null
+    private var prewarmedKey = ""
+    private var prewarmedBufferSize = 0
+    private var created = false
+
+    fun prewarm(sampleRate: Int, channels: Int) {
+        val channelConfig = if (channels == 2) AudioFormat.CHANNEL_IN_STEREO else AudioFormat.CHANNEL_IN_MONO
+        val encoding = AudioFormat.ENCODING_PCM_16BIT
+        val minBuffer = AudioFormatCache.minBufferSize(sampleRate, channelConfig, encoding)
+        if (minBuffer <= 0) return
+        val bufferSize = max(2 * minBuffer, sampleRate / 100 * channels * 2)
+
+        val startMs = SystemClock.elapsedRealtime()
+        val record = try {
+            build(sampleRate, channelConfig, encoding, bufferSize)
+        } catch (t: Throwable) {
+            Log.w(TAG, "Prewarm of $source failed", t)
+            return
+        }
+        synchronized(lock) {
+            if (created) {
+                // WebRTC got there first and built its own.
+                record.release()
+                return
+            }
+            prewarmed?.release()
+            prewarmed = record
+            prewarmedKey = key(sampleRate, channelConfig, encoding)
+            prewarmedBufferSize = bufferSize
+        }
+        Log.i(TAG, "Prewarmed $source AudioRecord ${sampleRate}Hz x $channels in ${SystemClock.elapsedRealtime() - startMs} ms")
+    }
+
+    override fun createAudioRecord(sampleRate: Int, channelConfig: Int, audioFormat: Int, bufferSizeInBytes: Int): AudioRecord {
+        synchronized(lock) {
+            created = true
+            val ready = prewarmed
+            prewarmed = null
+            if (ready != null) {
+                if (prewarmedKey == key(sampleRate, channelConfig, audioFormat) &&
+                    prewarmedBufferSize >= bufferSizeInBytes &&
+                    ready.state == AudioRecord.STATE_INITIALIZED
+                ) {
+                    Log.i(TAG, "Using prewarmed $source AudioRecord")
+                    return ready
+                }
+                ready.release()
+            }
+        }
+        Log.i(TAG, "Creating $source AudioRecord sampleRate=$sampleRate channelConfig=$channelConfig audioFormat=$audioFormat")
+        return build(sampleRate, channelConfig, audioFormat, bufferSizeInBytes)
+    }
+
+    fun release() {
+        synchronized(lock) {
+            prewarmed?.release()
+            prewarmed = null
+        }
+    }
+
+    private fun build(sampleRate: Int, channelConfig: Int, encoding: Int, bufferSizeInBytes: Int): AudioRecord {
+        val bufferSize = bufferSizeInBytes.coerceAtLeast(AudioFormatCache.minBufferSize(sampleRate, channelConfig, encoding))
+        return when (source) {
+            is AudioCaptureSource.Microphone -> AudioRecord.Builder()
+                .setAudioSource(MediaRecorder.AudioSource.VOICE_COMMUNICATION)
+                .setAudioFormat(AudioFormatCache.format(sampleRate, channelConfig, encoding))
+                .setBufferSizeInBytes(bufferSize)
+                .build()
+
+            is AudioCaptureSource.Playback -> AudioRecord.Builder()
+                .setAudioFormat(AudioFormatCache.format(sampleRate, channelConfig, encoding))
+                .setBufferSizeInBytes(bufferSize)
+                .setAudioPlaybackCaptureConfig(source.config)
+                .build()
+
+            is AudioCaptureSource.Mixed -> {
+                require(encoding == AudioFormat.ENCODING_PCM_16BIT) { "Mixing needs 16-bit PCM, got $encoding" }
+                MixingAudioRecord(source.config, sampleRate, channelConfig, bufferSize, source.micGain, source.systemGain)
+            }
+
+            is AudioCaptureSource.WavFile -> {
+                require(encoding == AudioFormat.ENCODING_PCM_16BIT) { "WAV playback needs 16-bit PCM, got $encoding" }
+                WavFileAudioRecord.open(source.file, sampleRate, channelConfig, bufferSize)
+            }
+        }
+    }
+
+    private fun key(sampleRate: Int, channelConfig: Int, encoding: Int) = "$sampleRate/$channelConfig/$encoding"
+
+    companion object {
+        private const val TAG = "WhipAudioRecordFactory"
+    }
+}
+
+// Feeds a 16-bit PCM WAV file to WebRTC in real time, looping at the end.
+//
+// Like MixingAudioRecord it has to be an AudioRecord; the microphone record underneath is
+// configured but never started, and read(ByteBuffer, Int) paces itself to one buffer per 10 ms.
+// The file must match the requested channel count; a different sample rate is resampled.
+// Configuring that record still opens a microphone input, so RECORD_AUDIO is needed even though
+// nothing is captured from it; without it the record stays uninitialized and WebRTC rejects it.
+// StreamService checks the permission before choosing this source.
+@RequiresPermission(Manifest.permission.RECORD_AUDIO)
+class WavFileAudioRecord private constructor(
+    private val input: RandomAccessFile,
+    data: WavData,
+    private val targetSampleRate: Int,
+    channelConfig: Int,
+    bufferSizeInBytes: Int
+) : AudioRecord(
+    MediaRecorder.AudioSource.MIC,
+    targetSampleRate,
+    channelConfig,
+    AudioFormat.ENCODING_PCM_16BIT,
+    bufferSizeInBytes
+) {
+
+    // Where the samples are in the file, and their rate.
+    private class WavData(val sampleRate: Int, val start: Long, val end: Long)
+
+    private val channels = channelsOf(channelConfig)
+    private val dataStart = data.start
+    private val dataEnd = data.end
+    private val resampler = LinearResampler(data.sampleRate, targetSampleRate, channels)
+
+    private val fileBytes: ByteArray
+    private val fileSamples: ShortArray
+    private var pending = ShortArray(0)
+    private var pendingCount = 0
+    private var outView: ShortBuffer? = null
+    private var outViewSource: ByteBuffer? = null
+
+    @Volatile
+    private var recording = false
+    private var nextBufferNs = 0L
+
+    init {
+        val frameSamples = data.sampleRate / 100 * channels
+        fileBytes = ByteArray(frameSamples * 2)
+        fileSamples = ShortArray(frameSamples)
+    }
+
+    override fun startRecording() {
+        nextBufferNs = System.nanoTime()
+        recording = true
+    }
+
+    override fun stop() {
+        recording = false
+    }
+
+    override fun getRecordingState(): Int =
+        if (recording) RECORDSTATE_RECORDING else RECORDSTATE_STOPPED
+
+    override fun release() {
+        recording = false
+        try {
+            input.close()
+        } catch (_: IOException) {
+        }
+        super.release()
+    }
+
+    override fun read(audioBuffer: ByteBuffer, sizeInBytes: Int): Int {
+        if (!recording) return ERROR_INVALID_OPERATION
+        val samples = sizeInBytes / 2
+
+        while (pendingCount < samples) {
+            if (!fill()) return ERROR
+        }
+
+        val view = if (audioBuffer === outViewSource) outView!! else {
+            audioBuffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer().also {
+                outView = it
+                outViewSource = audioBuffer
+            }
+        }
+        view.clear()
+        view.put(pending, 0, samples)
+        System.arraycopy(pending, samples, pending, 0, pendingCount - samples)
+        pendingCount -= samples
+
+        // Real-time pacing: one buffer per buffer duration, like a capture device.
+        nextBufferNs += samples.toLong() / channels * 1_000_000_000L / targetSampleRate
+        val wait = nextBufferNs - System.nanoTime()
+        if (wait > 0) LockSupport.parkNanos(wait) else if (wait < -MAX_LAG_NS) nextBufferNs = System.nanoTime()
+        return samples * 2
+    }
+
+    private fun fill(): Boolean {
+        try {
+            var remaining = dataEnd - input.filePointer
+            if (remaining < 2L * channels) {
+                input.seek(dataStart)
+                remaining = dataEnd - dataStart
+                if (remaining < 2L * channels) return false
+            }
+            val bytes = minOf(fileBytes.size.toLong(), remaining - remaining % (2 * channels)).toInt()
+            input.readFully(fileBytes, 0, bytes)
+            val n = bytes / 2
+            for (i in 0 until n) {
+                fileSamples[i] = ((fileBytes[2 * i].toInt() and 0xFF) or (fileBytes[2 * i + 1].toInt() shl 8)).toShort()
+            }
+            val src: ShortArray
+            val count: Int
+            if (resampler.isPassThrough) {
+                src = fileSamples
+                count = n
+            } else {
+                count = resampler.process(fileSamples, n)
+                src = resampler.output
+            }
+            if (pending.size < pendingCount + count) pending = pending.copyOf(pendingCount + count)
+            System.arraycopy(src, 0, pending, pendingCount, count)
+            pendingCount += count
+            return true
+        } catch (e: IOException) {
+            Log.e(TAG, "WAV read failed", e)
+            return false
+        }
+    }
+
+    companion object {
+        private const val TAG = "WavFileAudioRecord"
+        private const val MAX_LAG_NS = 100_000_000L
+
+        // The file is opened and checked before the AudioRecord underneath claims a microphone
+        // input, so a missing or malformed file leaves nothing to release but the file itself.
+        @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+        @Throws(IOException::class)
+        fun open(file: File, targetSampleRate: Int, channelConfig: Int, bufferSizeInBytes: Int): WavFileAudioRecord {
+            val input = RandomAccessFile(file, "r")
+            try {
+                val data = readHeader(input, file, channelsOf(channelConfig))
+                return WavFileAudioRecord(input, data, targetSampleRate, channelConfig, bufferSizeInBytes)
+            } catch (t: Throwable) {
+                try {
+                    input.close()
+                } catch (_: IOException) {
+                }
+                throw t
+            }
+        }
+
+        private fun readHeader(input: RandomAccessFile, file: File, channels: Int): WavData {
+            val header = ByteArray(12)
+            input.readFully(header)
+            if (String(header, 0, 4, Charsets.US_ASCII) != "RIFF" || String(header, 8, 4, Charsets.US_ASCII) != "WAVE") {
+                throw IOException("Not a WAV file: $file")
+            }
+            var rate = 0
+            var start = -1L
+            var end = -1L
+            val chunk = ByteArray(8)
+            while (start < 0 && input.filePointer + 8 <= input.length()) {
+                input.readFully(chunk)
+                val id = String(chunk, 0, 4, Charsets.US_ASCII)
+                val size = ByteBuffer.wrap(chunk, 4, 4).order(ByteOrder.LITTLE_ENDIAN).int.toLong() and 0xFFFFFFFFL
+                when (id) {
+                    "fmt " -> {
+                        val fmt = ByteArray(size.toInt())
+                        input.readFully(fmt)
+                        val b = ByteBuffer.wrap(fmt).order(ByteOrder.LITTLE_ENDIAN)
+                        val formatTag = b.getShort(0).toInt()
+                        val fileChannels = b.getShort(2).toInt()
+                        rate = b.getInt(4)
+                        val bits = b.getShort(14).toInt()
+                        if (formatTag != 1 || bits != 16 || fileChannels != channels) {
+                            throw IOException("Unsupported WAV $file: format=$formatTag bits=$bits channels=$fileChannels (need PCM16 x $channels)")
+                        }
+                    }
+                    "data" -> {
+                        start = input.filePointer
+                        end = minOf(start + size, input.length())
+                    }
+                    else -> input.seek(input.filePointer + size + (size and 1))
+                }
+            }
+            if (rate == 0 || start < 0) throw IOException("WAV $file has no fmt/data chunk")
+            input.seek(start)
+            return WavData(rate, start, end)
+        }
+
+        private fun channelsOf(channelConfig: Int) = if (channelConfig == AudioFormat.CHANNEL_IN_STEREO) 2 else 1
+    }
+}
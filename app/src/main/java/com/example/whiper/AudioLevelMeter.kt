@@ -0,0 +1,61 @@
+package com.example.whiper
+
+import android.media.AudioFormat
+import android.util.Log
+import org.webrtc.audio.JavaAudioDeviceModule
+import java.nio.ByteBuffer
+import kotlin.math.abs
+import kotlin.math.log10
+import kotlin.math.max
+import kotlin.math.sqrt
+
+// Input level meter on the allocation-free record tap. Runs on the WebRTC audio record thread,
+// so it only reads the buffer in place and logs the peak and RMS level every logIntervalBuffers.
+class AudioLevelMeter(private val logIntervalBuffers: Int = 500) : JavaAudioDeviceModule.DirectSamplesReadyCallback {
+
+    private var buffers = 0
+    private var intervalPeak = 0
+    private var intervalSumSquares = 0.0
+    private var intervalSamples = 0L
+
+    override fun onWebRtcAudioRecordSamplesReady(
+        samples: ByteBuffer,
+        audioFormat: Int,
+        channelCount: Int,
+        sampleRate: Int,
+        captureTimeNs: Long
+    ) {
+        if (audioFormat != AudioFormat.ENCODING_PCM_16BIT) return
+        val count = samples.remaining() / 2
+        if (count == 0) return
+
+        val base = samples.position()
+        var peak = intervalPeak
+        var sumSquares = 0.0
+        for (i in 0 until count) {
+            val s = samples.getShort(base + i * 2).toInt()
+            peak = max(peak, abs(s))
+            sumSquares += (s * s).toDouble()
+        }
+        intervalPeak = peak
+        intervalSumSquares += sumSquares
+        intervalSamples += count
+
+        if (++buffers >= logIntervalBuffers) {
+            val rms = toDbfs(sqrt(intervalSumSquares / intervalSamples))
+            Log.d(TAG, "Input level: peak=${toDbfs(intervalPeak.toDouble())} dBFS rms=$rms dBFS ($sampleRate Hz x $channelCount)")
+            buffers = 0
+            intervalPeak = 0
+            intervalSumSquares = 0.0
+            intervalSamples = 0L
+        }
+    }
+
+    private fun toDbfs(amplitude: Double): Float =
+        if (amplitude < 1.0) SILENCE_DBFS else (20.0 * log10(amplitude / 32768.0)).toFloat()
+
+    companion object {
+        private const val TAG = "AudioLevelMeter"
+        private const val SILENCE_DBFS = -96f
+    }
+}
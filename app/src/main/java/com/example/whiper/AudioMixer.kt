@@ -0,0 +1,321 @@
+package com.example.whiper
+
+import android.annotation.SuppressLint
+import android.media.AudioFormat
+import android.media.AudioPlaybackCaptureConfiguration
+import android.media.AudioRecord
+import android.media.MediaRecorder
+import android.os.Build
+import android.os.Process
+import android.util.Log
+import androidx.annotation.RequiresApi
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+
+// Microphone + system audio ("mix" audio source).
+//
+// JavaAudioDeviceModule only takes an AudioRecord from its AudioRecordFactory, so the mixer is
+// an AudioRecord itself: the superclass is the microphone, and read(ByteBuffer, Int) - the only
+// read WebRtcAudioRecord uses - returns the mix instead. Each source is drained by its own
+// URGENT_AUDIO thread into an SPSC ring; the WebRTC record thread waits at most one callback
+// (10 ms) for them, so a stalled source costs one underrun of silence, not a stalled uplink.
+
+// Single-producer / single-consumer ring of 16-bit samples. Positions only ever grow; the
+// producer owns writePos and the consumer owns readPos, so no locks are needed.
+internal class PcmRingBuffer(minCapacity: Int) {
+
+    private val buffer: ShortArray
+    private val mask: Int
+
+    @Volatile
+    private var writePos = 0L
+
+    @Volatile
+    private var readPos = 0L
+
+    init {
+        var capacity = 1
+        while (capacity < minCapacity) capacity = capacity shl 1
+        buffer = ShortArray(capacity)
+        mask = capacity - 1
+    }
+
+    fun available(): Int = (writePos - readPos).toInt()
+
+    // Producer side. Returns the number of samples stored; the rest is dropped when full.
+    fun write(src: ShortArray, offset: Int, length: Int): Int {
+        val w = writePos
+        val n = min(length, buffer.size - (w - readPos).toInt())
+        for (i in 0 until n) {
+            buffer[((w + i).toInt()) and mask] = src[offset + i]
+        }
+        writePos = w + n
+        return n
+    }
+
+    // Consumer side.
+    fun read(dst: ShortArray, offset: Int, length: Int): Int {
+        val r = readPos
+        val n = min(length, (writePos - r).toInt())
+        for (i in 0 until n) {
+            dst[offset + i] = buffer[((r + i).toInt()) and mask]
+        }
+        readPos = r + n
+        return n
+    }
+
+    // Consumer side: drop the oldest samples to bound latency.
+    fun skip(length: Int) {
+        val r = readPos
+        readPos = r + min(length, (writePos - r).toInt())
+    }
+}
+
+// Linear resampler for interleaved 16-bit PCM; only used when a source could not be opened at
+// the rate WebRTC asked for.
+internal class LinearResampler(private val inRate: Int, private val outRate: Int, private val channels: Int) {
+
+    private val step = inRate.toDouble() / outRate
+    private var position = 0.0
+    private val last = ShortArray(channels)
+
+    var output = ShortArray(0)
+        private set
+
+    val isPassThrough: Boolean get() = inRate == outRate
+
+    // Resamples [inSamples] interleaved samples into [output]; returns the number written.
+    // Output sample k sits between input frames k*step - 1 and k*step, so the previous call's
+    // last frame is carried over in [last].
+    fun process(input: ShortArray, inSamples: Int): Int {
+        val inFrames = inSamples / channels
+        if (inFrames == 0) return 0
+        val maxOutFrames = (inFrames / step).toInt() + 2
+        if (output.size < maxOutFrames * channels) output = ShortArray(maxOutFrames * channels)
+        var n = 0
+        while (position < inFrames) {
+            val i = position.toInt()
+            val frac = position - i
+            for (c in 0 until channels) {
+                val a = if (i == 0) last[c].toInt() else input[(i - 1) * channels + c].toInt()
+                val b = input[i * channels + c].toInt()
+                output[n++] = (a + (b - a) * frac).toInt().toShort()
+            }
+            position += step
+        }
+        position -= inFrames
+        for (c in 0 until channels) last[c] = input[(inFrames - 1) * channels + c]
+        return n
+    }
+}
+
+@RequiresApi(Build.VERSION_CODES.Q)
+@SuppressLint("MissingPermission")
+class MixingAudioRecord(
+    playbackCapture: AudioPlaybackCaptureConfiguration,
+    private val targetSampleRate: Int,
+    channelConfig: Int,
+    bufferSizeInBytes: Int,
+    private val micGain: Float = 1.0f,
+    private val systemGain: Float = 1.0f
+) : AudioRecord(
+    MediaRecorder.AudioSource.VOICE_COMMUNICATION,
+    targetSampleRate,
+    channelConfig,
+    AudioFormat.ENCODING_PCM_16BIT,
+    bufferSizeInBytes
+) {
+
+    private val channels = if (channelConfig == AudioFormat.CHANNEL_IN_STEREO) 2 else 1
+    private val frameSamples = targetSampleRate / 100 * channels
+
+    private val systemRecord: AudioRecord = AudioRecord.Builder()
+        .setAudioFormat(
+            AudioFormat.Builder()
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .setSampleRate(targetSampleRate)
+                .setChannelMask(channelConfig)
+                .build()
+        )
+        .setBufferSizeInBytes(bufferSizeInBytes)
+        .setAudioPlaybackCaptureConfig(playbackCapture)
+        .build()
+
+    // 80 ms per ring; anything older than two callbacks is dropped on read.
+    private val micRing = PcmRingBuffer(frameSamples * 8)
+    private val systemRing = PcmRingBuffer(frameSamples * 8)
+    private val maxBufferedSamples = frameSamples * 2
+
+    private var micScratch = ShortArray(frameSamples)
+    private var systemScratch = ShortArray(frameSamples)
+    private var mixed = ShortArray(frameSamples)
+    private var outView: ShortBuffer? = null
+    private var outViewSource: ByteBuffer? = null
+
+    @Volatile
+    private var running = false
+
+    @Volatile
+    private var consumer: Thread? = null
+    private var micThread: Thread? = null
+    private var systemThread: Thread? = null
+
+    // Limiter state: current gain reduction, attack is instant, release ~50 ms.
+    private var limiterGain = 1.0f
+    private val limiterRelease = 1.0f - 1.0f / (targetSampleRate * 0.05f)
+
+    @Volatile
+    var micUnderruns = 0L
+        private set
+
+    @Volatile
+    var systemUnderruns = 0L
+        private set
+
+    private val overflowed = AtomicLong()
+    val overflowedSamples: Long get() = overflowed.get()
+
+    override fun getState(): Int =
+        if (super.getState() == STATE_INITIALIZED && systemRecord.state == STATE_INITIALIZED) STATE_INITIALIZED else STATE_UNINITIALIZED
+
+    override fun startRecording() {
+        super.startRecording()
+        systemRecord.startRecording()
+        running = true
+        micThread = captureThread("MixMicCapture", micRing, super.getSampleRate()) { buf, len -> readMic(buf, len) }
+        systemThread = captureThread("MixSystemCapture", systemRing, systemRecord.sampleRate) { buf, len ->
+            systemRecord.read(buf, 0, len, READ_BLOCKING)
+        }
+        Log.i(TAG, "Mixing started: $targetSampleRate Hz x $channels ch, micGain=$micGain systemGain=$systemGain")
+    }
+
+    override fun stop() {
+        stopThreads()
+        try {
+            systemRecord.stop()
+        } catch (e: IllegalStateException) {
+            Log.w(TAG, "System AudioRecord stop failed", e)
+        }
+        super.stop()
+        Log.i(TAG, "Mixing stopped: micUnderruns=$micUnderruns systemUnderruns=$systemUnderruns overflowedSamples=$overflowedSamples")
+    }
+
+    override fun release() {
+        stopThreads()
+        systemRecord.release()
+        super.release()
+    }
+
+    override fun read(audioBuffer: ByteBuffer, sizeInBytes: Int): Int {
+        if (!running) return ERROR_INVALID_OPERATION
+        val samples = sizeInBytes / 2
+        if (mixed.size < samples) {
+            micScratch = ShortArray(samples)
+            systemScratch = ShortArray(samples)
+            mixed = ShortArray(samples)
+        }
+        consumer = Thread.currentThread()
+
+        // Wait for the microphone (the pacing source) for at most one callback.
+        val deadline = System.nanoTime() + CALLBACK_NS
+        while (micRing.available() < samples && running) {
+            val remaining = deadline - System.nanoTime()
+            if (remaining <= 0) break
+            LockSupport.parkNanos(this, remaining)
+        }
+
+        trim(micRing)
+        trim(systemRing)
+
+        val micRead = readSource(micRing, micScratch, samples)
+        if (micRead < samples) micUnderruns++
+        val systemRead = readSource(systemRing, systemScratch, samples)
+        if (systemRead < samples) systemUnderruns++
+
+        mix(samples)
+
+        val view = if (audioBuffer === outViewSource) outView!! else {
+            audioBuffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer().also {
+                outView = it
+                outViewSource = audioBuffer
+            }
+        }
+        view.clear()
+        view.put(mixed, 0, samples)
+        return samples * 2
+    }
+
+    private fun readSource(ring: PcmRingBuffer, scratch: ShortArray, samples: Int): Int {
+        val n = ring.read(scratch, 0, samples)
+        if (n < samples) scratch.fill(0, n, samples)
+        return n
+    }
+
+    // Keep each ring within two callbacks so drift between the two clocks never adds latency.
+    private fun trim(ring: PcmRingBuffer) {
+        val excess = ring.available() - maxBufferedSamples
+        if (excess > 0) ring.skip(excess - excess % channels)
+    }
+
+    private fun mix(samples: Int) {
+        var g = limiterGain
+        for (i in 0 until samples) {
+            val s = micScratch[i] * micGain + systemScratch[i] * systemGain
+            val peak = abs(s)
+            val target = if (peak * g > LIMIT) LIMIT / peak else 1.0f
+            g = if (target < g) target else min(1.0f, g + (1.0f - g) * (1.0f - limiterRelease))
+            mixed[i] = max(-32768f, min(32767f, s * g)).toInt().toShort()
+        }
+        limiterGain = g
+    }
+
+    private fun readMic(buf: ShortArray, len: Int): Int = super.read(buf, 0, len, READ_BLOCKING)
+
+    private fun captureThread(name: String, ring: PcmRingBuffer, sourceRate: Int, read: (ShortArray, Int) -> Int): Thread {
+        val resampler = LinearResampler(sourceRate, targetSampleRate, channels)
+        if (!resampler.isPassThrough) Log.w(TAG, "$name runs at $sourceRate Hz; resampling to $targetSampleRate Hz")
+        val buf = ShortArray(frameSamples)
+        return Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO)
+            while (running) {
+                val n = read(buf, buf.size)
+                if (n <= 0) {
+                    if (n < 0) Log.w(TAG, "$name read failed: $n")
+                    if (n == ERROR_DEAD_OBJECT) break
+                    continue
+                }
+                var dropped: Int
+                if (resampler.isPassThrough) {
+                    dropped = n - ring.write(buf, 0, n)
+                } else {
+                    val out = resampler.process(buf, n)
+                    dropped = out - ring.write(resampler.output, 0, out)
+                }
+                if (dropped > 0) overflowed.addAndGet(dropped.toLong())
+                consumer?.let { LockSupport.unpark(it) }
+            }
+        }, name).also { it.start() }
+    }
+
+    private fun stopThreads() {
+        running = false
+        consumer?.let { LockSupport.unpark(it) }
+        micThread?.join(THREAD_JOIN_TIMEOUT_MS)
+        systemThread?.join(THREAD_JOIN_TIMEOUT_MS)
+        micThread = null
+        systemThread = null
+    }
+
+    companion object {
+        private const val TAG = "MixingAudioRecord"
+        private const val CALLBACK_NS = 10_000_000L
+        private const val THREAD_JOIN_TIMEOUT_MS = 500L
+        private const val LIMIT = 32000f
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.whiper
+
+import android.content.Context
+import android.graphics.Matrix
+import android.opengl.GLES20
+import android.util.Log
+import org.webrtc.Camera2Enumerator
+import org.webrtc.CameraVideoCapturer
+import org.webrtc.CapturerObserver
+import org.webrtc.EglBase
+import org.webrtc.GlRectDrawer
+import org.webrtc.GlTextureFrameBuffer
+import org.webrtc.RendererCommon
+import org.webrtc.SurfaceTextureHelper
+import org.webrtc.VideoFrame
+import org.webrtc.VideoFrameDrawer
+import java.util.concurrent.atomic.AtomicReference
+
+// Camera picture-in-picture ("facecam") for VideoCompositor.
+//
+// Camera2Capturer delivers OES textures on its own SurfaceTextureHelper thread, which shares the
+// EGL context with the screen capture. The latest camera frame waits in a single slot; the capture
+// thread copies it into the layer's own texture and releases it at once, so the camera is never
+// held back by the screen, and a static screen keeps showing the last camera image. When the screen
+// sends no frames (nothing changes on it), [requestFrame] is used to have one composited anyway.
+class CameraOverlay(
+    private val context: Context,
+    private val eglContext: EglBase.Context,
+    private val placement: OverlayPlacement,
+    private val requestFrame: () -> Unit,
+    private val captureWidth: Int = 640,
+    private val captureHeight: Int = 480,
+    private val captureFps: Int = 30
+) : OverlayLayer {
+
+    private var capturer: CameraVideoCapturer? = null
+    private var surfaceTextureHelper: SurfaceTextureHelper? = null
+    private var mirror = false
+
+    private val pending = AtomicReference<VideoFrame?>(null)
+
+    // Camera thread only.
+    private val nudge = Runnable { if (pending.get() != null) requestFrame() }
+
+    // Capture thread only.
+    private var frameBuffer: GlTextureFrameBuffer? = null
+    private var frameDrawer: VideoFrameDrawer? = null
+
+    // Main thread. Returns false if there is no usable camera.
+    fun start(): Boolean {
+        val enumerator = Camera2Enumerator(context)
+        val names = enumerator.deviceNames
+        val name = names.firstOrNull { enumerator.isFrontFacing(it) } ?: names.firstOrNull()
+        if (name == null) {
+            Log.w(TAG, "No camera available")
+            return false
+        }
+        mirror = enumerator.isFrontFacing(name)
+        val c = enumerator.createCapturer(name, null) ?: return false
+        val sth = SurfaceTextureHelper.create("CameraOverlay", eglContext)
+        val nudgeDelayMs = 1000L / captureFps.coerceAtLeast(1)
+        c.initialize(sth, context, object : CapturerObserver {
+            override fun onCapturerStarted(success: Boolean) {
+                Log.i(TAG, "Camera $name started: $success")
+            }
+
+            override fun onCapturerStopped() {}
+
+            override fun onFrameCaptured(frame: VideoFrame) {
+                frame.retain()
+                pending.getAndSet(frame)?.release()
+                sth.handler.removeCallbacks(nudge)
+                sth.handler.postDelayed(nudge, nudgeDelayMs)
+            }
+        })
+        c.startCapture(captureWidth, captureHeight, captureFps)
+        capturer = c
+        surfaceTextureHelper = sth
+        return true
+    }
+
+    // Main thread; blocks until the camera is closed.
+    fun stop() {
+        try {
+            capturer?.stopCapture()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        capturer?.dispose()
+        capturer = null
+        surfaceTextureHelper?.handler?.removeCallbacks(nudge)
+        pending.getAndSet(null)?.release()
+        surfaceTextureHelper?.dispose()
+        surfaceTextureHelper = null
+    }
+
+    override fun draw(drawer: GlRectDrawer, frameWidth: Int, frameHeight: Int) {
+        pending.getAndSet(null)?.let { frame ->
+            try {
+                copy(frame, drawer)
+            } finally {
+                frame.release()
+            }
+        }
+        val fb = frameBuffer ?: return
+        val v = VideoCompositor.viewport(placement, fb.width, fb.height, frameWidth, frameHeight)
+        drawer.drawRgb(fb.textureId, if (mirror) MIRROR else IDENTITY, fb.width, fb.height, v[0], v[1], v[2], v[3])
+    }
+
+    private fun copy(frame: VideoFrame, drawer: GlRectDrawer) {
+        val fb = frameBuffer ?: GlTextureFrameBuffer(GLES20.GL_RGBA).also { frameBuffer = it }
+        val fd = frameDrawer ?: VideoFrameDrawer().also { frameDrawer = it }
+        // The compositor's framebuffer is bound; come back to it afterwards.
+        val bound = IntArray(1)
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, bound, 0)
+        GLES20.glDisable(GLES20.GL_BLEND)
+        fb.setSize(frame.rotatedWidth, frame.rotatedHeight)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fb.frameBufferId)
+        fd.drawFrame(frame, drawer, null, 0, 0, fb.width, fb.height)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, bound[0])
+        GLES20.glEnable(GLES20.GL_BLEND)
+    }
+
+    override fun release() {
+        frameBuffer?.release()
+        frameBuffer = null
+        frameDrawer?.release()
+        frameDrawer = null
+    }
+
+    companion object {
+        private const val TAG = "CameraOverlay"
+
+        private val IDENTITY = RendererCommon.convertMatrixFromAndroidGraphicsMatrix(Matrix())
+        // Front cameras are shown mirrored, like a selfie preview.
+        private val MIRROR = RendererCommon.convertMatrixFromAndroidGraphicsMatrix(Matrix().apply { setScale(-1f, 1f, 0.5f, 0.5f) })
+    }
+}
@@ -0,0 +1,335 @@
+package com.example.whiper
+
+import android.content.Context
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaCodecList
+import android.media.MediaFormat
+import android.os.Build
+import android.os.SystemClock
+import android.util.Log
+import org.json.JSONArray
+import org.json.JSONObject
+import org.webrtc.EglBase
+import org.webrtc.HardwareVideoEncoderFactory
+import org.webrtc.SoftwareVideoEncoderFactory
+import org.webrtc.VideoCodecInfo
+import org.webrtc.VideoEncoder
+import org.webrtc.VideoEncoderFactory
+import java.io.File
+
+data class ProfileLevel(val profile: Int, val level: Int)
+
+data class ResolutionPreset(val width: Int, val height: Int, val maxFps: Int) {
+    val key: String get() = "${width}x$height"
+}
+
+// What one MediaCodec encoder claims for a codec type. [presets] only lists the sizes it can encode,
+// with the highest frame rate it sustains there: the measured rate where the platform publishes
+// one (API 23+), otherwise the declared one.
+data class EncoderCapability(
+    val codecName: String,
+    val mime: String,
+    val hardware: Boolean,
+    val colorFormats: List<Int>,
+    val profileLevels: List<ProfileLevel>,
+    val maxWidth: Int,
+    val maxHeight: Int,
+    val maxFps: Int,
+    val surfaceInput: Boolean,
+    val presets: List<ResolutionPreset>,
+    // MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_* values the encoder accepts.
+    val bitrateModes: List<Int>,
+    val intraRefresh: Boolean,
+    val lowLatency: Boolean,
+    // MediaCodec create + configure at 720p30, -1 if that failed.
+    val initTimeMs: Long
+)
+
+data class DeviceCodecCapabilities(
+    val fingerprint: String,
+    // What HardwareVideoEncoderFactory and SoftwareVideoEncoderFactory report, as WebRTC codec infos.
+    val hardwareCodecs: List<VideoCodecInfo>,
+    val softwareCodecs: List<VideoCodecInfo>,
+    // The MediaCodec encoder HardwareVideoEncoderFactory picks for each WebRTC codec name.
+    val hardwareEncoderNames: Map<String, String>,
+    val encoders: List<EncoderCapability>
+) {
+
+    // WebRTC codec names that can be negotiated in the given encoder mode ("Auto", "Hardware", "Software").
+    fun codecsFor(encoderMode: String): List<String> {
+        val hw = hardwareCodecs.map { it.name }
+        val sw = softwareCodecs.map { it.name }
+        val names = when (encoderMode) {
+            "Hardware" -> hw
+            "Software" -> sw
+            else -> hw + sw
+        }
+        return CODEC_ORDER.filter { it in names }
+    }
+
+    // Resolutions the encoder used for [codec] in [encoderMode] can take at [fps] in real time.
+    // WebRTC's software encoders are libvpx rather than MediaCodec; the platform's software
+    // MediaCodec for the same type stands in for them.
+    fun presetsFor(codec: String, encoderMode: String, fps: Int): List<ResolutionPreset> {
+        val encoder = encoderFor(codec, encoderMode) ?: return emptyList()
+        return encoder.presets.filter { it.maxFps >= fps }
+    }
+
+    fun encoderFor(codec: String, encoderMode: String): EncoderCapability? {
+        val mime = MIME_TYPES[codec] ?: return null
+        val hardware = hardwareEncoderNames[codec]?.let { name -> encoders.firstOrNull { it.codecName == name && it.mime == mime } }
+        val software = encoders.firstOrNull { it.mime == mime && !it.hardware }
+        return when (encoderMode) {
+            "Hardware" -> hardware
+            "Software" -> software
+            else -> hardware ?: software
+        }
+    }
+
+    companion object {
+        val CODEC_ORDER = listOf("H264", "VP8", "VP9")
+        val MIME_TYPES = mapOf(
+            "H264" to MediaFormat.MIMETYPE_VIDEO_AVC,
+            "VP8" to MediaFormat.MIMETYPE_VIDEO_VP8,
+            "VP9" to MediaFormat.MIMETYPE_VIDEO_VP9
+        )
+    }
+}
+
+// Probing MediaCodecList (and configuring an encoder to time it) costs hundreds of milliseconds on
+// some devices, and the answer only changes with a system update. The result is kept in
+// noBackupFilesDir keyed by Build.FINGERPRINT; the app's install time is part of the key too,
+// since the probe depends on the WebRTC build shipped with the app.
+object CodecCapabilityCache {
+
+    private const val TAG = "CodecCapabilityCache"
+    private const val FILE_NAME = "codec-capabilities.json"
+    private const val FORMAT_VERSION = 2
+
+    private val PRESETS = listOf(640 to 360, 854 to 480, 1280 to 720, 1920 to 1080, 2560 to 1440, 3840 to 2160)
+    private val SOFTWARE_PREFIXES = listOf("OMX.google.", "OMX.SEC.", "c2.android")
+    private val BITRATE_MODES = listOf(
+        MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR,
+        MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR,
+        MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ
+    )
+
+    // Needs the WebRTC native library loaded (SoftwareVideoEncoderFactory asks libvpx about VP9).
+    fun load(context: Context, eglContext: EglBase.Context): DeviceCodecCapabilities {
+        val fingerprint = cacheKey(context)
+        val file = File(context.noBackupFilesDir, FILE_NAME)
+        val startMs = SystemClock.elapsedRealtime()
+        readOrNull(file, fingerprint)?.let {
+            Log.i(TAG, "Loaded codec capabilities in ${SystemClock.elapsedRealtime() - startMs} ms")
+            return it
+        }
+
+        val caps = probe(fingerprint, eglContext)
+        Log.i(
+            TAG,
+            "Probed codec capabilities in ${SystemClock.elapsedRealtime() - startMs} ms: " +
+                caps.encoders.joinToString { "${it.codecName}(${it.mime}, init=${it.initTimeMs} ms)" }
+        )
+        try {
+            val tmp = File(file.parentFile, "$FILE_NAME.tmp")
+            tmp.writeText(toJson(caps).toString())
+            if (!tmp.renameTo(file)) Log.w(TAG, "Could not replace $file")
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to write codec capability cache", e)
+        }
+        return caps
+    }
+
+    private fun cacheKey(context: Context): String {
+        val installed = try {
+            context.packageManager.getPackageInfo(context.packageName, 0).lastUpdateTime
+        } catch (e: Exception) {
+            0L
+        }
+        return "${Build.FINGERPRINT}|$installed|$FORMAT_VERSION"
+    }
+
+    private fun probe(fingerprint: String, eglContext: EglBase.Context): DeviceCodecCapabilities {
+        // The predicate only sees the codecs that passed every other check of the factory, in
+        // MediaCodecList order, so the first one per type is the encoder it will create.
+        val accepted = LinkedHashMap<String, String>()
+        val hardwareFactory = HardwareVideoEncoderFactory(eglContext, true, true) { info ->
+            for ((name, mime) in DeviceCodecCapabilities.MIME_TYPES) {
+                if (info.supportedTypes.any { it.equals(mime, ignoreCase = true) }) accepted.putIfAbsent(name, info.name)
+            }
+            true
+        }
+        val hardwareCodecs = hardwareFactory.supportedCodecs.toList()
+        val softwareCodecs = SoftwareVideoEncoderFactory().supportedCodecs.toList()
+
+        val encoders = ArrayList<EncoderCapability>()
+        for (info in MediaCodecList(MediaCodecList.REGULAR_CODECS).codecInfos) {
+            if (!info.isEncoder) continue
+            for (mime in DeviceCodecCapabilities.MIME_TYPES.values) {
+                if (info.supportedTypes.none { it.equals(mime, ignoreCase = true) }) continue
+                try {
+                    encoders.add(describe(info, mime))
+                } catch (e: Exception) {
+                    Log.w(TAG, "Skipping ${info.name} ($mime)", e)
+                }
+            }
+        }
+        val hardwareEncoderNames = accepted.filterKeys { name -> hardwareCodecs.any { it.name == name } }
+        return DeviceCodecCapabilities(fingerprint, hardwareCodecs, softwareCodecs, hardwareEncoderNames, encoders)
+    }
+
+    private fun describe(info: MediaCodecInfo, mime: String): EncoderCapability {
+        val caps = info.getCapabilitiesForType(mime)
+        val video = caps.videoCapabilities
+        val colorFormats = caps.colorFormats.toList()
+        val surfaceInput = MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface in colorFormats
+
+        val presets = PRESETS.mapNotNull { (w, h) ->
+            if (!video.isSizeSupported(w, h)) return@mapNotNull null
+            val achievable = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) video.getAchievableFrameRatesFor(w, h) else null
+            val fps = achievable?.upper ?: video.getSupportedFrameRatesFor(w, h).upper
+            ResolutionPreset(w, h, fps.toInt())
+        }
+
+        return EncoderCapability(
+            codecName = info.name,
+            mime = mime,
+            hardware = isHardware(info),
+            colorFormats = colorFormats,
+            profileLevels = caps.profileLevels.map { ProfileLevel(it.profile, it.level) },
+            maxWidth = video.supportedWidths.upper,
+            maxHeight = video.supportedHeights.upper,
+            maxFps = video.supportedFrameRates.upper,
+            surfaceInput = surfaceInput,
+            presets = presets,
+            bitrateModes = BITRATE_MODES.filter { caps.encoderCapabilities?.isBitrateModeSupported(it) == true },
+            intraRefresh = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
+                caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh),
+            lowLatency = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R &&
+                caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency),
+            initTimeMs = measureInitMs(info.name, mime, if (surfaceInput) MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface else colorFormats.firstOrNull())
+        )
+    }
+
+    private fun isHardware(info: MediaCodecInfo): Boolean =
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            info.isHardwareAccelerated
+        } else {
+            SOFTWARE_PREFIXES.none { info.name.startsWith(it) }
+        }
+
+    private fun measureInitMs(codecName: String, mime: String, colorFormat: Int?): Long {
+        if (colorFormat == null) return -1L
+        val startMs = SystemClock.elapsedRealtime()
+        var codec: MediaCodec? = null
+        return try {
+            codec = MediaCodec.createByCodecName(codecName)
+            val format = MediaFormat.createVideoFormat(mime, 1280, 720).apply {
+                setInteger(MediaFormat.KEY_BIT_RATE, 2_500_000)
+                setInteger(MediaFormat.KEY_FRAME_RATE, 30)
+                setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 20)
+                setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat)
+            }
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) codec.createInputSurface().release()
+            SystemClock.elapsedRealtime() - startMs
+        } catch (e: Exception) {
+            Log.w(TAG, "Could not configure $codecName for $mime: ${e.message}")
+            -1L
+        } finally {
+            codec?.release()
+        }
+    }
+
+    private fun readOrNull(file: File, fingerprint: String): DeviceCodecCapabilities? {
+        if (!file.exists()) return null
+        return try {
+            val json = JSONObject(file.readText())
+            if (json.getString("fingerprint") != fingerprint) {
+                Log.i(TAG, "Codec capability cache is from another build; probing again")
+                null
+            } else {
+                fromJson(json)
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Discarding unreadable codec capability cache", e)
+            null
+        }
+    }
+
+    private fun toJson(caps: DeviceCodecCapabilities): JSONObject = JSONObject()
+        .put("fingerprint", caps.fingerprint)
+        .put("hardwareCodecs", JSONArray(caps.hardwareCodecs.map(::codecInfoToJson)))
+        .put("softwareCodecs", JSONArray(caps.softwareCodecs.map(::codecInfoToJson)))
+        .put("hardwareEncoderNames", JSONObject(caps.hardwareEncoderNames))
+        .put("encoders", JSONArray(caps.encoders.map { e ->
+            JSONObject()
+                .put("codecName", e.codecName)
+                .put("mime", e.mime)
+                .put("hardware", e.hardware)
+                .put("colorFormats", JSONArray(e.colorFormats))
+                .put("profileLevels", JSONArray(e.profileLevels.map { JSONArray(listOf(it.profile, it.level)) }))
+                .put("maxWidth", e.maxWidth)
+                .put("maxHeight", e.maxHeight)
+                .put("maxFps", e.maxFps)
+                .put("surfaceInput", e.surfaceInput)
+                .put("presets", JSONArray(e.presets.map { JSONArray(listOf(it.width, it.height, it.maxFps)) }))
+                .put("bitrateModes", JSONArray(e.bitrateModes))
+                .put("intraRefresh", e.intraRefresh)
+                .put("lowLatency", e.lowLatency)
+                .put("initTimeMs", e.initTimeMs)
+        }))
+
+    private fun fromJson(json: JSONObject): DeviceCodecCapabilities {
+        val names = json.getJSONObject("hardwareEncoderNames")
+        return DeviceCodecCapabilities(
+            fingerprint = json.getString("fingerprint"),
+            hardwareCodecs = json.getJSONArray("hardwareCodecs").objects().map(::codecInfoFromJson),
+            softwareCodecs = json.getJSONArray("softwareCodecs").objects().map(::codecInfoFromJson),
+            hardwareEncoderNames = names.keys().asSequence().associateWith { names.getString(it) },
+            encoders = json.getJSONArray("encoders").objects().map { e ->
+                EncoderCapability(
+                    codecName = e.getString("codecName"),
+                    mime = e.getString("mime"),
+                    hardware = e.getBoolean("hardware"),
+                    colorFormats = e.getJSONArray("colorFormats").ints(),
+                    profileLevels = e.getJSONArray("profileLevels").arrays().map { ProfileLevel(it.getInt(0), it.getInt(1)) },
+                    maxWidth = e.getInt("maxWidth"),
+                    maxHeight = e.getInt("maxHeight"),
+                    maxFps = e.getInt("maxFps"),
+                    surfaceInput = e.getBoolean("surfaceInput"),
+                    presets = e.getJSONArray("presets").arrays().map { ResolutionPreset(it.getInt(0), it.getInt(1), it.getInt(2)) },
+                    bitrateModes = e.getJSONArray("bitrateModes").ints(),
+                    intraRefresh = e.getBoolean("intraRefresh"),
+                    lowLatency = e.getBoolean("lowLatency"),
+                    initTimeMs = e.getLong("initTimeMs")
+                )
+            }
+        )
+    }
+
+    private fun codecInfoToJson(info: VideoCodecInfo): JSONObject =
+        JSONObject().put("name", info.name).put("params", JSONObject(info.params))
+
+    private fun codecInfoFromJson(json: JSONObject): VideoCodecInfo {
+        val params = json.getJSONObject("params")
+        return VideoCodecInfo(json.getString("name"), params.keys().asSequence().associateWith { params.getString(it) })
+    }
+
+    private fun JSONArray.objects(): List<JSONObject> = (0 until length()).map { getJSONObject(it) }
+    private fun JSONArray.arrays(): List<JSONArray> = (0 until length()).map { getJSONArray(it) }
+    private fun JSONArray.ints(): List<Int> = (0 until length()).map { getInt(it) }
+}
+
+// Serves the supported codec list from the capability cache instead of walking MediaCodecList each
+// time WebRTC asks (factory creation, every offer); encoder creation still goes to [delegate].
+class CachedCodecListEncoderFactory(
+    private val delegate: VideoEncoderFactory,
+    private val codecs: List<VideoCodecInfo>
+) : VideoEncoderFactory {
+
+    override fun createEncoder(info: VideoCodecInfo): VideoEncoder? = delegate.createEncoder(info)
+
+    override fun getSupportedCodecs(): Array<VideoCodecInfo> = codecs.toTypedArray()
+}
@@ -0,0 +1,79 @@
+package com.example.whiper
+
+import org.webrtc.RTCStatsReport
+
+// What the UI shows per WHIP destination. Null fields are not known yet (first sample, no RTCP).
+data class DestinationHealth(
+    val name: String,
+    val state: String,
+    val sentBitrateBps: Long?,
+    val targetBitrateBps: Long?,
+    val rttMs: Long?,
+    val packetsLost: Long?,
+    val framesPerSecond: Double?,
+    // What the user asked for, so the UI can show the sent rate against it; 0 if unknown.
+    val requestedFps: Int = 0
+)
+
+// Turns consecutive getStats() reports of one PeerConnection into a [DestinationHealth]. The sent
+// bitrate is derived from the bytesSent delta of all outbound RTP streams, so audio and every
+// simulcast layer count towards what the destination costs on the uplink.
+class DestinationStatsSampler(private val name: String, private val requestedFps: Int = 0) {
+
+    private var prevTimestampUs = 0.0
+    private var prevBytesSent = 0.0
+
+    fun sample(report: RTCStatsReport, state: String): DestinationHealth {
+        var bytesSent = 0.0
+        var targetBitrate: Double? = null
+        var framesPerSecond: Double? = null
+        var rttMs: Double? = null
+        var packetsLost: Long? = null
+
+        for (stats in report.statsMap.values) {
+            val m = stats.members
+            when (stats.type) {
+                "outbound-rtp" -> {
+                    bytesSent += num(m["bytesSent"]) ?: 0.0
+                    if (isVideo(m)) {
+                        num(m["targetBitrate"])?.let { targetBitrate = (targetBitrate ?: 0.0) + it }
+                        // With simulcast the top layer has the highest rate; that is what viewers get.
+                        num(m["framesPerSecond"])?.let { fps -> framesPerSecond = maxOf(framesPerSecond ?: 0.0, fps) }
+                    }
+                }
+                "remote-inbound-rtp" -> {
+                    num(m["packetsLost"])?.let { packetsLost = (packetsLost ?: 0L) + it.toLong() }
+                    if (isVideo(m)) num(m["roundTripTime"])?.let { rttMs = it * 1000.0 }
+                }
+                "candidate-pair" -> if (m["nominated"] == true && m["state"] == "succeeded") {
+                    if (rttMs == null) num(m["currentRoundTripTime"])?.let { rttMs = it * 1000.0 }
+                }
+            }
+        }
+
+        val ts = report.timestampUs
+        val dtSec = (ts - prevTimestampUs) / 1_000_000.0
+        val sentBitrate = if (prevTimestampUs != 0.0 && dtSec > 0 && bytesSent >= prevBytesSent) {
+            ((bytesSent - prevBytesSent) * 8.0 / dtSec).toLong()
+        } else {
+            null
+        }
+        prevTimestampUs = ts
+        prevBytesSent = bytesSent
+
+        return DestinationHealth(
+            name = name,
+            state = state,
+            sentBitrateBps = sentBitrate,
+            targetBitrateBps = targetBitrate?.toLong(),
+            rttMs = rttMs?.toLong(),
+            packetsLost = packetsLost,
+            framesPerSecond = framesPerSecond,
+            requestedFps = requestedFps
+        )
+    }
+
+    private fun isVideo(m: Map<String, Any?>): Boolean = (m["kind"] ?: m["mediaType"]) == "video"
+
+    private fun num(v: Any?): Double? = (v as? Number)?.toDouble()
+}
@@ -0,0 +1,481 @@
+package com.example.whiper
+
+import android.media.AudioFormat
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaFormat
+import android.media.MediaMuxer
+import android.os.Build
+import android.os.SystemClock
+import android.util.Log
+import org.webrtc.EncodedImage
+import org.webrtc.audio.JavaAudioDeviceModule
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+// Local archive of the stream that is being sent, without a second video encoder.
+//
+// Video: the encoded access units are teed off the Java encoder callback (see
+// TappedVideoEncoderFactory), copied into a fixed pool of buffers and handed to a single
+// writer thread that owns the MediaMuxer. When the writer falls behind, frames are dropped and
+// the recording resumes at the next key frame, which the tap requests from the encoder.
+//
+// Audio: WebRTC's Opus encoder is native and its packets never reach Java, so the PCM from the
+// record tap is encoded once more with a MediaCodec audio encoder (AAC for MP4, Opus for WebM).
+//
+// The recording is split into segments (whip-<stamp>.mp4, whip-<stamp>-2.mp4, ...), each starting
+// on a key frame. A new one begins when the encoded size or the SPS/PPS change, since a muxer track
+// is fixed at its first frame, and every SEGMENT_MS otherwise. MediaMuxer cannot write fragmented
+// MP4 and only writes the index when it is stopped, so a crash costs the open segment only.
+class EncodedStreamRecorder(
+    val file: File,
+    private val videoMime: String,
+    private val recordAudio: Boolean,
+    queueCapacity: Int = 90
+) : JavaAudioDeviceModule.DirectSamplesReadyCallback {
+
+    private class Sample {
+        var buffer: ByteBuffer = ByteBuffer.allocateDirect(0)
+        var size = 0
+        var ptsUs = 0L
+        var keyFrame = false
+        var width = 0
+        var height = 0
+        var rotation = 0
+    }
+
+    private val outputFormat =
+        if (videoMime == MediaFormat.MIMETYPE_VIDEO_AVC) MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4
+        else MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM
+
+    private val audioMime: String? = when {
+        !recordAudio -> null
+        outputFormat == MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4 -> MediaFormat.MIMETYPE_AUDIO_AAC
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q -> MediaFormat.MIMETYPE_AUDIO_OPUS
+        else -> null
+    }
+
+    // Every Sample is either in freeSamples, in the queue, or pending on the writer thread.
+    private val freeSamples = ArrayBlockingQueue<Sample>(queueCapacity)
+    private val queue = ArrayBlockingQueue<Sample>(queueCapacity)
+    private val pending = ArrayDeque<Sample>()
+
+    @Volatile
+    private var running = false
+    private var writer: Thread? = null
+
+    // Encoder output thread, and the tap when it moves to another encoder.
+    @Volatile
+    private var waitingForKeyFrame = true
+
+    // Encoder output thread only.
+    private var lastWidth = 0
+    private var lastHeight = 0
+
+    @Volatile
+    var keyFrameRequested = true
+        private set
+
+    // Writer thread only.
+    private var muxer: MediaMuxer? = null
+    private var videoFormat: MediaFormat? = null
+    private var videoFormatAtMs = 0L
+    private var segment = 1
+    private var segmentKeyFrameRequested = false
+    private var videoTrack = -1
+    private var audioTrack = -1
+    private var baseUs = -1L
+    private var lastVideoPtsUs = -1L
+    private var lastAudioPtsUs = -1L
+    private var audioOutputFormat: MediaFormat? = null
+    private var audioFailed = false
+    private val bufferInfo = MediaCodec.BufferInfo()
+
+    @Volatile
+    private var audioEncoder: MediaCodec? = null
+
+    @Volatile
+    private var audioSampleRate = 0
+
+    @Volatile
+    private var audioChannels = 0
+
+    // Updated from the writer, encoder output and audio record threads.
+    private val writtenVideoFrameCount = AtomicLong()
+    private val droppedVideoFrameCount = AtomicLong()
+    private val droppedAudioBufferCount = AtomicLong()
+    private val writtenByteCount = AtomicLong()
+
+    val writtenVideoFrames: Long get() = writtenVideoFrameCount.get()
+    val droppedVideoFrames: Long get() = droppedVideoFrameCount.get()
+    val droppedAudioBuffers: Long get() = droppedAudioBufferCount.get()
+    val writtenBytes: Long get() = writtenByteCount.get()
+
+    init {
+        repeat(queueCapacity) { freeSamples.offer(Sample()) }
+    }
+
+    fun start() {
+        running = true
+        writer = Thread({ writerLoop() }, "EncodedStreamRecorder").also { it.start() }
+        Log.i(TAG, "Recording to ${file.path} ($videoMime, audio=${audioMime ?: "none"})")
+    }
+
+    fun stop() {
+        running = false
+        writer?.join(STOP_TIMEOUT_MS)
+        writer = null
+    }
+
+    // Called from the encoder output thread with the image that is about to be sent.
+    fun onEncodedVideo(image: EncodedImage) {
+        if (!running) return
+        val key = image.frameType == EncodedImage.FrameType.VideoFrameKey
+        if (waitingForKeyFrame && !key) return
+        // The encoder was reset at another size; its delta frames cannot follow the recorded ones.
+        if (!key && (image.encodedWidth != lastWidth || image.encodedHeight != lastHeight)) {
+            dropUntilKeyFrame()
+            return
+        }
+
+        val src = image.buffer
+        val sample = freeSamples.poll()
+        if (sample == null) {
+            dropUntilKeyFrame()
+            return
+        }
+        val size = src.remaining()
+        if (sample.buffer.capacity() < size) {
+            sample.buffer = ByteBuffer.allocateDirect(size + size / 4)
+        }
+        val position = src.position()
+        sample.buffer.clear()
+        sample.buffer.put(src)
+        sample.buffer.flip()
+        src.position(position)
+        sample.size = size
+        sample.ptsUs = image.captureTimeNs / 1000
+        sample.keyFrame = key
+        sample.width = image.encodedWidth
+        sample.height = image.encodedHeight
+        sample.rotation = image.rotation
+
+        if (!queue.offer(sample)) {
+            freeSamples.offer(sample)
+            dropUntilKeyFrame()
+            return
+        }
+        waitingForKeyFrame = false
+        lastWidth = image.encodedWidth
+        lastHeight = image.encodedHeight
+        if (key) keyFrameRequested = false
+    }
+
+    fun onKeyFrameRequestSent() {
+        keyFrameRequested = false
+    }
+
+    // The tap moved to another encoder, whose delta frames do not follow the ones recorded so far.
+    // Called on that encoder's thread before it encodes its first tapped frame.
+    fun onEncoderChanged() {
+        waitingForKeyFrame = true
+        keyFrameRequested = true
+    }
+
+    private fun dropUntilKeyFrame() {
+        droppedVideoFrameCount.incrementAndGet()
+        if (!waitingForKeyFrame) {
+            waitingForKeyFrame = true
+            keyFrameRequested = true
+        }
+    }
+
+    // Record tap; runs on the WebRTC audio record thread and must leave [samples] untouched.
+    override fun onWebRtcAudioRecordSamplesReady(
+        samples: ByteBuffer,
+        audioFormat: Int,
+        channelCount: Int,
+        sampleRate: Int,
+        captureTimeNs: Long
+    ) {
+        if (!running || audioMime == null || audioFormat != AudioFormat.ENCODING_PCM_16BIT) return
+        if (audioSampleRate == 0) {
+            audioChannels = channelCount
+            audioSampleRate = sampleRate
+            return
+        }
+        val codec = audioEncoder ?: return
+        try {
+            val index = codec.dequeueInputBuffer(0)
+            if (index < 0) {
+                droppedAudioBufferCount.incrementAndGet()
+                return
+            }
+            val input = codec.getInputBuffer(index)!!
+            val size = samples.remaining()
+            if (input.remaining() < size) {
+                codec.queueInputBuffer(index, 0, 0, captureTimeNs / 1000, 0)
+                droppedAudioBufferCount.incrementAndGet()
+                return
+            }
+            val position = samples.position()
+            input.put(samples)
+            samples.position(position)
+            codec.queueInputBuffer(index, 0, size, captureTimeNs / 1000, 0)
+        } catch (e: IllegalStateException) {
+            // The writer released the encoder while we were feeding it.
+        }
+    }
+
+    private fun writerLoop() {
+        try {
+            while (running || queue.isNotEmpty()) {
+                queue.poll(POLL_MS, TimeUnit.MILLISECONDS)?.let { handleVideo(it) }
+                if (audioMime != null && audioEncoder == null && !audioFailed && audioSampleRate != 0) {
+                    startAudioEncoder()
+                }
+                drainAudio()
+                if (muxer == null && videoFormat != null) maybeStartMuxer()
+                if (muxer != null && !segmentKeyFrameRequested && segmentDue()) {
+                    // The next segment starts on a key frame.
+                    segmentKeyFrameRequested = true
+                    keyFrameRequested = true
+                }
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Recording failed", e)
+            running = false
+        } finally {
+            finish()
+        }
+    }
+
+    private fun handleVideo(sample: Sample) {
+        if (sample.keyFrame) {
+            val current = videoFormat
+            val format = videoFormatFor(sample)
+            if (format == null && current == null) keyFrameRequested = true
+            if (format != null && (current == null || !sameFormat(current, format) || segmentDue())) {
+                if (current != null) endSegment()
+                videoFormat = format
+                videoFormatAtMs = SystemClock.elapsedRealtime()
+                segmentKeyFrameRequested = false
+                baseUs = sample.ptsUs
+            }
+        }
+        if (videoFormat == null) {
+            freeSamples.offer(sample)
+            return
+        }
+        if (muxer == null) {
+            pending.add(sample)
+        } else {
+            writeVideo(sample)
+        }
+    }
+
+    private fun maybeStartMuxer() {
+        val waitForAudio = audioMime != null && !audioFailed && audioOutputFormat == null &&
+            SystemClock.elapsedRealtime() - videoFormatAtMs < AUDIO_WAIT_MS
+        if (waitForAudio) return
+
+        val m = MediaMuxer(segmentFile(segment).path, outputFormat)
+        videoTrack = m.addTrack(videoFormat!!)
+        audioOutputFormat?.let { audioTrack = m.addTrack(it) }
+        pending.peekFirst()?.let { m.setOrientationHint(it.rotation) }
+        m.start()
+        muxer = m
+        if (audioMime != null && audioTrack < 0) Log.w(TAG, "No audio within ${AUDIO_WAIT_MS} ms; recording video only")
+
+        while (pending.isNotEmpty()) writeVideo(pending.poll()!!)
+    }
+
+    private fun writeVideo(sample: Sample) {
+        val ptsUs = sample.ptsUs - baseUs
+        if (ptsUs > lastVideoPtsUs) {
+            bufferInfo.set(0, sample.size, ptsUs, if (sample.keyFrame) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0)
+            muxer!!.writeSampleData(videoTrack, sample.buffer, bufferInfo)
+            lastVideoPtsUs = ptsUs
+            writtenVideoFrameCount.incrementAndGet()
+            writtenByteCount.addAndGet(sample.size.toLong())
+        }
+        freeSamples.offer(sample)
+    }
+
+    private fun startAudioEncoder() {
+        val mime = audioMime!!
+        val rate = audioSampleRate
+        val channels = audioChannels
+        try {
+            val format = MediaFormat.createAudioFormat(mime, rate, channels).apply {
+                setInteger(MediaFormat.KEY_BIT_RATE, if (mime == MediaFormat.MIMETYPE_AUDIO_AAC) AAC_BITRATE_BPS else OPUS_BITRATE_BPS)
+                setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, rate / 100 * channels * 2 * 4)
+                if (mime == MediaFormat.MIMETYPE_AUDIO_AAC) {
+                    setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC)
+                }
+            }
+            val codec = MediaCodec.createEncoderByType(mime)
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+            codec.start()
+            audioEncoder = codec
+            Log.i(TAG, "Audio encoder started: $mime $rate Hz x $channels")
+        } catch (e: Exception) {
+            Log.e(TAG, "Audio encoder unavailable; recording video only", e)
+            audioFailed = true
+        }
+    }
+
+    private fun drainAudio() {
+        val codec = audioEncoder ?: return
+        while (true) {
+            val index = codec.dequeueOutputBuffer(bufferInfo, 0)
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // Kept for the next segment too; a running muxer cannot take a new track.
+                audioOutputFormat = codec.outputFormat
+                continue
+            }
+            if (index < 0) return
+            val m = muxer
+            val ptsUs = bufferInfo.presentationTimeUs - baseUs
+            val config = bufferInfo.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0
+            if (m != null && audioTrack >= 0 && !config && bufferInfo.size > 0 && ptsUs > lastAudioPtsUs && ptsUs >= 0) {
+                bufferInfo.presentationTimeUs = ptsUs
+                m.writeSampleData(audioTrack, codec.getOutputBuffer(index)!!, bufferInfo)
+                lastAudioPtsUs = ptsUs
+                writtenByteCount.addAndGet(bufferInfo.size.toLong())
+            }
+            codec.releaseOutputBuffer(index, false)
+        }
+    }
+
+    private fun finish() {
+        audioEncoder?.let { codec ->
+            audioEncoder = null
+            try {
+                codec.stop()
+            } catch (e: IllegalStateException) {
+                Log.w(TAG, "Audio encoder stop failed", e)
+            }
+            codec.release()
+        }
+        closeMuxer()
+        while (pending.isNotEmpty()) freeSamples.offer(pending.poll()!!)
+        while (queue.isNotEmpty()) freeSamples.offer(queue.poll()!!)
+        Log.i(
+            TAG,
+            "Recording finished: ${file.path} segments=$segment videoFrames=$writtenVideoFrames droppedVideo=$droppedVideoFrames droppedAudio=$droppedAudioBuffers bytes=$writtenBytes"
+        )
+    }
+
+    // Closes the current segment; the next key frame opens the next one.
+    private fun endSegment() {
+        closeMuxer()
+        // Frames held for a muxer that never started belong to the old format.
+        while (pending.isNotEmpty()) freeSamples.offer(pending.poll()!!)
+        videoTrack = -1
+        audioTrack = -1
+        lastVideoPtsUs = -1L
+        lastAudioPtsUs = -1L
+        segment++
+    }
+
+    private fun closeMuxer() {
+        val m = muxer ?: return
+        muxer = null
+        try {
+            m.stop()
+        } catch (e: IllegalStateException) {
+            Log.w(TAG, "Muxer stop failed", e)
+        }
+        m.release()
+        Log.i(TAG, "Segment written: ${segmentFile(segment).path}")
+    }
+
+    private fun segmentDue(): Boolean = SystemClock.elapsedRealtime() - videoFormatAtMs >= SEGMENT_MS
+
+    private fun segmentFile(n: Int): File =
+        if (n == 1) file else File(file.parentFile, "${file.nameWithoutExtension}-$n.${file.extension}")
+
+    private fun sameFormat(a: MediaFormat, b: MediaFormat): Boolean =
+        a.getInteger(MediaFormat.KEY_WIDTH) == b.getInteger(MediaFormat.KEY_WIDTH) &&
+            a.getInteger(MediaFormat.KEY_HEIGHT) == b.getInteger(MediaFormat.KEY_HEIGHT) &&
+            csdOf(a, "csd-0") == csdOf(b, "csd-0") &&
+            csdOf(a, "csd-1") == csdOf(b, "csd-1")
+
+    private fun csdOf(format: MediaFormat, key: String): ByteBuffer? =
+        if (format.containsKey(key)) format.getByteBuffer(key) else null
+
+    private fun videoFormatFor(sample: Sample): MediaFormat? {
+        val format = MediaFormat.createVideoFormat(videoMime, sample.width, sample.height)
+        if (videoMime != MediaFormat.MIMETYPE_VIDEO_AVC) return format
+
+        // MP4 needs SPS/PPS as codec config; the hardware encoder prepends them to key frames.
+        var sps: ByteBuffer? = null
+        var pps: ByteBuffer? = null
+        val data = sample.buffer
+        var start = nextStartCode(data, 0, sample.size)
+        while (start >= 0) {
+            val nalStart = start + 3
+            val next = nextStartCode(data, nalStart, sample.size)
+            var nalEnd = if (next < 0) sample.size else next
+            while (nalEnd > nalStart && data.get(nalEnd - 1).toInt() == 0) nalEnd--
+            when (data.get(nalStart).toInt() and 0x1F) {
+                NAL_SPS -> sps = csd(data, nalStart, nalEnd)
+                NAL_PPS -> pps = csd(data, nalStart, nalEnd)
+            }
+            start = next
+        }
+        if (sps == null || pps == null) {
+            Log.w(TAG, "Key frame without SPS/PPS")
+            return null
+        }
+        format.setByteBuffer("csd-0", sps)
+        format.setByteBuffer("csd-1", pps)
+        return format
+    }
+
+    private fun csd(data: ByteBuffer, from: Int, to: Int): ByteBuffer {
+        val out = ByteBuffer.allocate(4 + to - from)
+        out.put(START_CODE)
+        for (i in from until to) out.put(data.get(i))
+        out.flip()
+        return out
+    }
+
+    private fun nextStartCode(data: ByteBuffer, from: Int, limit: Int): Int {
+        var i = from
+        while (i + 2 < limit) {
+            if (data.get(i).toInt() == 0 && data.get(i + 1).toInt() == 0 && data.get(i + 2).toInt() == 1) return i
+            i++
+        }
+        return -1
+    }
+
+    companion object {
+        private const val TAG = "EncodedStreamRecorder"
+        private const val POLL_MS = 10L
+        private const val STOP_TIMEOUT_MS = 3000L
+        private const val AUDIO_WAIT_MS = 1000L
+        private const val SEGMENT_MS = 60_000L
+        private const val AAC_BITRATE_BPS = 128_000
+        private const val OPUS_BITRATE_BPS = 64_000
+        private const val NAL_SPS = 7
+        private const val NAL_PPS = 8
+        private val START_CODE = byteArrayOf(0, 0, 0, 1)
+
+        // MediaMuxer containers for the codecs the Java encoders produce.
+        fun mimeForCodec(codecName: String): String? = when (codecName.uppercase()) {
+            "H264" -> MediaFormat.MIMETYPE_VIDEO_AVC
+            "VP8" -> MediaFormat.MIMETYPE_VIDEO_VP8
+            "VP9" -> MediaFormat.MIMETYPE_VIDEO_VP9
+            else -> null
+        }
+
+        fun extensionFor(videoMime: String): String =
+            if (videoMime == MediaFormat.MIMETYPE_VIDEO_AVC) "mp4" else "webm"
+    }
+}
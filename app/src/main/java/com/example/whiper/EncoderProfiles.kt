@@ -0,0 +1,60 @@
+package com.example.whiper
+
+import org.webrtc.EncoderTuning
+
+// Named MediaCodec tunings offered in MainActivity. They only reach the hardware (MediaCodec)
+// encoders; libvpx in "Software" mode ignores them. Whatever the chosen codec does not support is
+// dropped by EncoderTuning.resolve, and a format the codec rejects falls back to the stock CBR one.
+object EncoderProfiles {
+
+    const val DEFAULT = "Default"
+    const val LOWEST_LATENCY = "Lowest latency"
+    const val SCREEN_TEXT = "Screen text quality"
+    const val GAME_MOTION = "Game motion"
+
+    val names = listOf(DEFAULT, LOWEST_LATENCY, SCREEN_TEXT, GAME_MOTION)
+
+    // "Profile" keeps the profile's own mode.
+    const val MODE_PROFILE = "Profile"
+    val bitrateModes = mapOf(
+        "CBR" to EncoderTuning.BITRATE_MODE_CBR,
+        "VBR" to EncoderTuning.BITRATE_MODE_VBR,
+        "CQ" to EncoderTuning.BITRATE_MODE_CQ
+    )
+
+    // With intra refresh a lost packet heals within the refresh period, so IDR frames are only
+    // needed on request (PLI) and for joins; this interval is just a backstop.
+    private const val INTRA_REFRESH_KEY_FRAME_INTERVAL_SEC = 60
+
+    // Null means the stock HardwareVideoEncoder configuration.
+    fun tuning(profile: String, bitrateMode: String, fps: Int): EncoderTuning? {
+        val b = when (profile) {
+            // Every frame out as soon as it is encoded, the codec clocked for twice the frame rate so
+            // it never falls behind, and intra refresh instead of IDR spikes on the uplink.
+            LOWEST_LATENCY -> EncoderTuning.builder(profile)
+                .setBitrateMode(EncoderTuning.BITRATE_MODE_CBR)
+                .setLatencyFrames(1)
+                .setLowLatency(true)
+                .setRealtimePriority(true)
+                .setOperatingRateFps(fps * 2)
+                .setIntraRefreshPeriodFrames(fps)
+                .setKeyFrameIntervalSec(INTRA_REFRESH_KEY_FRAME_INTERVAL_SEC)
+            // Mostly static content: VBR spends little on unchanged frames and has bits left for
+            // sharp text when something changes.
+            SCREEN_TEXT -> EncoderTuning.builder(profile)
+                .setBitrateMode(EncoderTuning.BITRATE_MODE_VBR)
+                .setRealtimePriority(true)
+            // Constant rate with fast intra refresh: every frame is in motion, and an evenly spread
+            // refresh keeps the uplink flat where a periodic IDR frame would burst.
+            GAME_MOTION -> EncoderTuning.builder(profile)
+                .setBitrateMode(EncoderTuning.BITRATE_MODE_CBR)
+                .setRealtimePriority(true)
+                .setOperatingRateFps(fps)
+                .setIntraRefreshPeriodFrames((fps / 2).coerceAtLeast(1))
+                .setKeyFrameIntervalSec(INTRA_REFRESH_KEY_FRAME_INTERVAL_SEC)
+            else -> if (bitrateMode == MODE_PROFILE) return null else EncoderTuning.builder(DEFAULT)
+        }
+        bitrateModes[bitrateMode]?.let { b.setBitrateMode(it) }
+        return b.createEncoderTuning()
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.whiper
+
+import android.graphics.Matrix
+import android.opengl.GLES20
+import android.opengl.GLES30
+import android.util.Log
+import org.webrtc.GlRectDrawer
+import org.webrtc.GlTextureFrameBuffer
+import org.webrtc.VideoFrame
+import org.webrtc.VideoFrameDrawer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.math.abs
+
+// Cheap "did the screen change?" test for captured texture frames.
+//
+// Each frame is box-filtered down on the GPU by halving it with bilinear sampling until it is at
+// most [maxSignatureWidth] wide (1280x720 gives an 80x45 signature), so every pixel of the frame
+// contributes to its cell; a blinking caret or a typed glyph moves the cell average by several
+// steps. The signature (a few KB) is then compared against the previous one. Must be used on the
+// thread that owns the GL context the frames' textures live in (the SurfaceTextureHelper handler
+// thread).
+//
+// On GLES 3 the signature is read back through two pixel-pack buffers: submit() starts the copy of
+// the current frame and maps the one started a frame earlier, so the GPU is never waited on. Its
+// answer is therefore about the previous frame; collect() settles the last one when no further
+// frame comes. On GLES 2 the readback is synchronous and the answer is about the current frame.
+class FrameDamageDetector(
+    private val maxSignatureWidth: Int = 80,
+    private val channelThreshold: Int = 6
+) {
+
+    private val drawer = GlRectDrawer()
+    private val identity = Matrix()
+    private val identityMatrix = floatArrayOf(1f, 0f, 0f, 0f, 0f, 1f, 0f, 0f, 0f, 0f, 1f, 0f, 0f, 0f, 0f, 1f)
+
+    // Halving steps; the last one holds the signature.
+    private val levels = ArrayList<GlTextureFrameBuffer>()
+    private var frameWidth = 0
+    private var frameHeight = 0
+    private var signatureWidth = 0
+    private var signatureHeight = 0
+
+    private var current: ByteBuffer = ByteBuffer.allocateDirect(0)
+    private var previous: ByteBuffer = ByteBuffer.allocateDirect(0)
+    private var hasPrevious = false
+
+    private var asyncReadback: Boolean? = null
+    private val pixelBuffers = IntArray(2)
+    private var nextPixelBuffer = 0
+
+    // A readback was started in submit() and not compared yet.
+    var pending = false
+        private set
+
+    // Starts the readback of [frame]'s signature. Returns whether the screen changed as far as is
+    // known: about the previous frame with asynchronous readback, about this one otherwise. True
+    // when there is nothing to compare against yet.
+    fun submit(frame: VideoFrame): Boolean {
+        val buffer = frame.buffer as? VideoFrame.TextureBuffer ?: return true
+        if (buffer.width != frameWidth || buffer.height != frameHeight) resize(buffer.width, buffer.height)
+
+        downscale(buffer)
+        val signature = levels.last()
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, signature.frameBufferId)
+        if (!async()) {
+            current.clear()
+            GLES20.glReadPixels(0, 0, signatureWidth, signatureHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, current)
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0)
+            return compareAndSwap()
+        }
+
+        val started = pixelBuffers[nextPixelBuffer]
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, started)
+        GLES30.glReadPixels(0, 0, signatureWidth, signatureHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0)
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0)
+
+        // Without a pending readback the previous frame was already settled by collect().
+        val changed = if (pending) map(pixelBuffers[1 - nextPixelBuffer]) else !hasPrevious
+        nextPixelBuffer = 1 - nextPixelBuffer
+        pending = true
+        return changed
+    }
+
+    // Finishes the readback started by the last submit(): whether that frame differed from the one
+    // before it. Waits for the GPU if the copy has not completed yet.
+    fun collect(): Boolean {
+        if (!pending) return false
+        pending = false
+        return map(pixelBuffers[1 - nextPixelBuffer])
+    }
+
+    // Forget the last signature so that the next frame counts as changed (e.g. after a resize).
+    fun reset() {
+        hasPrevious = false
+        pending = false
+    }
+
+    fun release() {
+        releaseLevels()
+        if (pixelBuffers[0] != 0) GLES20.glDeleteBuffers(2, pixelBuffers, 0)
+        pixelBuffers.fill(0)
+        drawer.release()
+        reset()
+    }
+
+    private fun resize(width: Int, height: Int) {
+        releaseLevels()
+        frameWidth = width
+        frameHeight = height
+        var w = width
+        var h = height
+        do {
+            w = (w + 1) / 2
+            h = (h + 1) / 2
+            levels.add(GlTextureFrameBuffer(GLES20.GL_RGBA).also { it.setSize(w, h) })
+        } while (w > maxSignatureWidth)
+        signatureWidth = w
+        signatureHeight = h
+        val size = w * h * 4
+        current = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder())
+        previous = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder())
+        if (pixelBuffers[0] != 0) allocatePixelBuffers()
+        reset()
+    }
+
+    // Each step samples exactly between four texels of the one before, so it averages them.
+    private fun downscale(buffer: VideoFrame.TextureBuffer) {
+        val first = levels[0]
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, first.frameBufferId)
+        VideoFrameDrawer.drawTexture(drawer, buffer, identity, frameWidth, frameHeight, 0, 0, first.width, first.height)
+        for (i in 1 until levels.size) {
+            val source = levels[i - 1]
+            val target = levels[i]
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, target.frameBufferId)
+            drawer.drawRgb(source.textureId, identityMatrix, source.width, source.height, 0, 0, target.width, target.height)
+        }
+    }
+
+    private fun map(pbo: Int): Boolean {
+        val size = signatureWidth * signatureHeight * 4
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo)
+        val mapped = GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT) as ByteBuffer?
+        if (mapped == null) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+            return true
+        }
+        current.clear()
+        current.put(mapped)
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER)
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+        return compareAndSwap()
+    }
+
+    private fun compareAndSwap(): Boolean {
+        val changed = !hasPrevious || differs(current, previous)
+        val tmp = previous
+        previous = current
+        current = tmp
+        hasPrevious = true
+        return changed
+    }
+
+    // Pixel-pack buffers came with GLES 3.0; GL_VERSION reads "OpenGL ES <major>.<minor> ...".
+    private fun async(): Boolean {
+        asyncReadback?.let { return it }
+        val version = GLES20.glGetString(GLES20.GL_VERSION).orEmpty()
+        val supported = (version.removePrefix("OpenGL ES ").substringBefore('.').toIntOrNull() ?: 0) >= 3
+        if (supported) {
+            GLES20.glGenBuffers(2, pixelBuffers, 0)
+            allocatePixelBuffers()
+        }
+        asyncReadback = supported
+        Log.i(TAG, "$version: ${signatureWidth}x$signatureHeight signature read back ${if (supported) "asynchronously" else "synchronously"}")
+        return supported
+    }
+
+    private fun allocatePixelBuffers() {
+        for (pbo in pixelBuffers) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo)
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, signatureWidth * signatureHeight * 4, null, GLES30.GL_STREAM_READ)
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+    }
+
+    private fun releaseLevels() {
+        levels.forEach { it.release() }
+        levels.clear()
+    }
+
+    private fun differs(a: ByteBuffer, b: ByteBuffer): Boolean {
+        val n = signatureWidth * signatureHeight * 4
+        for (i in 0 until n) {
+            if (abs((a.get(i).toInt() and 0xFF) - (b.get(i).toInt() and 0xFF)) > channelThreshold) return true
+        }
+        return false
+    }
+
+    companion object {
+        private const val TAG = "FrameDamageDetector"
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.whiper
+
+import android.content.Context
+import android.opengl.GLES20
+import android.os.Handler
+import android.os.HandlerThread
+import android.util.Log
+import android.view.Surface
+import kotlinx.coroutines.runBlocking
+import org.webrtc.EglBase
+import org.webrtc.GlRectDrawer
+import org.webrtc.TextureBufferImpl
+import org.webrtc.ThreadUtils
+import org.webrtc.VideoFrame
+import org.webrtc.VideoFrameDrawer
+import org.webrtc.VideoSink
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+
+// Low-rate preview of the outgoing video for MainActivity. StreamService adds [sink] to the video
+// track; MainActivity attaches a Surface while it is in the foreground.
+//
+// Unlike SurfaceViewRenderer/EglRenderer, which take three locks per frame and redraw at the capture
+// rate, frames over the rate cap are dropped on the capture thread with two volatile reads, and the
+// accepted ones go through a single AtomicReference slot to a render thread. The OES texture from
+// SurfaceTextureHelper is drawn straight from the shared EGL context; nothing is copied. While a
+// frame sits in the slot the capturer cannot reuse its texture, so the slot is overwritten rather
+// than queued and the render thread draws as soon as it is woken.
+object LocalPreview {
+
+    private const val TAG = "LocalPreview"
+    const val DEFAULT_MAX_FPS = 10
+
+    @Volatile
+    private var minIntervalNs = 1_000_000_000L / DEFAULT_MAX_FPS
+    @Volatile
+    private var paused = true
+    @Volatile
+    private var handler: Handler? = null
+
+    // Capture thread only.
+    private var lastAcceptedNs = 0L
+
+    private val pending = AtomicReference<VideoFrame?>(null)
+    private val drawScheduled = AtomicBoolean(false)
+
+    // Render thread only.
+    private var eglBase: EglBase? = null
+    private var drawer: GlRectDrawer? = null
+    private var frameDrawer: VideoFrameDrawer? = null
+    private var surfaceWidth = 0
+    private var surfaceHeight = 0
+
+    private var thread: HandlerThread? = null
+
+    val sink = VideoSink { frame -> onFrame(frame) }
+
+    private val drawRunnable = Runnable {
+        drawScheduled.set(false)
+        val frame = pending.getAndSet(null) ?: return@Runnable
+        try {
+            draw(frame)
+        } finally {
+            frame.release()
+        }
+    }
+
+    fun setMaxFps(fps: Int) {
+        minIntervalNs = 1_000_000_000L / fps.coerceAtLeast(1)
+    }
+
+    // Called from the Activity's lifecycle: nothing is accepted while it is not visible.
+    fun setPaused(paused: Boolean) {
+        this.paused = paused
+        if (paused) pending.getAndSet(null)?.release()
+    }
+
+    val isAttached: Boolean get() = handler != null
+
+    // Main thread, from SurfaceHolder.Callback.surfaceChanged.
+    fun attach(context: Context, surface: Surface, width: Int, height: Int) {
+        detach()
+        val appContext = context.applicationContext
+        val t = HandlerThread(TAG).also { it.start() }
+        val h = Handler(t.looper)
+        thread = t
+        h.post {
+            try {
+                // The preview's own thread; waiting here keeps the main thread free.
+                val shared = runBlocking { WebRtcWarmup.awaitEglBase(appContext) }
+                val egl = EglBase.create(shared.eglBaseContext, EglBase.CONFIG_PLAIN)
+                egl.createSurface(surface)
+                egl.makeCurrent()
+                eglBase = egl
+                drawer = GlRectDrawer()
+                frameDrawer = VideoFrameDrawer()
+                surfaceWidth = width
+                surfaceHeight = height
+            } catch (e: RuntimeException) {
+                Log.e(TAG, "Failed to set up the preview surface", e)
+            }
+        }
+        handler = h
+    }
+
+    fun resize(width: Int, height: Int) {
+        handler?.post {
+            surfaceWidth = width
+            surfaceHeight = height
+        }
+    }
+
+    // Main thread, from SurfaceHolder.Callback.surfaceDestroyed: returns once the EGL surface is gone.
+    fun detach() {
+        val h = handler ?: return
+        handler = null
+        ThreadUtils.invokeAtFrontUninterruptibly(h) {
+            frameDrawer?.release()
+            frameDrawer = null
+            drawer?.release()
+            drawer = null
+            eglBase?.release()
+            eglBase = null
+        }
+        thread?.quitSafely()
+        thread = null
+        // A draw posted to the old thread never runs; a frame may have raced with the handler going away.
+        drawScheduled.set(false)
+        pending.getAndSet(null)?.release()
+    }
+
+    private fun onFrame(frame: VideoFrame) {
+        if (paused || handler == null) return
+        val ts = frame.timestampNs
+        // A new session restarts the clock.
+        if (ts >= lastAcceptedNs && ts - lastAcceptedNs < minIntervalNs) return
+        lastAcceptedNs = ts
+
+        frame.retain()
+        pending.getAndSet(frame)?.release()
+        // Re-read after publishing: either this sees the detach, or detach sees the frame.
+        val h = handler
+        if (h == null) {
+            pending.getAndSet(null)?.release()
+            return
+        }
+        if (drawScheduled.compareAndSet(false, true)) h.post(drawRunnable)
+    }
+
+    private fun draw(frame: VideoFrame) {
+        val egl = eglBase ?: return
+        val fd = frameDrawer ?: return
+        val d = drawer ?: return
+        if (!egl.hasSurface() || surfaceWidth == 0 || surfaceHeight == 0) return
+
+        // Letterbox the frame into the surface.
+        val scale = minOf(surfaceWidth.toFloat() / frame.rotatedWidth, surfaceHeight.toFloat() / frame.rotatedHeight)
+        val w = (frame.rotatedWidth * scale).toInt()
+        val h = (frame.rotatedHeight * scale).toInt()
+        GLES20.glClearColor(0f, 0f, 0f, 1f)
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT)
+        // A composited frame may still be drawing in the capture context.
+        (frame.buffer as? TextureBufferImpl)?.waitForProducer()
+        fd.drawFrame(frame, d, null, (surfaceWidth - w) / 2, (surfaceHeight - h) / 2, w, h)
+        egl.swapBuffers()
+    }
+}
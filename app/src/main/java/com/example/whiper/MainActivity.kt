@@ -7,6 +7,9 @@ import android.content.Intent
 import android.media.projection.MediaProjectionManager
 import android.os.Build
 import android.os.Bundle
+import android.os.SystemClock
+import android.view.SurfaceHolder
+import android.view.SurfaceView
 import android.widget.Toast
 import androidx.activity.ComponentActivity
 import androidx.activity.enableEdgeToEdge
@@ -25,6 +28,7 @@ import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.text.input.KeyboardType
 import androidx.compose.ui.unit.dp
 import androidx.compose.ui.unit.sp
+import androidx.compose.ui.viewinterop.AndroidView
 import androidx.core.content.ContextCompat
 import android.content.pm.PackageManager
 import com.example.whiper.ui.theme.FfmpegToolTheme
@@ -32,6 +36,8 @@ import com.example.whiper.ui.theme.FfmpegToolTheme
 class MainActivity : ComponentActivity() {
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
+        // Load WebRTC, create the EGL context and probe the codecs while the user fills in the form.
+        WebRtcWarmup.start(this)
         enableEdgeToEdge()
         setContent {
             FfmpegToolTheme {
@@ -44,6 +50,17 @@ class MainActivity : ComponentActivity() {
             }
         }
     }
+
+    // The preview only takes frames while the Activity is visible.
+    override fun onStart() {
+        super.onStart()
+        LocalPreview.setPaused(false)
+    }
+
+    override fun onStop() {
+        LocalPreview.setPaused(true)
+        super.onStop()
+    }
 }
 
 @Composable
@@ -55,16 +72,45 @@ fun MainScreen() {
     var streamKey by remember { mutableStateOf("") }
     var audioSource by remember { mutableStateOf("mic") } // "mic" or "system" or "mix" or "none"
 
-    val videoCodecOptions = listOf("H264", "VP8", "VP9")
-    var selectedVideoCodec by remember { mutableStateOf("H264") }
-    val encoderModeOptions = listOf("Auto", "Hardware", "Software")
+    // Filled from the codec capability cache once the warm-up has it; until then every option is shown.
+    var capabilities by remember { mutableStateOf<DeviceCodecCapabilities?>(null) }
+    LaunchedEffect(Unit) {
+        capabilities = runCatching { WebRtcWarmup.awaitCapabilities(context) }.getOrNull()
+    }
+
+    val encoderModeOptions = if (capabilities?.hardwareCodecs?.isEmpty() == true) {
+        listOf("Auto", "Software")
+    } else {
+        listOf("Auto", "Hardware", "Software")
+    }
     var selectedEncoderMode by remember { mutableStateOf("Auto") }
+    val videoCodecOptions = capabilities?.codecsFor(selectedEncoderMode) ?: DeviceCodecCapabilities.CODEC_ORDER
+    var selectedVideoCodec by remember { mutableStateOf("H264") }
+    LaunchedEffect(encoderModeOptions, videoCodecOptions) {
+        if (selectedEncoderMode !in encoderModeOptions) selectedEncoderMode = encoderModeOptions.first()
+        if (selectedVideoCodec !in videoCodecOptions && videoCodecOptions.isNotEmpty()) selectedVideoCodec = videoCodecOptions.first()
+    }
 
     var widthText by remember { mutableStateOf("1280") }
     var heightText by remember { mutableStateOf("720") }
     var fpsText by remember { mutableStateOf("30") }
     var videoBitrateKbpsText by remember { mutableStateOf("2500") }
     var audioBitrateKbpsText by remember { mutableStateOf("64") }
+    var reconnectDeadlineSecText by remember { mutableStateOf("30") }
+    var minVideoBitrateKbpsText by remember { mutableStateOf("300") }
+    var adaptiveBitrate by remember { mutableStateOf(true) }
+    var startRequestedAtMs by remember { mutableStateOf(0L) }
+    var recordLocal by remember { mutableStateOf(false) }
+    var skipStaticFrames by remember { mutableStateOf(false) }
+    var simulcast by remember { mutableStateOf(false) }
+    var encoderProfile by remember { mutableStateOf(EncoderProfiles.DEFAULT) }
+    var encoderBitrateMode by remember { mutableStateOf(EncoderProfiles.MODE_PROFILE) }
+    var showPreview by remember { mutableStateOf(false) }
+    var overlayCamera by remember { mutableStateOf(false) }
+    var overlayText by remember { mutableStateOf("") }
+    val extraDestinations = remember { mutableStateListOf<ExtraDestinationInput>() }
+    val destinationHealth by WhipFanout.status.collectAsState()
+    val streamError by StreamService.error.collectAsState()
     // var isStreaming by remember { mutableStateOf(false) } // Could add state listening later
 
     val mediaProjectionManager = context.getSystemService(Context.MEDIA_PROJECTION_SERVICE) as MediaProjectionManager
@@ -78,6 +124,8 @@ fun MainScreen() {
                 val fps = fpsText.toIntOrNull() ?: 30
                 val videoBitrateKbps = videoBitrateKbpsText.toIntOrNull() ?: 2500
                 val audioBitrateKbps = audioBitrateKbpsText.toIntOrNull() ?: 64
+                val reconnectDeadlineSec = reconnectDeadlineSecText.toIntOrNull() ?: 30
+                val minVideoBitrateKbps = minVideoBitrateKbpsText.toIntOrNull() ?: 300
 
                 // Start Service
                 val intent = Intent(context, StreamService::class.java).apply {
@@ -93,6 +141,23 @@ fun MainScreen() {
                     putExtra("videoFps", fps)
                     putExtra("videoBitrateKbps", videoBitrateKbps)
                     putExtra("audioBitrateKbps", audioBitrateKbps)
+                    putExtra("reconnectDeadlineSec", reconnectDeadlineSec)
+                    putExtra("minVideoBitrateKbps", minVideoBitrateKbps)
+                    putExtra("adaptiveBitrate", adaptiveBitrate)
+                    putExtra("recordLocal", recordLocal)
+                    putExtra("skipStaticFrames", skipStaticFrames)
+                    putExtra("simulcast", simulcast)
+                    putExtra("encoderProfile", encoderProfile)
+                    putExtra("encoderBitrateMode", encoderBitrateMode)
+                    putExtra("overlayCamera", overlayCamera)
+                    putExtra("overlayText", overlayText.trim())
+                    putExtra("startRequestedAtMs", startRequestedAtMs)
+                    val extras = extraDestinations.filter { it.url.isNotBlank() }
+                    if (extras.isNotEmpty()) {
+                        putExtra("extraUrls", extras.map { it.url.trim() }.toTypedArray())
+                        putExtra("extraTokens", extras.map { it.key.trim() }.toTypedArray())
+                        putExtra("extraVideoBitrateKbps", extras.map { it.bitrateKbps.toIntOrNull() ?: 0 }.toIntArray())
+                    }
                 }
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                     context.startForegroundService(intent)
@@ -105,22 +170,34 @@ fun MainScreen() {
 
     val launchScreenCaptureIntent = remember {
         {
+            startRequestedAtMs = SystemClock.elapsedRealtime()
+            // The TLS handshake runs while the permission dialog is shown.
+            WebRtcWarmup.preconnect(WhipRequests.endpointUrl(streamUrl.trim(), streamKey.trim()))
+            extraDestinations.filter { it.url.isNotBlank() }.forEach {
+                WebRtcWarmup.preconnect(WhipRequests.endpointUrl(it.url.trim(), it.key.trim()))
+            }
             // Trigger MediaProjection permission dialog
             screenCaptureLauncher.launch(mediaProjectionManager.createScreenCaptureIntent())
         }
     }
 
-    val audioPermissionLauncher = rememberLauncherForActivityResult(
-        contract = ActivityResultContracts.RequestPermission(),
-        onResult = { granted ->
-            if (granted) {
-                launchScreenCaptureIntent()
-            } else {
-                Toast.makeText(
+    val permissionsLauncher = rememberLauncherForActivityResult(
+        contract = ActivityResultContracts.RequestMultiplePermissions(),
+        onResult = { results ->
+            when {
+                results[Manifest.permission.RECORD_AUDIO] == false -> Toast.makeText(
                     context,
                     "RECORD_AUDIO permission denied; choose No Audio or grant permission.",
                     Toast.LENGTH_LONG
                 ).show()
+
+                results[Manifest.permission.CAMERA] == false -> Toast.makeText(
+                    context,
+                    "CAMERA permission denied; turn off Camera PiP or grant permission.",
+                    Toast.LENGTH_LONG
+                ).show()
+
+                else -> launchScreenCaptureIntent()
             }
         }
     )
@@ -135,6 +212,43 @@ fun MainScreen() {
     ) {
         Text("WHIP Streamer", style = MaterialTheme.typography.headlineMedium)
 
+        Row(
+            modifier = Modifier.fillMaxWidth(),
+            verticalAlignment = Alignment.CenterVertically,
+            horizontalArrangement = Arrangement.spacedBy(8.dp)
+        ) {
+            Switch(checked = showPreview, onCheckedChange = { showPreview = it })
+            Text("Preview (${LocalPreview.DEFAULT_MAX_FPS} fps)")
+        }
+
+        if (showPreview) {
+            // Draws the capture texture of the running stream; stays black until streaming starts.
+            AndroidView(
+                factory = { ctx ->
+                    SurfaceView(ctx).apply {
+                        holder.addCallback(object : SurfaceHolder.Callback {
+                            override fun surfaceCreated(holder: SurfaceHolder) {}
+
+                            override fun surfaceChanged(holder: SurfaceHolder, format: Int, width: Int, height: Int) {
+                                if (LocalPreview.isAttached) {
+                                    LocalPreview.resize(width, height)
+                                } else {
+                                    LocalPreview.attach(ctx, holder.surface, width, height)
+                                }
+                            }
+
+                            override fun surfaceDestroyed(holder: SurfaceHolder) {
+                                LocalPreview.detach()
+                            }
+                        })
+                    }
+                },
+                modifier = Modifier
+                    .fillMaxWidth()
+                    .aspectRatio(16f / 9f)
+            )
+        }
+
         Text(
             text = "Video Settings",
             style = MaterialTheme.typography.titleMedium
@@ -178,13 +292,105 @@ fun MainScreen() {
             )
         }
 
-        OutlinedTextField(
-            value = audioBitrateKbpsText,
-            onValueChange = { audioBitrateKbpsText = it },
-            label = { Text("Audio Bitrate (kbps)") },
+        Row(
             modifier = Modifier.fillMaxWidth(),
-            keyboardOptions = KeyboardOptions(keyboardType = KeyboardType.Number)
-        )
+            horizontalArrangement = Arrangement.spacedBy(12.dp),
+            verticalAlignment = Alignment.CenterVertically
+        ) {
+            OutlinedTextField(
+                value = minVideoBitrateKbpsText,
+                onValueChange = { minVideoBitrateKbpsText = it },
+                label = { Text("Min Video Bitrate (kbps)") },
+                modifier = Modifier.weight(1f),
+                enabled = adaptiveBitrate,
+                keyboardOptions = KeyboardOptions(keyboardType = KeyboardType.Number)
+            )
+            Row(
+                modifier = Modifier.weight(1f),
+                verticalAlignment = Alignment.CenterVertically,
+                horizontalArrangement = Arrangement.spacedBy(8.dp)
+            ) {
+                Switch(checked = adaptiveBitrate, onCheckedChange = { adaptiveBitrate = it })
+                Text("Adaptive Bitrate")
+            }
+        }
+
+        Row(
+            modifier = Modifier.fillMaxWidth(),
+            horizontalArrangement = Arrangement.spacedBy(12.dp)
+        ) {
+            OutlinedTextField(
+                value = audioBitrateKbpsText,
+                onValueChange = { audioBitrateKbpsText = it },
+                label = { Text("Audio Bitrate (kbps)") },
+                modifier = Modifier.weight(1f),
+                keyboardOptions = KeyboardOptions(keyboardType = KeyboardType.Number)
+            )
+            OutlinedTextField(
+                value = reconnectDeadlineSecText,
+                onValueChange = { reconnectDeadlineSecText = it },
+                label = { Text("Reconnect Timeout (s)") },
+                modifier = Modifier.weight(1f),
+                keyboardOptions = KeyboardOptions(keyboardType = KeyboardType.Number)
+            )
+        }
+
+        Row(
+            modifier = Modifier.fillMaxWidth(),
+            verticalAlignment = Alignment.CenterVertically,
+            horizontalArrangement = Arrangement.spacedBy(8.dp)
+        ) {
+            Switch(checked = recordLocal, onCheckedChange = { recordLocal = it })
+            Text("Record Locally")
+        }
+
+        Row(
+            modifier = Modifier.fillMaxWidth(),
+            verticalAlignment = Alignment.CenterVertically,
+            horizontalArrangement = Arrangement.spacedBy(8.dp)
+        ) {
+            Switch(checked = skipStaticFrames, onCheckedChange = { skipStaticFrames = it })
+            Text("Skip Static Frames")
+        }
+
+        Row(
+            modifier = Modifier.fillMaxWidth(),
+            verticalAlignment = Alignment.CenterVertically,
+            horizontalArrangement = Arrangement.spacedBy(8.dp)
+        ) {
+            Switch(checked = simulcast, onCheckedChange = { simulcast = it })
+            Column {
+                Text("Simulcast (full / half / quarter)")
+                if (simulcast) {
+                    Text(
+                        text = "Sends VP8 from the software encoder; local recording is off",
+                        fontSize = 12.sp,
+                        color = MaterialTheme.colorScheme.onSurfaceVariant
+                    )
+                }
+            }
+        }
+
+        Card(modifier = Modifier.fillMaxWidth()) {
+            Column(modifier = Modifier.padding(16.dp), verticalArrangement = Arrangement.spacedBy(12.dp)) {
+                Text("Overlays", style = MaterialTheme.typography.titleMedium)
+                Row(
+                    modifier = Modifier.fillMaxWidth(),
+                    verticalAlignment = Alignment.CenterVertically,
+                    horizontalArrangement = Arrangement.spacedBy(8.dp)
+                ) {
+                    Switch(checked = overlayCamera, onCheckedChange = { overlayCamera = it })
+                    Text("Camera PiP (front camera, top right)")
+                }
+                OutlinedTextField(
+                    value = overlayText,
+                    onValueChange = { overlayText = it },
+                    label = { Text("Overlay Text") },
+                    modifier = Modifier.fillMaxWidth(),
+                    singleLine = true
+                )
+            }
+        }
 
         Card(modifier = Modifier.fillMaxWidth()) {
             Column(modifier = Modifier.padding(16.dp), verticalArrangement = Arrangement.spacedBy(12.dp)) {
@@ -237,6 +443,133 @@ fun MainScreen() {
                         }
                     }
                 }
+
+                // Only sizes the selected encoder can take at the requested frame rate.
+                val resolutionPresets = capabilities?.presetsFor(
+                    selectedVideoCodec,
+                    selectedEncoderMode,
+                    fpsText.toIntOrNull() ?: 30
+                ).orEmpty()
+                if (resolutionPresets.isNotEmpty()) {
+                    Text("Resolution", style = MaterialTheme.typography.titleMedium)
+
+                    var resolutionExpanded by remember { mutableStateOf(false) }
+                    ExposedDropdownMenuBox(expanded = resolutionExpanded, onExpandedChange = { resolutionExpanded = !resolutionExpanded }) {
+                        OutlinedTextField(
+                            value = "${widthText}x$heightText",
+                            onValueChange = {},
+                            readOnly = true,
+                            label = { Text("Preset") },
+                            trailingIcon = { ExposedDropdownMenuDefaults.TrailingIcon(expanded = resolutionExpanded) },
+                            modifier = Modifier.menuAnchor().fillMaxWidth()
+                        )
+                        ExposedDropdownMenu(expanded = resolutionExpanded, onDismissRequest = { resolutionExpanded = false }) {
+                            resolutionPresets.forEach { preset ->
+                                DropdownMenuItem(
+                                    text = { Text("${preset.key} (up to ${preset.maxFps} fps)") },
+                                    onClick = {
+                                        widthText = preset.width.toString()
+                                        heightText = preset.height.toString()
+                                        resolutionExpanded = false
+                                    }
+                                )
+                            }
+                        }
+                    }
+                }
+
+                val encoder = capabilities?.encoderFor(selectedVideoCodec, selectedEncoderMode)
+                val width = widthText.toIntOrNull() ?: 0
+                val height = heightText.toIntOrNull() ?: 0
+                if (encoder != null && (width > encoder.maxWidth || height > encoder.maxHeight)) {
+                    Text(
+                        text = "${encoder.codecName} supports up to ${encoder.maxWidth}x${encoder.maxHeight}",
+                        fontSize = 12.sp,
+                        color = MaterialTheme.colorScheme.error
+                    )
+                }
+                // Above 30 fps the hardware encoder only lifts its cap where the codec supports the rate.
+                val fps = fpsText.toIntOrNull() ?: 30
+                val sizeMaxFps = encoder?.presets?.firstOrNull { it.width == width && it.height == height }?.maxFps
+                if (encoder != null && fps > 30 && sizeMaxFps != null && sizeMaxFps < fps) {
+                    Text(
+                        text = "${encoder.codecName} sustains up to $sizeMaxFps fps at ${width}x$height",
+                        fontSize = 12.sp,
+                        color = MaterialTheme.colorScheme.error
+                    )
+                }
+
+                // MediaCodec tuning; libvpx (Software, and simulcast) does not take it.
+                if (selectedEncoderMode != "Software" && !simulcast) {
+                    Text("Encoder Profile", style = MaterialTheme.typography.titleMedium)
+
+                    var profileExpanded by remember { mutableStateOf(false) }
+                    ExposedDropdownMenuBox(expanded = profileExpanded, onExpandedChange = { profileExpanded = !profileExpanded }) {
+                        OutlinedTextField(
+                            value = encoderProfile,
+                            onValueChange = {},
+                            readOnly = true,
+                            label = { Text("Profile") },
+                            trailingIcon = { ExposedDropdownMenuDefaults.TrailingIcon(expanded = profileExpanded) },
+                            modifier = Modifier.menuAnchor().fillMaxWidth()
+                        )
+                        ExposedDropdownMenu(expanded = profileExpanded, onDismissRequest = { profileExpanded = false }) {
+                            EncoderProfiles.names.forEach { opt ->
+                                DropdownMenuItem(
+                                    text = { Text(opt) },
+                                    onClick = {
+                                        encoderProfile = opt
+                                        profileExpanded = false
+                                    }
+                                )
+                            }
+                        }
+                    }
+
+                    // Only the modes the selected encoder reports (all of them before the probe is done).
+                    val bitrateModeOptions = listOf(EncoderProfiles.MODE_PROFILE) + EncoderProfiles.bitrateModes
+                        .filterValues { encoder == null || it in encoder.bitrateModes }.keys
+                    LaunchedEffect(bitrateModeOptions) {
+                        if (encoderBitrateMode !in bitrateModeOptions) encoderBitrateMode = EncoderProfiles.MODE_PROFILE
+                    }
+                    var bitrateModeExpanded by remember { mutableStateOf(false) }
+                    ExposedDropdownMenuBox(expanded = bitrateModeExpanded, onExpandedChange = { bitrateModeExpanded = !bitrateModeExpanded }) {
+                        OutlinedTextField(
+                            value = encoderBitrateMode,
+                            onValueChange = {},
+                            readOnly = true,
+                            label = { Text("Bitrate Mode") },
+                            trailingIcon = { ExposedDropdownMenuDefaults.TrailingIcon(expanded = bitrateModeExpanded) },
+                            modifier = Modifier.menuAnchor().fillMaxWidth()
+                        )
+                        ExposedDropdownMenu(expanded = bitrateModeExpanded, onDismissRequest = { bitrateModeExpanded = false }) {
+                            bitrateModeOptions.forEach { opt ->
+                                DropdownMenuItem(
+                                    text = { Text(opt) },
+                                    onClick = {
+                                        encoderBitrateMode = opt
+                                        bitrateModeExpanded = false
+                                    }
+                                )
+                            }
+                        }
+                    }
+
+                    val usesIntraRefresh = encoderProfile == EncoderProfiles.LOWEST_LATENCY || encoderProfile == EncoderProfiles.GAME_MOTION
+                    if (encoder != null && usesIntraRefresh && !encoder.intraRefresh) {
+                        Text(
+                            text = "${encoder.codecName} has no intra refresh; periodic key frames are kept",
+                            fontSize = 12.sp
+                        )
+                    }
+                    if (encoderBitrateMode == "CQ") {
+                        Text(
+                            text = "CQ ignores the bitrate settings and adaptive bitrate",
+                            fontSize = 12.sp,
+                            color = MaterialTheme.colorScheme.error
+                        )
+                    }
+                }
             }
         }
 
@@ -254,6 +587,61 @@ fun MainScreen() {
             modifier = Modifier.fillMaxWidth()
         )
 
+        Card(modifier = Modifier.fillMaxWidth()) {
+            Column(modifier = Modifier.padding(16.dp), verticalArrangement = Arrangement.spacedBy(12.dp)) {
+                Text("Additional Destinations", style = MaterialTheme.typography.titleMedium)
+                Text(
+                    text = "Same capture; each destination adds one encoder and its own upload",
+                    fontSize = 12.sp,
+                    color = MaterialTheme.colorScheme.onSurfaceVariant
+                )
+
+                extraDestinations.forEachIndexed { i, dest ->
+                    OutlinedTextField(
+                        value = dest.url,
+                        onValueChange = { extraDestinations[i] = dest.copy(url = it) },
+                        label = { Text("WHIP Endpoint URL ${i + 2}") },
+                        modifier = Modifier.fillMaxWidth()
+                    )
+                    Row(
+                        modifier = Modifier.fillMaxWidth(),
+                        horizontalArrangement = Arrangement.spacedBy(12.dp),
+                        verticalAlignment = Alignment.CenterVertically
+                    ) {
+                        OutlinedTextField(
+                            value = dest.key,
+                            onValueChange = { extraDestinations[i] = dest.copy(key = it) },
+                            label = { Text("Stream Key") },
+                            modifier = Modifier.weight(1f)
+                        )
+                        OutlinedTextField(
+                            value = dest.bitrateKbps,
+                            onValueChange = { extraDestinations[i] = dest.copy(bitrateKbps = it) },
+                            label = { Text("Video kbps") },
+                            modifier = Modifier.weight(1f),
+                            keyboardOptions = KeyboardOptions(keyboardType = KeyboardType.Number)
+                        )
+                        TextButton(onClick = { extraDestinations.removeAt(i) }) {
+                            Text("Remove")
+                        }
+                    }
+                }
+
+                TextButton(onClick = { extraDestinations.add(ExtraDestinationInput("", "", videoBitrateKbpsText)) }) {
+                    Text("Add Destination")
+                }
+
+                destinationHealth.forEach { h ->
+                    Text(
+                        text = "${h.name}: ${h.state} sent=${h.sentBitrateBps?.let { it / 1000 } ?: "-"} kbps " +
+                            "target=${h.targetBitrateBps?.let { it / 1000 } ?: "-"} kbps rtt=${h.rttMs ?: "-"} ms " +
+                            "lost=${h.packetsLost ?: "-"} fps=${h.framesPerSecond?.toInt() ?: "-"}/${h.requestedFps}",
+                        fontSize = 12.sp
+                    )
+                }
+            }
+        }
+
         Card(modifier = Modifier.fillMaxWidth()) {
             Column(modifier = Modifier.padding(16.dp)) {
                 Text("Audio Source", style = MaterialTheme.typography.titleMedium)
@@ -296,15 +684,15 @@ fun MainScreen() {
 
         Button(
             onClick = {
-                if (audioSource != "none") {
-                    val granted = ContextCompat.checkSelfPermission(
-                        context,
-                        Manifest.permission.RECORD_AUDIO
-                    ) == PackageManager.PERMISSION_GRANTED
-                    if (!granted) {
-                        audioPermissionLauncher.launch(Manifest.permission.RECORD_AUDIO)
-                        return@Button
-                    }
+                val needed = listOfNotNull(
+                    Manifest.permission.RECORD_AUDIO.takeIf { audioSource != "none" },
+                    Manifest.permission.CAMERA.takeIf { overlayCamera }
+                ).filter {
+                    ContextCompat.checkSelfPermission(context, it) != PackageManager.PERMISSION_GRANTED
+                }
+                if (needed.isNotEmpty()) {
+                    permissionsLauncher.launch(needed.toTypedArray())
+                    return@Button
                 }
                 launchScreenCaptureIntent()
             },
@@ -324,5 +712,11 @@ fun MainScreen() {
         ) {
             Text("Stop Streaming")
         }
+
+        streamError?.let {
+            Text(text = it, fontSize = 12.sp, color = MaterialTheme.colorScheme.error)
+        }
     }
-}
\ No newline at end of file
+}
+// One row of the "Additional Destinations" card; the bitrate stays text until the stream starts.
+private data class ExtraDestinationInput(val url: String, val key: String, val bitrateKbps: String)
@@ -6,16 +6,25 @@ import android.hardware.display.VirtualDisplay
 import android.media.projection.MediaProjection
 import android.os.Handler
 import android.util.DisplayMetrics
+import android.util.Log
+import android.view.Display
 import android.view.Surface
 import org.webrtc.CapturerObserver
 import org.webrtc.SurfaceTextureHelper
 import org.webrtc.VideoCapturer
 import org.webrtc.VideoFrame
 import org.webrtc.VideoSink
+import java.util.concurrent.TimeUnit
 
+// skipStaticFrames (off unless asked for): unchanged frames (per FrameDamageDetector) are dropped
+// before they reach the encoder, except for a keep-alive frame every 1/keepAliveFps seconds. The
+// detector answers a frame late, so a skipped frame is settled shortly after; if it did change and
+// no other frame came meanwhile, it is sent again.
 class MediaProjectionVideoCapturer(
     private val mediaProjection: MediaProjection,
-    private val appContext: Context
+    private val appContext: Context,
+    private val skipStaticFrames: Boolean = false,
+    keepAliveFps: Int = 2
 ) : VideoCapturer {
 
     private var surfaceTextureHelper: SurfaceTextureHelper? = null
@@ -30,6 +39,30 @@ class MediaProjectionVideoCapturer(
 
     private var isStarted: Boolean = false
 
+    private val keepAliveIntervalNs = TimeUnit.SECONDS.toNanos(1) / keepAliveFps.coerceAtLeast(1)
+    private var damageDetector: FrameDamageDetector? = null
+    private var lastForwardedNs = 0L
+    private var capturedFrames = 0L
+    private var skippedFrames = 0L
+    private var pacedFrames = 0L
+
+    // Frames arriving faster than the requested fps are dropped on the capture handler; 1/8 of an
+    // interval of slack keeps VSYNC jitter from dropping frames that are on schedule.
+    private var minFrameIntervalNs = 0L
+
+    // Set on the capture handler by forceFrame(): frames that skip pacing and damage detection. A
+    // real frame already queued on the handler may arrive before the re-delivered one, so both are
+    // forced; the re-delivery is recognized by repeating the last timestamp and ends the run early.
+    private var forcedFrames = 0
+    private var lastFrameNs = 0L
+
+    // Capture handler: compares a skipped frame that no later frame has been compared after.
+    private val settle = Runnable {
+        val detector = damageDetector ?: return@Runnable
+        if (!isStarted || !detector.pending) return@Runnable
+        if (detector.collect()) forceFrame()
+    }
+
     override fun initialize(surfaceTextureHelper: SurfaceTextureHelper, context: Context, capturerObserver: CapturerObserver) {
         this.surfaceTextureHelper = surfaceTextureHelper
         this.capturerObserver = capturerObserver
@@ -65,9 +98,21 @@ class MediaProjectionVideoCapturer(
                 handler
             )
 
+            if (skipStaticFrames) damageDetector = FrameDamageDetector()
+            lastForwardedNs = 0L
+            lastFrameNs = 0L
+            forcedFrames = 0
+            capturedFrames = 0L
+            skippedFrames = 0L
+            pacedFrames = 0L
+            minFrameIntervalNs = frameIntervalNs(framerate)
+            checkRefreshRate(framerate)
+
             sth.startListening(object : VideoSink {
                 override fun onFrame(frame: VideoFrame) {
-                    observer.onFrameCaptured(frame)
+                    if (shouldForward(frame)) {
+                        observer.onFrameCaptured(frame)
+                    }
                 }
             })
 
@@ -96,12 +141,78 @@ class MediaProjectionVideoCapturer(
         }
     }
 
+    // Re-sends the last screen frame, e.g. so that an overlay keeps moving over a static screen.
+    fun requestFrame() {
+        val sth = surfaceTextureHelper ?: return
+        sth.handler.post {
+            if (isStarted) forceFrame()
+        }
+    }
+
+    // Capture handler.
+    private fun forceFrame() {
+        forcedFrames = FORCED_FRAMES
+        surfaceTextureHelper?.forceFrame()
+    }
+
+    // Runs on the SurfaceTextureHelper thread, where the frame's OES texture and GL context live.
+    private fun shouldForward(frame: VideoFrame): Boolean {
+        capturedFrames++
+        val now = frame.timestampNs
+        val redelivered = now == lastFrameNs
+        lastFrameNs = now
+        if (forcedFrames > 0) {
+            forcedFrames = if (redelivered) 0 else forcedFrames - 1
+            return true
+        }
+        if (minFrameIntervalNs > 0 && lastForwardedNs != 0L && now - lastForwardedNs < minFrameIntervalNs) {
+            // Not compared either, so a change in this frame is still detected on the next one.
+            pacedFrames++
+            return false
+        }
+        val detector = damageDetector ?: run {
+            lastForwardedNs = now
+            return true
+        }
+        val changed = try {
+            detector.submit(frame)
+        } catch (t: Throwable) {
+            Log.w(TAG, "Damage detection failed; forwarding every frame", t)
+            detector.release()
+            damageDetector = null
+            true
+        }
+        // Only the latest skipped frame needs settling, and a forwarded one none.
+        val handler = surfaceTextureHelper?.handler
+        handler?.removeCallbacks(settle)
+        if (changed || lastForwardedNs == 0L || now - lastForwardedNs >= keepAliveIntervalNs) {
+            lastForwardedNs = now
+            return true
+        }
+        skippedFrames++
+        handler?.postDelayed(settle, SETTLE_DELAY_MS)
+        return false
+    }
+
     private fun releaseInternal(sth: SurfaceTextureHelper?) {
         try {
             sth?.stopListening()
         } catch (_: Throwable) {
         }
 
+        if (sth != null) {
+            sth.handler.removeCallbacks(settle)
+            damageDetector?.let {
+                try {
+                    it.release()
+                } catch (_: Throwable) {
+                }
+                Log.i(TAG, "Static frames skipped: $skippedFrames of $capturedFrames")
+            }
+            Log.i(TAG, "Frames dropped by pacing: $pacedFrames of $capturedFrames")
+        }
+        damageDetector = null
+
         try {
             virtualDisplay?.release()
         } catch (_: Throwable) {
@@ -117,11 +228,42 @@ class MediaProjectionVideoCapturer(
         }
     }
 
+    // Reconfigures the running capture in place: the VirtualDisplay, the SurfaceTexture buffer and
+    // the frame pacing all switch on the capture handler, so no teardown or new projection grant
+    // is needed. At most the one frame already in flight is delivered at the old size.
     override fun changeCaptureFormat(width: Int, height: Int, framerate: Int) {
-        // Not supported; callers should stop/start capture if needed.
         this.width = width
         this.height = height
         this.fps = framerate
+
+        val sth = surfaceTextureHelper ?: return
+        sth.handler.post {
+            if (!isStarted) return@post
+            val vd = virtualDisplay ?: return@post
+
+            sth.setTextureSize(width, height)
+            vd.resize(width, height, appContext.resources.displayMetrics.densityDpi)
+            minFrameIntervalNs = frameIntervalNs(framerate)
+            checkRefreshRate(framerate)
+            damageDetector?.reset()
+            Log.i(TAG, "Capture format changed to ${width}x$height@$framerate")
+        }
+    }
+
+    // The VirtualDisplay mirrors the screen, so it produces at most one frame per display refresh;
+    // pacing can only take frames away. 60/120 fps need a panel running at that rate.
+    private fun checkRefreshRate(framerate: Int) {
+        val display = appContext.getSystemService(DisplayManager::class.java)?.getDisplay(Display.DEFAULT_DISPLAY) ?: return
+        val refreshRate = display.refreshRate
+        if (framerate > refreshRate + 0.5f) {
+            Log.w(TAG, "Requested $framerate fps but the display refreshes at ${"%.0f".format(refreshRate)} Hz")
+        }
+    }
+
+    private fun frameIntervalNs(framerate: Int): Long {
+        if (framerate <= 0) return 0L
+        val interval = TimeUnit.SECONDS.toNanos(1) / framerate
+        return interval - interval / 8
     }
 
     override fun dispose() {
@@ -131,4 +273,14 @@ class MediaProjectionVideoCapturer(
     }
 
     override fun isScreencast(): Boolean = true
+
+    companion object {
+        private const val TAG = "MediaProjectionCapturer"
+
+        // About a display frame: the skipped frame's readback has completed by then.
+        private const val SETTLE_DELAY_MS = 20L
+
+        // The re-delivered frame, and a real one that may have been queued ahead of it.
+        private const val FORCED_FRAMES = 2
+    }
 }
@@ -0,0 +1,256 @@
+package com.example.whiper
+
+import android.util.Log
+import org.webrtc.CapturerObserver
+import org.webrtc.VideoFrame
+import java.util.Arrays
+import kotlin.math.abs
+
+// Per-stage latency of the video pipeline, matched without tagging frames. The VideoSource aligns
+// capture timestamps onto the rtc clock, so the timestamp VideoEncoder.encode sees is not the one
+// that was delivered. Delivered frames therefore wait in a FIFO and each encode() takes the queued
+// frame closest to its timestamp, skipping the ones the source dropped on the way. From encode()
+// on, frames are keyed by the encoder's timestamp in microseconds, which EncodedImage.captureTimeNs
+// carries back.
+//
+//   capture -> deliver   SurfaceTexture timestamp to CapturerObserver.onFrameCaptured
+//   deliver -> encode    VideoSource and encoder-queue hop to VideoEncoder.encode
+//   encode  -> encoded   MediaCodec, up to VideoEncoder.Callback.onEncodedFrame; packetization
+//                        follows immediately on the native side
+//   capture -> encoded   end to end
+//
+// The interval between captured frames is kept as a fifth stage, so capture jitter shows up as
+// the spread between its p50 and p99. Open frames live in a preallocated ring of long arrays and
+// each stage keeps a rolling window of samples; nothing is allocated per frame.
+//
+// The summary also puts the achieved frame rates (delivered to WebRTC, out of the encoder) next to
+// [requestedFps]; with static-frame skipping on, a still screen lowers them on purpose.
+class PipelineLatencyProbes(
+    private val requestedFps: Int = 0,
+    ringSize: Int = 256,
+    private val windowSize: Int = 512,
+    private val logIntervalFrames: Int = 300
+) {
+
+    enum class Stage(val label: String) {
+        CAPTURE_TO_DELIVER("capture->deliver"),
+        DELIVER_TO_ENCODE("deliver->encode"),
+        ENCODE("encode->encoded"),
+        CAPTURE_TO_ENCODED("capture->encoded"),
+        CAPTURE_INTERVAL("capture interval")
+    }
+
+    data class StageStats(val stage: Stage, val samples: Int, val p50Us: Long, val p95Us: Long, val p99Us: Long)
+
+    private val lock = Any()
+    private val mask: Int
+
+    // Delivered frames the encoder has not taken yet, oldest at queueHead.
+    private val queuedCapture: LongArray
+    private val queuedDelivered: LongArray
+    private var queueHead = 0
+    private var queueSize = 0
+
+    // Frames inside the encoder, keyed by the encoder's timestamp.
+    private val keys: LongArray
+    private val captureAt: LongArray
+    private val deliveredAt: LongArray
+    private val encodeAt: LongArray
+
+    private val stages = Stage.values()
+    private val windows = Array(stages.size) { LongArray(windowSize) }
+    private val windowWrites = LongArray(stages.size)
+    private val scratch = LongArray(windowSize)
+
+    private var lastCaptureNs = 0L
+    private var firstDeliveredNs = 0L
+    private var lastEncodedNs = 0L
+    private var inFlight = 0
+    private var encodedSinceLog = 0
+
+    var deliveredFrames = 0L
+        private set
+    var encodedFrames = 0L
+        private set
+    var encoderDrops = 0L
+        private set
+
+    // Deepest the encoder queue got: frames handed to encode() without output or drop yet.
+    var maxInFlight = 0
+        private set
+
+    init {
+        var capacity = 1
+        while (capacity < ringSize) capacity = capacity shl 1
+        mask = capacity - 1
+        queuedCapture = LongArray(capacity)
+        queuedDelivered = LongArray(capacity)
+        keys = LongArray(capacity)
+        captureAt = LongArray(capacity)
+        deliveredAt = LongArray(capacity)
+        encodeAt = LongArray(capacity)
+    }
+
+    // Wraps the capturer observer so that delivery to WebRTC is stamped.
+    fun observe(observer: CapturerObserver): CapturerObserver = object : CapturerObserver {
+        override fun onCapturerStarted(success: Boolean) = observer.onCapturerStarted(success)
+        override fun onCapturerStopped() = observer.onCapturerStopped()
+        override fun onFrameCaptured(frame: VideoFrame) {
+            onFrameDelivered(frame.timestampNs)
+            observer.onFrameCaptured(frame)
+        }
+    }
+
+    fun onFrameDelivered(captureNs: Long) {
+        val now = System.nanoTime()
+        synchronized(lock) {
+            deliveredFrames++
+            if (firstDeliveredNs == 0L) firstDeliveredNs = now
+            record(Stage.CAPTURE_TO_DELIVER, now - captureNs)
+            if (lastCaptureNs != 0L) record(Stage.CAPTURE_INTERVAL, captureNs - lastCaptureNs)
+            lastCaptureNs = captureNs
+            // A full queue means the encoder side is not running; the oldest frame goes.
+            if (queueSize == queuedCapture.size) pop()
+            val i = (queueHead + queueSize) and mask
+            queuedCapture[i] = captureNs
+            queuedDelivered[i] = now
+            queueSize++
+        }
+    }
+
+    fun onEncodeStart(encoderNs: Long) {
+        val now = System.nanoTime()
+        synchronized(lock) {
+            val slot = claim(keyOf(encoderNs))
+            val i = take(encoderNs)
+            if (i >= 0) {
+                captureAt[slot] = queuedCapture[i]
+                deliveredAt[slot] = queuedDelivered[i]
+                record(Stage.DELIVER_TO_ENCODE, now - queuedDelivered[i])
+            }
+            encodeAt[slot] = now
+            inFlight++
+            if (inFlight > maxInFlight) maxInFlight = inFlight
+        }
+    }
+
+    fun onEncodeDropped(encoderNs: Long) {
+        synchronized(lock) {
+            encoderDrops++
+            close(keyOf(encoderNs))
+        }
+    }
+
+    fun onEncoded(encoderNs: Long) {
+        val now = System.nanoTime()
+        val key = keyOf(encoderNs)
+        var log = false
+        synchronized(lock) {
+            val slot = slotOf(key)
+            val open = keys[slot] == key
+            if (open && encodeAt[slot] != 0L) {
+                record(Stage.ENCODE, now - encodeAt[slot])
+            }
+            // The aligned timestamp stays within a few ms of the capture one when no frame matched.
+            record(Stage.CAPTURE_TO_ENCODED, now - if (open && captureAt[slot] != 0L) captureAt[slot] else encoderNs)
+            close(key)
+            encodedFrames++
+            lastEncodedNs = now
+            if (++encodedSinceLog >= logIntervalFrames) {
+                encodedSinceLog = 0
+                log = true
+            }
+        }
+        if (log) logSummary()
+    }
+
+    fun snapshot(): List<StageStats> = synchronized(lock) {
+        stages.map { stage ->
+            val n = minOf(windowWrites[stage.ordinal], windowSize.toLong()).toInt()
+            System.arraycopy(windows[stage.ordinal], 0, scratch, 0, n)
+            Arrays.sort(scratch, 0, n)
+            StageStats(stage, n, percentileUs(n, 50), percentileUs(n, 95), percentileUs(n, 99))
+        }
+    }
+
+    // Average frame rates since the first delivered frame, as (delivered, encoded).
+    fun achievedFps(): Pair<Double, Double> = synchronized(lock) {
+        val seconds = (lastEncodedNs - firstDeliveredNs) / 1e9
+        if (firstDeliveredNs == 0L || seconds <= 0) 0.0 to 0.0 else deliveredFrames / seconds to encodedFrames / seconds
+    }
+
+    fun logSummary() {
+        val stats = snapshot().joinToString(" | ") {
+            "${it.stage.label} p50=${ms(it.p50Us)} p95=${ms(it.p95Us)} p99=${ms(it.p99Us)}"
+        }
+        val (deliveredFps, encodedFps) = achievedFps()
+        Log.i(
+            TAG,
+            "$stats (ms) | encoded=$encodedFrames encoderDrops=$encoderDrops maxInFlight=$maxInFlight " +
+                "fps requested=$requestedFps delivered=${"%.1f".format(deliveredFps)} encoded=${"%.1f".format(encodedFps)}"
+        )
+    }
+
+    // Takes over the slot of [key]; a frame still open there is evicted.
+    private fun claim(key: Long): Int {
+        val slot = slotOf(key)
+        if (encodeAt[slot] != 0L) inFlight--
+        keys[slot] = key
+        captureAt[slot] = 0L
+        deliveredAt[slot] = 0L
+        encodeAt[slot] = 0L
+        return slot
+    }
+
+    private fun close(key: Long) {
+        val slot = slotOf(key)
+        if (keys[slot] == key) {
+            keys[slot] = 0L
+            if (encodeAt[slot] != 0L) inFlight--
+            encodeAt[slot] = 0L
+        }
+    }
+
+    // Index of the queued frame [encoderNs] belongs to, or -1 if none is queued. Frames ahead of it
+    // that are further from [encoderNs] than the one after them never reached the encoder.
+    private fun take(encoderNs: Long): Int {
+        if (queueSize == 0) return -1
+        while (queueSize > 1 &&
+            abs(queuedCapture[(queueHead + 1) and mask] - encoderNs) <= abs(queuedCapture[queueHead] - encoderNs)
+        ) {
+            pop()
+        }
+        return pop()
+    }
+
+    private fun pop(): Int {
+        val i = queueHead
+        queueHead = (queueHead + 1) and mask
+        queueSize--
+        return i
+    }
+
+    // Timestamps from another clock (e.g. a file source) or frames stuck for ages are not latency.
+    private fun record(stage: Stage, ns: Long) {
+        if (ns < 0 || ns > MAX_VALID_NS) return
+        val i = stage.ordinal
+        windows[i][(windowWrites[i] % windowSize).toInt()] = ns
+        windowWrites[i]++
+    }
+
+    private fun percentileUs(n: Int, p: Int): Long =
+        if (n == 0) 0L else scratch[((n - 1) * p + 50) / 100] / 1000
+
+    private fun keyOf(encoderNs: Long): Long = encoderNs / 1000
+
+    private fun slotOf(key: Long): Int =
+        ((key xor (key ushr 29)) * HASH_MULTIPLIER ushr 32).toInt() and mask
+
+    private fun ms(us: Long): String = "%.1f".format(us / 1000.0)
+
+    companion object {
+        private const val TAG = "PipelineLatency"
+        private const val MAX_VALID_NS = 10_000_000_000L
+        private const val HASH_MULTIPLIER = -0x61c8864680b583ebL
+    }
+}
@@ -0,0 +1,443 @@
+package com.example.whiper
+
+// Lightweight SDP model used for offer/answer munging.
+//
+// The SDP text is split into lines exactly once, payload-type specific attributes
+// (rtpmap / fmtp / rtcp-fb) are indexed per media section, and the whole document is
+// serialized once at the end of a rewrite pipeline. Lines that no rewrite touches are
+// written back verbatim, so unrelated parts of the offer/answer are never reformatted.
+//
+// Deliberately free of android.* so it can be exercised on a plain JVM.
+
+class SdpDocument private constructor(
+    val sessionLines: MutableList<String>,
+    val mediaSections: MutableList<SdpMediaSection>,
+    private val lineSeparator: String,
+    private val trailingSeparator: Boolean
+) {
+
+    fun firstMedia(kind: String): SdpMediaSection? = mediaSections.firstOrNull { it.kind == kind }
+
+    // Session-level value of a=<name>:<value>, falling back to the first media section that carries it.
+    fun attribute(name: String): String? {
+        SdpMediaSection.findAttribute(sessionLines, name)?.let { return it }
+        for (m in mediaSections) {
+            m.attribute(name)?.let { return it }
+        }
+        return null
+    }
+
+    // Replaces every session-level a=<name>:... line with [value]; returns true if one was found.
+    fun replaceSessionAttribute(name: String, value: String): Boolean {
+        val prefix = "a=$name:"
+        var found = false
+        for (i in sessionLines.indices) {
+            if (sessionLines[i].startsWith(prefix)) {
+                sessionLines[i] = prefix + value
+                found = true
+            }
+        }
+        return found
+    }
+
+    fun serialize(): String {
+        var capacity = 0
+        for (l in sessionLines) capacity += l.length + 2
+        for (m in mediaSections) capacity += m.estimatedLength()
+
+        val sb = StringBuilder(capacity)
+        var first = true
+        fun emit(line: String) {
+            if (!first) sb.append(lineSeparator)
+            sb.append(line)
+            first = false
+        }
+        for (l in sessionLines) emit(l)
+        for (m in mediaSections) m.forEachLine(::emit)
+        if (trailingSeparator) sb.append(lineSeparator)
+        return sb.toString()
+    }
+
+    override fun toString(): String = serialize()
+
+    companion object {
+        fun parse(sdp: String): SdpDocument {
+            val separator = if (sdp.contains("\r\n")) "\r\n" else "\n"
+            val trailing = sdp.endsWith(separator)
+
+            val sessionLines = ArrayList<String>(16)
+            val sections = ArrayList<SdpMediaSection>(3)
+            var current: SdpMediaSection? = null
+
+            var start = 0
+            val end = if (trailing) sdp.length - separator.length else sdp.length
+            while (start <= end) {
+                var nl = sdp.indexOf('\n', start)
+                if (nl < 0 || nl > end) nl = end
+                var lineEnd = nl
+                if (lineEnd > start && sdp[lineEnd - 1] == '\r') lineEnd--
+                val line = sdp.substring(start, lineEnd)
+
+                if (line.startsWith("m=")) {
+                    current = SdpMediaSection.fromMLine(line)
+                    sections.add(current)
+                } else if (current != null) {
+                    current.addLine(line)
+                } else {
+                    sessionLines.add(line)
+                }
+                start = nl + 1
+            }
+
+            return SdpDocument(sessionLines, sections, separator, trailing)
+        }
+    }
+}
+
+class SdpMediaSection private constructor(
+    val kind: String,
+    private val mLinePrefix: String,
+    val payloadTypes: MutableList<String>
+) {
+
+    sealed class Line {
+        class Raw(val text: String) : Line()
+
+        class Rtpmap(val pt: String, val encodingName: String, val clockRate: String, val channels: String?, val text: String) : Line()
+
+        class Fmtp(val pt: String, private val rawParams: String?) : Line() {
+            // Parsed lazily: most fmtp lines are never edited and are emitted verbatim.
+            private var parsed: LinkedHashMap<String, String>? = null
+
+            val params: LinkedHashMap<String, String>
+                get() {
+                    var p = parsed
+                    if (p == null) {
+                        p = LinkedHashMap()
+                        rawParams?.split(';')?.forEach { kv ->
+                            val t = kv.trim()
+                            if (t.isEmpty()) return@forEach
+                            val eq = t.indexOf('=')
+                            if (eq < 0) p[t] = "" else p[t.substring(0, eq)] = t.substring(eq + 1)
+                        }
+                        parsed = p
+                    }
+                    return p
+                }
+
+            fun render(): String {
+                val p = parsed ?: return if (rawParams == null) "a=fmtp:$pt" else "a=fmtp:$pt $rawParams"
+                val sb = StringBuilder("a=fmtp:").append(pt).append(' ')
+                var first = true
+                for ((k, v) in p) {
+                    if (!first) sb.append(';')
+                    sb.append(k)
+                    if (v.isNotEmpty()) sb.append('=').append(v)
+                    first = false
+                }
+                return sb.toString()
+            }
+        }
+
+        class RtcpFb(val pt: String, val value: String, val text: String) : Line()
+    }
+
+    private val lines = ArrayList<Line>(32)
+
+    val rtpmaps = LinkedHashMap<String, Line.Rtpmap>()
+    val fmtps = HashMap<String, Line.Fmtp>()
+    val rtcpFbs = HashMap<String, MutableList<Line.RtcpFb>>()
+
+    val attributeLines: List<Line> get() = lines
+
+    fun payloadTypesFor(encodingName: String): List<String> {
+        val out = ArrayList<String>(2)
+        for (pt in payloadTypes) {
+            if (rtpmaps[pt]?.encodingName.equals(encodingName, ignoreCase = true)) out.add(pt)
+        }
+        return out
+    }
+
+    fun attribute(name: String): String? {
+        val prefix = "a=$name:"
+        for (l in lines) {
+            if (l is Line.Raw && l.text.startsWith(prefix)) return l.text.substring(prefix.length)
+        }
+        return null
+    }
+
+    fun replaceAttribute(name: String, value: String): Boolean {
+        val prefix = "a=$name:"
+        var found = false
+        for (i in lines.indices) {
+            val l = lines[i]
+            if (l is Line.Raw && l.text.startsWith(prefix)) {
+                lines[i] = Line.Raw(prefix + value)
+                found = true
+            }
+        }
+        return found
+    }
+
+    // Removes a=<name> and a=<name>:... lines.
+    fun removeAttributes(name: String): Boolean {
+        val flag = "a=$name"
+        return lines.removeAll { it is Line.Raw && it.text.startsWith(flag) && (it.text.length == flag.length || it.text[flag.length] == ':') }
+    }
+
+    fun addAttribute(text: String) {
+        addLine(text)
+    }
+
+    fun hasCodec(encodingName: String): Boolean =
+        rtpmaps.values.any { it.encodingName.equals(encodingName, ignoreCase = true) }
+
+    // Returns the fmtp params for [pt], creating an fmtp line right after its rtpmap if needed.
+    fun fmtpFor(pt: String): LinkedHashMap<String, String> {
+        fmtps[pt]?.let { return it.params }
+        val fmtp = Line.Fmtp(pt, null)
+        val rtpmap = rtpmaps[pt]
+        val at = if (rtpmap != null) lines.indexOf(rtpmap) + 1 else lines.size
+        lines.add(at, fmtp)
+        fmtps[pt] = fmtp
+        return fmtp.params
+    }
+
+    // Keeps only [keep] in the m= line and drops rtpmap/fmtp/rtcp-fb lines of every other payload type.
+    fun retainPayloadTypes(keep: Set<String>) {
+        payloadTypes.retainAll(keep)
+        lines.removeAll { line ->
+            val pt = when (line) {
+                is Line.Rtpmap -> line.pt
+                is Line.Fmtp -> line.pt
+                is Line.RtcpFb -> line.pt
+                is Line.Raw -> return@removeAll false
+            }
+            pt != "*" && pt !in keep
+        }
+        rtpmaps.keys.retainAll(keep)
+        fmtps.keys.retainAll(keep)
+        rtcpFbs.keys.retainAll(keep)
+    }
+
+    // Moves [first] to the front of the m= line format list, preserving relative order otherwise.
+    fun preferPayloadTypes(first: List<String>) {
+        val head = payloadTypes.filter { it in first }
+        val tail = payloadTypes.filter { it !in first }
+        payloadTypes.clear()
+        payloadTypes.addAll(head)
+        payloadTypes.addAll(tail)
+    }
+
+    fun mLine(): String {
+        val sb = StringBuilder(mLinePrefix.length + payloadTypes.size * 4).append(mLinePrefix)
+        for (pt in payloadTypes) sb.append(' ').append(pt)
+        return sb.toString()
+    }
+
+    internal fun addLine(line: String) {
+        val parsed = parseAttribute(line)
+        when (parsed) {
+            is Line.Rtpmap -> if (!rtpmaps.containsKey(parsed.pt)) rtpmaps[parsed.pt] = parsed
+            is Line.Fmtp -> if (!fmtps.containsKey(parsed.pt)) fmtps[parsed.pt] = parsed
+            is Line.RtcpFb -> rtcpFbs.getOrPut(parsed.pt) { ArrayList(4) }.add(parsed)
+            is Line.Raw -> Unit
+        }
+        lines.add(parsed)
+    }
+
+    internal fun forEachLine(emit: (String) -> Unit) {
+        emit(mLine())
+        for (l in lines) {
+            emit(
+                when (l) {
+                    is Line.Raw -> l.text
+                    is Line.Rtpmap -> l.text
+                    is Line.Fmtp -> l.render()
+                    is Line.RtcpFb -> l.text
+                }
+            )
+        }
+    }
+
+    internal fun estimatedLength(): Int = mLinePrefix.length + payloadTypes.size * 4 + lines.size * 32
+
+    companion object {
+        internal fun findAttribute(lines: List<String>, name: String): String? {
+            val prefix = "a=$name:"
+            for (l in lines) {
+                if (l.startsWith(prefix)) return l.substring(prefix.length)
+            }
+            return null
+        }
+
+        internal fun fromMLine(line: String): SdpMediaSection {
+            // m=<media> <port> <proto> <fmt> ...
+            val parts = line.split(' ')
+            if (parts.size < 3) {
+                return SdpMediaSection(line.removePrefix("m="), line, ArrayList())
+            }
+            val kind = parts[0].removePrefix("m=")
+            val prefix = parts[0] + " " + parts[1] + " " + parts[2]
+            val pts = ArrayList<String>(parts.size - 3)
+            for (i in 3 until parts.size) {
+                if (parts[i].isNotEmpty()) pts.add(parts[i])
+            }
+            return SdpMediaSection(kind, prefix, pts)
+        }
+
+        private fun parseAttribute(line: String): Line {
+            return when {
+                line.startsWith("a=rtpmap:") -> parseRtpmap(line)
+                line.startsWith("a=fmtp:") -> {
+                    val sp = line.indexOf(' ', 7)
+                    if (sp < 0) Line.Fmtp(line.substring(7), null)
+                    else Line.Fmtp(line.substring(7, sp), line.substring(sp + 1))
+                }
+                line.startsWith("a=rtcp-fb:") -> {
+                    val sp = line.indexOf(' ', 10)
+                    if (sp < 0) Line.Raw(line)
+                    else Line.RtcpFb(line.substring(10, sp), line.substring(sp + 1), line)
+                }
+                else -> Line.Raw(line)
+            }
+        }
+
+        private fun parseRtpmap(line: String): Line {
+            // a=rtpmap:<pt> <encoding>/<clock>[/<channels>]
+            val sp = line.indexOf(' ', 9)
+            if (sp < 0) return Line.Raw(line)
+            val pt = line.substring(9, sp)
+            val codec = line.substring(sp + 1).trim()
+            val s1 = codec.indexOf('/')
+            if (s1 <= 0) return Line.Raw(line)
+            val s2 = codec.indexOf('/', s1 + 1)
+            val name = codec.substring(0, s1)
+            val clock = if (s2 < 0) codec.substring(s1 + 1) else codec.substring(s1 + 1, s2)
+            val channels = if (s2 < 0) null else codec.substring(s2 + 1)
+            return Line.Rtpmap(pt, name, clock, channels, line)
+        }
+    }
+}
+
+// Where rewrites report what they did. [warn] is for a rewrite that could not do its job, e.g. a
+// codec that has to fall back to whatever the other side negotiates.
+class SdpLog(val info: (String) -> Unit, val warn: (String) -> Unit)
+
+// A single in-place edit of the model. Returns true if the document was changed.
+fun interface SdpRewrite {
+    fun apply(doc: SdpDocument, log: SdpLog): Boolean
+}
+
+// Parses once, runs every rewrite against the same model, serializes once (and only if something changed).
+class SdpRewritePipeline(
+    private val rewrites: List<SdpRewrite>,
+    info: (String) -> Unit = {},
+    warn: (String) -> Unit = info
+) {
+    private val log = SdpLog(info, warn)
+
+    fun rewrite(sdp: String): String {
+        val doc = SdpDocument.parse(sdp)
+        return if (rewrite(doc)) doc.serialize() else sdp
+    }
+
+    fun rewrite(doc: SdpDocument): Boolean {
+        var changed = false
+        for (r in rewrites) {
+            if (r.apply(doc, log)) changed = true
+        }
+        return changed
+    }
+}
+
+object SdpRewrites {
+
+    fun opusMaxAverageBitrate(bps: Int) = SdpRewrite { doc, log ->
+        for (m in doc.mediaSections) {
+            val opus = m.rtpmaps.values.firstOrNull {
+                it.encodingName.equals("opus", ignoreCase = true) && it.clockRate == "48000" && (it.channels == null || it.channels == "2")
+            } ?: continue
+            val params = m.fmtpFor(opus.pt)
+            val stale = params.keys.filter { it.equals("maxaveragebitrate", ignoreCase = true) }
+            for (k in stale) params.remove(k)
+            params["maxaveragebitrate"] = bps.toString()
+            log.info("SDP munged opus pt=${opus.pt} maxaveragebitrate=$bps")
+            return@SdpRewrite true
+        }
+        false
+    }
+
+    fun preferVideoCodec(codec: String) = SdpRewrite { doc, log ->
+        val video = doc.firstMedia("video") ?: return@SdpRewrite false
+        val targetPts = video.payloadTypesFor(codec)
+        if (targetPts.isEmpty()) {
+            log.warn("Preferred codec $codec not present in offer SDP; leaving SDP unchanged")
+            return@SdpRewrite false
+        }
+        video.preferPayloadTypes(targetPts)
+        log.info("SDP munged video codec preferred=$codec pts=${targetPts.joinToString(",")}")
+        true
+    }
+
+    fun restrictVideoCodec(codec: String) = SdpRewrite { doc, log ->
+        val video = doc.firstMedia("video") ?: return@SdpRewrite false
+        val targetPts = video.payloadTypesFor(codec)
+        if (targetPts.isEmpty()) {
+            log.warn("WHIP answer does not include preferred codec $codec; cannot force. Using negotiated codec from server.")
+            return@SdpRewrite false
+        }
+        video.retainPayloadTypes(targetPts.toSet())
+        log.info("SDP munged answer restrict video codec to $codec pts=${targetPts.joinToString(",")}")
+        true
+    }
+
+    // Applies the server's ICE restart sdpfrag (new ice-ufrag/ice-pwd and candidates) to the current remote answer.
+    fun iceRestartAnswer(serverFrag: SdpDocument) = SdpRewrite { doc, log ->
+        val ufrag = serverFrag.attribute("ice-ufrag")
+        val pwd = serverFrag.attribute("ice-pwd")
+        if (ufrag == null || pwd == null) {
+            log.warn("ICE restart sdpfrag has no ice-ufrag/ice-pwd; remote answer unchanged")
+            return@SdpRewrite false
+        }
+
+        val candidatesByMid = LinkedHashMap<String?, MutableList<String>>(2)
+        for (m in serverFrag.mediaSections) {
+            val list = candidatesByMid.getOrPut(m.attribute("mid")) { ArrayList(4) }
+            for (l in m.attributeLines) {
+                if (l is SdpMediaSection.Line.Raw && l.text.startsWith("a=candidate:")) list.add(l.text)
+            }
+        }
+
+        doc.replaceSessionAttribute("ice-ufrag", ufrag)
+        doc.replaceSessionAttribute("ice-pwd", pwd)
+        var count = 0
+        for ((index, m) in doc.mediaSections.withIndex()) {
+            m.replaceAttribute("ice-ufrag", ufrag)
+            m.replaceAttribute("ice-pwd", pwd)
+            m.removeAttributes("candidate")
+            m.removeAttributes("end-of-candidates")
+            // Candidates for an unknown mid go to the first (BUNDLE-tagged) section.
+            val candidates = candidatesByMid[m.attribute("mid")] ?: if (index == 0) candidatesByMid[null] else null
+            candidates?.forEach {
+                m.addAttribute(it)
+                count++
+            }
+        }
+        log.info("SDP munged answer for ICE restart ufrag=$ufrag candidates=$count")
+        true
+    }
+
+    fun describeVideoSection(doc: SdpDocument): String {
+        val video = doc.firstMedia("video") ?: return "no m=video section"
+        val sb = StringBuilder(video.mLine())
+        for (l in video.attributeLines) {
+            when (l) {
+                is SdpMediaSection.Line.Rtpmap -> sb.append(" | ").append(l.text)
+                is SdpMediaSection.Line.Fmtp -> sb.append(" | ").append(l.render())
+                else -> Unit
+            }
+        }
+        return sb.toString()
+    }
+}
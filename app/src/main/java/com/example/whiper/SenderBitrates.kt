@@ -0,0 +1,40 @@
+package com.example.whiper
+
+import org.webrtc.MediaStreamTrack
+import org.webrtc.RtpParameters
+
+// Encoding limits pushed to the RTP senders. Only edits the RtpParameters value object, so it
+// can be exercised on a plain JVM; reading and writing sender.parameters stays in StreamService.
+object SenderBitrates {
+
+    // Returns false if [params] carries no encoding to apply the limits to.
+    fun apply(
+        params: RtpParameters,
+        kind: String,
+        videoBitrateKbps: Int,
+        minVideoBitrateBps: Int,
+        videoFps: Int,
+        audioBitrateKbps: Int
+    ): Boolean {
+        val enc = params.encodings
+        if (enc.isNullOrEmpty()) return false
+
+        when (kind) {
+            MediaStreamTrack.VIDEO_TRACK_KIND -> if (enc.size > 1) {
+                Simulcast.applyLayerCaps(enc, videoBitrateKbps.coerceAtLeast(1) * 1000, minVideoBitrateBps, videoFps.coerceAtLeast(1))
+            } else {
+                enc[0].maxBitrateBps = videoBitrateKbps.coerceAtLeast(1) * 1000
+                // Leave room below the cap: min == max would stop the congestion controller from backing off.
+                enc[0].minBitrateBps = minVideoBitrateBps
+                enc[0].maxFramerate = videoFps.coerceAtLeast(1)
+            }
+
+            MediaStreamTrack.AUDIO_TRACK_KIND -> {
+                val bps = audioBitrateKbps.coerceAtLeast(6) * 1000
+                enc[0].maxBitrateBps = bps
+                enc[0].minBitrateBps = bps
+            }
+        }
+        return true
+    }
+}
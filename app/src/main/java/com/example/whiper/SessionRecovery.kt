@@ -0,0 +1,128 @@
+package com.example.whiper
+
+import android.os.SystemClock
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import org.webrtc.PeerConnection
+
+// Keeps a WHIP session alive across transient ICE failures (Wi-Fi <-> LTE handover etc.).
+//
+// DISCONNECTED is frequently transient, so the first attempt waits one backoff period to let
+// ICE consent freshness recover by itself; FAILED restarts immediately. Attempts are repeated
+// with bounded exponential backoff until ICE reports CONNECTED/COMPLETED again or the deadline
+// passes, at which point [onGiveUp] tears the session down. Capture, VideoSource and the
+// tracks are never touched here, so recovery does not need a new MediaProjection grant.
+class SessionRecovery(
+    private val scope: CoroutineScope,
+    private val deadlineMs: Long,
+    private val onRestart: (attempt: Int) -> Unit,
+    private val onGiveUp: () -> Unit,
+    private val initialBackoffMs: Long = 1_000L,
+    private val maxBackoffMs: Long = 8_000L
+) {
+
+    enum class State { IDLE, CONNECTED, RECOVERING, FAILED }
+
+    // What one restart attempt does with the current WHIP session.
+    enum class Step {
+        // PATCH new ICE credentials to the live resource, keeping the PeerConnection.
+        ICE_RESTART,
+        // The last POST never produced a resource: send the PeerConnection's pending offer again.
+        REPOST_OFFER,
+        // DELETE whatever resource exists and negotiate a fresh PeerConnection.
+        REBUILD
+    }
+
+    @Volatile
+    var state: State = State.IDLE
+        private set
+
+    private var job: Job? = null
+    private var recoveryStartedAtMs = 0L
+
+    fun onIceConnectionChange(ice: PeerConnection.IceConnectionState?) {
+        scope.launch(Dispatchers.Main) { handle(ice) }
+    }
+
+    fun stop() {
+        job?.cancel()
+        job = null
+        state = State.IDLE
+    }
+
+    private fun handle(ice: PeerConnection.IceConnectionState?) {
+        when (ice) {
+            PeerConnection.IceConnectionState.CONNECTED,
+            PeerConnection.IceConnectionState.COMPLETED -> {
+                if (state == State.RECOVERING) {
+                    Log.i(TAG, "Session recovered after ${SystemClock.elapsedRealtime() - recoveryStartedAtMs} ms")
+                }
+                job?.cancel()
+                job = null
+                state = State.CONNECTED
+            }
+
+            PeerConnection.IceConnectionState.DISCONNECTED,
+            PeerConnection.IceConnectionState.FAILED -> {
+                if (state == State.FAILED) return
+                if (state == State.RECOVERING) {
+                    // Already recovering; a FAILED from the restarted transport just waits for the next attempt.
+                    return
+                }
+                startRecovery(immediate = ice == PeerConnection.IceConnectionState.FAILED)
+            }
+
+            else -> Unit
+        }
+    }
+
+    private fun startRecovery(immediate: Boolean) {
+        state = State.RECOVERING
+        recoveryStartedAtMs = SystemClock.elapsedRealtime()
+        Log.w(TAG, "ICE lost; recovering (deadline=${deadlineMs} ms, immediate=$immediate)")
+
+        job = scope.launch(Dispatchers.Main) {
+            var backoff = initialBackoffMs
+            if (!immediate) delay(backoff)
+
+            var attempt = 0
+            while (true) {
+                val remaining = deadlineMs - (SystemClock.elapsedRealtime() - recoveryStartedAtMs)
+                if (remaining <= 0) break
+
+                attempt++
+                Log.i(TAG, "ICE restart attempt #$attempt (remaining=${remaining} ms)")
+                try {
+                    onRestart(attempt)
+                } catch (t: Throwable) {
+                    Log.w(TAG, "ICE restart attempt #$attempt failed", t)
+                }
+
+                delay(backoff.coerceAtMost(remaining))
+                backoff = (backoff * 2).coerceAtMost(maxBackoffMs)
+            }
+
+            Log.e(TAG, "Session not recovered within ${deadlineMs} ms; giving up")
+            state = State.FAILED
+            job = null
+            onGiveUp()
+        }
+    }
+
+    companion object {
+        private const val TAG = "SessionRecovery"
+
+        fun nextStep(answered: Boolean, hasResource: Boolean, patchSupported: Boolean, hasLocalOffer: Boolean): Step =
+            when {
+                answered && hasResource && patchSupported -> Step.ICE_RESTART
+                // An answered session without a resource cannot be restarted; one with a resource
+                // but no applied answer would leave a second resource behind if re-POSTed.
+                !answered && !hasResource && hasLocalOffer -> Step.REPOST_OFFER
+                else -> Step.REBUILD
+            }
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.whiper
+
+import org.webrtc.RtpParameters
+
+// One simulcast encoding of the video sender. [bitrateShare] is the part of the video bitrate
+// budget the layer gets while every layer is active.
+data class SimulcastLayer(
+    val rid: String,
+    val scaleResolutionDownBy: Double,
+    val bitrateShare: Double,
+    val maxFramerate: Int
+)
+
+// Opt-in simulcast: the video transceiver sends quarter, half and full resolution encodings, and
+// the SFU behind the WHIP endpoint forwards whichever one fits each viewer. The user's video
+// bitrate stays the budget for the whole uplink and is split between the layers. libwebrtc writes
+// the matching a=rid and a=simulcast lines into the offer itself, from the send encodings.
+object Simulcast {
+
+    private const val MIN_LAYER_BITRATE_BPS = 30_000
+
+    // Lowest layer first: libwebrtc maps the encodings to simulcast streams in this order.
+    val LAYERS = listOf(
+        SimulcastLayer("q", 4.0, 0.10, 15),
+        SimulcastLayer("h", 2.0, 0.25, Int.MAX_VALUE),
+        SimulcastLayer("f", 1.0, 0.65, Int.MAX_VALUE)
+    )
+
+    fun sendEncodings(): List<RtpParameters.Encoding> =
+        LAYERS.map { RtpParameters.Encoding(it.rid, true, it.scaleResolutionDownBy) }
+
+    // Spreads [totalBitrateBps] over the layers by share. Layers finer than [scaleResolutionDownBy]
+    // (rounded down to the ladder) are switched off, so that a resolution downgrade from ABR drops the
+    // top layers instead of rescaling all of them; the lowest layer always stays on. Encodings
+    // without a known rid are left alone.
+    fun applyLayerCaps(
+        encodings: List<RtpParameters.Encoding>,
+        totalBitrateBps: Int,
+        minBitrateBps: Int,
+        maxFramerate: Int,
+        scaleResolutionDownBy: Double = 1.0
+    ) {
+        val floorScale = LAYERS.filter { it.scaleResolutionDownBy <= scaleResolutionDownBy }
+            .maxOfOrNull { it.scaleResolutionDownBy } ?: 1.0
+        val lowest = LAYERS.first()
+        val active = LAYERS.filter { it === lowest || it.scaleResolutionDownBy >= floorScale }
+        val activeShare = active.sumOf { it.bitrateShare }
+
+        for (e in encodings) {
+            val layer = LAYERS.firstOrNull { it.rid == e.rid } ?: continue
+            val on = layer in active
+            e.active = on
+            if (!on) continue
+            val share = layer.bitrateShare / activeShare
+            val max = (totalBitrateBps * share).toInt().coerceAtLeast(MIN_LAYER_BITRATE_BPS)
+            e.maxBitrateBps = max
+            e.minBitrateBps = (minBitrateBps * share).toInt().coerceAtMost(max)
+            e.maxFramerate = maxFramerate.coerceAtMost(layer.maxFramerate).coerceAtLeast(1)
+            e.scaleResolutionDownBy = layer.scaleResolutionDownBy
+        }
+    }
+}
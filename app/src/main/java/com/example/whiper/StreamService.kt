@@ -1,5 +1,6 @@
 package com.example.whiper
 
+import android.Manifest
 import android.app.Notification
 import android.app.NotificationChannel
 import android.app.NotificationManager
@@ -7,31 +8,40 @@ import android.app.PendingIntent
 import android.app.Service
 import android.content.Context
 import android.content.Intent
+import android.content.pm.PackageManager
 import android.content.pm.ServiceInfo
+import android.graphics.BitmapFactory
 import android.media.AudioAttributes
-import android.media.AudioFormat
+import android.media.AudioManager
 import android.media.AudioPlaybackCaptureConfiguration
-import android.media.AudioRecord
 import android.media.projection.MediaProjection
 import android.media.projection.MediaProjectionManager
+import android.os.Environment
 import android.os.Build
+import android.os.Handler
 import android.os.IBinder
+import android.os.SystemClock
 import android.util.Log
 import androidx.core.app.NotificationCompat
+import androidx.core.content.ContextCompat
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.cancelChildren
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.launch
-import okhttp3.MediaType.Companion.toMediaType
+import kotlinx.coroutines.withContext
 import okhttp3.OkHttpClient
-import okhttp3.Request
-import okhttp3.RequestBody.Companion.toRequestBody
 import org.webrtc.*
 import org.webrtc.audio.AudioDeviceModule
 import org.webrtc.audio.JavaAudioDeviceModule
+import java.io.File
+import java.io.IOException
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
 import java.util.concurrent.Executors
-import java.util.concurrent.atomic.AtomicBoolean
 
 class StreamService : Service() {
 
@@ -39,7 +49,6 @@ class StreamService : Service() {
     private val channelId = "WhipStreamChannel"
 
     private var peerConnectionFactory: PeerConnectionFactory? = null
-    private var peerConnection: PeerConnection? = null
     private var videoCapturer: VideoCapturer? = null
     private var videoSource: VideoSource? = null
     private var videoTrack: VideoTrack? = null
@@ -51,143 +60,56 @@ class StreamService : Service() {
     private var currentVideoBitrateKbps: Int = 2500
     private var currentVideoFps: Int = 30
     private var currentAudioBitrateKbps: Int = 64
+    private var currentMinVideoBitrateKbps: Int = 300
+    private var adaptiveBitrateEnabled: Boolean = true
 
     private var currentVideoCodec: String = "H264"
     private var currentVideoEncoderMode: String = "Auto"
     private var currentVideoCodecStrict: Boolean = true
-
-    private val systemAudioFactoryInvokedOnce = AtomicBoolean(false)
+    private var simulcastEnabled: Boolean = false
+    // What the process-wide PeerConnectionFactory was built for; see initWebRTC.
+    private var factoryVideoCodec: String? = null
+    private var factoryVideoEncoderMode: String? = null
+    // Shown to the user for the session, e.g. a setting it could not honor.
+    private var sessionNotice: String? = null
+    private var encoderProfile: String = EncoderProfiles.DEFAULT
+    private var encoderBitrateMode: String = EncoderProfiles.MODE_PROFILE
+    private var hardwareEncoderFactory: HardwareVideoEncoderFactory? = null
+
+    private var audioRecordFactory: WhipAudioRecordFactory? = null
+    private var audioFilePath: String? = null
+    private var videoFilePath: String? = null
+    private var micGain: Float = 1.0f
+    private var systemAudioGain: Float = 1.0f
+    private val audioLevelMeter = AudioLevelMeter()
+
+    private var recordLocally: Boolean = false
+    private var skipStaticFrames: Boolean = false
+    @Volatile
+    private var recorder: EncodedStreamRecorder? = null
+    @Volatile
+    private var latencyProbes: PipelineLatencyProbes? = null
+    private var goLive: GoLiveTimer? = null
+
+    // GPU overlays on the capture texture; null when none are configured.
+    private var overlayCamera: Boolean = false
+    private var overlayText: String? = null
+    private var overlayImagePath: String? = null
+    private var compositor: VideoCompositor? = null
+    private var cameraOverlay: CameraOverlay? = null
+    private var captureHandler: Handler? = null
 
     private val serviceScope = CoroutineScope(Dispatchers.IO + Job())
-    private val httpClient = OkHttpClient()
+    private val httpClient: OkHttpClient = WebRtcWarmup.httpClient
+    private var reconnectDeadlineSec: Int = 30
+
+    // One PeerConnection per WHIP endpoint; the capturer, VideoSource and tracks are shared and outlive them.
+    private var fanout: WhipFanout? = null
+    private var extraDestinations: List<DestinationConfig> = emptyList()
     
     // Prevent double stop
     private var isStopping = false
 
-    private fun applySenderBitrates(videoBitrateKbps: Int, videoFps: Int, audioBitrateKbps: Int) {
-        val pc = peerConnection ?: return
-
-        fun applyToSender(sender: RtpSender, kind: String) {
-            try {
-                val p = sender.parameters
-                val enc = p.encodings
-                if (enc.isNullOrEmpty()) {
-                    Log.w("StreamService", "applySenderBitrates: $kind encodings is empty; cannot apply")
-                    return
-                }
-
-                when (kind) {
-                    MediaStreamTrack.VIDEO_TRACK_KIND -> {
-                        val bps = (videoBitrateKbps.coerceAtLeast(1)) * 1000
-                        enc[0].maxBitrateBps = bps
-                        enc[0].minBitrateBps = bps
-                        enc[0].maxFramerate = videoFps.coerceAtLeast(1)
-                    }
-
-                    MediaStreamTrack.AUDIO_TRACK_KIND -> {
-                        val bps = (audioBitrateKbps.coerceAtLeast(6)) * 1000
-                        enc[0].maxBitrateBps = bps
-                        enc[0].minBitrateBps = bps
-                    }
-                }
-
-                sender.parameters = p
-                val a = sender.parameters.encodings?.firstOrNull()
-                Log.i(
-                    "StreamService",
-                    "applySenderBitrates: kind=$kind maxBitrateBps=${a?.maxBitrateBps} minBitrateBps=${a?.minBitrateBps} maxFramerate=${a?.maxFramerate}"
-                )
-            } catch (t: Throwable) {
-                Log.w("StreamService", "applySenderBitrates: failed for $kind", t)
-            }
-        }
-
-        pc.senders.forEach { sender ->
-            val kind = sender.track()?.kind() ?: return@forEach
-            if (kind == MediaStreamTrack.VIDEO_TRACK_KIND || kind == MediaStreamTrack.AUDIO_TRACK_KIND) {
-                applyToSender(sender, kind)
-            }
-        }
-    }
-
-    private fun mungeOpusMaxAverageBitrate(sdp: String, audioBitrateKbps: Int): String {
-        val bps = (audioBitrateKbps.coerceAtLeast(6)) * 1000
-        val lines = sdp.split("\r\n").toMutableList()
-
-        // Find opus payload type from rtpmap.
-        val rtpmapRegex = Regex("^a=rtpmap:(\\d+) opus/48000(?:/2)?$", RegexOption.IGNORE_CASE)
-        var opusPt: String? = null
-        for (l in lines) {
-            val m = rtpmapRegex.find(l.trim())
-            if (m != null) {
-                opusPt = m.groupValues[1]
-                break
-            }
-        }
-        if (opusPt == null) return sdp
-
-        val fmtpPrefix = "a=fmtp:$opusPt "
-        val fmtpIndex = lines.indexOfFirst { it.startsWith(fmtpPrefix) }
-        if (fmtpIndex >= 0) {
-            val cur = lines[fmtpIndex]
-            val params = cur.removePrefix(fmtpPrefix)
-            val kvs = params.split(";").map { it.trim() }.filter { it.isNotEmpty() }.toMutableList()
-            val filtered = kvs.filterNot { it.startsWith("maxaveragebitrate=", ignoreCase = true) }.toMutableList()
-            filtered.add("maxaveragebitrate=$bps")
-            lines[fmtpIndex] = fmtpPrefix + filtered.joinToString(";")
-        } else {
-            // Insert fmtp right after opus rtpmap line.
-            val rtpmapIndex = lines.indexOfFirst { it.trim().equals("a=rtpmap:$opusPt opus/48000", ignoreCase = true) || it.trim().equals("a=rtpmap:$opusPt opus/48000/2", ignoreCase = true) }
-            val insertAt = if (rtpmapIndex >= 0) rtpmapIndex + 1 else lines.size
-            lines.add(insertAt, fmtpPrefix + "maxaveragebitrate=$bps")
-        }
-
-        Log.i("StreamService", "SDP munged opus pt=$opusPt maxaveragebitrate=$bps")
-        return lines.joinToString("\r\n")
-    }
-
-    private fun mungePreferVideoCodec(sdp: String, preferredCodec: String): String {
-        val target = normalizePreferredVideoCodecOrNull(preferredCodec) ?: return sdp
-
-        val lines = sdp.split("\r\n").toMutableList()
-
-        // Find video m-section range.
-        val mVideo = lines.indexOfFirst { it.startsWith("m=video ") }
-        if (mVideo < 0) return sdp
-        val mNext = (mVideo + 1 until lines.size).firstOrNull { lines[it].startsWith("m=") } ?: lines.size
-
-        // Collect payload types for target codec within the video section.
-        val ptRegex = Regex("^a=rtpmap:(\\d+)\\s+([A-Za-z0-9]+)/", RegexOption.IGNORE_CASE)
-        val targetPts = mutableListOf<String>()
-        for (i in mVideo until mNext) {
-            val m = ptRegex.find(lines[i]) ?: continue
-            val pt = m.groupValues[1]
-            val codec = m.groupValues[2].uppercase()
-            if (codec == target) {
-                targetPts.add(pt)
-            }
-        }
-        if (targetPts.isEmpty()) {
-            Log.w("StreamService", "Preferred codec $target not present in offer SDP; leaving SDP unchanged")
-            return sdp
-        }
-
-        val parts = lines[mVideo].trim().split(" ")
-        if (parts.size < 4) return sdp
-        val header = parts.take(3)
-        val pts = parts.drop(3)
-
-        val reordered = buildList {
-            addAll(header)
-            addAll(pts.filter { it in targetPts })
-            addAll(pts.filterNot { it in targetPts })
-        }
-        lines[mVideo] = reordered.joinToString(" ")
-
-        Log.i("StreamService", "SDP munged video codec preferred=$target pts=${targetPts.joinToString(",")}")
-        return lines.joinToString("\r\n")
-    }
-
     private fun normalizePreferredVideoCodecOrNull(preferredCodec: String): String? {
         val normalized = preferredCodec.trim().uppercase()
         return when (normalized) {
@@ -234,82 +156,6 @@ class StreamService : Service() {
         }
     }
 
-    private fun logSdpVideoSection(tag: String, sdp: String) {
-        try {
-            val lines = sdp.split("\r\n")
-            val mVideo = lines.indexOfFirst { it.startsWith("m=video ") }
-            if (mVideo < 0) {
-                Log.i("StreamService", "$tag: no m=video section")
-                return
-            }
-            val mNext = (mVideo + 1 until lines.size).firstOrNull { lines[it].startsWith("m=") } ?: lines.size
-            val snippet = lines.subList(mVideo, mNext)
-                .filter { it.startsWith("m=video") || it.startsWith("a=rtpmap") || it.startsWith("a=fmtp") }
-                .joinToString(" | ")
-            Log.i("StreamService", "$tag: $snippet")
-        } catch (t: Throwable) {
-            Log.w("StreamService", "logSdpVideoSection failed", t)
-        }
-    }
-
-    private fun mungeRestrictVideoCodecIfPresent(sdp: String, preferredCodec: String): String {
-        val normalized = preferredCodec.trim().uppercase()
-        val target = when (normalized) {
-            "H265", "HEVC" -> "H264"
-            "H264", "VP8", "VP9" -> normalized
-            else -> "H264"
-        }
-
-        val lines = sdp.split("\r\n").toMutableList()
-        val mVideo = lines.indexOfFirst { it.startsWith("m=video ") }
-        if (mVideo < 0) return sdp
-        val mNext = (mVideo + 1 until lines.size).firstOrNull { lines[it].startsWith("m=") } ?: lines.size
-
-        val ptRegex = Regex("^a=rtpmap:(\\d+)\\s+([A-Za-z0-9]+)/", RegexOption.IGNORE_CASE)
-        val ptToCodec = mutableMapOf<String, String>()
-        for (i in mVideo until mNext) {
-            val m = ptRegex.find(lines[i]) ?: continue
-            ptToCodec[m.groupValues[1]] = m.groupValues[2].uppercase()
-        }
-
-        val mParts = lines[mVideo].trim().split(" ")
-        if (mParts.size < 4) return sdp
-        val header = mParts.take(3)
-        val pts = mParts.drop(3)
-
-        val targetPts = pts.filter { ptToCodec[it] == target }
-        if (targetPts.isEmpty()) {
-            Log.w("StreamService", "WHIP answer does not include preferred codec $target; cannot force. Using negotiated codec from server.")
-            return sdp
-        }
-
-        // Keep only preferred payload types in m=video line.
-        lines[mVideo] = (header + targetPts).joinToString(" ")
-        Log.i("StreamService", "SDP munged answer restrict video codec to $target pts=${targetPts.joinToString(",")}")
-
-        // Remove rtpmap/fmtp/rtcp-fb lines for payload types not in targetPts within video section.
-        val keepPts = targetPts.toSet()
-        val attrPtRegex = Regex("^a=(rtpmap|fmtp|rtcp-fb):(\\d+)\\b", RegexOption.IGNORE_CASE)
-        val newSection = mutableListOf<String>()
-        for (i in mVideo until mNext) {
-            val l = lines[i]
-            val m = attrPtRegex.find(l)
-            if (m != null) {
-                val pt = m.groupValues[2]
-                if (!keepPts.contains(pt)) {
-                    continue
-                }
-            }
-            newSection.add(l)
-        }
-        for (i in 0 until (mNext - mVideo)) {
-            lines.removeAt(mVideo)
-        }
-        lines.addAll(mVideo, newSection)
-
-        return lines.joinToString("\r\n")
-    }
-
     override fun onBind(intent: Intent?): IBinder? = null
 
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
@@ -321,6 +167,7 @@ class StreamService : Service() {
             return START_NOT_STICKY
         }
 
+        overlayCamera = intent.getBooleanExtra("overlayCamera", false)
         startForegroundNotification()
 
         val resultCode = intent.getIntExtra("code", 0)
@@ -332,7 +179,7 @@ class StreamService : Service() {
         }
         val url = intent.getStringExtra("url")
         val token = intent.getStringExtra("token")
-        val audioSrc = intent.getStringExtra("audioSource") ?: "mic"
+        var audioSrc = intent.getStringExtra("audioSource") ?: "mic"
         val audioBitrateKbps = intent.getIntExtra("audioBitrateKbps", 64)
 
         val videoCodec = intent.getStringExtra("videoCodec") ?: "H264"
@@ -342,14 +189,54 @@ class StreamService : Service() {
         val videoHeight = intent.getIntExtra("videoHeight", 720)
         val videoFps = intent.getIntExtra("videoFps", 30)
         val videoBitrateKbps = intent.getIntExtra("videoBitrateKbps", 2500)
+        currentMinVideoBitrateKbps = intent.getIntExtra("minVideoBitrateKbps", 300)
+        adaptiveBitrateEnabled = intent.getBooleanExtra("adaptiveBitrate", true)
+        reconnectDeadlineSec = intent.getIntExtra("reconnectDeadlineSec", 30)
+        micGain = intent.getFloatExtra("micGain", 1.0f)
+        systemAudioGain = intent.getFloatExtra("systemAudioGain", 1.0f)
+        audioFilePath = intent.getStringExtra("audioFile")
+        if (audioSrc == "file" && ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            // WavFileAudioRecord is an AudioRecord and opens a (never started) microphone input.
+            Log.e("StreamService", "Audio source 'file' needs the RECORD_AUDIO permission; streaming without audio.")
+            audioSrc = "none"
+        }
+        videoFilePath = intent.getStringExtra("videoFile")
+        recordLocally = intent.getBooleanExtra("recordLocal", false)
+        skipStaticFrames = intent.getBooleanExtra("skipStaticFrames", false)
+        simulcastEnabled = intent.getBooleanExtra("simulcast", false)
+        encoderProfile = intent.getStringExtra("encoderProfile") ?: EncoderProfiles.DEFAULT
+        encoderBitrateMode = intent.getStringExtra("encoderBitrateMode") ?: EncoderProfiles.MODE_PROFILE
+        overlayText = intent.getStringExtra("overlayText")?.takeIf { it.isNotBlank() }
+        overlayImagePath = intent.getStringExtra("overlayImage")
 
         // Persist for later (we don't have an Activity intent field in Service)
         currentVideoBitrateKbps = videoBitrateKbps
         currentVideoFps = videoFps
         currentAudioBitrateKbps = audioBitrateKbps
+        extraDestinations = extraDestinationsFrom(intent, audioBitrateKbps)
 
         currentVideoCodec = videoCodec
         currentVideoEncoderMode = videoEncoderMode
+        sessionNotice = null
+        if (simulcastEnabled && peerConnectionFactory != null &&
+            (factoryVideoCodec != "VP8" || factoryVideoEncoderMode != "Software")
+        ) {
+            // The factory lives as long as the process (see stopStreaming), so its encoders cannot
+            // become libvpx's now; sending the layers through them would encode the top one only.
+            simulcastEnabled = false
+            sessionNotice = "Simulcast needs software VP8, but this session reuses the $factoryVideoCodec " +
+                "($factoryVideoEncoderMode) encoder setup; streaming a single layer. Restart the app to use simulcast."
+            Log.w("StreamService", sessionNotice!!)
+        }
+        if (simulcastEnabled) {
+            // Only libvpx's VP8 encoder produces simulcast streams in this WebRTC build; the Java
+            // MediaCodec encoders would encode the top layer alone.
+            if (videoCodec != "VP8" || videoEncoderMode != "Software") {
+                Log.w("StreamService", "Simulcast requires software VP8; ignoring codec=$videoCodec encoderMode=$videoEncoderMode")
+            }
+            currentVideoCodec = "VP8"
+            currentVideoEncoderMode = "Software"
+        }
 
         if (resultCode == 0 || resultData == null || url.isNullOrEmpty()) {
             Log.e("StreamService", "Invalid intent extras")
@@ -359,6 +246,7 @@ class StreamService : Service() {
 
         // Reset stopping flag for new session
         isStopping = false
+        goLive = GoLiveTimer(intent.getLongExtra("startRequestedAtMs", SystemClock.elapsedRealtime())).also { it.mark("service") }
         startStreaming(
             resultCode,
             resultData,
@@ -396,7 +284,13 @@ class StreamService : Service() {
             .setOngoing(true)
             .build()
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+        if (overlayCamera && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            startForeground(
+                notificationId,
+                notification,
+                ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PROJECTION or ServiceInfo.FOREGROUND_SERVICE_TYPE_CAMERA
+            )
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             startForeground(notificationId, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PROJECTION)
         } else {
             startForeground(notificationId, notification)
@@ -416,6 +310,16 @@ class StreamService : Service() {
         audioBitrateKbps: Int
     ) {
         serviceScope.launch(Dispatchers.Main) {
+            _error.value = sessionNotice
+
+            // A Y4M file replaces the screen as a repeatable load source for benchmarking.
+            val fileCapturer = videoFilePath?.let { path ->
+                openFileCapturer(path) ?: run {
+                    stopSelf()
+                    return@launch
+                }
+            }
+
             // Create ONE MediaProjection and share it for BOTH:
             // - Video capture (via our custom MediaProjectionVideoCapturer)
             // - System audio (AudioPlaybackCapture)
@@ -424,6 +328,9 @@ class StreamService : Service() {
             sharedMediaProjection = projectionManager.getMediaProjection(resultCode, resultData)
 
             initWebRTC(audioSrc, resultCode, resultData)
+            configureHardwareEncoders(videoFps)
+            goLive?.mark("factory")
+            startLocalRecording(audioSrc)
 
             // Video setup
             val mpCallback = object : MediaProjection.Callback() {
@@ -443,15 +350,22 @@ class StreamService : Service() {
                 return@launch
             }
 
-            videoCapturer = MediaProjectionVideoCapturer(mp, applicationContext)
+            // A camera overlay moves on its own, so static screen frames are not skipped.
+            videoCapturer = fileCapturer
+                ?: MediaProjectionVideoCapturer(mp, applicationContext, skipStaticFrames = skipStaticFrames && !overlayCamera)
             
             val surfaceTextureHelper = SurfaceTextureHelper.create("CaptureThread", eglBase!!.eglBaseContext)
             videoSource = peerConnectionFactory!!.createVideoSource(videoCapturer!!.isScreencast)
-            videoCapturer!!.initialize(surfaceTextureHelper, applicationContext, videoSource!!.capturerObserver)
+            val probes = PipelineLatencyProbes(requestedFps = videoFps)
+            latencyProbes = probes
+            videoCapturer!!.initialize(surfaceTextureHelper, applicationContext, probes.observe(videoSource!!.capturerObserver))
+            captureHandler = surfaceTextureHelper.handler
+            createCompositor()?.let { videoSource!!.setVideoProcessor(it) }
             
             videoCapturer!!.startCapture(videoWidth, videoHeight, videoFps)
             
             videoTrack = peerConnectionFactory!!.createVideoTrack("video_track", videoSource)
+            videoTrack!!.addSink(LocalPreview.sink)
 
             // Audio setup
             if (audioSrc == "none") {
@@ -463,28 +377,124 @@ class StreamService : Service() {
                 audioTrack = peerConnectionFactory!!.createAudioTrack("audio_track", audioSource)
             }
 
-            createPeerConnectionAndOffer(url, token, videoBitrateKbps, audioBitrateKbps)
+            val media = SharedMedia(
+                factory = peerConnectionFactory!!,
+                videoTrack = videoTrack,
+                audioTrack = audioTrack,
+                videoFps = videoFps,
+                videoCodec = normalizePreferredVideoCodecOrNull(currentVideoCodec),
+                videoCodecStrict = currentVideoCodecStrict,
+                simulcast = simulcastEnabled
+            )
+            val f = WhipFanout(media, httpClient, serviceScope, onAllFailed = {
+                stopStreaming()
+                stopSelf()
+            })
+            fanout = f
+            f.add(destinationConfig("primary", url, token, videoBitrateKbps, audioBitrateKbps), goLive)
+            extraDestinations.forEach { f.add(it) }
         }
     }
 
-    private fun initWebRTC(audioSrc: String, resultCode: Int, resultData: Intent) {
-        if (peerConnectionFactory != null) return
+    // Opening the file indexes every frame header, so it is done on the IO dispatcher.
+    private suspend fun openFileCapturer(path: String): FileVideoCapturer? {
+        Log.i("StreamService", "Video source: $path")
+        return try {
+            withContext(Dispatchers.IO) { FileVideoCapturer(path) }
+        } catch (e: IOException) {
+            reportError("Cannot open video file $path: ${e.message}", e)
+            null
+        } catch (e: RuntimeException) {
+            // Malformed Y4M header (NumberFormatException) or an unsupported layout.
+            reportError("Cannot read video file $path: ${e.message}", e)
+            null
+        }
+    }
+
+    private fun reportError(message: String, e: Throwable) {
+        Log.e("StreamService", message, e)
+        _error.value = message
+    }
 
-        PeerConnectionFactory.initialize(
-            PeerConnectionFactory.InitializationOptions.builder(applicationContext)
-                .setEnableInternalTracer(true)
-                .createInitializationOptions()
+    private fun destinationConfig(name: String, url: String, token: String?, videoBitrateKbps: Int, audioBitrateKbps: Int) =
+        DestinationConfig(
+            name = name,
+            url = url,
+            token = token,
+            videoBitrateKbps = videoBitrateKbps,
+            minVideoBitrateKbps = currentMinVideoBitrateKbps,
+            audioBitrateKbps = audioBitrateKbps,
+            adaptiveBitrate = adaptiveBitrateEnabled,
+            reconnectDeadlineSec = reconnectDeadlineSec
         )
 
-        eglBase = EglBase.create()
+    // Further WHIP endpoints from MainActivity: parallel arrays of URL, token and video bitrate.
+    private fun extraDestinationsFrom(intent: Intent, audioBitrateKbps: Int): List<DestinationConfig> {
+        val urls = intent.getStringArrayExtra("extraUrls") ?: return emptyList()
+        val tokens = intent.getStringArrayExtra("extraTokens")
+        val bitrates = intent.getIntArrayExtra("extraVideoBitrateKbps")
+        return urls.indices.mapNotNull { i ->
+            val extraUrl = urls[i].trim()
+            if (extraUrl.isEmpty()) return@mapNotNull null
+            val bitrate = bitrates?.getOrNull(i)?.takeIf { it > 0 } ?: currentVideoBitrateKbps
+            destinationConfig("extra${i + 1}", extraUrl, tokens?.getOrNull(i)?.ifBlank { null }, bitrate, audioBitrateKbps)
+        }
+    }
+
+    private fun createCompositor(): VideoCompositor? {
+        val c = VideoCompositor()
+        overlayImagePath?.let { path ->
+            val bitmap = BitmapFactory.decodeFile(path)
+            if (bitmap != null) {
+                c.layers.add(BitmapOverlay(bitmap, OverlayPlacement(0.03f, 0.04f, 0.12f)))
+            } else {
+                Log.w("StreamService", "Overlay image $path could not be decoded")
+            }
+        }
+        overlayText?.let { c.layers.add(TextOverlay(it, OverlayPlacement(0.03f, 0.88f))) }
+        if (overlayCamera) {
+            val camera = CameraOverlay(
+                applicationContext,
+                eglBase!!.eglBaseContext,
+                OverlayPlacement(0.73f, 0.04f, 0.24f),
+                requestFrame = { (videoCapturer as? MediaProjectionVideoCapturer)?.requestFrame() }
+            )
+            if (camera.start()) {
+                cameraOverlay = camera
+                c.layers.add(camera)
+            }
+        }
+        if (c.layers.isEmpty()) return null
+        Log.i("StreamService", "Compositing ${c.layers.size} overlay layers")
+        compositor = c
+        return c
+    }
+
+    private suspend fun initWebRTC(audioSrc: String, resultCode: Int, resultData: Intent) {
+        if (peerConnectionFactory != null) return
+
+        // Native library, shared EGL context and codec capabilities normally come ready from MainActivity's warm-up.
+        eglBase = WebRtcWarmup.awaitEglBase(applicationContext)
+        val capabilities = WebRtcWarmup.awaitCapabilities(applicationContext)
         
         val options = PeerConnectionFactory.Options()
 
         val encoderMode = currentVideoEncoderMode
+        // The hardware encoders are Java, so the local recording and the latency probes can tap them.
+        val hardwareFactory = HardwareVideoEncoderFactory(eglBase!!.eglBaseContext, true, true)
+        hardwareEncoderFactory = hardwareFactory
+        val tappedHardwareFactory = TappedVideoEncoderFactory(
+            CachedCodecListEncoderFactory(
+                hardwareFactory,
+                capabilities.hardwareCodecs
+            ),
+            { recorder },
+            { latencyProbes }
+        )
         val baseVideoEncoderFactory: VideoEncoderFactory = when (encoderMode) {
-            "Hardware" -> HardwareVideoEncoderFactory(eglBase!!.eglBaseContext, true, true)
+            "Hardware" -> tappedHardwareFactory
             "Software" -> SoftwareVideoEncoderFactory()
-            else -> DefaultVideoEncoderFactory(eglBase!!.eglBaseContext, true, true)
+            else -> DefaultVideoEncoderFactory(tappedHardwareFactory)
         }
 
         val baseVideoDecoderFactory: VideoDecoderFactory = when (encoderMode) {
@@ -523,103 +533,45 @@ class StreamService : Service() {
         }
 
         peerConnectionFactory = builder.createPeerConnectionFactory()
+        factoryVideoCodec = currentVideoCodec
+        factoryVideoEncoderMode = encoderMode
+    }
+
+    // The factory outlives a session, so the tuning and the frame rate cap are set again for every
+    // start; they apply to the encoders created for this session's PeerConnections. Above 30 fps the
+    // encoder only lifts its cap at sizes the codec supports the rate for.
+    private fun configureHardwareEncoders(videoFps: Int) {
+        val tuning = EncoderProfiles.tuning(encoderProfile, encoderBitrateMode, videoFps)
+        hardwareEncoderFactory?.setEncoderTuning(tuning)
+        hardwareEncoderFactory?.setMaxFramerate(videoFps)
+        Log.i("StreamService", "Encoder tuning: ${tuning ?: "stock CBR"} maxFps=$videoFps (encoderMode=$currentVideoEncoderMode)")
+        if (tuning?.bitrateMode == EncoderTuning.BITRATE_MODE_CQ && adaptiveBitrateEnabled) {
+            Log.w("StreamService", "CQ ignores the target bitrate; adaptive bitrate will have no effect on the hardware encoder")
+        }
     }
 
     private fun createAudioDeviceModuleOrNull(audioSrc: String, resultCode: Int, resultData: Intent): AudioDeviceModule? {
         return try {
-            val builder = JavaAudioDeviceModule.builder(applicationContext)
+            val audioManager = getSystemService(Context.AUDIO_SERVICE) as AudioManager
+            // Pin the input rate so that the prewarmed AudioRecord matches what WebRTC asks for.
+            val inputSampleRate = audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE)?.toIntOrNull() ?: 48000
 
-            val effectiveAudioSrc = when (audioSrc) {
-                "mix" -> {
-                    Log.w("StreamService", "Audio mode 'mix' selected. True mixing is not implemented yet; using system audio on Android 10+, otherwise falling back to mic.")
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) "system" else "mic"
+            val builder = JavaAudioDeviceModule.builder(applicationContext)
+                .setInputSampleRate(inputSampleRate)
+                .setDirectSamplesReadyCallback { samples, audioFormat, channelCount, sampleRate, captureTimeNs ->
+                    audioLevelMeter.onWebRtcAudioRecordSamplesReady(samples, audioFormat, channelCount, sampleRate, captureTimeNs)
+                    recorder?.onWebRtcAudioRecordSamplesReady(samples, audioFormat, channelCount, sampleRate, captureTimeNs)
                 }
-                else -> audioSrc
-            }
 
-            Log.i("StreamService", "Requested audioSrc=$audioSrc, effectiveAudioSrc=$effectiveAudioSrc")
-
-            if (effectiveAudioSrc == "system") {
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
-                    Log.w("StreamService", "System audio requested but Android < 10. Falling back to microphone.")
-                } else {
-                    val mp = sharedMediaProjection
-                    if (mp == null) {
-                        Log.w("StreamService", "Shared MediaProjection is null; falling back to microphone.")
-                    } else {
-                        val config = AudioPlaybackCaptureConfiguration.Builder(mp)
-                            .addMatchingUsage(AudioAttributes.USAGE_MEDIA)
-                            .addMatchingUsage(AudioAttributes.USAGE_GAME)
-                            .build()
-
-                        try {
-                            val audioRecordFactoryClass = Class.forName("org.webrtc.audio.JavaAudioDeviceModule\$AudioRecordFactory")
-                            val setFactoryMethod = builder.javaClass.methods.firstOrNull {
-                                it.name == "setAudioRecordFactory" && it.parameterTypes.size == 1
-                            }
-
-                            Log.i(
-                                "StreamService",
-                                "JavaAudioDeviceModule.Builder class=${builder.javaClass.name}, hasSetAudioRecordFactory=${setFactoryMethod != null}"
-                            )
-
-                            if (setFactoryMethod == null) {
-                                Log.w(
-                                    "StreamService",
-                                    "This google-webrtc AAR does not expose JavaAudioDeviceModule.Builder.setAudioRecordFactory; system audio cannot be injected."
-                                )
-                            } else {
-                                val factoryProxy = java.lang.reflect.Proxy.newProxyInstance(
-                                    audioRecordFactoryClass.classLoader,
-                                    arrayOf(audioRecordFactoryClass)
-                                ) { _, method, args ->
-                                    if (method.name == "createAudioRecord" && args != null && args.size >= 3) {
-                                        val sampleRate = args[0] as Int
-                                        val channelConfig = args[1] as Int
-                                        val audioFormat = args[2] as Int
-
-                                        if (systemAudioFactoryInvokedOnce.compareAndSet(false, true)) {
-                                            Log.i(
-                                                "StreamService",
-                                                "AudioRecordFactory.createAudioRecord invoked. sampleRate=$sampleRate channelConfig=$channelConfig audioFormat=$audioFormat argsSize=${args.size}"
-                                            )
-                                        }
-
-                                        val bufferSizeInBytes = if (args.size >= 4) {
-                                            args[3] as Int
-                                        } else {
-                                            AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat)
-                                        }
-
-                                        val format = AudioFormat.Builder()
-                                            .setEncoding(audioFormat)
-                                            .setSampleRate(sampleRate)
-                                            .setChannelMask(channelConfig)
-                                            .build()
-
-                                        val minBuffer = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat)
-                                        AudioRecord.Builder()
-                                            .setAudioFormat(format)
-                                            .setBufferSizeInBytes(bufferSizeInBytes.coerceAtLeast(minBuffer))
-                                            .setAudioPlaybackCaptureConfig(config)
-                                            .build()
-                                    } else {
-                                        null
-                                    }
-                                }
-
-                                setFactoryMethod.invoke(builder, factoryProxy)
-                                Log.i("StreamService", "System audio AudioRecordFactory injected via reflection")
-                            }
-                        } catch (t: Throwable) {
-                            Log.w(
-                                "StreamService",
-                                "Failed to inject system audio AudioRecordFactory. Falling back to microphone.",
-                                t
-                            )
-                        }
-                    }
-                }
+            val captureSource = audioCaptureSourceFor(audioSrc)
+            Log.i("StreamService", "Requested audioSrc=$audioSrc, capture source=$captureSource")
+
+            val factory = WhipAudioRecordFactory(captureSource)
+            audioRecordFactory = factory
+            builder.setAudioRecordFactory(factory)
+            // WebRtcAudioRecord only consults the factory on Android 6+.
+            if (audioSrc != "none" && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                serviceScope.launch { factory.prewarm(inputSampleRate, 1) }
             }
 
             builder.createAudioDeviceModule()
@@ -629,163 +581,49 @@ class StreamService : Service() {
         }
     }
 
-    private fun createPeerConnectionAndOffer(whipUrl: String, token: String?, videoBitrateKbps: Int, audioBitrateKbps: Int) {
-        val rtcConfig = PeerConnection.RTCConfiguration(emptyList())
-        rtcConfig.sdpSemantics = PeerConnection.SdpSemantics.UNIFIED_PLAN
-        
-        peerConnection = peerConnectionFactory!!.createPeerConnection(rtcConfig, object : PeerConnection.Observer {
-            override fun onSignalingChange(state: PeerConnection.SignalingState?) {}
-            override fun onIceConnectionChange(state: PeerConnection.IceConnectionState?) {
-                Log.d("StreamService", "ICE State: $state")
-                if (state == PeerConnection.IceConnectionState.DISCONNECTED || state == PeerConnection.IceConnectionState.FAILED) {
-                    stopStreaming()
-                    stopSelf()
-                }
-            }
-            override fun onIceConnectionReceivingChange(b: Boolean) {}
-            override fun onIceGatheringChange(state: PeerConnection.IceGatheringState?) {}
-            override fun onIceCandidate(candidate: IceCandidate?) {}
-            override fun onIceCandidatesRemoved(candidates: Array<out IceCandidate>?) {}
-            override fun onAddStream(stream: MediaStream?) {}
-            override fun onRemoveStream(stream: MediaStream?) {}
-            override fun onDataChannel(channel: DataChannel?) {}
-            override fun onRenegotiationNeeded() {}
-            override fun onAddTrack(receiver: RtpReceiver?, streams: Array<out MediaStream>?) {}
-        })
-
-        if (peerConnection == null) return
-
-        // Add Tracks (Send Only)
-        val videoTransceiver = peerConnection!!.addTransceiver(
-            videoTrack,
-            RtpTransceiver.RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_ONLY)
-        )
-        val audioTrackLocal = audioTrack
-        val audioTransceiver = if (audioTrackLocal != null) {
-            peerConnection!!.addTransceiver(
-                audioTrackLocal,
-                RtpTransceiver.RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_ONLY)
-            )
-        } else {
-            null
-        }
-
-        // Apply bitrate caps immediately after tracks are attached.
-        // Some devices / WebRTC builds may override sender params during negotiation,
-        // so we re-apply again after local/remote descriptions are set.
-        applySenderBitrates(videoBitrateKbps, currentVideoFps, audioBitrateKbps)
-
-        peerConnection!!.createOffer(object : SdpObserver {
-            override fun onCreateSuccess(desc: SessionDescription?) {
-                desc?.let { offer ->
-                    val mungedOpus = mungeOpusMaxAverageBitrate(offer.description, currentAudioBitrateKbps)
-                    val mungedSdp = mungePreferVideoCodec(mungedOpus, currentVideoCodec)
-                    val mungedOffer = SessionDescription(offer.type, mungedSdp)
-                    peerConnection!!.setLocalDescription(object : SdpObserver {
-                        override fun onCreateSuccess(p0: SessionDescription?) {}
-                        override fun onSetSuccess() {
-                            applySenderBitrates(videoBitrateKbps, currentVideoFps, audioBitrateKbps)
-                            // After Setting Local Desc, Send to Server
-                            sendWhipOffer(whipUrl, token, mungedSdp)
-                        }
-                        override fun onCreateFailure(p0: String?) {}
-                        override fun onSetFailure(p0: String?) {}
-                    }, mungedOffer)
-                }
-            }
-            override fun onCreateFailure(p0: String?) {
-                Log.e("StreamService", "Offer creation failed: $p0")
-            }
-            override fun onSetSuccess() {}
-            override fun onSetFailure(p0: String?) {}
-        }, MediaConstraints())
+    private fun startLocalRecording(audioSrc: String) {
+        if (!recordLocally) return
+        if (currentVideoEncoderMode == "Software") {
+            Log.w("StreamService", "Local recording needs a hardware encoder; not recording")
+            return
+        }
+        val mime = EncodedStreamRecorder.mimeForCodec(currentVideoCodec)
+        if (mime == null) {
+            Log.w("StreamService", "Local recording does not support $currentVideoCodec")
+            return
+        }
+        val dir = getExternalFilesDir(Environment.DIRECTORY_MOVIES) ?: filesDir
+        val stamp = SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(Date())
+        val file = File(dir, "whip-$stamp.${EncodedStreamRecorder.extensionFor(mime)}")
+        recorder = EncodedStreamRecorder(file, mime, recordAudio = audioSrc != "none").also { it.start() }
     }
 
-    private fun sendWhipOffer(whipUrl: String, token: String?, sdp: String) {
-        serviceScope.launch(Dispatchers.IO) {
-            try {
-                // Construct URL: User specifically requested appending the token to the URL.
-                val finalUrl = if (!token.isNullOrEmpty()) {
-                    if (whipUrl.endsWith("/")) "$whipUrl$token" else "$whipUrl/$token"
-                } else {
-                    whipUrl
-                }
-                
-                Log.d("StreamService", "Sending WHIP Offer to: $finalUrl")
-                
-                val body = sdp.toRequestBody("application/sdp".toMediaType())
-                val requestBuilder = Request.Builder()
-                    .url(finalUrl)
-                    .post(body)
-                    .addHeader("Content-Type", "application/sdp")
-                
-                // Note: Removed Authorization header to prioritize URL-based authentication 
-                // as requested by the user ("url followed by stream key"). 
-                // Some servers strictly prefer one or the other.
-                // if (!token.isNullOrEmpty()) {
-                //    requestBuilder.addHeader("Authorization", "Bearer $token")
-                // }
-
-                val request = requestBuilder.build()
-                val response = httpClient.newCall(request).execute()
-                
-                if (response.isSuccessful) {
-                    val answerSdp = response.body?.string()
-                    if (!answerSdp.isNullOrEmpty()) {
-                        logSdpVideoSection("WHIP answer (raw)", answerSdp)
-                        setRemoteAnswer(answerSdp)
-                    } else {
-                        Log.e("StreamService", "Empty answer from WHIP server")
-                    }
-                } else {
-                    Log.e("StreamService", "WHIP Request failed: ${response.code} ${response.message}")
-                    Log.e("StreamService", "Response Body: ${response.body?.string()}")
-                    stopStreaming()
-                    stopSelf()
-                }
-            } catch (e: Exception) {
-                Log.e("StreamService", "WHIP Network error", e)
-                e.printStackTrace()
-                stopStreaming()
-                stopSelf()
-            }
+    private fun audioCaptureSourceFor(audioSrc: String): AudioCaptureSource {
+        if (audioSrc == "file") {
+            val path = audioFilePath
+            if (path != null) return AudioCaptureSource.WavFile(File(path))
+            Log.w("StreamService", "Audio source 'file' selected without an audioFile extra; falling back to microphone.")
+            return AudioCaptureSource.Microphone
         }
-    }
-
-    private fun setRemoteAnswer(sdp: String) {
-        serviceScope.launch(Dispatchers.Main) {
-            if (peerConnection == null) return@launch
-
-            val target = normalizePreferredVideoCodecOrNull(currentVideoCodec)
-            if (currentVideoCodecStrict && target != null) {
-                val hasTarget = Regex("^a=rtpmap:(\\d+)\\s+$target/", setOf(RegexOption.IGNORE_CASE, RegexOption.MULTILINE)).containsMatchIn(sdp)
-                if (!hasTarget) {
-                    Log.e("StreamService", "Strict codec=$target requested but WHIP answer doesn't include it. Failing fast.")
-                    stopStreaming()
-                    stopSelf()
-                    return@launch
-                }
-            }
-
-            val munged = mungeRestrictVideoCodecIfPresent(sdp, currentVideoCodec)
-            if (munged != sdp) {
-                logSdpVideoSection("WHIP answer (munged)", munged)
-            }
+        if (audioSrc != "system" && audioSrc != "mix") return AudioCaptureSource.Microphone
 
-            val answer = SessionDescription(SessionDescription.Type.ANSWER, munged)
-            peerConnection?.setRemoteDescription(object : SdpObserver {
-                override fun onCreateSuccess(p0: SessionDescription?) {}
-                override fun onSetSuccess() {
-                    Log.d("StreamService", "Remote Answer Set Successfully! Streaming should involve bytes now.")
-                    applySenderBitrates(currentVideoBitrateKbps, currentVideoFps, currentAudioBitrateKbps)
-                }
-                override fun onCreateFailure(p0: String?) {}
-                override fun onSetFailure(p0: String?) {
-                    Log.e("StreamService", "Failed to set remote answer: $p0")
-                    stopStreaming()
-                    stopSelf()
-                }
-            }, answer)
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            Log.w("StreamService", "Audio source '$audioSrc' needs Android 10+ for system audio; falling back to microphone.")
+            return AudioCaptureSource.Microphone
+        }
+        val mp = sharedMediaProjection
+        if (mp == null) {
+            Log.w("StreamService", "Shared MediaProjection is null; falling back to microphone.")
+            return AudioCaptureSource.Microphone
+        }
+        val config = AudioPlaybackCaptureConfiguration.Builder(mp)
+            .addMatchingUsage(AudioAttributes.USAGE_MEDIA)
+            .addMatchingUsage(AudioAttributes.USAGE_GAME)
+            .build()
+        return if (audioSrc == "mix") {
+            AudioCaptureSource.Mixed(config, micGain, systemAudioGain)
+        } else {
+            AudioCaptureSource.Playback(config)
         }
     }
 
@@ -796,10 +634,18 @@ class StreamService : Service() {
         Log.d("StreamService", "Stopping streaming...")
 
         try {
+            videoTrack?.removeSink(LocalPreview.sink)
             videoCapturer?.stopCapture()
             videoCapturer?.dispose()
             videoCapturer = null
 
+            cameraOverlay?.stop()
+            cameraOverlay = null
+            videoSource?.setVideoProcessor(null)
+            captureHandler?.let { compositor?.release(it) }
+            compositor = null
+            captureHandler = null
+
             videoSource?.dispose()
             videoSource = null
 
@@ -808,9 +654,20 @@ class StreamService : Service() {
 
             sharedMediaProjection?.stop()
             sharedMediaProjection = null
-            
-            peerConnection?.close()
-            peerConnection = null
+
+            val activeRecorder = recorder
+            recorder = null
+            activeRecorder?.stop()
+
+            // An AudioRecord prewarmed for this session that WebRTC never took over.
+            audioRecordFactory?.release()
+
+            latencyProbes?.logSummary()
+            latencyProbes = null
+            goLive = null
+
+            fanout?.stop()
+            fanout = null
             
             // CRITICAL: Do NOT dispose peerConnectionFactory or eglBase here.
             // Disposal of the factory often causes native crashes (SIGABRT) if internal threads are active.
@@ -832,15 +689,17 @@ class StreamService : Service() {
 
     override fun onDestroy() {
         stopStreaming()
+        // A prewarm that finished after stopStreaming.
+        audioRecordFactory?.release()
         serviceScope.coroutineContext.cancelChildren() // Cancel jobs
         super.onDestroy()
     }
-    
-    // Stub SdpObserver to reduce boilerplate in inline objects
-    interface SimpleSdpObserver : SdpObserver {
-        override fun onCreateSuccess(p0: SessionDescription?) {}
-        override fun onSetSuccess() {}
-        override fun onCreateFailure(p0: String?) {}
-        override fun onSetFailure(p0: String?) {}
+
+    companion object {
+        private val _error = MutableStateFlow<String?>(null)
+
+        // Why the last start failed, or what it could not honor, for MainActivity; replaced when
+        // streaming starts again.
+        val error: StateFlow<String?> = _error
     }
 }
@@ -0,0 +1,100 @@
+package com.example.whiper
+
+import android.util.Log
+import org.webrtc.EncodedImage
+import org.webrtc.VideoCodecInfo
+import org.webrtc.VideoCodecStatus
+import org.webrtc.VideoEncoder
+import org.webrtc.VideoEncoderFactory
+import org.webrtc.VideoFrame
+import org.webrtc.WrappedNativeVideoEncoder
+import java.util.concurrent.atomic.AtomicReference
+
+// Wraps the Java video encoders so that the app can observe what goes in and out of them: the
+// local recording (EncodedStreamRecorder) and the pipeline latency probes. Encoders that only
+// exist on the native side (the software fallbacks) cannot be observed from Java and are passed
+// through unchanged.
+//
+// With several WHIP destinations there is one encoder per PeerConnection. Only the first one to
+// initialize is tapped, so the recording gets a single stream and the probes see each frame once;
+// the next encoder takes over when it is released.
+class TappedVideoEncoderFactory(
+    private val delegate: VideoEncoderFactory,
+    private val recorder: () -> EncodedStreamRecorder?,
+    private val latency: () -> PipelineLatencyProbes?
+) : VideoEncoderFactory {
+
+    private val tapOwner = AtomicReference<VideoEncoder?>(null)
+
+    override fun createEncoder(info: VideoCodecInfo): VideoEncoder? {
+        val encoder = delegate.createEncoder(info) ?: return null
+        if (encoder is WrappedNativeVideoEncoder) {
+            Log.w(TAG, "${info.name} encoder is native; it will not be recorded or probed")
+            return encoder
+        }
+        return TappedVideoEncoder(encoder, recorder, latency, tapOwner)
+    }
+
+    override fun getSupportedCodecs(): Array<VideoCodecInfo> = delegate.supportedCodecs
+
+    companion object {
+        private const val TAG = "TappedEncoderFactory"
+    }
+}
+
+private class TappedVideoEncoder(
+    private val delegate: VideoEncoder,
+    private val recorder: () -> EncodedStreamRecorder?,
+    private val latency: () -> PipelineLatencyProbes?,
+    private val tapOwner: AtomicReference<VideoEncoder?>
+) : VideoEncoder {
+
+    private val keyFrameInfo = VideoEncoder.EncodeInfo(arrayOf(EncodedImage.FrameType.VideoFrameKey))
+
+    private val tapped: Boolean get() = tapOwner.get() === this
+
+    override fun initEncode(settings: VideoEncoder.Settings, callback: VideoEncoder.Callback): VideoCodecStatus {
+        if (tapOwner.compareAndSet(null, this)) recorder()?.onEncoderChanged()
+        return delegate.initEncode(settings) { image, info ->
+            if (tapped) {
+                latency()?.onEncoded(image.captureTimeNs)
+                recorder()?.onEncodedVideo(image)
+            }
+            callback.onEncodedFrame(image, info)
+        }
+    }
+
+    override fun release(): VideoCodecStatus {
+        tapOwner.compareAndSet(this, null)
+        return delegate.release()
+    }
+
+    override fun encode(frame: VideoFrame, info: VideoEncoder.EncodeInfo): VideoCodecStatus {
+        // An encoder that initialized while another one was tapped takes over once that one is released.
+        if (!tapped) {
+            if (!tapOwner.compareAndSet(null, this)) return delegate.encode(frame, info)
+            recorder()?.onEncoderChanged()
+        }
+        val probes = latency()
+        probes?.onEncodeStart(frame.timestampNs)
+        val keyFrameFor = recorder()?.takeIf { it.keyFrameRequested }
+        val status = delegate.encode(frame, if (keyFrameFor != null) keyFrameInfo else info)
+        // A frame the encoder refused or dropped carries no key frame; ask again with the next one.
+        if (keyFrameFor != null && status == VideoCodecStatus.OK) keyFrameFor.onKeyFrameRequestSent()
+        // NO_OUTPUT: the encoder dropped the frame (queue full or no input buffer).
+        if (status == VideoCodecStatus.NO_OUTPUT) probes?.onEncodeDropped(frame.timestampNs)
+        return status
+    }
+
+    override fun setRateAllocation(allocation: VideoEncoder.BitrateAllocation, framerate: Int): VideoCodecStatus =
+        delegate.setRateAllocation(allocation, framerate)
+
+    override fun getScalingSettings(): VideoEncoder.ScalingSettings = delegate.scalingSettings
+
+    override fun getImplementationName(): String = delegate.implementationName
+
+    override fun isHardwareEncoder(): Boolean = delegate.isHardwareEncoder
+
+    override fun getResolutionBitrateLimits(): Array<VideoEncoder.ResolutionBitrateLimits> =
+        delegate.resolutionBitrateLimits
+}
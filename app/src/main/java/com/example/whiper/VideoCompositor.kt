@@ -0,0 +1,280 @@
+package com.example.whiper
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.opengl.GLES20
+import android.opengl.GLES30
+import android.opengl.GLUtils
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import org.webrtc.GlRectDrawer
+import org.webrtc.GlTextureFrameBuffer
+import org.webrtc.GlUtil
+import org.webrtc.RendererCommon
+import org.webrtc.TextureBufferImpl
+import org.webrtc.VideoFrame
+import org.webrtc.VideoFrameDrawer
+import org.webrtc.VideoProcessor
+import org.webrtc.VideoSink
+import org.webrtc.YuvConverter
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+// Where a layer goes, as fractions of the output frame: [left]/[top] from the top-left corner and
+// [width] of the frame width (null: the layer's own size in pixels). The height follows from the
+// layer's aspect ratio.
+data class OverlayPlacement(val left: Float, val top: Float, val width: Float? = null)
+
+// One GL layer drawn over the captured frame. Everything except the constructor and the setters a
+// layer documents as thread-safe runs on the capture thread, with the capture EGL context current.
+interface OverlayLayer {
+    // Draws into the bound framebuffer of [frameWidth]x[frameHeight]; blending is set up by the caller.
+    fun draw(drawer: GlRectDrawer, frameWidth: Int, frameHeight: Int)
+
+    fun release()
+}
+
+// Composites overlay layers onto the captured texture, entirely on the GPU.
+//
+// Installed with VideoSource.setVideoProcessor, so it runs on the SurfaceTextureHelper thread right
+// after the frame adaptation (a texture crop/scale is only a matrix) and draws at the resolution
+// that is sent. The screen texture and the layers are drawn into a framebuffer from a small pool,
+// and the frame goes on as an RGB TextureBuffer: the hardware encoders still take it in surface
+// mode without a copy, and the screen's OES texture goes back to the capturer as soon as it has
+// been drawn. Frames that are not textures (the Y4M file source) pass through untouched.
+//
+// The draw is not waited for on the capture thread: each frame carries a GL fence that the
+// encoders and the preview wait on, on the GPU, before they sample it from their own contexts.
+class VideoCompositor(private val maxPooledFrames: Int = 6) : VideoProcessor {
+
+    val layers = CopyOnWriteArrayList<OverlayLayer>()
+
+    @Volatile
+    private var sink: VideoSink? = null
+
+    // Capture thread only.
+    private var handler: Handler? = null
+    private var drawer: GlRectDrawer? = null
+    private var frameDrawer: VideoFrameDrawer? = null
+    private var yuvConverter: YuvConverter? = null
+    private var supportsFences: Boolean? = null
+    private var lastTimestampNs = 0L
+    private var droppedFrames = 0L
+
+    @Volatile
+    private var released = false
+
+    private val freeFrameBuffers = ConcurrentLinkedQueue<GlTextureFrameBuffer>()
+    private val allocatedFrameBuffers = AtomicInteger(0)
+    private val identity = Matrix()
+
+    override fun setSink(sink: VideoSink?) {
+        this.sink = sink
+    }
+
+    override fun onCapturerStarted(success: Boolean) {}
+
+    override fun onCapturerStopped() {}
+
+    override fun onFrameCaptured(frame: VideoFrame) {
+        val out = sink ?: return
+        val input = frame.buffer as? VideoFrame.TextureBuffer
+        if (input == null || released || layers.isEmpty()) {
+            out.onFrame(frame)
+            return
+        }
+
+        val width = frame.rotatedWidth
+        val height = frame.rotatedHeight
+        val fb = obtainFrameBuffer(width, height)
+        if (fb == null) {
+            // Every pooled frame is still held by an encoder; like the capturer, skip rather than stall.
+            droppedFrames++
+            if (droppedFrames % 30 == 1L) Log.w(TAG, "Frame pool exhausted; dropped $droppedFrames frames")
+            return
+        }
+
+        val d = drawer ?: GlRectDrawer().also { drawer = it }
+        val fd = frameDrawer ?: VideoFrameDrawer().also { frameDrawer = it }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fb.frameBufferId)
+        fd.drawFrame(frame, d, null, 0, 0, width, height)
+        GLES20.glEnable(GLES20.GL_BLEND)
+        // Bitmaps are uploaded with premultiplied alpha.
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA)
+        for (layer in layers) {
+            try {
+                layer.draw(d, width, height)
+            } catch (e: RuntimeException) {
+                Log.e(TAG, "Overlay layer failed; removing it", e)
+                layers.remove(layer)
+                layer.release()
+            }
+        }
+        GLES20.glDisable(GLES20.GL_BLEND)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0)
+        // The fence must reach the GPU before another context waits on it. Without GLES 3.0 there are
+        // no fences, and the capture thread waits for the draw itself.
+        val fence = if (fencesSupported()) GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0) else 0L
+        if (fence != 0L) GLES20.glFlush() else GLES20.glFinish()
+
+        val h = handler ?: Handler(Looper.myLooper()!!).also { handler = it }
+        val converter = yuvConverter ?: YuvConverter().also { yuvConverter = it }
+        val buffer = TextureBufferImpl(
+            width, height, VideoFrame.TextureBuffer.Type.RGB, fb.textureId, identity, h, converter, fence
+        ) { recycle(fb, fence) }
+
+        // A frame forced by a layer repeats the previous capture timestamp.
+        val timestampNs = if (frame.timestampNs > lastTimestampNs) frame.timestampNs else System.nanoTime()
+        lastTimestampNs = timestampNs
+        val composited = VideoFrame(buffer, 0, timestampNs)
+        out.onFrame(composited)
+        composited.release()
+    }
+
+    // Main thread. [captureHandler] is the SurfaceTextureHelper handler the frames arrive on.
+    fun release(captureHandler: Handler) {
+        val removed = layers.toList()
+        layers.clear()
+        captureHandler.post {
+            released = true
+            removed.forEach { it.release() }
+            drawer?.release()
+            drawer = null
+            frameDrawer?.release()
+            frameDrawer = null
+            yuvConverter?.release()
+            yuvConverter = null
+            while (true) freeFrameBuffers.poll()?.release() ?: break
+            Log.i(TAG, "Released; dropped $droppedFrames frames, pooled ${allocatedFrameBuffers.get()} framebuffers")
+        }
+    }
+
+    private fun obtainFrameBuffer(width: Int, height: Int): GlTextureFrameBuffer? {
+        val fb = freeFrameBuffers.poll() ?: run {
+            if (allocatedFrameBuffers.get() >= maxPooledFrames) return null
+            allocatedFrameBuffers.incrementAndGet()
+            GlTextureFrameBuffer(GLES20.GL_RGBA)
+        }
+        // No-op unless the output size changed.
+        fb.setSize(width, height)
+        return fb
+    }
+
+    // Capture thread. Sync objects came with GLES 3.0; GL_VERSION reads "OpenGL ES <major>.<minor> ...".
+    private fun fencesSupported(): Boolean {
+        supportsFences?.let { return it }
+        val version = GLES20.glGetString(GLES20.GL_VERSION).orEmpty()
+        val major = version.removePrefix("OpenGL ES ").substringBefore('.').toIntOrNull() ?: 0
+        val supported = major >= 3
+        supportsFences = supported
+        Log.i(TAG, "$version: frames synchronized with ${if (supported) "GL fences" else "glFinish"}")
+        return supported
+    }
+
+    // Any thread: the encoders release frames on their own threads.
+    private fun recycle(fb: GlTextureFrameBuffer, fence: Long) {
+        if (fence != 0L) handler?.post { GLES30.glDeleteSync(fence) }
+        if (!released) {
+            freeFrameBuffers.add(fb)
+        } else {
+            handler?.post { fb.release() }
+        }
+    }
+
+    companion object {
+        private const val TAG = "VideoCompositor"
+
+        // Maps a layer of [layerWidth]x[layerHeight] to its viewport in a [frameWidth]x[frameHeight] frame.
+        // GL viewports count from the bottom-left corner.
+        internal fun viewport(placement: OverlayPlacement, layerWidth: Int, layerHeight: Int, frameWidth: Int, frameHeight: Int): IntArray {
+            val w = placement.width?.let { (it * frameWidth).toInt() }?.coerceAtLeast(1) ?: layerWidth
+            val h = (w.toLong() * layerHeight / layerWidth.coerceAtLeast(1)).toInt().coerceAtLeast(1)
+            val x = (placement.left * frameWidth).toInt()
+            val y = (frameHeight - (placement.top * frameHeight).toInt() - h).coerceAtLeast(0)
+            return intArrayOf(x, y, w, h)
+        }
+    }
+}
+
+// A static image, e.g. a logo or watermark. Uploaded once, on the first frame.
+open class BitmapOverlay(
+    bitmap: Bitmap,
+    private val placement: OverlayPlacement
+) : OverlayLayer {
+
+    private val pending = AtomicReference<Bitmap?>(bitmap)
+
+    // Capture thread only.
+    private var textureId = 0
+    private var bitmapWidth = 0
+    private var bitmapHeight = 0
+
+    // Any thread: replaces the image from the next frame on. The bitmap must not be changed afterwards.
+    protected fun replace(bitmap: Bitmap) {
+        pending.getAndSet(bitmap)
+    }
+
+    override fun draw(drawer: GlRectDrawer, frameWidth: Int, frameHeight: Int) {
+        pending.getAndSet(null)?.let { upload(it) }
+        if (textureId == 0) return
+        val v = VideoCompositor.viewport(placement, bitmapWidth, bitmapHeight, frameWidth, frameHeight)
+        drawer.drawRgb(textureId, FLIP, bitmapWidth, bitmapHeight, v[0], v[1], v[2], v[3])
+    }
+
+    private fun upload(bitmap: Bitmap) {
+        if (textureId == 0) textureId = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D)
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId)
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0)
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0)
+        bitmapWidth = bitmap.width
+        bitmapHeight = bitmap.height
+    }
+
+    override fun release() {
+        if (textureId != 0) GLES20.glDeleteTextures(1, intArrayOf(textureId), 0)
+        textureId = 0
+        pending.set(null)
+    }
+
+    companion object {
+        // Bitmap rows are uploaded top first, GL samples bottom first.
+        private val FLIP = RendererCommon.convertMatrixFromAndroidGraphicsMatrix(Matrix().apply { setScale(1f, -1f, 0.5f, 0.5f) })
+    }
+}
+
+// A line of text (chat message, title) rendered into a bitmap on the caller's thread whenever it
+// changes; the capture thread only re-uploads the texture.
+class TextOverlay(
+    text: String,
+    placement: OverlayPlacement,
+    private val textSizePx: Float = 36f
+) : BitmapOverlay(render(text, textSizePx), placement) {
+
+    // Any thread.
+    fun setText(text: String) {
+        replace(render(text, textSizePx))
+    }
+
+    companion object {
+        private fun render(text: String, textSizePx: Float): Bitmap {
+            val paint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+                textSize = textSizePx
+                color = Color.WHITE
+                setShadowLayer(textSizePx / 12f, 0f, 0f, Color.BLACK)
+            }
+            val pad = (textSizePx / 4).toInt()
+            val metrics = paint.fontMetricsInt
+            val width = paint.measureText(text).toInt().coerceAtLeast(1) + pad * 2
+            val height = metrics.descent - metrics.ascent + pad * 2
+            val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+            Canvas(bitmap).drawText(text, pad.toFloat(), (pad - metrics.ascent).toFloat(), paint)
+            return bitmap
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.whiper
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import org.webrtc.EglBase
+import org.webrtc.PeerConnectionFactory
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.async
+import java.io.IOException
+import java.util.concurrent.Executors
+
+// Process-wide WebRTC state that does not depend on the stream settings. MainActivity starts it
+// as soon as it opens, so that by the time the user has granted screen capture the native library
+// is loaded, the shared EGL context exists, the codec capabilities are loaded and the TLS connection
+// to the WHIP host is pooled; "Start" then only pays for projection and negotiation.
+object WebRtcWarmup {
+
+    private const val TAG = "WebRtcWarmup"
+
+    // Shared with StreamService so that the WHIP POST reuses the preconnected connection.
+    val httpClient = OkHttpClient()
+
+    private val scope = CoroutineScope(
+        SupervisorJob() + Executors.newSingleThreadExecutor { Thread(it, "WebRtcWarmup") }.asCoroutineDispatcher()
+    )
+    private var warmup: Deferred<Unit>? = null
+
+    @Volatile
+    private var eglBase: EglBase? = null
+    @Volatile
+    private var capabilities: DeviceCodecCapabilities? = null
+
+    fun start(context: Context) {
+        startOrJoin(context)
+    }
+
+    // Suspends until the warm-up has completed; the caller's thread is never blocked.
+    suspend fun awaitEglBase(context: Context): EglBase {
+        await(context)
+        return eglBase!!
+    }
+
+    suspend fun awaitCapabilities(context: Context): DeviceCodecCapabilities {
+        await(context)
+        return capabilities!!
+    }
+
+    private fun startOrJoin(context: Context): Deferred<Unit> {
+        val appContext = context.applicationContext
+        synchronized(this) {
+            return warmup ?: scope.async { warmUp(appContext) }.also { warmup = it }
+        }
+    }
+
+    // A failed warm-up is forgotten, so the next caller runs it again instead of getting the same failure.
+    private suspend fun await(context: Context) {
+        val job = startOrJoin(context)
+        try {
+            job.await()
+        } catch (e: Exception) {
+            // The warm-up itself failed, as opposed to this caller being cancelled while it runs.
+            if (job.isCompleted) synchronized(this) { if (warmup === job) warmup = null }
+            throw e
+        }
+    }
+
+    // Opens (and pools) the connection to the WHIP host. OPTIONS has no side effects on a WHIP
+    // endpoint; whatever the server answers, the TLS session is what we are after.
+    fun preconnect(url: String) {
+        val request = try {
+            Request.Builder().url(url).method("OPTIONS", null).build()
+        } catch (e: IllegalArgumentException) {
+            return
+        }
+        val startMs = SystemClock.elapsedRealtime()
+        httpClient.newCall(request).enqueue(object : Callback {
+            override fun onResponse(call: Call, response: Response) {
+                response.close()
+                Log.i(TAG, "Preconnected to ${request.url.host} in ${SystemClock.elapsedRealtime() - startMs} ms (${response.code})")
+            }
+
+            override fun onFailure(call: Call, e: IOException) {
+                Log.w(TAG, "Preconnect to ${request.url.host} failed: ${e.message}")
+            }
+        })
+    }
+
+    private fun warmUp(context: Context) {
+        val t0 = SystemClock.elapsedRealtime()
+        PeerConnectionFactory.initialize(
+            PeerConnectionFactory.InitializationOptions.builder(context)
+                .setEnableInternalTracer(true)
+                .createInitializationOptions()
+        )
+        val t1 = SystemClock.elapsedRealtime()
+        // Kept from an earlier attempt that failed later on.
+        val egl = eglBase ?: EglBase.create().also { eglBase = it }
+        val t2 = SystemClock.elapsedRealtime()
+        val caps = CodecCapabilityCache.load(context, egl.eglBaseContext)
+        capabilities = caps
+        val t3 = SystemClock.elapsedRealtime()
+        Log.i(
+            TAG,
+            "Warm-up done in ${t3 - t0} ms: native=${t1 - t0} ms egl=${t2 - t1} ms codecs=${t3 - t2} ms " +
+                "hardwareEncoders=${caps.hardwareEncoderNames}"
+        )
+    }
+}
+
+// Time from pressing "Start" to the first RTP packet, with the milestones in between.
+class GoLiveTimer(private val startedAtMs: Long) {
+
+    private val milestones = StringBuilder()
+
+    @Volatile
+    var isDone = false
+        private set
+
+    @Synchronized
+    fun mark(milestone: String) {
+        if (isDone) return
+        milestones.append(milestone).append('=').append(SystemClock.elapsedRealtime() - startedAtMs).append("ms ")
+    }
+
+    @Synchronized
+    fun firstPacket() {
+        if (isDone) return
+        mark("firstPacket")
+        isDone = true
+        Log.i(TAG, "Time to first packet: ${SystemClock.elapsedRealtime() - startedAtMs} ms ($milestones)")
+    }
+
+    companion object {
+        private const val TAG = "GoLive"
+    }
+}
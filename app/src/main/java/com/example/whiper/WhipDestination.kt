@@ -0,0 +1,567 @@
+package com.example.whiper
+
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withTimeoutOrNull
+import okhttp3.OkHttpClient
+import org.webrtc.AudioTrack
+import org.webrtc.DataChannel
+import org.webrtc.IceCandidate
+import org.webrtc.MediaConstraints
+import org.webrtc.MediaStream
+import org.webrtc.MediaStreamTrack
+import org.webrtc.PeerConnection
+import org.webrtc.PeerConnectionFactory
+import org.webrtc.RtpReceiver
+import org.webrtc.RtpSender
+import org.webrtc.RtpTransceiver
+import org.webrtc.SdpObserver
+import org.webrtc.SessionDescription
+import org.webrtc.VideoTrack
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.coroutines.resume
+
+// Per-destination settings: where to publish and how much bandwidth that platform gets.
+data class DestinationConfig(
+    val name: String,
+    val url: String,
+    val token: String?,
+    val videoBitrateKbps: Int,
+    val minVideoBitrateKbps: Int,
+    val audioBitrateKbps: Int,
+    val adaptiveBitrate: Boolean,
+    val reconnectDeadlineSec: Int
+)
+
+// What every destination publishes: the tracks of the single capture and the session-wide codec
+// settings. [videoCodec] is already normalized (null: no preference).
+data class SharedMedia(
+    val factory: PeerConnectionFactory,
+    val videoTrack: VideoTrack?,
+    val audioTrack: AudioTrack?,
+    val videoFps: Int,
+    val videoCodec: String?,
+    val videoCodecStrict: Boolean,
+    val simulcast: Boolean
+)
+
+// One WHIP publication of the shared tracks: its own PeerConnection from the shared factory, WHIP
+// resource (offer, trickle ICE, ICE restart), SessionRecovery and ABR. A destination that cannot
+// be (re)established reports itself through [onFailed]; the others keep streaming.
+class WhipDestination(
+    val config: DestinationConfig,
+    private val media: SharedMedia,
+    private val httpClient: OkHttpClient,
+    private val scope: CoroutineScope,
+    private val goLive: GoLiveTimer?,
+    private val onFailed: (WhipDestination) -> Unit
+) {
+
+    var peerConnection: PeerConnection? = null
+        private set
+
+    private var abrController: AbrController? = null
+    private var trickleIce: WhipTrickleIce? = null
+    private var currentRemoteAnswer: String? = null
+    private var sessionRecovery: SessionRecovery? = null
+    private var peerConnectionGeneration = 0
+    private val iceRestartInFlight = AtomicBoolean(false)
+    private val watchingFirstPacket = AtomicBoolean(false)
+    private var stopped = false
+
+    // For the health report; null until the first answer is applied.
+    val recoveryState: SessionRecovery.State? get() = sessionRecovery?.state
+
+    fun start() {
+        createPeerConnectionAndOffer(recovering = false)
+    }
+
+    fun stop() {
+        if (stopped) return
+        stopped = true
+
+        abrController?.stop()
+        abrController = null
+
+        sessionRecovery?.stop()
+        sessionRecovery = null
+        iceRestartInFlight.set(false)
+
+        val resource = trickleIce?.resource
+        trickleIce?.close()
+        trickleIce = null
+
+        val pc = peerConnection
+        peerConnection = null
+        try {
+            pc?.dispose()
+        } catch (t: Throwable) {
+            Log.w(TAG, "[${config.name}] Disposing PeerConnection failed", t)
+        }
+
+        // With fan-out the other destinations keep streaming; end this one's session on the server
+        // instead of leaving it to time out.
+        if (resource != null) scope.launch(Dispatchers.IO) { deleteResource(resource) }
+    }
+
+    private fun fail() {
+        if (stopped) return
+        scope.launch(Dispatchers.Main) { onFailed(this@WhipDestination) }
+    }
+
+    private fun applySenderBitrates() {
+        val pc = peerConnection ?: return
+
+        fun applyToSender(sender: RtpSender, kind: String) {
+            try {
+                val p = sender.parameters
+                val applied = SenderBitrates.apply(
+                    p, kind, config.videoBitrateKbps, minVideoBitrateBps(), media.videoFps, config.audioBitrateKbps
+                )
+                if (!applied) {
+                    Log.w(TAG, "[${config.name}] applySenderBitrates: $kind encodings is empty; cannot apply")
+                    return
+                }
+
+                sender.parameters = p
+                sender.parameters.encodings?.forEach { a ->
+                    Log.i(
+                        TAG,
+                        "[${config.name}] applySenderBitrates: kind=$kind rid=${a.rid} maxBitrateBps=${a.maxBitrateBps} minBitrateBps=${a.minBitrateBps} maxFramerate=${a.maxFramerate}"
+                    )
+                }
+            } catch (t: Throwable) {
+                Log.w(TAG, "[${config.name}] applySenderBitrates: failed for $kind", t)
+            }
+        }
+
+        pc.senders.forEach { sender ->
+            val kind = sender.track()?.kind() ?: return@forEach
+            if (kind == MediaStreamTrack.VIDEO_TRACK_KIND || kind == MediaStreamTrack.AUDIO_TRACK_KIND) {
+                applyToSender(sender, kind)
+            }
+        }
+    }
+
+    private fun minVideoBitrateBps(): Int =
+        config.minVideoBitrateKbps.coerceIn(1, config.videoBitrateKbps.coerceAtLeast(1)) * 1000
+
+    private fun startAdaptiveBitrate() {
+        abrController?.stop()
+        abrController = null
+        if (!config.adaptiveBitrate) return
+
+        val fps = media.videoFps.coerceAtLeast(1)
+        val limits = AbrLimits(
+            minBitrateBps = minVideoBitrateBps(),
+            maxBitrateBps = config.videoBitrateKbps.coerceAtLeast(1) * 1000,
+            minFramerate = fps.coerceAtMost(15),
+            maxFramerate = fps
+        )
+        abrController = AbrController(scope, { peerConnection }, limits).also { it.start() }
+    }
+
+    private fun offerRewritePipeline(): SdpRewritePipeline {
+        val rewrites = ArrayList<SdpRewrite>(2)
+        rewrites.add(SdpRewrites.opusMaxAverageBitrate(config.audioBitrateKbps.coerceAtLeast(6) * 1000))
+        media.videoCodec?.let { rewrites.add(SdpRewrites.preferVideoCodec(it)) }
+        return SdpRewritePipeline(rewrites, { Log.i(TAG, "[${config.name}] $it") }, { Log.w(TAG, "[${config.name}] $it") })
+    }
+
+    private fun logSdpVideoSection(tag: String, doc: SdpDocument) {
+        try {
+            Log.i(TAG, "[${config.name}] $tag: ${SdpRewrites.describeVideoSection(doc)}")
+        } catch (t: Throwable) {
+            Log.w(TAG, "logSdpVideoSection failed", t)
+        }
+    }
+
+    private fun createPeerConnectionAndOffer(recovering: Boolean) {
+        val rtcConfig = PeerConnection.RTCConfiguration(emptyList())
+        rtcConfig.sdpSemantics = PeerConnection.SdpSemantics.UNIFIED_PLAN
+
+        val trickle = WhipTrickleIce(httpClient, scope)
+        trickleIce = trickle
+
+        if (sessionRecovery == null) {
+            sessionRecovery = SessionRecovery(
+                scope,
+                config.reconnectDeadlineSec.coerceAtLeast(1) * 1000L,
+                onRestart = { attempt -> restartIce(attempt) },
+                onGiveUp = { fail() }
+            )
+        }
+        val generation = ++peerConnectionGeneration
+
+        peerConnection = media.factory.createPeerConnection(rtcConfig, object : PeerConnection.Observer {
+            override fun onSignalingChange(state: PeerConnection.SignalingState?) {}
+            override fun onIceConnectionChange(state: PeerConnection.IceConnectionState?) {
+                Log.d(TAG, "[${config.name}] ICE State: $state")
+                // Ignore late callbacks from a PeerConnection replaced during recovery.
+                if (generation != peerConnectionGeneration || state == PeerConnection.IceConnectionState.CLOSED) return
+                // DISCONNECTED is often transient (network handover); recover with ICE restart instead of tearing down.
+                sessionRecovery?.onIceConnectionChange(state)
+                if (state == PeerConnection.IceConnectionState.CONNECTED) {
+                    goLive?.mark("iceConnected")
+                    watchFirstPacket()
+                }
+            }
+            override fun onIceConnectionReceivingChange(b: Boolean) {}
+            override fun onIceGatheringChange(state: PeerConnection.IceGatheringState?) {
+                Log.d(TAG, "[${config.name}] ICE gathering: $state")
+                if (state == PeerConnection.IceGatheringState.COMPLETE) {
+                    trickle.endOfCandidates()
+                }
+            }
+            override fun onIceCandidate(candidate: IceCandidate?) {
+                // Candidates gathered after the offer was POSTed are trickled to the WHIP resource via PATCH.
+                if (candidate != null) trickle.addCandidate(candidate)
+            }
+            override fun onIceCandidatesRemoved(candidates: Array<out IceCandidate>?) {}
+            override fun onAddStream(stream: MediaStream?) {}
+            override fun onRemoveStream(stream: MediaStream?) {}
+            override fun onDataChannel(channel: DataChannel?) {}
+            override fun onRenegotiationNeeded() {}
+            override fun onAddTrack(receiver: RtpReceiver?, streams: Array<out MediaStream>?) {}
+        })
+
+        val pc = peerConnection ?: return
+
+        // Add Tracks (Send Only)
+        val videoInit = if (media.simulcast) {
+            RtpTransceiver.RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_ONLY, emptyList(), Simulcast.sendEncodings())
+        } else {
+            RtpTransceiver.RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_ONLY)
+        }
+        pc.addTransceiver(media.videoTrack, videoInit)
+        media.audioTrack?.let {
+            pc.addTransceiver(it, RtpTransceiver.RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_ONLY))
+        }
+
+        // Apply bitrate caps immediately after tracks are attached.
+        // Some devices / WebRTC builds may override sender params during negotiation,
+        // so we re-apply again after local/remote descriptions are set.
+        applySenderBitrates()
+
+        pc.createOffer(object : SimpleSdpObserver {
+            override fun onCreateSuccess(desc: SessionDescription?) {
+                desc?.let { offer ->
+                    val mungedSdp = offerRewritePipeline().rewrite(offer.description)
+                    val mungedOffer = SessionDescription(offer.type, mungedSdp)
+                    pc.setLocalDescription(object : SimpleSdpObserver {
+                        override fun onSetSuccess() {
+                            applySenderBitrates()
+                            trickle.setLocalDescription(mungedSdp)
+                            // After Setting Local Desc, Send to Server without waiting for ICE gathering
+                            sendWhipOffer(mungedSdp, recovering)
+                        }
+                        override fun onSetFailure(p0: String?) {
+                            Log.e(TAG, "[${config.name}] Failed to set local offer: $p0")
+                            if (recovering) iceRestartInFlight.set(false)
+                        }
+                    }, mungedOffer)
+                }
+            }
+            override fun onCreateFailure(p0: String?) {
+                Log.e(TAG, "[${config.name}] Offer creation failed: $p0")
+                if (recovering) iceRestartInFlight.set(false)
+            }
+        }, MediaConstraints())
+    }
+
+    // Called by SessionRecovery on the main thread. Tries an in-place ICE restart through the WHIP
+    // resource first; if the server cannot do that, a fresh PeerConnection is negotiated with a new
+    // POST while the shared capturer/VideoSource/tracks keep running. A POST that failed is simply
+    // retried with the offer already applied, since there is no resource to restart.
+    private fun restartIce(attempt: Int) {
+        val pc = peerConnection ?: return
+        if (stopped) return
+        if (!iceRestartInFlight.compareAndSet(false, true)) {
+            Log.d(TAG, "[${config.name}] ICE restart #$attempt skipped; previous attempt still in flight")
+            return
+        }
+
+        val trickle = trickleIce
+        val localSdp: String? = pc.localDescription?.description
+        val step = SessionRecovery.nextStep(
+            answered = currentRemoteAnswer != null,
+            hasResource = trickle?.resource != null,
+            patchSupported = trickle?.patchSupported == true,
+            hasLocalOffer = localSdp != null
+        )
+        Log.i(TAG, "[${config.name}] Recovery attempt #$attempt: $step")
+        when (step) {
+            SessionRecovery.Step.ICE_RESTART -> restartIceInPlace(pc)
+            SessionRecovery.Step.REPOST_OFFER -> sendWhipOffer(localSdp!!, recovering = true)
+            SessionRecovery.Step.REBUILD -> rebuildPeerConnection()
+        }
+    }
+
+    private fun restartIceInPlace(pc: PeerConnection) {
+        val constraints = MediaConstraints()
+        constraints.mandatory.add(MediaConstraints.KeyValuePair("IceRestart", "true"))
+
+        pc.createOffer(object : SimpleSdpObserver {
+            override fun onCreateSuccess(p0: SessionDescription?) {
+                if (p0 == null) {
+                    iceRestartInFlight.set(false)
+                    return
+                }
+                val offer = p0
+                val mungedSdp = offerRewritePipeline().rewrite(offer.description)
+                val trickle = trickleIce
+                trickle?.beginIceRestart(mungedSdp)
+                pc.setLocalDescription(object : SimpleSdpObserver {
+                    override fun onSetSuccess() {
+                        sendIceRestart(pc, mungedSdp)
+                    }
+                    override fun onSetFailure(p0: String?) {
+                        Log.w(TAG, "[${config.name}] ICE restart: setLocalDescription failed: $p0")
+                        trickle?.cancelIceRestart(pc.localDescription?.description)
+                        iceRestartInFlight.set(false)
+                    }
+                }, SessionDescription(offer.type, mungedSdp))
+            }
+            override fun onCreateFailure(p0: String?) {
+                Log.w(TAG, "[${config.name}] ICE restart: createOffer failed: $p0")
+                iceRestartInFlight.set(false)
+            }
+        }, constraints)
+    }
+
+    private fun sendIceRestart(pc: PeerConnection, localSdp: String) {
+        scope.launch(Dispatchers.IO) {
+            val frag = try {
+                trickleIce?.requestIceRestart(localSdp)
+            } catch (e: Exception) {
+                // Network still down; SessionRecovery schedules the next attempt.
+                Log.w(TAG, "[${config.name}] ICE restart PATCH network error", e)
+                iceRestartInFlight.set(false)
+                return@launch
+            }
+
+            val remote = currentRemoteAnswer
+            if (frag == null || remote == null) {
+                Log.w(TAG, "[${config.name}] WHIP resource cannot ICE-restart in place; re-publishing with a new PeerConnection")
+                launch(Dispatchers.Main) { rebuildPeerConnection() }
+                return@launch
+            }
+
+            launch(Dispatchers.Main) {
+                if (pc !== peerConnection) {
+                    iceRestartInFlight.set(false)
+                    return@launch
+                }
+                val doc = SdpDocument.parse(remote)
+                SdpRewritePipeline(
+                    listOf(SdpRewrites.iceRestartAnswer(SdpDocument.parse(frag))),
+                    { Log.i(TAG, "[${config.name}] $it") },
+                    { Log.w(TAG, "[${config.name}] $it") }
+                ).rewrite(doc)
+                val answerSdp = doc.serialize()
+                pc.setRemoteDescription(object : SimpleSdpObserver {
+                    override fun onSetSuccess() {
+                        Log.i(TAG, "[${config.name}] ICE restart answer applied")
+                        currentRemoteAnswer = answerSdp
+                        iceRestartInFlight.set(false)
+                    }
+                    override fun onSetFailure(p0: String?) {
+                        Log.w(TAG, "[${config.name}] ICE restart: setRemoteDescription failed: $p0")
+                        iceRestartInFlight.set(false)
+                    }
+                }, SessionDescription(SessionDescription.Type.ANSWER, answerSdp))
+            }
+        }
+    }
+
+    private fun rebuildPeerConnection() {
+        if (stopped) {
+            iceRestartInFlight.set(false)
+            return
+        }
+
+        val resource = trickleIce?.resource
+        trickleIce?.close()
+        trickleIce = null
+        val old = peerConnection
+        peerConnection = null
+        currentRemoteAnswer = null
+        try {
+            old?.dispose()
+        } catch (t: Throwable) {
+            Log.w(TAG, "[${config.name}] Disposing previous PeerConnection failed", t)
+        }
+
+        scope.launch(Dispatchers.IO) {
+            // The server would otherwise keep the old session (and its stream key) busy until it
+            // times out, and may reject the new POST meanwhile.
+            if (resource != null) deleteResource(resource)
+            launch(Dispatchers.Main) {
+                if (stopped) {
+                    iceRestartInFlight.set(false)
+                    return@launch
+                }
+                createPeerConnectionAndOffer(recovering = true)
+                if (peerConnection == null) iceRestartInFlight.set(false)
+            }
+        }
+    }
+
+    // Best effort and bounded: on a dead network the old resource is left to expire on the server.
+    private fun deleteResource(url: String) {
+        try {
+            val client = httpClient.newBuilder().callTimeout(DELETE_TIMEOUT_MS, TimeUnit.MILLISECONDS).build()
+            client.newCall(WhipRequests.delete(url)).execute().use { response ->
+                Log.i(TAG, "[${config.name}] DELETE WHIP resource: ${response.code}")
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "[${config.name}] DELETE WHIP resource failed: ${e.message}")
+        }
+    }
+
+    private fun sendWhipOffer(sdp: String, recovering: Boolean) {
+        scope.launch(Dispatchers.IO) {
+            try {
+                // Construct URL: User specifically requested appending the token to the URL.
+                val finalUrl = WhipRequests.endpointUrl(config.url, config.token)
+
+                Log.d(TAG, "[${config.name}] Sending WHIP Offer to: $finalUrl")
+                if (!recovering) goLive?.mark("offer")
+
+                // Note: No Authorization header; URL-based authentication is used instead (see WhipRequests.endpointUrl).
+                val request = WhipRequests.offer(finalUrl, sdp)
+                val response = httpClient.newCall(request).execute()
+
+                if (response.isSuccessful) {
+                    if (!recovering) goLive?.mark("answer")
+                    // WHIP resource URL for trickle ICE (PATCH); Location may be relative to the endpoint.
+                    val location = response.header("Location")
+                    if (!location.isNullOrEmpty()) {
+                        val resourceUrl = response.request.url.resolve(location)?.toString() ?: location
+                        trickleIce?.setResource(resourceUrl, response.header("ETag"))
+                    } else {
+                        Log.w(TAG, "[${config.name}] WHIP response has no Location header; trickle ICE disabled")
+                    }
+
+                    val answerSdp = response.body?.string()
+                    if (!answerSdp.isNullOrEmpty()) {
+                        setRemoteAnswer(answerSdp, recovering)
+                    } else {
+                        Log.e(TAG, "[${config.name}] Empty answer from WHIP server")
+                        if (recovering) iceRestartInFlight.set(false)
+                    }
+                } else {
+                    Log.e(TAG, "[${config.name}] WHIP Request failed: ${response.code} ${response.message}")
+                    Log.e(TAG, "[${config.name}] Response Body: ${response.body?.string()}")
+                    if (recovering) {
+                        // Let SessionRecovery retry until its deadline instead of tearing down capture.
+                        iceRestartInFlight.set(false)
+                    } else {
+                        fail()
+                    }
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "[${config.name}] WHIP Network error", e)
+                if (recovering) {
+                    iceRestartInFlight.set(false)
+                } else {
+                    fail()
+                }
+            }
+        }
+    }
+
+    private fun setRemoteAnswer(sdp: String, recovering: Boolean) {
+        scope.launch(Dispatchers.Main) {
+            val pc = peerConnection
+            if (pc == null) {
+                if (recovering) iceRestartInFlight.set(false)
+                return@launch
+            }
+
+            // Parse the answer once; the strict check, logging and codec restriction all share the model.
+            val doc = SdpDocument.parse(sdp)
+            logSdpVideoSection("WHIP answer (raw)", doc)
+
+            val target = media.videoCodec
+            if (media.videoCodecStrict && target != null) {
+                val hasTarget = doc.mediaSections.any { it.hasCodec(target) }
+                if (!hasTarget) {
+                    Log.e(TAG, "[${config.name}] Strict codec=$target requested but WHIP answer doesn't include it. Failing fast.")
+                    fail()
+                    return@launch
+                }
+            }
+
+            val rewrites = if (target != null) listOf(SdpRewrites.restrictVideoCodec(target)) else emptyList()
+            val restricted = SdpRewritePipeline(rewrites, { Log.i(TAG, "[${config.name}] $it") }, { Log.w(TAG, "[${config.name}] $it") }).rewrite(doc)
+            val munged = if (restricted) doc.serialize() else sdp
+            if (restricted) {
+                logSdpVideoSection("WHIP answer (munged)", doc)
+            }
+
+            val answer = SessionDescription(SessionDescription.Type.ANSWER, munged)
+            pc.setRemoteDescription(object : SimpleSdpObserver {
+                override fun onSetSuccess() {
+                    Log.d(TAG, "[${config.name}] Remote Answer Set Successfully! Streaming should involve bytes now.")
+                    currentRemoteAnswer = munged
+                    if (recovering) iceRestartInFlight.set(false)
+                    applySenderBitrates()
+                    startAdaptiveBitrate()
+                }
+                override fun onSetFailure(p0: String?) {
+                    Log.e(TAG, "[${config.name}] Failed to set remote answer: $p0")
+                    if (recovering) {
+                        iceRestartInFlight.set(false)
+                    } else {
+                        fail()
+                    }
+                }
+            }, answer)
+        }
+    }
+
+    // Media only flows once ICE is connected, so from then on the sender stats are polled until the
+    // first RTP packet is out, for the time-to-first-packet log. One getStats is in flight at a time;
+    // the logged time is late by at most FIRST_PACKET_POLL_MS.
+    private fun watchFirstPacket() {
+        val timer = goLive ?: return
+        if (timer.isDone || !watchingFirstPacket.compareAndSet(false, true)) return
+        scope.launch(Dispatchers.Main) {
+            withTimeoutOrNull(FIRST_PACKET_TIMEOUT_MS) {
+                while (!timer.isDone && !stopped) {
+                    val pc = peerConnection ?: break
+                    if (hasSentPackets(pc)) timer.firstPacket() else delay(FIRST_PACKET_POLL_MS)
+                }
+            }
+        }
+    }
+
+    private suspend fun hasSentPackets(pc: PeerConnection): Boolean = suspendCancellableCoroutine { cont ->
+        pc.getStats { report ->
+            cont.resume(report.statsMap.values.any {
+                it.type == "outbound-rtp" && ((it.members["packetsSent"] as? Number)?.toLong() ?: 0L) > 0L
+            })
+        }
+    }
+
+    // Stub SdpObserver to reduce boilerplate in inline objects
+    interface SimpleSdpObserver : SdpObserver {
+        override fun onCreateSuccess(p0: SessionDescription?) {}
+        override fun onSetSuccess() {}
+        override fun onCreateFailure(p0: String?) {}
+        override fun onSetFailure(p0: String?) {}
+    }
+
+    companion object {
+        private const val TAG = "WhipDestination"
+        private const val DELETE_TIMEOUT_MS = 2_000L
+        private const val FIRST_PACKET_POLL_MS = 50L
+        private const val FIRST_PACKET_TIMEOUT_MS = 15_000L
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.whiper
+
+import android.os.Process
+import android.os.SystemClock
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import okhttp3.OkHttpClient
+
+// Publishes the one capture to several WHIP endpoints. Every destination is its own
+// [WhipDestination] (PeerConnection, recovery, ABR) on the shared factory and tracks, so a platform
+// that drops out is reconnected or removed without touching the others. The service only stops
+// once the last destination has failed.
+//
+// libwebrtc still runs one encoder per PeerConnection: capture, scaling and the texture pipeline
+// are shared, encoding and packetization are not. The health loop logs the process CPU next to the
+// destination count so the cost of each extra destination can be read off a device.
+class WhipFanout(
+    private val media: SharedMedia,
+    private val httpClient: OkHttpClient,
+    private val scope: CoroutineScope,
+    private val onAllFailed: () -> Unit,
+    private val healthIntervalMs: Long = 2_000L
+) {
+
+    private val destinations = ArrayList<WhipDestination>()
+    private val samplers = HashMap<WhipDestination, DestinationStatsSampler>()
+    private var healthJob: Job? = null
+
+    private var prevCpuMs = 0L
+    private var prevWallMs = 0L
+
+    // Main thread.
+    fun add(config: DestinationConfig, goLive: GoLiveTimer? = null) {
+        val destination = WhipDestination(config, media, httpClient, scope, goLive) { onFailed(it) }
+        destinations.add(destination)
+        samplers[destination] = DestinationStatsSampler(config.name, media.videoFps)
+        Log.i(TAG, "Publishing to ${config.name} (${destinations.size} destinations)")
+        destination.start()
+        if (healthJob == null) startHealth()
+    }
+
+    // Main thread.
+    fun stop() {
+        healthJob?.cancel()
+        healthJob = null
+        destinations.forEach { it.stop() }
+        destinations.clear()
+        samplers.clear()
+        _status.value = emptyList()
+    }
+
+    private fun onFailed(destination: WhipDestination) {
+        if (!destinations.remove(destination)) return
+        samplers.remove(destination)
+        destination.stop()
+        Log.w(TAG, "Destination ${destination.config.name} failed; ${destinations.size} left")
+        if (destinations.isEmpty()) {
+            onAllFailed()
+        } else {
+            _status.value = _status.value.filter { it.name != destination.config.name }
+        }
+    }
+
+    private fun startHealth() {
+        prevCpuMs = Process.getElapsedCpuTime()
+        prevWallMs = SystemClock.elapsedRealtime()
+        healthJob = scope.launch(Dispatchers.Main) {
+            while (isActive) {
+                delay(healthIntervalMs)
+                sampleHealth()
+            }
+        }
+    }
+
+    private fun sampleHealth() {
+        val snapshot = destinations.toList()
+        val results = arrayOfNulls<DestinationHealth>(snapshot.size)
+        var pending = snapshot.size
+        snapshot.forEachIndexed { i, destination ->
+            val pc = destination.peerConnection
+            val sampler = samplers[destination]
+            if (pc == null || sampler == null) {
+                results[i] = DestinationHealth(destination.config.name, "CONNECTING", null, null, null, null, null)
+                pending--
+                return@forEachIndexed
+            }
+            pc.getStats { report ->
+                scope.launch(Dispatchers.Main) {
+                    if (healthJob == null) return@launch
+                    // A destination removed since the round started gets no row, but still completes the round.
+                    if (destination in destinations) {
+                        val state = destination.recoveryState?.name ?: "CONNECTING"
+                        results[i] = sampler.sample(report, state)
+                    }
+                    if (--pending == 0) publish(results.filterNotNull())
+                }
+            }
+        }
+        if (pending == 0) publish(results.filterNotNull())
+    }
+
+    private fun publish(health: List<DestinationHealth>) {
+        _status.value = health
+
+        // Process CPU relative to one core; compare runs with 1, 2, 3 destinations on the same source.
+        val cpuMs = Process.getElapsedCpuTime()
+        val wallMs = SystemClock.elapsedRealtime()
+        val cpuPercent = if (wallMs > prevWallMs) (cpuMs - prevCpuMs) * 100 / (wallMs - prevWallMs) else 0L
+        prevCpuMs = cpuMs
+        prevWallMs = wallMs
+        Log.i(
+            TAG,
+            "destinations=${health.size} cpu=$cpuPercent% " + health.joinToString(" ") {
+                "[${it.name} ${it.state} sent=${it.sentBitrateBps} target=${it.targetBitrateBps} rtt=${it.rttMs} lost=${it.packetsLost} fps=${it.framesPerSecond}/${it.requestedFps}]"
+            }
+        )
+    }
+
+    companion object {
+        private const val TAG = "WhipFanout"
+
+        private val _status = MutableStateFlow<List<DestinationHealth>>(emptyList())
+
+        // Latest health of every live destination, for MainActivity.
+        val status: StateFlow<List<DestinationHealth>> = _status
+    }
+}
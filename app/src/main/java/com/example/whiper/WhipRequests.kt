@@ -0,0 +1,82 @@
+package com.example.whiper
+
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.Request
+import okhttp3.RequestBody.Companion.toRequestBody
+import org.webrtc.IceCandidate
+
+// HTTP requests of the WHIP session: the offer POST, the trickle / ICE restart PATCHes, the HEAD
+// that re-reads a resource's ETag and the DELETE that ends a resource.
+//
+// Deliberately free of android.* so it can be exercised on a plain JVM.
+object WhipRequests {
+
+    private const val SDP_CONTENT_TYPE = "application/sdp"
+    private const val SDPFRAG_CONTENT_TYPE = "application/trickle-ice-sdpfrag"
+    private val SDP_MEDIA_TYPE = SDP_CONTENT_TYPE.toMediaType()
+    private val SDPFRAG_MEDIA_TYPE = SDPFRAG_CONTENT_TYPE.toMediaType()
+
+    // The stream key is appended to the endpoint URL ("url followed by stream key") instead of
+    // being sent as a bearer token; some servers strictly prefer one or the other.
+    fun endpointUrl(whipUrl: String, token: String?): String =
+        if (!token.isNullOrEmpty()) {
+            if (whipUrl.endsWith("/")) "$whipUrl$token" else "$whipUrl/$token"
+        } else {
+            whipUrl
+        }
+
+    fun offer(endpointUrl: String, sdp: String): Request =
+        Request.Builder()
+            .url(endpointUrl)
+            .post(sdp.toRequestBody(SDP_MEDIA_TYPE))
+            .addHeader("Content-Type", SDP_CONTENT_TYPE)
+            .build()
+
+    fun patch(resourceUrl: String, sdpFrag: String, ifMatch: String?): Request {
+        val builder = Request.Builder()
+            .url(resourceUrl)
+            .patch(sdpFrag.toRequestBody(SDPFRAG_MEDIA_TYPE))
+            .addHeader("Content-Type", SDPFRAG_CONTENT_TYPE)
+        if (ifMatch != null) {
+            builder.addHeader("If-Match", ifMatch)
+        }
+        return builder.build()
+    }
+
+    fun head(resourceUrl: String): Request =
+        Request.Builder()
+            .url(resourceUrl)
+            .head()
+            .build()
+
+    fun delete(resourceUrl: String): Request =
+        Request.Builder()
+            .url(resourceUrl)
+            .delete()
+            .build()
+
+    fun sdpFrag(ufrag: String?, pwd: String?, candidates: List<IceCandidate>, endOfCandidates: Boolean): String {
+        val sb = StringBuilder(128 + candidates.size * 96)
+        if (ufrag != null) sb.append("a=ice-ufrag:").append(ufrag).append("\r\n")
+        if (pwd != null) sb.append("a=ice-pwd:").append(pwd).append("\r\n")
+
+        // Group by mid; with BUNDLE this is normally a single media section.
+        val byMid = LinkedHashMap<String, MutableList<IceCandidate>>(2)
+        for (c in candidates) {
+            byMid.getOrPut(c.sdpMid ?: c.sdpMLineIndex.toString()) { ArrayList(4) }.add(c)
+        }
+        if (byMid.isEmpty() && endOfCandidates) {
+            byMid["0"] = ArrayList(0)
+        }
+        for ((mid, list) in byMid) {
+            sb.append("m=audio 9 RTP/AVP 0\r\n")
+            sb.append("a=mid:").append(mid).append("\r\n")
+            for (c in list) {
+                val line = c.sdp
+                sb.append(if (line.startsWith("a=")) line else "a=$line").append("\r\n")
+            }
+            if (endOfCandidates) sb.append("a=end-of-candidates\r\n")
+        }
+        return sb.toString()
+    }
+}
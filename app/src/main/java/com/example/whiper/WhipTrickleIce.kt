@@ -0,0 +1,281 @@
+package com.example.whiper
+
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import okhttp3.OkHttpClient
+import org.webrtc.IceCandidate
+import java.io.IOException
+
+// Trickle ICE for WHIP (RFC 8840 sdpfrag over HTTP PATCH to the WHIP resource URL).
+//
+// The offer is POSTed as soon as setLocalDescription succeeds, so almost every candidate is
+// gathered after the POST. Candidates are buffered until the resource URL (Location header of
+// the POST response) is known, then flushed in short batching windows so that a burst of
+// host/srflx/relay candidates becomes a single PATCH instead of one request per candidate.
+//
+// A batch the server did not take (412, 5xx, a network error) goes back to the front of the queue
+// and is retried with exponential backoff; after a 412 the resource's current ETag is re-read
+// first. Only after MAX_RETRIES failures in a row is it given up on.
+class WhipTrickleIce(
+    private val httpClient: OkHttpClient,
+    private val scope: CoroutineScope,
+    private val batchWindowMs: Long = 40L
+) {
+
+    private val lock = Any()
+
+    private var resourceUrl: String? = null
+    private var etag: String? = null
+    private var iceUfrag: String? = null
+    private var icePwd: String? = null
+
+    private val pending = ArrayList<IceCandidate>(8)
+    private var endOfCandidatesPending = false
+    private var flushJob: Job? = null
+
+    // Failed PATCHes in a row; the next flush waits retryDelayMs() instead of the batch window.
+    private var failures = 0
+
+    // Bumped by beginIceRestart, so a batch of the old generation that failed is not requeued.
+    private var generation = 0
+
+    // A PATCH is on the wire. Only one trickle PATCH is in flight at a time so the server sees the
+    // candidates in order and every request carries the ETag of the previous one; whatever arrives
+    // meanwhile goes out in the next batch once it returns.
+    private var flushing = false
+
+    // Set once the server answers with 405/501: it does not accept trickle, stop trying.
+    private var unsupported = false
+    private var closed = false
+
+    // Candidates of the new ICE generation are held back until the server has accepted the restart.
+    private var restartInFlight = false
+
+    fun setLocalDescription(sdp: String) {
+        val doc = SdpDocument.parse(sdp)
+        synchronized(lock) {
+            iceUfrag = doc.attribute("ice-ufrag")
+            icePwd = doc.attribute("ice-pwd")
+        }
+    }
+
+    // The WHIP resource URL, once the POST has returned one.
+    val resource: String? get() = synchronized(lock) { resourceUrl }
+
+    // False once the server has answered a PATCH with 405/501; it cannot ICE-restart in place either.
+    val patchSupported: Boolean get() = synchronized(lock) { !unsupported }
+
+    fun setResource(url: String, etag: String?) {
+        synchronized(lock) {
+            resourceUrl = url
+            this.etag = etag
+            scheduleFlushLocked()
+        }
+        Log.i(TAG, "WHIP resource=$url etag=$etag")
+    }
+
+    fun addCandidate(candidate: IceCandidate) {
+        synchronized(lock) {
+            if (closed || unsupported) return
+            pending.add(candidate)
+            scheduleFlushLocked()
+        }
+    }
+
+    fun endOfCandidates() {
+        synchronized(lock) {
+            if (closed || unsupported) return
+            endOfCandidatesPending = true
+            scheduleFlushLocked()
+        }
+    }
+
+    // Called before the ICE restart offer is applied, since applying it starts gathering the new
+    // generation: drop anything queued for the old one, switch to the new ice-ufrag/ice-pwd and hold
+    // flushes until requestIceRestart has told the server about them.
+    fun beginIceRestart(localSdp: String) {
+        val doc = SdpDocument.parse(localSdp)
+        synchronized(lock) {
+            iceUfrag = doc.attribute("ice-ufrag")
+            icePwd = doc.attribute("ice-pwd")
+            restartInFlight = true
+            generation++
+            failures = 0
+            pending.clear()
+            endOfCandidatesPending = false
+            flushJob?.cancel()
+            flushJob = null
+        }
+    }
+
+    // The restart offer was not applied: the old generation (in [localSdp]) stays current.
+    fun cancelIceRestart(localSdp: String?) {
+        if (localSdp != null) setLocalDescription(localSdp)
+        synchronized(lock) {
+            restartInFlight = false
+            scheduleFlushLocked()
+        }
+    }
+
+    // WHIP ICE restart: PATCH the new local ice-ufrag/ice-pwd (installed by beginIceRestart) with
+    // If-Match: "*". Returns the server's sdpfrag (its new credentials and candidates), or null when
+    // the resource cannot be restarted in place and the caller has to re-POST a fresh session.
+    // Blocking; call from an IO dispatcher.
+    @Throws(IOException::class)
+    fun requestIceRestart(localSdp: String): String? {
+        val doc = SdpDocument.parse(localSdp)
+        val url: String
+        val frag: String
+        synchronized(lock) {
+            val resource = resourceUrl
+            if (closed || unsupported || resource == null) {
+                restartInFlight = false
+                return null
+            }
+            url = resource
+            restartInFlight = true
+            val mid = doc.mediaSections.firstOrNull()?.attribute("mid") ?: "0"
+            frag = WhipRequests.sdpFrag(iceUfrag, icePwd, emptyList(), false) + "m=audio 9 RTP/AVP 0\r\na=mid:$mid\r\n"
+        }
+
+        val request = WhipRequests.patch(url, frag, "\"*\"")
+
+        try {
+            httpClient.newCall(request).execute().use { response ->
+                if (!response.isSuccessful) {
+                    Log.w(TAG, "ICE restart PATCH rejected: ${response.code} ${response.message}")
+                    if (response.code == 405 || response.code == 501) {
+                        synchronized(lock) { unsupported = true }
+                    }
+                    return null
+                }
+                val body = response.body?.string()
+                synchronized(lock) {
+                    response.header("ETag")?.let { etag = it }
+                }
+                return if (body.isNullOrEmpty()) null else body
+            }
+        } finally {
+            synchronized(lock) {
+                restartInFlight = false
+                scheduleFlushLocked()
+            }
+        }
+    }
+
+    fun close() {
+        synchronized(lock) {
+            closed = true
+            pending.clear()
+            flushJob?.cancel()
+            flushJob = null
+        }
+    }
+
+    private fun scheduleFlushLocked() {
+        if (resourceUrl == null || restartInFlight || flushing || flushJob?.isActive == true) return
+        if (pending.isEmpty() && !endOfCandidatesPending) return
+        val delayMs = if (failures == 0) batchWindowMs else retryDelayMs(failures)
+        flushJob = scope.launch(Dispatchers.IO) {
+            delay(delayMs)
+            flush()
+        }
+    }
+
+    private fun retryDelayMs(failures: Int): Long =
+        minOf(RETRY_BASE_MS shl (failures - 1), RETRY_MAX_MS)
+
+    private fun flush() {
+        val url: String
+        val ifMatch: String?
+        val frag: String
+        val batch: List<IceCandidate>
+        val batchEnd: Boolean
+        val batchGeneration: Int
+        synchronized(lock) {
+            flushJob = null
+            if (closed || unsupported) return
+            url = resourceUrl ?: return
+            if (pending.isEmpty() && !endOfCandidatesPending) return
+            ifMatch = etag
+            frag = WhipRequests.sdpFrag(iceUfrag, icePwd, pending, endOfCandidatesPending)
+            batch = ArrayList(pending)
+            batchEnd = endOfCandidatesPending
+            batchGeneration = generation
+            pending.clear()
+            endOfCandidatesPending = false
+            flushing = true
+        }
+
+        var delivered = false
+        try {
+            httpClient.newCall(WhipRequests.patch(url, frag, ifMatch)).execute().use { response ->
+                when {
+                    response.isSuccessful -> {
+                        Log.d(TAG, "Trickled ${batch.size} candidate(s): ${response.code}")
+                        delivered = true
+                        synchronized(lock) {
+                            failures = 0
+                            response.header("ETag")?.let { etag = it }
+                        }
+                    }
+                    response.code == 405 || response.code == 501 -> {
+                        Log.w(TAG, "WHIP server does not support trickle ICE (${response.code}); relying on the initial offer")
+                        delivered = true
+                        synchronized(lock) {
+                            unsupported = true
+                            pending.clear()
+                        }
+                    }
+                    response.code == 412 -> {
+                        Log.w(TAG, "Trickle PATCH precondition failed; re-reading the ETag")
+                        val current = response.header("ETag") ?: readEtag(url)
+                        synchronized(lock) { if (current != null) etag = current }
+                    }
+                    else -> Log.w(TAG, "Trickle PATCH failed: ${response.code} ${response.message}")
+                }
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Trickle PATCH network error", e)
+        } finally {
+            synchronized(lock) {
+                if (!delivered) requeueLocked(batch, batchEnd, batchGeneration)
+                flushing = false
+                scheduleFlushLocked()
+            }
+        }
+    }
+
+    // Puts a failed batch back ahead of anything gathered since, unless it is stale or has failed
+    // too often.
+    private fun requeueLocked(batch: List<IceCandidate>, endOfCandidates: Boolean, batchGeneration: Int) {
+        if (closed || unsupported || batchGeneration != generation) return
+        if (++failures > MAX_RETRIES) {
+            Log.e(TAG, "Giving up on ${batch.size} candidate(s) after $MAX_RETRIES retries")
+            failures = 0
+            return
+        }
+        pending.addAll(0, batch)
+        endOfCandidatesPending = endOfCandidatesPending || endOfCandidates
+    }
+
+    // The resource's current ETag, or null if the server does not answer a HEAD with one.
+    private fun readEtag(url: String): String? =
+        try {
+            httpClient.newCall(WhipRequests.head(url)).execute().use { it.header("ETag") }
+        } catch (e: IOException) {
+            Log.w(TAG, "Could not re-read the ETag", e)
+            null
+        }
+
+    companion object {
+        private const val TAG = "WhipTrickleIce"
+        private const val MAX_RETRIES = 5
+        private const val RETRY_BASE_MS = 250L
+        private const val RETRY_MAX_MS = 4_000L
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.whiper
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class AbrPolicyTest {
+
+    private val limits = AbrLimits(minBitrateBps = 500_000, maxBitrateBps = 4_000_000, minFramerate = 15, maxFramerate = 30)
+
+    private fun sample(
+        loss: Double? = 0.0,
+        rttMs: Double? = 50.0,
+        available: Double? = null,
+        limitation: String? = "none"
+    ) = AbrSample(0L, null, available, rttMs, loss, limitation, 30.0, 1280, 720)
+
+    @Test
+    fun cleanLink_increasesBitrateUpToCeiling() {
+        val policy = LossBasedAbrPolicy()
+        var d = AbrDecision(2_000_000, 30, 1.0)
+        d = policy.decide(sample(), d, limits)
+        assertEquals(2_160_000, d.maxBitrateBps)
+
+        repeat(50) { d = policy.decide(sample(), d, limits) }
+        assertEquals(limits.maxBitrateBps, d.maxBitrateBps)
+    }
+
+    @Test
+    fun highLoss_decreasesMultiplicatively() {
+        val d = LossBasedAbrPolicy().decide(sample(loss = 0.2), AbrDecision(2_000_000, 30, 1.0), limits)
+        assertEquals(1_700_000, d.maxBitrateBps)
+        assertEquals(30, d.maxFramerate)
+    }
+
+    @Test
+    fun highRtt_countsAsCongestion() {
+        val d = LossBasedAbrPolicy().decide(sample(rttMs = 600.0), AbrDecision(2_000_000, 30, 1.0), limits)
+        assertEquals(1_700_000, d.maxBitrateBps)
+    }
+
+    @Test
+    fun bandwidthEstimate_isFollowedDown() {
+        val d = LossBasedAbrPolicy().decide(sample(available = 1_500_000.0), AbrDecision(2_000_000, 30, 1.0), limits)
+        assertEquals(1_700_000, d.maxBitrateBps)
+
+        val deep = LossBasedAbrPolicy().decide(sample(available = 2_000_000.0), AbrDecision(2_100_000, 30, 1.0), limits)
+        assertEquals(1_800_000, deep.maxBitrateBps)
+    }
+
+    @Test
+    fun starvingAtFloor_dropsFramerateThenResolution() {
+        val policy = LossBasedAbrPolicy()
+        var d = policy.decide(sample(loss = 0.3), AbrDecision(limits.minBitrateBps, 30, 1.0), limits)
+        assertEquals(limits.minBitrateBps, d.maxBitrateBps)
+        assertEquals(20, d.maxFramerate)
+        assertEquals(1.0, d.scaleResolutionDownBy, 0.0)
+
+        d = policy.decide(sample(loss = 0.3), d, limits)
+        assertEquals(15, d.maxFramerate)
+        d = policy.decide(sample(loss = 0.3), d, limits)
+        assertEquals(15, d.maxFramerate)
+        assertEquals(1.5, d.scaleResolutionDownBy, 1e-9)
+
+        repeat(10) { d = policy.decide(sample(loss = 0.3), d, limits) }
+        assertEquals(limits.maxScaleResolutionDownBy, d.scaleResolutionDownBy, 1e-9)
+    }
+
+    @Test
+    fun cpuLimited_dropsFramerateWithoutTouchingResolution() {
+        val d = LossBasedAbrPolicy().decide(sample(limitation = "cpu"), AbrDecision(2_000_000, 30, 1.0), limits)
+        assertEquals(20, d.maxFramerate)
+        assertEquals(1.0, d.scaleResolutionDownBy, 0.0)
+    }
+
+    @Test
+    fun stableLink_restoresResolutionBeforeFramerate() {
+        val policy = LossBasedAbrPolicy(stableSamplesBeforeUpgrade = 3)
+        var d = AbrDecision(2_000_000, 15, 2.25)
+        repeat(2) { d = policy.decide(sample(), d, limits) }
+        assertEquals(2.25, d.scaleResolutionDownBy, 1e-9)
+
+        d = policy.decide(sample(), d, limits)
+        assertEquals(1.5, d.scaleResolutionDownBy, 1e-9)
+        assertEquals(15, d.maxFramerate)
+
+        repeat(6) { d = policy.decide(sample(), d, limits) }
+        assertEquals(1.0, d.scaleResolutionDownBy, 1e-9)
+        assertEquals(23, d.maxFramerate)
+
+        repeat(3) { d = policy.decide(sample(), d, limits) }
+        assertEquals(30, d.maxFramerate)
+    }
+
+    @Test
+    fun missingStats_areTreatedAsClean() {
+        val d = LossBasedAbrPolicy().decide(sample(loss = null, rttMs = null), AbrDecision(1_000_000, 30, 1.0), limits)
+        assertTrue(d.maxBitrateBps > 1_000_000)
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.whiper
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.webrtc.RTCStats
+import org.webrtc.RTCStatsReport
+
+class DestinationStatsSamplerTest {
+
+    private val sampler = DestinationStatsSampler("primary", requestedFps = 30)
+
+    private fun report(timestampUs: Long, vararg stats: Pair<String, Map<String, Any>>): RTCStatsReport {
+        val map = LinkedHashMap<String, RTCStats>()
+        stats.forEachIndexed { i, (type, members) -> map["S$i"] = RTCStats(timestampUs, type, "S$i", members) }
+        return RTCStatsReport(timestampUs, map)
+    }
+
+    private fun audio(bytesSent: Double) = "outbound-rtp" to mapOf<String, Any>("kind" to "audio", "bytesSent" to bytesSent)
+
+    private fun video(bytesSent: Double, targetBitrate: Double = 1_000_000.0, fps: Double = 30.0) =
+        "outbound-rtp" to mapOf<String, Any>(
+            "kind" to "video", "bytesSent" to bytesSent, "targetBitrate" to targetBitrate, "framesPerSecond" to fps
+        )
+
+    @Test
+    fun firstSample_hasNoSentBitrate() {
+        val h = sampler.sample(report(1_000_000, video(10_000.0)), "CONNECTED")
+        assertNull(h.sentBitrateBps)
+        assertEquals("primary", h.name)
+        assertEquals("CONNECTED", h.state)
+        assertEquals(30, h.requestedFps)
+    }
+
+    @Test
+    fun sentBitrate_countsAudioAndEveryVideoLayer() {
+        sampler.sample(report(1_000_000, audio(1_000.0), video(10_000.0), video(20_000.0)), "CONNECTED")
+        val h = sampler.sample(report(3_000_000, audio(9_000.0), video(110_000.0), video(420_000.0)), "CONNECTED")
+        // (8_000 + 100_000 + 400_000) bytes over two seconds.
+        assertEquals(2_032_000L, h.sentBitrateBps)
+    }
+
+    @Test
+    fun simulcast_sumsTargetsAndReportsTheFastestLayer() {
+        val h = sampler.sample(
+            report(1_000_000, video(0.0, targetBitrate = 200_000.0, fps = 15.0), video(0.0, targetBitrate = 1_300_000.0, fps = 30.0)),
+            "CONNECTED"
+        )
+        assertEquals(1_500_000L, h.targetBitrateBps)
+        assertEquals(30.0, h.framesPerSecond!!, 0.0)
+    }
+
+    @Test
+    fun counterReset_yieldsNoBitrateInsteadOfANegativeOne() {
+        sampler.sample(report(1_000_000, video(500_000.0)), "CONNECTED")
+        val h = sampler.sample(report(3_000_000, video(1_000.0)), "RECOVERING")
+        assertNull(h.sentBitrateBps)
+    }
+
+    @Test
+    fun rtt_prefersVideoRemoteInboundOverTheCandidatePair() {
+        val h = sampler.sample(
+            report(
+                1_000_000,
+                "candidate-pair" to mapOf("nominated" to true, "state" to "succeeded", "currentRoundTripTime" to 0.080),
+                "remote-inbound-rtp" to mapOf("kind" to "audio", "packetsLost" to 2, "roundTripTime" to 0.030),
+                "remote-inbound-rtp" to mapOf("kind" to "video", "packetsLost" to 5, "roundTripTime" to 0.045)
+            ),
+            "CONNECTED"
+        )
+        assertEquals(45L, h.rttMs)
+        assertEquals(7L, h.packetsLost)
+    }
+
+    @Test
+    fun rtt_fallsBackToTheNominatedCandidatePair() {
+        val h = sampler.sample(
+            report(
+                1_000_000,
+                "candidate-pair" to mapOf("nominated" to false, "state" to "succeeded", "currentRoundTripTime" to 0.500),
+                "candidate-pair" to mapOf("nominated" to true, "state" to "succeeded", "currentRoundTripTime" to 0.080)
+            ),
+            "CONNECTED"
+        )
+        assertEquals(80L, h.rttMs)
+        assertNull(h.packetsLost)
+    }
+}
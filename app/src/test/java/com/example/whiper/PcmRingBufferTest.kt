@@ -0,0 +1,109 @@
+package com.example.whiper
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class PcmRingBufferTest {
+
+    private fun ramp(from: Int, count: Int) = ShortArray(count) { (from + it).toShort() }
+
+    @Test
+    fun capacity_isRoundedUpToPowerOfTwo() {
+        val ring = PcmRingBuffer(100)
+        assertEquals(128, ring.write(ramp(0, 200), 0, 200))
+        assertEquals(128, ring.available())
+    }
+
+    @Test
+    fun readsBackWhatWasWritten() {
+        val ring = PcmRingBuffer(16)
+        ring.write(ramp(0, 10), 0, 10)
+        val out = ShortArray(10)
+        assertEquals(10, ring.read(out, 0, 10))
+        assertArrayEquals(ramp(0, 10), out)
+        assertEquals(0, ring.available())
+    }
+
+    @Test
+    fun wrapsAroundTheEnd() {
+        val ring = PcmRingBuffer(8)
+        val out = ShortArray(8)
+        ring.write(ramp(0, 6), 0, 6)
+        ring.read(out, 0, 6)
+
+        assertEquals(8, ring.write(ramp(100, 8), 0, 8))
+        assertEquals(8, ring.read(out, 0, 8))
+        assertArrayEquals(ramp(100, 8), out)
+    }
+
+    @Test
+    fun fullBuffer_dropsTheExcess() {
+        val ring = PcmRingBuffer(8)
+        assertEquals(8, ring.write(ramp(0, 8), 0, 8))
+        assertEquals(0, ring.write(ramp(8, 4), 0, 4))
+        val out = ShortArray(8)
+        ring.read(out, 0, 8)
+        assertArrayEquals(ramp(0, 8), out)
+    }
+
+    @Test
+    fun readMoreThanAvailable_returnsWhatThereIs() {
+        val ring = PcmRingBuffer(8)
+        ring.write(ramp(0, 3), 0, 3)
+        val out = ShortArray(8)
+        assertEquals(3, ring.read(out, 2, 8 - 2))
+        assertEquals(2.toShort(), out[4])
+    }
+
+    @Test
+    fun skip_dropsOldestSamples() {
+        val ring = PcmRingBuffer(16)
+        ring.write(ramp(0, 10), 0, 10)
+        ring.skip(4)
+        val out = ShortArray(6)
+        assertEquals(6, ring.read(out, 0, 6))
+        assertArrayEquals(ramp(4, 6), out)
+
+        ring.skip(100)
+        assertEquals(0, ring.available())
+    }
+
+    @Test
+    fun producerAndConsumerThreads_keepOrder() {
+        val ring = PcmRingBuffer(256)
+        val total = 50_000
+        val producer = Thread {
+            var next = 0
+            val chunk = ShortArray(37)
+            while (next < total) {
+                val n = minOf(chunk.size, total - next)
+                for (i in 0 until n) chunk[i] = (next + i).toShort()
+                next += ring.write(chunk, 0, n)
+            }
+        }
+        producer.start()
+        var expected = 0
+        val out = ShortArray(64)
+        var ordered = true
+        while (expected < total) {
+            val n = ring.read(out, 0, out.size)
+            for (i in 0 until n) if (out[i] != (expected + i).toShort()) ordered = false
+            expected += n
+        }
+        producer.join()
+        assertTrue(ordered)
+    }
+
+    @Test
+    fun resampler_passThroughAndRatio() {
+        assertTrue(LinearResampler(48000, 48000, 2).isPassThrough)
+
+        val down = LinearResampler(48000, 16000, 1)
+        var produced = 0
+        repeat(10) { produced += down.process(ShortArray(480) { 1000 }, 480) }
+        assertEquals(1600, produced)
+        assertEquals(1000.toShort(), down.output[0])
+    }
+}
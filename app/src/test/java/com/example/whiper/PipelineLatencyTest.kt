@@ -0,0 +1,110 @@
+package com.example.whiper
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class PipelineLatencyTest {
+
+    private val probes = PipelineLatencyProbes(logIntervalFrames = Int.MAX_VALUE)
+
+    private fun samples(stage: PipelineLatencyProbes.Stage) = probes.snapshot().first { it.stage == stage }.samples
+
+    // The encoder sees the capture timestamp truncated to microseconds.
+    private fun native(captureNs: Long) = captureNs / 1000 * 1000
+
+    // Timestamp alignment moves it by up to a few milliseconds as well.
+    private fun aligned(captureNs: Long, offsetNs: Long) = native(captureNs + offsetNs)
+
+    @Test
+    fun encoderTimestampsTruncatedToMicroseconds_matchTheDeliveredFrame() {
+        val captureNs = System.nanoTime() / 1000 * 1000 + 789
+        probes.onFrameDelivered(captureNs)
+        probes.onEncodeStart(native(captureNs))
+        probes.onEncoded(native(captureNs))
+
+        assertEquals(1, samples(PipelineLatencyProbes.Stage.DELIVER_TO_ENCODE))
+        assertEquals(1, samples(PipelineLatencyProbes.Stage.ENCODE))
+        assertEquals(1, samples(PipelineLatencyProbes.Stage.CAPTURE_TO_ENCODED))
+        assertEquals(1, probes.maxInFlight)
+    }
+
+    @Test
+    fun everyFrameOfAStreamIsMatched() {
+        val start = System.nanoTime()
+        repeat(100) { i ->
+            val captureNs = start + i * 33_333_333L + 123
+            probes.onFrameDelivered(captureNs)
+            probes.onEncodeStart(native(captureNs))
+            probes.onEncoded(native(captureNs))
+        }
+
+        assertEquals(100, samples(PipelineLatencyProbes.Stage.DELIVER_TO_ENCODE))
+        assertEquals(100, samples(PipelineLatencyProbes.Stage.ENCODE))
+        assertEquals(99, samples(PipelineLatencyProbes.Stage.CAPTURE_INTERVAL))
+        assertEquals(1, probes.maxInFlight)
+    }
+
+    @Test
+    fun droppedFrame_closesItsSlot() {
+        val first = System.nanoTime() + 456
+        probes.onFrameDelivered(first)
+        probes.onEncodeStart(native(first))
+        probes.onEncodeDropped(native(first))
+
+        val second = first + 33_333_333L
+        probes.onFrameDelivered(second)
+        probes.onEncodeStart(native(second))
+        probes.onEncoded(native(second))
+
+        assertEquals(1, probes.encoderDrops)
+        assertEquals(1, samples(PipelineLatencyProbes.Stage.ENCODE))
+        // The dropped frame left the queue, so the second one was encoded alone.
+        assertEquals(1, probes.maxInFlight)
+    }
+
+    @Test
+    fun alignedTimestamps_matchTheDeliveredFramesInOrder() {
+        val start = System.nanoTime()
+        repeat(50) { i ->
+            val captureNs = start + i * 33_333_333L
+            probes.onFrameDelivered(captureNs)
+            val encoderNs = aligned(captureNs, if (i % 2 == 0) 4_000_000L else -3_000_000L)
+            probes.onEncodeStart(encoderNs)
+            probes.onEncoded(encoderNs)
+        }
+
+        assertEquals(50, samples(PipelineLatencyProbes.Stage.DELIVER_TO_ENCODE))
+        assertEquals(50, samples(PipelineLatencyProbes.Stage.ENCODE))
+        assertEquals(1, probes.maxInFlight)
+    }
+
+    @Test
+    fun framesTheSourceDropped_areSkipped() {
+        val start = System.nanoTime()
+        val captures = LongArray(6) { start + it * 16_666_666L }
+        captures.forEach { probes.onFrameDelivered(it) }
+        // The source adapts 60 fps down to 30: every other frame never reaches the encoder.
+        for (i in captures.indices step 2) {
+            val encoderNs = aligned(captures[i], 2_000_000L)
+            probes.onEncodeStart(encoderNs)
+            probes.onEncoded(encoderNs)
+        }
+
+        assertEquals(3, samples(PipelineLatencyProbes.Stage.DELIVER_TO_ENCODE))
+        // The skipped frames left the queue; the next one is matched as usual.
+        val next = start + 6 * 16_666_666L
+        probes.onFrameDelivered(next)
+        probes.onEncodeStart(aligned(next, 1_000_000L))
+        assertEquals(4, samples(PipelineLatencyProbes.Stage.DELIVER_TO_ENCODE))
+    }
+
+    @Test
+    fun frameNeverDelivered_isStillTimedFromEncodeStart() {
+        val captureNs = System.nanoTime()
+        probes.onEncodeStart(native(captureNs))
+        probes.onEncoded(native(captureNs))
+
+        assertEquals(0, samples(PipelineLatencyProbes.Stage.DELIVER_TO_ENCODE))
+        assertEquals(1, samples(PipelineLatencyProbes.Stage.ENCODE))
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.whiper
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class SdpRewritesTest {
+
+    private fun sdp(vararg lines: String): String = lines.joinToString("\r\n", postfix = "\r\n")
+
+    private val offer = sdp(
+        "v=0",
+        "o=- 1 2 IN IP4 127.0.0.1",
+        "s=-",
+        "t=0 0",
+        "a=group:BUNDLE 0 1",
+        "m=audio 9 UDP/TLS/RTP/SAVPF 111 0",
+        "c=IN IP4 0.0.0.0",
+        "a=mid:0",
+        "a=rtpmap:111 opus/48000/2",
+        "a=fmtp:111 minptime=10;useinbandfec=1",
+        "a=rtpmap:0 PCMU/8000",
+        "m=video 9 UDP/TLS/RTP/SAVPF 96 97 102 103",
+        "c=IN IP4 0.0.0.0",
+        "a=mid:1",
+        "a=rtpmap:96 VP8/90000",
+        "a=rtpmap:97 rtx/90000",
+        "a=fmtp:97 apt=96",
+        "a=rtpmap:102 H264/90000",
+        "a=fmtp:102 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f",
+        "a=rtpmap:103 rtx/90000",
+        "a=fmtp:103 apt=102"
+    )
+
+    private class Recorder {
+        val info = ArrayList<String>()
+        val warn = ArrayList<String>()
+
+        fun pipeline(vararg rewrites: SdpRewrite) =
+            SdpRewritePipeline(rewrites.toList(), { info.add(it) }, { warn.add(it) })
+    }
+
+    @Test
+    fun parseSerialize_roundTrips() {
+        assertEquals(offer, SdpDocument.parse(offer).serialize())
+    }
+
+    @Test
+    fun opusMaxAverageBitrate_replacesExistingValue() {
+        val log = Recorder()
+        val once = log.pipeline(SdpRewrites.opusMaxAverageBitrate(32000)).rewrite(offer)
+        val twice = log.pipeline(SdpRewrites.opusMaxAverageBitrate(64000)).rewrite(once)
+
+        val fmtp = SdpDocument.parse(twice).firstMedia("audio")!!.fmtpFor("111")
+        assertEquals("64000", fmtp["maxaveragebitrate"])
+        assertEquals("1", fmtp["useinbandfec"])
+        assertEquals(1, twice.split("maxaveragebitrate").size - 1)
+    }
+
+    @Test
+    fun preferVideoCodec_movesCodecToFront() {
+        val log = Recorder()
+        val out = log.pipeline(SdpRewrites.preferVideoCodec("H264")).rewrite(offer)
+
+        val video = SdpDocument.parse(out).firstMedia("video")!!
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 102 96 97 103", video.mLine())
+        assertTrue(log.warn.isEmpty())
+    }
+
+    @Test
+    fun preferVideoCodec_missingCodecWarnsAndLeavesSdpUnchanged() {
+        val log = Recorder()
+        val out = log.pipeline(SdpRewrites.preferVideoCodec("AV1")).rewrite(offer)
+
+        assertSame(offer, out)
+        assertEquals(1, log.warn.size)
+        assertTrue(log.info.isEmpty())
+    }
+
+    @Test
+    fun restrictVideoCodec_dropsOtherPayloadTypes() {
+        val log = Recorder()
+        val out = log.pipeline(SdpRewrites.restrictVideoCodec("H264")).rewrite(offer)
+
+        val video = SdpDocument.parse(out).firstMedia("video")!!
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 102", video.mLine())
+        assertFalse(out.contains("VP8/90000"))
+        assertFalse(out.contains("apt="))
+        assertTrue(video.hasCodec("H264"))
+    }
+
+    @Test
+    fun restrictVideoCodec_missingCodecWarns() {
+        val log = Recorder()
+        val out = log.pipeline(SdpRewrites.restrictVideoCodec("VP9")).rewrite(offer)
+
+        assertSame(offer, out)
+        assertEquals(1, log.warn.size)
+    }
+
+    @Test
+    fun pipeline_defaultsWarningsToInfo() {
+        val info = ArrayList<String>()
+        SdpRewritePipeline(listOf(SdpRewrites.preferVideoCodec("AV1")), { info.add(it) }).rewrite(offer)
+        assertEquals(1, info.size)
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.whiper
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class SessionRecoveryTest {
+
+    private fun step(answered: Boolean, hasResource: Boolean, patchSupported: Boolean = true, hasLocalOffer: Boolean = true) =
+        SessionRecovery.nextStep(answered, hasResource, patchSupported, hasLocalOffer)
+
+    @Test
+    fun liveResource_restartsIceInPlace() {
+        assertEquals(SessionRecovery.Step.ICE_RESTART, step(answered = true, hasResource = true))
+    }
+
+    @Test
+    fun serverWithoutTrickle_rebuilds() {
+        assertEquals(SessionRecovery.Step.REBUILD, step(answered = true, hasResource = true, patchSupported = false))
+    }
+
+    @Test
+    fun answerWithoutLocation_rebuilds() {
+        assertEquals(SessionRecovery.Step.REBUILD, step(answered = true, hasResource = false))
+    }
+
+    @Test
+    fun failedPost_repostsTheOfferOnEveryLaterAttempt() {
+        // Rebuild, then the POST fails (no answer, no resource): every following attempt retries
+        // the POST instead of tearing the new PeerConnection down again.
+        repeat(3) {
+            assertEquals(SessionRecovery.Step.REPOST_OFFER, step(answered = false, hasResource = false))
+        }
+    }
+
+    @Test
+    fun resourceWithoutAppliedAnswer_rebuilds() {
+        // Re-POSTing would leave the first resource behind; rebuild DELETEs it first.
+        assertEquals(SessionRecovery.Step.REBUILD, step(answered = false, hasResource = true))
+    }
+
+    @Test
+    fun noLocalOffer_rebuilds() {
+        assertEquals(SessionRecovery.Step.REBUILD, step(answered = false, hasResource = false, hasLocalOffer = false))
+    }
+}
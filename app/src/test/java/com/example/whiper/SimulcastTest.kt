@@ -0,0 +1,87 @@
+package com.example.whiper
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.webrtc.RtpParameters
+
+class SimulcastTest {
+
+    private val encodings = Simulcast.sendEncodings()
+
+    private fun layer(rid: String) = encodings.first { it.rid == rid }
+
+    @Test
+    fun sendEncodings_areLowestFirst() {
+        assertEquals(listOf("q", "h", "f"), encodings.map { it.rid })
+        assertEquals(listOf(4.0, 2.0, 1.0), encodings.map { it.scaleResolutionDownBy })
+    }
+
+    @Test
+    fun fullResolution_splitsTheBudgetByShare() {
+        Simulcast.applyLayerCaps(encodings, 2_000_000, 500_000, 30)
+
+        assertTrue(encodings.all { it.active })
+        assertEquals(200_000, layer("q").maxBitrateBps)
+        assertEquals(500_000, layer("h").maxBitrateBps)
+        assertEquals(1_300_000, layer("f").maxBitrateBps)
+        assertEquals(50_000, layer("q").minBitrateBps)
+        assertEquals(325_000, layer("f").minBitrateBps)
+    }
+
+    @Test
+    fun quarterLayer_isCappedAt15Fps() {
+        Simulcast.applyLayerCaps(encodings, 2_000_000, 0, 30)
+
+        assertEquals(15, layer("q").maxFramerate)
+        assertEquals(30, layer("h").maxFramerate)
+        assertEquals(30, layer("f").maxFramerate)
+    }
+
+    @Test
+    fun downscale_switchesOffTheTopLayersAndGivesTheirShareToTheRest() {
+        Simulcast.applyLayerCaps(encodings, 1_000_000, 0, 30, scaleResolutionDownBy = 3.0)
+
+        assertFalse(layer("f").active)
+        assertTrue(layer("h").active)
+        assertTrue(layer("q").active)
+        // q and h keep their 10:25 ratio of the whole budget.
+        assertEquals(285_714, layer("q").maxBitrateBps)
+        assertEquals(714_285, layer("h").maxBitrateBps)
+        assertEquals(2.0, layer("h").scaleResolutionDownBy!!, 0.0)
+    }
+
+    @Test
+    fun downscaleBetweenLayers_roundsDownToTheLadder() {
+        Simulcast.applyLayerCaps(encodings, 1_000_000, 0, 30, scaleResolutionDownBy = 1.5)
+
+        assertTrue(encodings.all { it.active })
+    }
+
+    @Test
+    fun deepDownscale_keepsTheLowestLayerOn() {
+        Simulcast.applyLayerCaps(encodings, 1_000_000, 0, 30, scaleResolutionDownBy = 8.0)
+
+        assertEquals(listOf(true, false, false), encodings.map { it.active })
+        assertEquals(1_000_000, layer("q").maxBitrateBps)
+    }
+
+    @Test
+    fun tinyBudget_keepsEveryLayerAboveTheFloor() {
+        Simulcast.applyLayerCaps(encodings, 100_000, 500_000, 30)
+
+        assertEquals(30_000, layer("q").maxBitrateBps)
+        // The floor never exceeds the cap.
+        assertEquals(30_000, layer("q").minBitrateBps)
+    }
+
+    @Test
+    fun unknownRid_isLeftAlone() {
+        val other = RtpParameters.Encoding("x", true, 1.0)
+        Simulcast.applyLayerCaps(listOf(other), 1_000_000, 0, 30, scaleResolutionDownBy = 4.0)
+
+        assertTrue(other.active)
+        assertEquals(null, other.maxBitrateBps)
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.whiper
+
+import okhttp3.Request
+import okio.Buffer
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.webrtc.IceCandidate
+
+class WhipRequestsTest {
+
+    private fun candidate(mid: String?, line: String) = IceCandidate(mid, 0, line)
+
+    private fun Request.bodyText(): String = Buffer().also { body!!.writeTo(it) }.readUtf8()
+
+    @Test
+    fun endpointUrl_appendsTheStreamKeyWithOneSlash() {
+        assertEquals("https://h/whip/key", WhipRequests.endpointUrl("https://h/whip", "key"))
+        assertEquals("https://h/whip/key", WhipRequests.endpointUrl("https://h/whip/", "key"))
+        assertEquals("https://h/whip", WhipRequests.endpointUrl("https://h/whip", ""))
+        assertEquals("https://h/whip", WhipRequests.endpointUrl("https://h/whip", null))
+    }
+
+    @Test
+    fun offer_postsTheSdp() {
+        val request = WhipRequests.offer("https://h/whip", "v=0\r\n")
+        assertEquals("POST", request.method)
+        assertEquals("application/sdp", request.header("Content-Type"))
+        assertEquals("v=0\r\n", request.bodyText())
+    }
+
+    @Test
+    fun patch_sendsIfMatchOnlyWhenKnown() {
+        val withEtag = WhipRequests.patch("https://h/resource/1", "a=end-of-candidates\r\n", "\"e1\"")
+        assertEquals("PATCH", withEtag.method)
+        assertEquals("application/trickle-ice-sdpfrag", withEtag.header("Content-Type"))
+        assertEquals("\"e1\"", withEtag.header("If-Match"))
+
+        assertNull(WhipRequests.patch("https://h/resource/1", "", null).header("If-Match"))
+    }
+
+    @Test
+    fun delete_targetsTheResource() {
+        val request = WhipRequests.delete("https://h/resource/1")
+        assertEquals("DELETE", request.method)
+        assertEquals("https://h/resource/1", request.url.toString())
+    }
+
+    @Test
+    fun head_targetsTheResource() {
+        val request = WhipRequests.head("https://h/resource/1")
+        assertEquals("HEAD", request.method)
+        assertEquals("https://h/resource/1", request.url.toString())
+    }
+
+    @Test
+    fun sdpFrag_groupsCandidatesByMid() {
+        val frag = WhipRequests.sdpFrag(
+            "uf", "pw",
+            listOf(
+                candidate("0", "candidate:1 1 udp 1 10.0.0.1 5000 typ host"),
+                candidate("1", "a=candidate:2 1 udp 1 10.0.0.1 5002 typ host"),
+                candidate("0", "candidate:3 1 udp 1 10.0.0.2 5004 typ host")
+            ),
+            endOfCandidates = false
+        )
+        assertEquals(
+            "a=ice-ufrag:uf\r\na=ice-pwd:pw\r\n" +
+                "m=audio 9 RTP/AVP 0\r\na=mid:0\r\n" +
+                "a=candidate:1 1 udp 1 10.0.0.1 5000 typ host\r\n" +
+                "a=candidate:3 1 udp 1 10.0.0.2 5004 typ host\r\n" +
+                "m=audio 9 RTP/AVP 0\r\na=mid:1\r\n" +
+                "a=candidate:2 1 udp 1 10.0.0.1 5002 typ host\r\n",
+            frag
+        )
+    }
+
+    @Test
+    fun sdpFrag_fallsBackToTheLineIndexWithoutMid() {
+        val frag = WhipRequests.sdpFrag(null, null, listOf(candidate(null, "candidate:1 1 udp 1 10.0.0.1 5000 typ host")), false)
+        assertEquals("m=audio 9 RTP/AVP 0\r\na=mid:0\r\na=candidate:1 1 udp 1 10.0.0.1 5000 typ host\r\n", frag)
+    }
+
+    @Test
+    fun sdpFrag_endOfCandidatesWithoutCandidatesStillNamesASection() {
+        assertEquals(
+            "a=ice-ufrag:uf\r\na=ice-pwd:pw\r\nm=audio 9 RTP/AVP 0\r\na=mid:0\r\na=end-of-candidates\r\n",
+            WhipRequests.sdpFrag("uf", "pw", emptyList(), endOfCandidates = true)
+        )
+    }
+}
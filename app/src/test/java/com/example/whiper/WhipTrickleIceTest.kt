@@ -0,0 +1,158 @@
+package com.example.whiper
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.webrtc.IceCandidate
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class WhipTrickleIceTest {
+
+    private val server = MockWebServer()
+    private val scope = CoroutineScope(SupervisorJob())
+    private val inFlight = AtomicInteger()
+    private val maxInFlight = AtomicInteger()
+
+    @Before
+    fun setUp() {
+        server.dispatcher = object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest): MockResponse {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), ::maxOf)
+                try {
+                    Thread.sleep(SLOW_PATCH_MS)
+                } finally {
+                    inFlight.decrementAndGet()
+                }
+                return MockResponse().setResponseCode(204).setHeader("ETag", "\"e${server.requestCount}\"")
+            }
+        }
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        scope.cancel()
+        server.shutdown()
+    }
+
+    private fun candidate(n: Int) =
+        IceCandidate("0", 0, "candidate:$n 1 udp 2122260223 192.168.1.$n 5000$n typ host")
+
+    private fun takePatch(): RecordedRequest? = server.takeRequest(2, TimeUnit.SECONDS)
+
+    @Test
+    fun flush_isSingleFlightAndSendsLateCandidatesAfterward() {
+        val trickle = WhipTrickleIce(OkHttpClient(), scope, batchWindowMs = 10L)
+        trickle.setLocalDescription("v=0\r\na=ice-ufrag:abcd\r\na=ice-pwd:0123456789abcdefghijkl\r\n")
+        trickle.setResource(server.url("/resource/1").toString(), "\"e0\"")
+
+        trickle.addCandidate(candidate(1))
+        val first = takePatch()
+        assertNotNull(first)
+        // The first PATCH is still on the wire; these must wait for it.
+        trickle.addCandidate(candidate(2))
+        Thread.sleep(50)
+        trickle.addCandidate(candidate(3))
+        trickle.endOfCandidates()
+
+        val second = takePatch()
+        assertNotNull(second)
+        assertNull(server.takeRequest(SLOW_PATCH_MS * 3, TimeUnit.MILLISECONDS))
+
+        assertEquals(1, maxInFlight.get())
+        assertEquals("\"e0\"", first!!.getHeader("If-Match"))
+        assertEquals("\"e1\"", second!!.getHeader("If-Match"))
+        val body = second.body.readUtf8()
+        assertTrue(body.contains("192.168.1.2"))
+        assertTrue(body.contains("192.168.1.3"))
+        assertTrue(body.contains("a=end-of-candidates"))
+        assertEquals("PATCH", second.method)
+        trickle.close()
+    }
+
+    @Test
+    fun candidates_areBufferedUntilResourceIsKnown() {
+        val trickle = WhipTrickleIce(OkHttpClient(), scope, batchWindowMs = 10L)
+        trickle.addCandidate(candidate(1))
+        trickle.addCandidate(candidate(2))
+        assertNull(server.takeRequest(100, TimeUnit.MILLISECONDS))
+
+        trickle.setResource(server.url("/resource/1").toString(), null)
+        val patch = takePatch()
+        assertNotNull(patch)
+        val body = patch!!.body.readUtf8()
+        assertTrue(body.contains("192.168.1.1") && body.contains("192.168.1.2"))
+        assertNull(patch.getHeader("If-Match"))
+        trickle.close()
+    }
+
+    @Test
+    fun failedPatch_isRetriedWithTheSameCandidatesAndAFreshEtag() {
+        val responses = ArrayDeque(
+            listOf(
+                MockResponse().setResponseCode(503),
+                MockResponse().setResponseCode(412).setHeader("ETag", "\"e7\""),
+                MockResponse().setResponseCode(204).setHeader("ETag", "\"e8\"")
+            )
+        )
+        server.dispatcher = object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest): MockResponse =
+                synchronized(responses) { responses.removeFirstOrNull() } ?: MockResponse().setResponseCode(204)
+        }
+        val trickle = WhipTrickleIce(OkHttpClient(), scope, batchWindowMs = 10L)
+        trickle.setResource(server.url("/resource/1").toString(), "\"e0\"")
+        trickle.addCandidate(candidate(1))
+        trickle.endOfCandidates()
+
+        val patches = List(3) { takePatch()!! }
+        assertEquals(listOf("\"e0\"", "\"e0\"", "\"e7\""), patches.map { it.getHeader("If-Match") })
+        for (patch in patches) {
+            val body = patch.body.readUtf8()
+            assertTrue(body.contains("192.168.1.1"))
+            assertTrue(body.contains("a=end-of-candidates"))
+        }
+        assertNull(server.takeRequest(600, TimeUnit.MILLISECONDS))
+        trickle.close()
+    }
+
+    @Test
+    fun iceRestart_holdsNewCandidatesUntilCredentialsAreSent() {
+        val trickle = WhipTrickleIce(OkHttpClient(), scope, batchWindowMs = 10L)
+        trickle.setLocalDescription("v=0\r\na=ice-ufrag:old1\r\na=ice-pwd:oldpassword0123456789ab\r\n")
+        trickle.setResource(server.url("/resource/1").toString(), null)
+
+        val restartOffer = "v=0\r\na=ice-ufrag:new1\r\na=ice-pwd:newpassword0123456789ab\r\nm=audio 9 UDP/TLS/RTP/SAVPF 111\r\na=mid:0\r\n"
+        trickle.beginIceRestart(restartOffer)
+        // Gathering for the new generation starts as soon as the offer is applied.
+        trickle.addCandidate(candidate(7))
+        assertNull(server.takeRequest(100, TimeUnit.MILLISECONDS))
+
+        val answer = trickle.requestIceRestart(restartOffer)
+        val restart = takePatch()!!
+        assertEquals("\"*\"", restart.getHeader("If-Match"))
+        assertTrue(restart.body.readUtf8().contains("a=ice-ufrag:new1"))
+        assertNull(answer)
+
+        val trickled = takePatch()!!.body.readUtf8()
+        assertTrue(trickled.contains("a=ice-ufrag:new1"))
+        assertTrue(trickled.contains("192.168.1.7"))
+        trickle.close()
+    }
+
+    companion object {
+        private const val SLOW_PATCH_MS = 200L
+    }
+}
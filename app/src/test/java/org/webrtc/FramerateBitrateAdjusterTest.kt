@@ -0,0 +1,51 @@
+package org.webrtc
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+// The adjuster is package-private, hence the package.
+class FramerateBitrateAdjusterTest {
+
+    private val adjuster = FramerateBitrateAdjuster()
+
+    @Test
+    fun rateChangesAfterConfiguring_areFoldedIntoTheBitrate() {
+        adjuster.setTargets(2_000_000, 30)
+        adjuster.resetCodecConfigFramerate(60)
+        adjuster.setTargets(2_000_000, 15)
+
+        assertEquals(30, adjuster.codecConfigFramerate)
+        assertEquals(4_000_000, adjuster.adjustedBitrateBps)
+    }
+
+    @Test
+    fun reconfiguringUnderALowerCap_lowersTheConfigRate() {
+        adjuster.setTargets(4_000_000, 60)
+        adjuster.resetCodecConfigFramerate(60)
+        // The size changed and the codec only supports 30 fps at the new one.
+        adjuster.resetCodecConfigFramerate(30)
+
+        assertEquals(30, adjuster.codecConfigFramerate)
+        assertEquals(4_000_000, adjuster.adjustedBitrateBps)
+
+        adjuster.setTargets(4_000_000, 30)
+        assertEquals(4_000_000, adjuster.adjustedBitrateBps)
+    }
+
+    @Test
+    fun reconfiguring_relatchesTheCurrentTargetRate() {
+        adjuster.setTargets(2_000_000, 30)
+        adjuster.resetCodecConfigFramerate(60)
+        adjuster.setTargets(2_000_000, 60)
+        adjuster.resetCodecConfigFramerate(60)
+
+        assertEquals(60, adjuster.codecConfigFramerate)
+        assertEquals(2_000_000, adjuster.adjustedBitrateBps)
+    }
+
+    @Test
+    fun noTargetYet_configuresAtTheInitialRateWithinTheCap() {
+        adjuster.resetCodecConfigFramerate(24)
+        assertEquals(24, adjuster.codecConfigFramerate)
+    }
+}
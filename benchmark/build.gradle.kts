@@ -0,0 +1,55 @@
+plugins {
+    alias(libs.plugins.kotlin.jvm)
+    alias(libs.plugins.jmh)
+}
+
+// JMH benchmarks for the parts of :app that run on a plain JVM (signaling and control-loop code).
+//
+//   ./gradlew :benchmark:jmh
+//
+// Results (average time, latency percentiles and the gc profiler's allocation rate) are written
+// to benchmark/build/results/jmh/results.json.
+
+// The android.*-free sources are compiled straight from :app.
+kotlin {
+    sourceSets.main {
+        kotlin.srcDir("../app/src/main/java")
+        kotlin.include(
+            "com/example/whiper/DestinationStats.kt",
+            "com/example/whiper/Sdp.kt",
+            "com/example/whiper/SenderBitrates.kt",
+            "com/example/whiper/Simulcast.kt",
+            "com/example/whiper/WhipRequests.kt"
+        )
+    }
+}
+
+// The app links WebRTC as an AAR; a JVM module can only use the classes.jar inside it. Only pure
+// Java classes (RtpParameters, RTCStatsReport, IceCandidate, the bitrate adjusters) are exercised, so the native
+// library is never loaded. The classes patched in this repo (app/libs/patched_classes) come first,
+// so the benchmarks measure what the app ships even before the AAR has been repacked with them.
+val webrtcClasses by tasks.registering(Copy::class) {
+    from(zipTree(rootProject.file("app/libs/google-webrtc-1.0.32006-patched.aar"))) {
+        include("classes.jar")
+    }
+    into(layout.buildDirectory.dir("webrtc"))
+}
+
+dependencies {
+    implementation(files(rootProject.file("app/libs/patched_classes")))
+    implementation(files(layout.buildDirectory.file("webrtc/classes.jar")).builtBy(webrtcClasses))
+    implementation("com.squareup.okhttp3:okhttp:4.12.0")
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    benchmarkMode.set(listOf("avgt", "sample"))
+    timeUnit.set("ns")
+    warmupIterations.set(3)
+    warmup.set("1s")
+    iterations.set(5)
+    timeOnIteration.set("1s")
+    fork.set(1)
+    profilers.set(listOf("gc"))
+    resultFormat.set("JSON")
+}
@@ -0,0 +1,161 @@
+package com.example.whiper
+
+// Representative signaling payloads of this app: the libwebrtc offer for one audio and one
+// video sender (every codec the default factories advertise), the answer of a typical WHIP
+// server, and the sdpfrag it returns for an ICE restart.
+object SdpFixtures {
+
+    private fun sdp(vararg lines: String): String = lines.joinToString("\r\n", postfix = "\r\n")
+
+    val OFFER: String = sdp(
+        "v=0",
+        "o=- 4611731400430051336 2 IN IP4 127.0.0.1",
+        "s=-",
+        "t=0 0",
+        "a=group:BUNDLE 0 1",
+        "a=extmap-allow-mixed",
+        "a=msid-semantic: WMS",
+        "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 102 0 8 106 105 13 110 112 113 126",
+        "c=IN IP4 0.0.0.0",
+        "a=rtcp:9 IN IP4 0.0.0.0",
+        "a=ice-ufrag:Fn3R",
+        "a=ice-pwd:8hG2vB0wTEq6a9pXfD5kLm1s",
+        "a=ice-options:trickle renomination",
+        "a=fingerprint:sha-256 5B:2A:9C:1F:6E:84:03:D7:B1:4A:C2:9E:70:58:3D:E6:11:AF:02:94:C8:7B:35:60:DA:1C:8F:4E:B2:07:93:6A",
+        "a=setup:actpass",
+        "a=mid:0",
+        "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level",
+        "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time",
+        "a=extmap:3 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01",
+        "a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid",
+        "a=sendonly",
+        "a=msid:- audio_track",
+        "a=rtcp-mux",
+        "a=rtpmap:111 opus/48000/2",
+        "a=rtcp-fb:111 transport-cc",
+        "a=fmtp:111 minptime=10;useinbandfec=1",
+        "a=rtpmap:103 ISAC/16000",
+        "a=rtpmap:104 ISAC/32000",
+        "a=rtpmap:9 G722/8000",
+        "a=rtpmap:102 ILBC/8000",
+        "a=rtpmap:0 PCMU/8000",
+        "a=rtpmap:8 PCMA/8000",
+        "a=rtpmap:106 CN/32000",
+        "a=rtpmap:105 CN/16000",
+        "a=rtpmap:13 CN/8000",
+        "a=rtpmap:110 telephone-event/48000",
+        "a=rtpmap:112 telephone-event/32000",
+        "a=rtpmap:113 telephone-event/16000",
+        "a=rtpmap:126 telephone-event/8000",
+        "a=ssrc:2390178834 cname:q8vH2uDk3yT1sLwE",
+        "a=ssrc:2390178834 msid:- audio_track",
+        "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 127 124 125",
+        "c=IN IP4 0.0.0.0",
+        "a=rtcp:9 IN IP4 0.0.0.0",
+        "a=ice-ufrag:Fn3R",
+        "a=ice-pwd:8hG2vB0wTEq6a9pXfD5kLm1s",
+        "a=ice-options:trickle renomination",
+        "a=fingerprint:sha-256 5B:2A:9C:1F:6E:84:03:D7:B1:4A:C2:9E:70:58:3D:E6:11:AF:02:94:C8:7B:35:60:DA:1C:8F:4E:B2:07:93:6A",
+        "a=setup:actpass",
+        "a=mid:1",
+        "a=extmap:14 urn:ietf:params:rtp-hdrext:toffset",
+        "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time",
+        "a=extmap:13 urn:3gpp:video-orientation",
+        "a=extmap:3 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01",
+        "a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid",
+        "a=sendonly",
+        "a=msid:- video_track",
+        "a=rtcp-mux",
+        "a=rtcp-rsize",
+        "a=rtpmap:96 VP8/90000",
+        "a=rtcp-fb:96 goog-remb",
+        "a=rtcp-fb:96 transport-cc",
+        "a=rtcp-fb:96 ccm fir",
+        "a=rtcp-fb:96 nack",
+        "a=rtcp-fb:96 nack pli",
+        "a=rtpmap:97 rtx/90000",
+        "a=fmtp:97 apt=96",
+        "a=rtpmap:98 VP9/90000",
+        "a=rtcp-fb:98 goog-remb",
+        "a=rtcp-fb:98 transport-cc",
+        "a=rtcp-fb:98 ccm fir",
+        "a=rtcp-fb:98 nack",
+        "a=rtcp-fb:98 nack pli",
+        "a=fmtp:98 profile-id=0",
+        "a=rtpmap:99 rtx/90000",
+        "a=fmtp:99 apt=98",
+        "a=rtpmap:100 H264/90000",
+        "a=rtcp-fb:100 goog-remb",
+        "a=rtcp-fb:100 transport-cc",
+        "a=rtcp-fb:100 ccm fir",
+        "a=rtcp-fb:100 nack",
+        "a=rtcp-fb:100 nack pli",
+        "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=640c1f",
+        "a=rtpmap:101 rtx/90000",
+        "a=fmtp:101 apt=100",
+        "a=rtpmap:127 red/90000",
+        "a=rtpmap:124 rtx/90000",
+        "a=fmtp:124 apt=127",
+        "a=rtpmap:125 ulpfec/90000",
+        "a=ssrc-group:FID 3561029471 1204963317",
+        "a=ssrc:3561029471 cname:q8vH2uDk3yT1sLwE",
+        "a=ssrc:3561029471 msid:- video_track",
+        "a=ssrc:1204963317 cname:q8vH2uDk3yT1sLwE",
+        "a=ssrc:1204963317 msid:- video_track"
+    )
+
+    val ANSWER: String = sdp(
+        "v=0",
+        "o=- 1714038465 1714038465 IN IP4 0.0.0.0",
+        "s=-",
+        "t=0 0",
+        "a=group:BUNDLE 0 1",
+        "a=ice-lite",
+        "m=audio 9 UDP/TLS/RTP/SAVPF 111",
+        "c=IN IP4 0.0.0.0",
+        "a=ice-ufrag:Xk29",
+        "a=ice-pwd:Zq0rT6uVb3NmY8cW1eLp4sJd",
+        "a=fingerprint:sha-256 0D:77:19:AE:3B:C5:62:F8:94:1E:DB:40:7A:2C:E9:85:56:0B:F3:A1:68:CD:24:9F:B7:13:EA:5D:82:C0:4F:31",
+        "a=setup:passive",
+        "a=mid:0",
+        "a=recvonly",
+        "a=rtcp-mux",
+        "a=rtpmap:111 opus/48000/2",
+        "a=fmtp:111 minptime=10;useinbandfec=1",
+        "a=candidate:1 1 udp 2130706431 203.0.113.10 8189 typ host",
+        "a=end-of-candidates",
+        "m=video 9 UDP/TLS/RTP/SAVPF 96 97 100 101",
+        "c=IN IP4 0.0.0.0",
+        "a=ice-ufrag:Xk29",
+        "a=ice-pwd:Zq0rT6uVb3NmY8cW1eLp4sJd",
+        "a=fingerprint:sha-256 0D:77:19:AE:3B:C5:62:F8:94:1E:DB:40:7A:2C:E9:85:56:0B:F3:A1:68:CD:24:9F:B7:13:EA:5D:82:C0:4F:31",
+        "a=setup:passive",
+        "a=mid:1",
+        "a=recvonly",
+        "a=rtcp-mux",
+        "a=rtcp-rsize",
+        "a=rtpmap:96 VP8/90000",
+        "a=rtcp-fb:96 nack",
+        "a=rtcp-fb:96 nack pli",
+        "a=rtpmap:97 rtx/90000",
+        "a=fmtp:97 apt=96",
+        "a=rtpmap:100 H264/90000",
+        "a=rtcp-fb:100 nack",
+        "a=rtcp-fb:100 nack pli",
+        "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f",
+        "a=rtpmap:101 rtx/90000",
+        "a=fmtp:101 apt=100",
+        "a=candidate:1 1 udp 2130706431 203.0.113.10 8189 typ host",
+        "a=end-of-candidates"
+    )
+
+    val ICE_RESTART_FRAG: String = sdp(
+        "a=ice-ufrag:P7wq",
+        "a=ice-pwd:Hn5cRe2xKt8LbQ0yVm3uAa9z",
+        "m=audio 9 RTP/AVP 0",
+        "a=mid:0",
+        "a=candidate:1 1 udp 2130706431 203.0.113.10 8190 typ host",
+        "a=candidate:2 1 udp 1694498815 198.51.100.7 51012 typ srflx raddr 0.0.0.0 rport 0",
+        "a=end-of-candidates"
+    )
+}
@@ -0,0 +1,32 @@
+package com.example.whiper
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+
+// The SDP munging done for every offer/answer exchange and ICE restart, as StreamService runs it.
+@State(Scope.Thread)
+open class SdpRewriteBenchmark {
+
+    private val offerPipeline = SdpRewritePipeline(
+        listOf(SdpRewrites.opusMaxAverageBitrate(64_000), SdpRewrites.preferVideoCodec("H264"))
+    )
+    private val answerPipeline = SdpRewritePipeline(listOf(SdpRewrites.restrictVideoCodec("H264")))
+
+    @Benchmark
+    fun parseAndSerializeOffer(): String = SdpDocument.parse(SdpFixtures.OFFER).serialize()
+
+    @Benchmark
+    fun rewriteOffer(): String = offerPipeline.rewrite(SdpFixtures.OFFER)
+
+    @Benchmark
+    fun restrictAnswer(): String = answerPipeline.rewrite(SdpFixtures.ANSWER)
+
+    @Benchmark
+    fun iceRestartAnswer(): String =
+        SdpRewritePipeline(listOf(SdpRewrites.iceRestartAnswer(SdpDocument.parse(SdpFixtures.ICE_RESTART_FRAG))))
+            .rewrite(SdpFixtures.ANSWER)
+
+    @Benchmark
+    fun describeVideoSection(): String = SdpRewrites.describeVideoSection(SdpDocument.parse(SdpFixtures.OFFER))
+}
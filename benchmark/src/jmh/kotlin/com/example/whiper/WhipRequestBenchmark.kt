@@ -0,0 +1,29 @@
+package com.example.whiper
+
+import okhttp3.Request
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import org.webrtc.IceCandidate
+
+// Building the WHIP offer POST and a trickle PATCH carrying one gathering burst.
+@State(Scope.Thread)
+open class WhipRequestBenchmark {
+
+    private val endpoint = "https://whip.example.com/live/whip"
+    private val resource = "https://whip.example.com/live/whip/resource/6c2f0a9e"
+    private val candidates = listOf(
+        IceCandidate("0", 0, "candidate:842163049 1 udp 2122260223 192.168.1.23 45012 typ host generation 0 ufrag Fn3R network-id 1"),
+        IceCandidate("0", 0, "candidate:1510613869 1 udp 2122194687 10.0.2.15 38791 typ host generation 0 ufrag Fn3R network-id 2"),
+        IceCandidate("0", 0, "candidate:3356384285 1 udp 1686052607 198.51.100.42 45012 typ srflx raddr 192.168.1.23 rport 45012 generation 0 ufrag Fn3R network-id 1"),
+        IceCandidate("0", 0, "candidate:1839183869 1 tcp 1518280447 192.168.1.23 9 typ host tcptype active generation 0 ufrag Fn3R network-id 1")
+    )
+
+    @Benchmark
+    fun offerRequest(): Request =
+        WhipRequests.offer(WhipRequests.endpointUrl(endpoint, "streamkey-0123456789"), SdpFixtures.OFFER)
+
+    @Benchmark
+    fun trickleRequest(): Request =
+        WhipRequests.patch(resource, WhipRequests.sdpFrag("Fn3R", "8hG2vB0wTEq6a9pXfD5kLm1s", candidates, true), "\"1\"")
+}
@@ -0,0 +1,40 @@
+package org.webrtc
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+
+// reportEncodedFrame runs once per encoded frame on the encoder output thread. The adjusters are
+// package-private, hence the package.
+@State(Scope.Thread)
+open class BitrateAdjusterBenchmark {
+
+    @Param("base", "dynamic", "framerate")
+    @JvmField
+    var adjuster: String = "base"
+
+    private lateinit var bitrateAdjuster: BitrateAdjuster
+
+    // A 2.5 Mbps / 30 fps stream: one key frame followed by delta frames around the target size.
+    private val frameSizes = IntArray(64) { i -> if (i == 0) 60_000 else 8_000 + (i % 7) * 1_000 }
+    private var index = 0
+
+    @Setup
+    fun setUp() {
+        bitrateAdjuster = when (adjuster) {
+            "dynamic" -> DynamicBitrateAdjuster()
+            "framerate" -> FramerateBitrateAdjuster()
+            else -> BaseBitrateAdjuster()
+        }
+        bitrateAdjuster.setTargets(2_500_000, 30)
+    }
+
+    @Benchmark
+    fun reportEncodedFrame(): Int {
+        bitrateAdjuster.reportEncodedFrame(frameSizes[index])
+        index = (index + 1) and (frameSizes.size - 1)
+        return bitrateAdjuster.adjustedBitrateBps
+    }
+}
@@ -0,0 +1,88 @@
+package org.webrtc
+
+import com.example.whiper.DestinationStatsSampler
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.nio.ByteBuffer
+
+// The Java bookkeeping each captured frame costs per WHIP destination. Capture, scaling and the
+// texture pipeline run once; every destination has its own HardwareVideoEncoder, whose per-frame
+// Java work is the output builder, the bitrate adjuster, the EncodedImage (with SPS/PPS prepended
+// into a pooled buffer on H.264 key frames), plus WhipFanout's health sample once per 60 frames.
+// This is not the cost of a destination: that is dominated by its own MediaCodec encode, which does
+// not run on a JVM and is measured from WhipFanout's cpu= log on a device. The adjuster and the
+// pool are package-private, hence the package.
+@State(Scope.Thread)
+open class DestinationCostBenchmark {
+
+    @Param("1", "2", "3")
+    @JvmField
+    var destinations = 1
+
+    private class Encoder(name: String) {
+        val bitrateAdjuster = FramerateBitrateAdjuster()
+        val keyFrameBufferPool = KeyFrameBufferPool(2)
+        val sampler = DestinationStatsSampler(name, 30)
+    }
+
+    private lateinit var encoders: Array<Encoder>
+
+    // A 2.5 Mbps / 30 fps H.264 stream with a key frame every 60 frames.
+    private val configBuffer = ByteBuffer.allocateDirect(32)
+    private val keyFrame = ByteBuffer.allocateDirect(60_000)
+    private val deltaFrame = ByteBuffer.allocateDirect(10_000)
+    private lateinit var report: RTCStatsReport
+    private var frame = 0L
+
+    @Setup
+    fun setUp() {
+        encoders = Array(destinations) { Encoder("d$it") }
+        encoders.forEach { it.bitrateAdjuster.setTargets(2_500_000, 30) }
+        val stats = LinkedHashMap<String, RTCStats>()
+        stats["OV"] = RTCStats(
+            0L, "outbound-rtp", "OV",
+            mapOf("kind" to "video", "bytesSent" to 1_000_000.0, "targetBitrate" to 2_500_000.0, "framesPerSecond" to 30.0)
+        )
+        stats["RIV"] = RTCStats(0L, "remote-inbound-rtp", "RIV", mapOf("kind" to "video", "packetsLost" to 0, "roundTripTime" to 0.04))
+        report = RTCStatsReport(0L, stats)
+    }
+
+    @Benchmark
+    fun frame(bh: Blackhole) {
+        val index = frame++
+        val isKeyFrame = index % 60 == 0L
+        for (e in encoders) {
+            val builder = EncodedImage.builder()
+                .setCaptureTimeNs(index * 33_333_333L)
+                .setCompleteFrame(true)
+                .setEncodedWidth(1280)
+                .setEncodedHeight(720)
+                .setRotation(0)
+            val output = if (isKeyFrame) keyFrame else deltaFrame
+            output.clear()
+            e.bitrateAdjuster.reportEncodedFrame(output.remaining())
+            bh.consume(e.bitrateAdjuster.adjustedBitrateBps)
+            val image = if (isKeyFrame) {
+                val buffer = e.keyFrameBufferPool.acquire(output.remaining() + configBuffer.capacity())
+                configBuffer.rewind()
+                buffer.put(configBuffer)
+                buffer.put(output)
+                buffer.rewind()
+                builder.setBuffer(buffer) { e.keyFrameBufferPool.recycle(buffer) }
+                    .setFrameType(EncodedImage.FrameType.VideoFrameKey)
+                    .createEncodedImage()
+            } else {
+                builder.setBuffer(output.slice(), null)
+                    .setFrameType(EncodedImage.FrameType.VideoFrameDelta)
+                    .createEncodedImage()
+            }
+            bh.consume(image)
+            image.release()
+            if (index % 60 == 30L) bh.consume(e.sampler.sample(report, "CONNECTED"))
+        }
+    }
+}
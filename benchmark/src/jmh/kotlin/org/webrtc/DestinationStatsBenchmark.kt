@@ -0,0 +1,61 @@
+package org.webrtc
+
+import com.example.whiper.DestinationStatsSampler
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+
+// The per-destination health sample WhipFanout takes every two seconds, on reports shaped like
+// the ones libwebrtc returns for a publish-only PeerConnection (audio, video or three simulcast
+// layers, transport and candidate pair). RTCStatsReport is normally only created by native code,
+// hence the package.
+@State(Scope.Thread)
+open class DestinationStatsBenchmark {
+
+    @Param("1", "3")
+    @JvmField
+    var videoLayers = 1
+
+    private lateinit var reports: Array<RTCStatsReport>
+    private val sampler = DestinationStatsSampler("bench")
+    private var step = 0
+
+    @Setup
+    fun setUp() {
+        reports = Array(16) { i -> report(1_000_000L * (i + 1), 250_000.0 * (i + 1)) }
+    }
+
+    private fun report(timestampUs: Long, bytesSent: Double): RTCStatsReport {
+        val stats = LinkedHashMap<String, RTCStats>()
+        fun add(type: String, id: String, members: Map<String, Any>) {
+            stats[id] = RTCStats(timestampUs, type, id, members)
+        }
+        add("outbound-rtp", "OA", mapOf("kind" to "audio", "bytesSent" to bytesSent / 40, "packetsSent" to 50L))
+        for (layer in 0 until videoLayers) {
+            add(
+                "outbound-rtp", "OV$layer",
+                mapOf(
+                    "kind" to "video", "bytesSent" to bytesSent / videoLayers, "packetsSent" to 300L,
+                    "targetBitrate" to 2_000_000.0 / videoLayers, "framesPerSecond" to 30.0
+                )
+            )
+        }
+        add("remote-inbound-rtp", "RIA", mapOf("kind" to "audio", "packetsLost" to 0, "roundTripTime" to 0.04))
+        add("remote-inbound-rtp", "RIV", mapOf("kind" to "video", "packetsLost" to 3, "roundTripTime" to 0.04))
+        add("transport", "T0", mapOf("bytesSent" to bytesSent, "selectedCandidatePairId" to "CP0"))
+        add(
+            "candidate-pair", "CP0",
+            mapOf("nominated" to true, "state" to "succeeded", "currentRoundTripTime" to 0.04, "availableOutgoingBitrate" to 3_000_000.0)
+        )
+        add("media-source", "MS0", mapOf("kind" to "video", "width" to 1280L, "height" to 720L, "framesPerSecond" to 30.0))
+        return RTCStatsReport(timestampUs, stats)
+    }
+
+    @Benchmark
+    fun sample(): Any {
+        step = (step + 1) and 15
+        return sampler.sample(reports[step], "CONNECTED")
+    }
+}
@@ -0,0 +1,43 @@
+package org.webrtc
+
+import com.example.whiper.SenderBitrates
+import com.example.whiper.Simulcast
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+
+// The encoding update applied to both senders on every ABR step. RtpParameters is normally only
+// created by native code, hence the package.
+@State(Scope.Thread)
+open class SenderBitratesBenchmark {
+
+    private val video = RtpParameters(
+        "video-0", RtpParameters.DegradationPreference.MAINTAIN_RESOLUTION, null, emptyList(),
+        listOf(RtpParameters.Encoding(null, true, null)), emptyList()
+    )
+    private val simulcastVideo = RtpParameters(
+        "video-1", RtpParameters.DegradationPreference.MAINTAIN_RESOLUTION, null, emptyList(),
+        Simulcast.sendEncodings(), emptyList()
+    )
+    private val audio = RtpParameters(
+        "audio-0", null, null, emptyList(),
+        listOf(RtpParameters.Encoding(null, true, null)), emptyList()
+    )
+    private var step = 0
+
+    @Benchmark
+    fun applyVideo(): Boolean {
+        step = (step + 1) and 15
+        return SenderBitrates.apply(video, MediaStreamTrack.VIDEO_TRACK_KIND, 1_000 + step * 100, 300_000, 30, 64)
+    }
+
+    @Benchmark
+    fun applySimulcastVideo(): Boolean {
+        step = (step + 1) and 15
+        return SenderBitrates.apply(simulcastVideo, MediaStreamTrack.VIDEO_TRACK_KIND, 1_000 + step * 100, 300_000, 30, 64)
+    }
+
+    @Benchmark
+    fun applyAudio(): Boolean =
+        SenderBitrates.apply(audio, MediaStreamTrack.AUDIO_TRACK_KIND, 2_500, 300_000, 30, 64)
+}
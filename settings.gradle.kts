@@ -23,3 +23,4 @@ dependencyResolutionManagement {
 
 rootProject.name = "ffmpegTool"
 include(":app")
+include(":benchmark")